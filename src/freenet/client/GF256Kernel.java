@@ -0,0 +1,141 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+/**
+ * Arithmetic over GF(2^8) for the FEC codec, using the same field as the onion FEC library
+ * (x^8 + x^4 + x^3 + x^2 + 1). The expensive part of both encoding and decoding is multiplying
+ * a small matrix of coefficients by a set of blocks, which we do a whole range of bytes at a
+ * time for each coefficient, with one row of a full multiplication table, rather than one byte
+ * at a time with log/exp lookups as PureCode does.
+ */
+final class GF256Kernel {
+
+    static final int POLYNOMIAL = 0x11d;
+
+    private static final int[] EXP = new int[510];
+    private static final int[] LOG = new int[256];
+    /** MUL[a][b] = a * b. 64KB, and each multiply-accumulate only touches one row. */
+    private static final byte[][] MUL = new byte[256][256];
+
+    static {
+        int x = 1;
+        for(int i=0;i<255;i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if((x & 0x100) != 0) x ^= POLYNOMIAL;
+        }
+        for(int i=255;i<EXP.length;i++)
+            EXP[i] = EXP[i-255];
+        for(int a=1;a<256;a++)
+            for(int b=1;b<256;b++)
+                MUL[a][b] = (byte) EXP[LOG[a] + LOG[b]];
+    }
+
+    private GF256Kernel() {
+    }
+
+    static int mul(int a, int b) {
+        return MUL[a][b] & 0xff;
+    }
+
+    static int inverse(int a) {
+        if(a == 0) throw new ArithmeticException();
+        return EXP[255 - LOG[a]];
+    }
+
+    /** @return The inverse of a square matrix, by Gauss-Jordan elimination.
+     * @throws IllegalArgumentException If the matrix is singular. */
+    static byte[][] invert(byte[][] matrix) {
+        int size = matrix.length;
+        byte[][] a = new byte[size][];
+        byte[][] inv = new byte[size][size];
+        for(int i=0;i<size;i++) {
+            a[i] = matrix[i].clone();
+            inv[i][i] = 1;
+        }
+        for(int col=0;col<size;col++) {
+            int pivot = col;
+            while(pivot < size && a[pivot][col] == 0) pivot++;
+            if(pivot == size) throw new IllegalArgumentException("Singular matrix");
+            byte[] t = a[pivot]; a[pivot] = a[col]; a[col] = t;
+            t = inv[pivot]; inv[pivot] = inv[col]; inv[col] = t;
+            int c = inverse(a[col][col] & 0xff);
+            scale(a[col], c);
+            scale(inv[col], c);
+            for(int row=0;row<size;row++) {
+                if(row == col) continue;
+                int f = a[row][col] & 0xff;
+                if(f == 0) continue;
+                mulAdd(a[row], a[col], 0, size, f);
+                mulAdd(inv[row], inv[col], 0, size, f);
+            }
+        }
+        return inv;
+    }
+
+    private static void scale(byte[] row, int c) {
+        byte[] table = MUL[c];
+        for(int i=0;i<row.length;i++)
+            row[i] = table[row[i] & 0xff];
+    }
+
+    /** dst[off, off+len) ^= c * src[off, off+len) */
+    static void mulAdd(byte[] dst, byte[] src, int off, int len, int c) {
+        if(c == 0) return;
+        int end = off + len;
+        if(c == 1) {
+            for(int i=off;i<end;i++)
+                dst[i] ^= src[i];
+            return;
+        }
+        byte[] table = MUL[c];
+        for(int i=off;i<end;i++)
+            dst[i] ^= table[src[i] & 0xff];
+    }
+
+    /** dst[off, off+len) = c * src[off, off+len) */
+    static void mul(byte[] dst, byte[] src, int off, int len, int c) {
+        if(c == 1) {
+            System.arraycopy(src, off, dst, off, len);
+            return;
+        }
+        int end = off + len;
+        byte[] table = MUL[c];
+        for(int i=off;i<end;i++)
+            dst[i] = table[src[i] & 0xff];
+    }
+
+    /**
+     * Multiply a range of each block by a matrix of coefficients.
+     * @param matrix One row for each output block, one column for each input block.
+     * @param in The input blocks.
+     * @param out The output blocks. Must not be any of the input blocks.
+     * @param off The start of the range, in each block.
+     * @param len The length of the range.
+     */
+    static void multiply(byte[][] matrix, byte[][] in, byte[][] out, int off, int len) {
+        for(int r=0;r<matrix.length;r++) {
+            byte[] row = matrix[r];
+            byte[] dst = out[r];
+            boolean first = true;
+            for(int j=0;j<in.length;j++) {
+                int c = row[j] & 0xff;
+                if(c == 0) continue;
+                if(first) {
+                    mul(dst, in[j], off, len, c);
+                    first = false;
+                } else {
+                    mulAdd(dst, in[j], off, len, c);
+                }
+            }
+            if(first) {
+                for(int i=off;i<off+len;i++)
+                    dst[i] = 0;
+            }
+        }
+    }
+
+}
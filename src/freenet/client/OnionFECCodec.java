@@ -1,25 +1,127 @@
 package freenet.client;
 
 import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.onionnetworks.fec.PureCode;
 import com.onionnetworks.util.Buffer;
 
 import freenet.client.InsertContext.CompatibilityMode;
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
 import freenet.support.LRUMap;
+import freenet.support.Logger;
+import freenet.support.MemoryLimitedJobRunner;
 
+/**
+ * Reed-Solomon FEC compatible with the onion FEC library. We use the library's PureCode to build 
+ * the encoding matrix for each segment size, but do the block arithmetic ourselves, see 
+ * GF256Kernel: a range of bytes at a time, a few KB of each block at a time so the inputs stay in
+ * the CPU cache, and optionally split across helper threads. If the kernel ever disagrees with 
+ * PureCode we fall back to PureCode for that segment size.
+ */
 public class OnionFECCodec extends FECCodec {
 
+    private static volatile boolean logMINOR;
+    static {
+        Logger.registerClass(OnionFECCodec.class);
+    }
+
+    /** Each thread works on this many bytes of every block at a time. */
+    static final int STRIDE = 2048;
+    /** Bytes of each block to check the kernel against PureCode with. */
+    private static final int CHECK_LENGTH = 64;
+
+    /** Runs the helper threads. If null we only use the calling thread. */
+    private static Executor executor;
+    /** Maximum number of helper threads, shared by all FEC jobs. */
+    private static int maxHelperThreads;
+    private static int runningHelperThreads;
+
     @Override
     public void decode(byte[][] dataBlocks, byte[][] checkBlocks, boolean[] dataBlocksPresent, boolean[] checkBlocksPresent, int blockLength) {
         int k = dataBlocks.length;
         int n = dataBlocks.length + checkBlocks.length;
-        PureCode codec = getCodec(k, n);
+        for(int i=0;i<dataBlocks.length;i++) {
+            if(dataBlocks[i].length != blockLength) throw new IllegalArgumentException();
+        }
+        Code code = getCodec(k, n);
+        if(code.encodeMatrix == null) {
+            decodePure(code.pure, dataBlocks, checkBlocks, dataBlocksPresent, checkBlocksPresent, blockLength);
+            return;
+        }
+        int missing = 0;
+        for(int i=0;i<k;i++)
+            if(!dataBlocksPresent[i]) missing++;
+        if(missing == 0) return;
+        // Which data blocks we are decoding, and which check blocks we are decoding them from.
+        int[] targets = new int[missing];
+        int[] sources = new int[missing];
+        int x = 0;
+        for(int i=0;i<k;i++)
+            if(!dataBlocksPresent[i]) targets[x++] = i;
+        x = 0;
+        for(int i=0;i<checkBlocks.length && x < missing;i++) {
+            if(!checkBlocksPresent[i]) continue;
+            if(checkBlocks[i].length != blockLength) throw new IllegalArgumentException();
+            sources[x++] = i;
+        }
+        if(x < missing) throw new IllegalArgumentException("Not enough blocks to decode");
+        byte[][] matrix = createDecodeMatrix(code.encodeMatrix, dataBlocksPresent, targets, sources);
+        // The inputs are the data blocks we have, followed by the check blocks.
+        byte[][] in = new byte[k][];
+        x = 0;
+        for(int i=0;i<k;i++)
+            if(dataBlocksPresent[i]) in[x++] = dataBlocks[i];
+        for(int i=0;i<missing;i++)
+            in[x++] = checkBlocks[sources[i]];
+        byte[][] out = new byte[missing][];
+        for(int i=0;i<missing;i++)
+            out[i] = dataBlocks[targets[i]];
+        multiply(matrix, in, out, blockLength);
+    }
+
+    /**
+     * Data block m is sum_j E[m][j] * D[j] for the check rows E, and we know the data blocks P and
+     * the check blocks C. So D[targets] = S^-1 * (C - E[sources][P] * D[P]) where 
+     * S = E[sources][targets], and we only need to invert a matrix the size of the number of 
+     * missing blocks.
+     * @return One row for each target, with a column for each data block we have, in order, 
+     * followed by one for each source check block.
+     */
+    static byte[][] createDecodeMatrix(byte[][] encodeMatrix, boolean[] dataBlocksPresent, 
+            int[] targets, int[] sources) {
+        int k = dataBlocksPresent.length;
+        int missing = targets.length;
+        byte[][] s = new byte[missing][missing];
+        for(int a=0;a<missing;a++)
+            for(int b=0;b<missing;b++)
+                s[a][b] = encodeMatrix[sources[a]][targets[b]];
+        byte[][] inv = GF256Kernel.invert(s);
+        byte[][] matrix = new byte[missing][k];
+        for(int a=0;a<missing;a++) {
+            int col = 0;
+            for(int j=0;j<k;j++) {
+                if(!dataBlocksPresent[j]) continue;
+                int c = 0;
+                for(int b=0;b<missing;b++)
+                    c ^= GF256Kernel.mul(inv[a][b] & 0xff, encodeMatrix[sources[b]][j] & 0xff);
+                matrix[a][col++] = (byte) c;
+            }
+            System.arraycopy(inv[a], 0, matrix[a], col, missing);
+        }
+        return matrix;
+    }
+
+    private void decodePure(PureCode codec, byte[][] dataBlocks, byte[][] checkBlocks, 
+            boolean[] dataBlocksPresent, boolean[] checkBlocksPresent, int blockLength) {
+        int k = dataBlocks.length;
         int[] blockNumbers = new int[k];
         Buffer[] buffers = new Buffer[k];
         // The data blocks are already in the correct positions in dataBlocks.
         for(int i=0;i<dataBlocks.length;i++) {
-            if(dataBlocks[i].length != blockLength) throw new IllegalArgumentException();
             if(!dataBlocksPresent[i]) continue;
             buffers[i] = new Buffer(dataBlocks[i], 0, blockLength);
             blockNumbers[i] = i;
@@ -43,11 +145,173 @@ public class OnionFECCodec extends FECCodec {
         // The data blocks are now decoded and in the correct locations.
     }
 
-    /** Cache of PureCode by {k,n}. The memory usage is relatively small so we account for it in 
+    /** Multiply whole blocks by a matrix, a stride at a time, on as many helper threads as are 
+     * free as well as this one. */
+    private static void multiply(final byte[][] matrix, final byte[][] in, final byte[][] out, 
+            final int blockLength) {
+        final int strides = (blockLength + STRIDE - 1) / STRIDE;
+        final AtomicInteger next = new AtomicInteger();
+        int helpers = startHelpers(strides - 1);
+        if(helpers == 0) {
+            runStrides(matrix, in, out, blockLength, strides, next);
+            return;
+        }
+        final int[] running = new int[] { helpers };
+        final Throwable[] failed = new Throwable[1];
+        for(int i=0;i<helpers;i++) {
+            executor.execute(new PrioRunnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        runStrides(matrix, in, out, blockLength, strides, next);
+                    } catch (Throwable t) {
+                        Logger.error(this, "FEC helper thread failed: "+t, t);
+                        synchronized(running) {
+                            failed[0] = t;
+                        }
+                    } finally {
+                        helperFinished();
+                        synchronized(running) {
+                            running[0]--;
+                            running.notifyAll();
+                        }
+                    }
+                }
+
+                @Override
+                public int getPriority() {
+                    // Same as the FEC job itself.
+                    return MemoryLimitedJobRunner.THREAD_PRIORITY;
+                }
+                
+            }, "FEC helper");
+        }
+        runStrides(matrix, in, out, blockLength, strides, next);
+        synchronized(running) {
+            while(running[0] > 0) {
+                try {
+                    running.wait();
+                } catch (InterruptedException e) {
+                    // Ignore.
+                }
+            }
+            // A stride may not have been done.
+            if(failed[0] != null) throw new IllegalStateException("FEC helper thread failed", failed[0]);
+        }
+    }
+
+    private static void runStrides(byte[][] matrix, byte[][] in, byte[][] out, int blockLength, 
+            int strides, AtomicInteger next) {
+        int i;
+        while((i = next.getAndIncrement()) < strides) {
+            int off = i * STRIDE;
+            GF256Kernel.multiply(matrix, in, out, off, Math.min(STRIDE, blockLength - off));
+        }
+    }
+
+    private static synchronized int startHelpers(int wanted) {
+        if(executor == null || wanted <= 0) return 0;
+        int helpers = Math.min(wanted, maxHelperThreads - runningHelperThreads);
+        if(helpers <= 0) return 0;
+        runningHelperThreads += helpers;
+        if(logMINOR) Logger.minor(OnionFECCodec.class, "Using "+helpers+" FEC helper threads, "+runningHelperThreads+" running");
+        return helpers;
+    }
+
+    private static synchronized void helperFinished() {
+        runningHelperThreads--;
+    }
+
+    /** Set the executor to run helper threads on, so that a single FEC job can use more than one
+     * core. */
+    public static synchronized void setExecutor(Executor e) {
+        executor = e;
+    }
+
+    /** Set the maximum number of helper threads, shared by all FEC jobs. 0 means each job only 
+     * uses the thread it is called on. */
+    public static synchronized void setMaxHelperThreads(int threads) {
+        if(threads < 0) throw new IllegalArgumentException();
+        maxHelperThreads = threads;
+    }
+
+    public static synchronized int getMaxHelperThreads() {
+        return maxHelperThreads;
+    }
+
+    /** For tests. @return False if we fall back to PureCode for this segment size. */
+    static boolean usesKernel(int k, int n) {
+        return getCodec(k, n).encodeMatrix != null;
+    }
+
+    /** The PureCode for a segment size, and the encoding matrix we got from it. */
+    private static class Code {
+        final PureCode pure;
+        /** The coefficients of the data blocks for each check block. Null if we can't use 
+         * GF256Kernel with this code, so must use PureCode. */
+        final byte[][] encodeMatrix;
+
+        Code(int k, int n) {
+            pure = new PureCode(k, n);
+            byte[][] matrix = getEncodeMatrix(pure, k, n);
+            if(!check(pure, matrix, k, n)) {
+                Logger.error(OnionFECCodec.class, "FEC kernel does not match PureCode for k="+k+" n="+n+", using PureCode");
+                matrix = null;
+            }
+            encodeMatrix = matrix;
+        }
+
+        /** The code is linear, so encoding a data block of all zeros except for a 1 at byte j
+         * in block j gives us the coefficients for block j at byte j of each check block. */
+        private static byte[][] getEncodeMatrix(PureCode pure, int k, int n) {
+            Buffer[] data = new Buffer[k];
+            for(int j=0;j<k;j++) {
+                byte[] buf = new byte[k];
+                buf[j] = 1;
+                data[j] = new Buffer(buf);
+            }
+            byte[][] matrix = new byte[n-k][k];
+            Buffer[] check = new Buffer[n-k];
+            int[] index = new int[n-k];
+            for(int i=0;i<n-k;i++) {
+                check[i] = new Buffer(matrix[i]);
+                index[i] = k+i;
+            }
+            pure.encode(data, check, index);
+            return matrix;
+        }
+
+        /** Make sure we get the same check blocks as PureCode for some random data. */
+        private static boolean check(PureCode pure, byte[][] matrix, int k, int n) {
+            Random random = new Random();
+            byte[][] data = new byte[k][CHECK_LENGTH];
+            Buffer[] dataBuffers = new Buffer[k];
+            for(int j=0;j<k;j++) {
+                random.nextBytes(data[j]);
+                dataBuffers[j] = new Buffer(data[j]);
+            }
+            byte[][] expected = new byte[n-k][CHECK_LENGTH];
+            Buffer[] checkBuffers = new Buffer[n-k];
+            int[] index = new int[n-k];
+            for(int i=0;i<n-k;i++) {
+                checkBuffers[i] = new Buffer(expected[i]);
+                index[i] = k+i;
+            }
+            pure.encode(dataBuffers, checkBuffers, index);
+            byte[][] check = new byte[n-k][CHECK_LENGTH];
+            GF256Kernel.multiply(matrix, data, check, 0, CHECK_LENGTH);
+            for(int i=0;i<n-k;i++)
+                if(!Arrays.equals(expected[i], check[i])) return false;
+            return true;
+        }
+    }
+
+    /** Cache of codes by {k,n}. The memory usage is relatively small so we account for it in 
      * the FEC jobs, see maxMemoryOverheadDecode() etc. */
-    private synchronized static PureCode getCodec(int k, int n) {
+    private synchronized static Code getCodec(int k, int n) {
         CodecKey key = new CodecKey(k, n);
-        SoftReference<PureCode> codeRef;
+        SoftReference<Code> codeRef;
         while((codeRef = recentlyUsedCodecs.peekValue()) != null) {
             // Remove oldest codecs if they have been GC'ed.
             if(codeRef.get() == null) {
@@ -58,18 +322,18 @@ public class OnionFECCodec extends FECCodec {
         }
         codeRef = recentlyUsedCodecs.get(key);
         if(codeRef != null) {
-            PureCode code = codeRef.get();
+            Code code = codeRef.get();
             if(code != null) {
                 recentlyUsedCodecs.push(key, codeRef);
                 return code;
             }
         }
-        PureCode code = new PureCode(k, n);
-        recentlyUsedCodecs.push(key, new SoftReference<PureCode>(code));
+        Code code = new Code(k, n);
+        recentlyUsedCodecs.push(key, new SoftReference<Code>(code));
         return code;
     }
     
-    private static final LRUMap<CodecKey, SoftReference<PureCode>> recentlyUsedCodecs = LRUMap.createSafeMap();
+    private static final LRUMap<CodecKey, SoftReference<Code>> recentlyUsedCodecs = LRUMap.createSafeMap();
 
     private static class CodecKey implements Comparable<CodecKey> {
         /** Number of input blocks */
@@ -114,12 +378,9 @@ public class OnionFECCodec extends FECCodec {
             int blockLength) {
         int k = dataBlocks.length;
         int n = dataBlocks.length + checkBlocks.length;
-        PureCode codec = getCodec(k, n);
-        Buffer[] data = new Buffer[dataBlocks.length];
-        for(int i=0;i<data.length;i++) {
+        for(int i=0;i<dataBlocks.length;i++) {
             if(dataBlocks[i] == null || dataBlocks[i].length != blockLength)
                 throw new IllegalArgumentException();
-            data[i] = new Buffer(dataBlocks[i]);
         }
         int mustEncode = 0;
         for(int i=0;i<checkBlocks.length;i++) {
@@ -127,8 +388,29 @@ public class OnionFECCodec extends FECCodec {
                 throw new IllegalArgumentException();
             if(!checkBlocksPresent[i]) mustEncode++;
         }
-        Buffer[] check = new Buffer[mustEncode];
         if(mustEncode == 0) return; // Done already.
+        Code code = getCodec(k, n);
+        if(code.encodeMatrix == null) {
+            encodePure(code.pure, dataBlocks, checkBlocks, checkBlocksPresent, mustEncode);
+            return;
+        }
+        byte[][] matrix = new byte[mustEncode][];
+        byte[][] out = new byte[mustEncode][];
+        int x = 0;
+        for(int i=0;i<checkBlocks.length;i++) {
+            if(checkBlocksPresent[i]) continue;
+            matrix[x] = code.encodeMatrix[i];
+            out[x++] = checkBlocks[i];
+        }
+        multiply(matrix, dataBlocks, out, blockLength);
+    }
+
+    private void encodePure(PureCode codec, byte[][] dataBlocks, byte[][] checkBlocks, 
+            boolean[] checkBlocksPresent, int mustEncode) {
+        Buffer[] data = new Buffer[dataBlocks.length];
+        for(int i=0;i<data.length;i++)
+            data[i] = new Buffer(dataBlocks[i]);
+        Buffer[] check = new Buffer[mustEncode];
         int[] toEncode = new int[mustEncode];
         int x = 0;
         for(int i=0;i<checkBlocks.length;i++) {
@@ -359,6 +359,12 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 
         private static final long serialVersionUID = 1L;
 
+		/** We are persisted as part of the BaseManifestPutter. */
+		@Override
+		public void setChanged() {
+			BaseManifestPutter.this.setChanged();
+		}
+
         // run me
 		private PutHandler(final BaseManifestPutter bmp, PutHandler parent, String name, ClientMetadata cm, HashSet<PutHandler> runningMap) {
 			super(bmp.priorityClass, bmp.cb);
@@ -562,6 +568,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 			synchronized (this) {
 				if (currentState == oldState) {
 					currentState = newState;
+					setChanged();
 					if(logMINOR)
 						Logger.minor(this, "onTransition: cur=" + currentState + ", old=" + oldState + ", new=" + newState+" for "+this);
 					return;
@@ -934,6 +941,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 		if (containerMode) throw new IllegalStateException();
 		if(logMINOR) Logger.minor(this, "Got all metadata");
 		baseMetadata = makeMetadata(rootDir);
+		setChanged();
 		context.jobRunner.setCheckpointASAP();
 		resolveAndStartBase(context);
 	}
@@ -72,6 +72,10 @@ public class ClientContext {
 	public transient final RealCompressor rc;
 	public transient final DatastoreChecker checker;
 	public transient DownloadCache downloadCache;
+	/** Limits how many completed downloads are filtered at once. Null means no limit. */
+	public transient ContentFilterStage contentFilterStage;
+	/** How long decoding splitfile segments has taken, for the stats page. */
+	public transient final SegmentDecodeTimes segmentDecodeTimes = new SegmentDecodeTimes();
 	/** Used for memory intensive jobs such as in-RAM FEC decodes. Some of these jobs may do disk 
 	 * I/O and we don't guarantee to serialise them. The new splitfile code does FEC decodes 
 	 * entirely in memory, which saves a lot of seeks and improves robustness. */
@@ -290,6 +294,10 @@ public class ClientContext {
 		this.downloadCache = cache;
 	}
 
+	public void setContentFilterStage(ContentFilterStage stage) {
+		this.contentFilterStage = stage;
+	}
+
     public FetchContext getDefaultPersistentFetchContext() {
         return new FetchContext(defaultPersistentFetchContext, FetchContext.IDENTICAL_MASK);
     }
@@ -321,6 +321,11 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
             maxLen = Math.max(ctx.maxTempLength, ctx.maxOutputLength);
         }
         
+		// Wait for a filter thread before starting the worker and decompressor threads.
+		ContentFilterStage filterStage = ctx.filterData ? context.contentFilterStage : null;
+		if(filterStage != null) filterStage.acquire();
+		long filterStart = System.currentTimeMillis();
+
 		FetchException ex = null; // set on failure
 		try {
 			if(returnBucket == null) finalResult = context.getBucketFactory(persistent()).makeBucket(maxLen);
@@ -395,7 +400,10 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 			Closer.close(dataInput);
 			Closer.close(dataOutput);
 			Closer.close(output);
+			if(filterStage != null) filterStage.release();
 		}
+		if(filterStage != null && ex == null && mimeType != null)
+			filterStage.report(ContentFilter.stripMIMEType(mimeType), System.currentTimeMillis() - filterStart, result.size());
 		if(ex != null) {
 			onFailure(ex, state, context, true);
 			if(finalResult != null && finalResult != returnBucket) {
@@ -407,6 +415,7 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 			}
 			return;
 		}
+		setChanged();
 		context.getJobRunner(persistent()).setCheckpointASAP();
 		clientCallback.onSuccess(result, ClientGetter.this);
 	}
@@ -492,6 +501,7 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
                 }
             tempFile.delete();
         } else {
+            setChanged();
             context.getJobRunner(persistent()).setCheckpointASAP();
             clientCallback.onSuccess(result, ClientGetter.this);
         }
@@ -520,6 +530,7 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 		if(expectedSize > 0 && (e.expectedSize <= 0 || finalBlocksTotal != 0))
 			e.expectedSize = expectedSize;
 		
+		setChanged();
 		context.getJobRunner(persistent()).setCheckpointASAP();
 
 		if(e.mode == FetchExceptionMode.TOO_BIG && ctx.filterData) {
@@ -709,8 +720,10 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 				return;
 			}
 		}
-		if(persistent())
+		if(persistent()) {
+		    setChanged();
 		    context.jobRunner.setCheckpointASAP();
+		}
 	}
 
 	/**
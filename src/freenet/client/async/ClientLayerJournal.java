@@ -0,0 +1,334 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import freenet.clients.fcp.RequestIdentifier;
+import freenet.crypt.ChecksumChecker;
+import freenet.crypt.ChecksumFailedException;
+import freenet.support.Logger;
+
+/**
+ * Keeps track of the journal of changes to client.dat. Rather than writing every request on every
+ * checkpoint, ClientLayerPersister writes a full snapshot now and then, and in between writes the
+ * requests which have changed, and the identifiers of those which have been removed, to a new
+ * numbered journal file (client.dat.journal.N). A request has changed if the record we would write
+ * for it differs from the one written last time, which we tell by comparing hashes. Only requests
+ * which say they have changed, and a few others each time, are serialized to find out. When the
+ * journal gets big it is merged into a new snapshot, off the checkpoint thread.
+ *
+ * The snapshot records the number of the last journal file it includes, so after a crash we only
+ * replay the journal files written since.
+ *
+ * Also keeps statistics on checkpoints for the stats page.
+ */
+public final class ClientLayerJournal {
+
+	private static final String JOURNAL = ".journal.";
+	private static final String CRYPT = ".crypt";
+
+	/** Compact when there are this many journal files. */
+	static final int MAX_FILES = 100;
+	/** Compact when the journal is bigger than half the snapshot, or this, whichever is bigger. */
+	static final long MIN_COMPACT_BYTES = 1024*1024;
+
+	/** Hashes of the records last written for each request. */
+	private Map<RequestIdentifier, byte[]> written = new HashMap<RequestIdentifier, byte[]>();
+	/** The size of each journal file written since the snapshot, by number. */
+	private final SortedMap<Long, Long> files = new TreeMap<Long, Long>();
+	private long nextSequence = 1;
+	private long journalBytes;
+	private long snapshotBytes;
+	private long lastWritten;
+	private long compactedUpTo;
+
+	// Statistics.
+	private long checkpoints;
+	private long snapshots;
+	private long journalWrites;
+	private long totalCheckpointTime;
+	private long lastCheckpointTime;
+	private long lastCheckpointBytes;
+	private int lastCheckpointRequests;
+	private int lastCheckpointChanged;
+	private int lastCheckpointSerialized;
+	private boolean lastCheckpointSnapshot;
+	private long compactions;
+	private long lastCompactionTime;
+
+	ClientLayerJournal() {
+	}
+
+	static File makeFilename(File dir, String baseName, long sequence, boolean encrypted) {
+		return new File(dir, baseName + JOURNAL + sequence + (encrypted ? CRYPT : ""));
+	}
+
+	/** @return The numbers of the journal files on disk, in order. */
+	static long[] list(File dir, String baseName, boolean encrypted) {
+		String[] names = dir.list();
+		if(names == null) return new long[0];
+		String prefix = baseName + JOURNAL;
+		long[] found = new long[names.length];
+		int count = 0;
+		for(String name : names) {
+			if(!name.startsWith(prefix)) continue;
+			String number = name.substring(prefix.length());
+			if(encrypted) {
+				if(!number.endsWith(CRYPT)) continue;
+				number = number.substring(0, number.length() - CRYPT.length());
+			}
+			try {
+				long sequence = Long.parseLong(number);
+				if(sequence > 0) found[count++] = sequence;
+			} catch (NumberFormatException e) {
+				// Not one of ours, or a temp file.
+			}
+		}
+		found = Arrays.copyOf(found, count);
+		Arrays.sort(found);
+		return found;
+	}
+
+	static RequestIdentifier readRequestIdentifier(DataInput is, ChecksumChecker checker) throws IOException {
+		short length = is.readShort();
+		if(length <= 0) return null;
+		byte[] buf = new byte[length];
+		try {
+			checker.readAndChecksum(is, buf, 0, length);
+		} catch (ChecksumFailedException e) {
+			Logger.error(ClientLayerJournal.class, "Checksum failed reading RequestIdentifier. This is not serious but means we will have to read the next request even if we don't need it.");
+			return null;
+		}
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(buf));
+		try {
+			return new RequestIdentifier(dis);
+		} catch (IOException e) {
+			Logger.error(ClientLayerJournal.class, "Failed to parse RequestIdentifier in spite of valid checksum (probably a bug): "+e, e);
+			return null;
+		}
+	}
+
+	static void writeRequestIdentifier(DataOutput os, RequestIdentifier req, ChecksumChecker checker) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		OutputStream oos = checker.checksumWriter(baos);
+		DataOutputStream dos = new DataOutputStream(oos);
+		req.writeTo(dos);
+		dos.close();
+		byte[] buf = baos.toByteArray();
+		os.writeShort(buf.length - checker.checksumLength());
+		os.write(buf);
+	}
+
+	/** A request as written to client.dat or the journal: the identifier, then the serialized
+	 * request, then the recovery data, each with a checksum. */
+	static final class Record {
+		/** Null if the identifier was corrupted. */
+		final RequestIdentifier id;
+		final byte[] data;
+
+		Record(RequestIdentifier id, byte[] data) {
+			this.id = id;
+			this.data = data;
+		}
+	}
+
+	/** Read a record without deserializing the request, so it can be copied when compacting. */
+	static Record readRecord(DataInput is, ChecksumChecker checker, long maxLength) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		short idLength = is.readShort();
+		dos.writeShort(idLength);
+		RequestIdentifier id = null;
+		if(idLength > 0) {
+			byte[] buf = new byte[idLength + checker.checksumLength()];
+			is.readFully(buf);
+			dos.write(buf);
+			id = readRequestIdentifier(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())), checker);
+		}
+		// The request, and the recovery data.
+		for(int i=0;i<2;i++) {
+			long length = is.readLong();
+			if(length < 0 || length > maxLength) throw new IOException("Bad length "+length);
+			dos.writeLong(length);
+			byte[] buf = new byte[(int) length + checker.checksumLength()];
+			is.readFully(buf);
+			dos.write(buf);
+		}
+		dos.close();
+		return new Record(id, baos.toByteArray());
+	}
+
+	synchronized long nextSequence() {
+		return nextSequence++;
+	}
+
+	/** Called when loading, so we don't reuse the numbers of journal files already on disk. */
+	synchronized void setNextSequence(long sequence) {
+		if(sequence > nextSequence) nextSequence = sequence;
+	}
+
+	/** @return The hash of the record last written for the request, or null if it is new. */
+	synchronized byte[] getHash(RequestIdentifier id) {
+		return written.get(id);
+	}
+
+	synchronized boolean changed(RequestIdentifier id, byte[] hash) {
+		byte[] old = written.get(id);
+		return old == null || !Arrays.equals(old, hash);
+	}
+
+	/** @return The requests written last time which are no longer there. */
+	synchronized List<RequestIdentifier> removed(Set<RequestIdentifier> current) {
+		List<RequestIdentifier> removed = new ArrayList<RequestIdentifier>();
+		for(RequestIdentifier id : written.keySet())
+			if(!current.contains(id)) removed.add(id);
+		return removed;
+	}
+
+	/** @return True if we should write the journal even if nothing has changed, so the bandwidth
+	 * statistics are kept. */
+	synchronized boolean writeDue(long now, long interval) {
+		return now - lastWritten > interval;
+	}
+
+	synchronized void onSnapshot(Map<RequestIdentifier, byte[]> hashes, long bytes, long time) {
+		written = hashes;
+		files.clear();
+		journalBytes = 0;
+		snapshotBytes = bytes;
+		snapshots++;
+		onCheckpoint(time, bytes, hashes.size(), hashes.size(), hashes.size(), true);
+	}
+
+	/** @param serialized The number of requests we serialized to see whether they had changed. */
+	synchronized void onJournal(long sequence, Map<RequestIdentifier, byte[]> hashes, long bytes, int changed, int serialized, long time) {
+		written = hashes;
+		// It may already have been compacted.
+		if(sequence > compactedUpTo) {
+			files.put(sequence, bytes);
+			journalBytes += bytes;
+		}
+		journalWrites++;
+		onCheckpoint(time, bytes, hashes.size(), changed, serialized, false);
+	}
+
+	/** A checkpoint where nothing had changed, so nothing was written. */
+	synchronized void onUnchanged(int requests, int serialized, long time) {
+		checkpoints++;
+		totalCheckpointTime += time;
+		lastCheckpointTime = time;
+		lastCheckpointBytes = 0;
+		lastCheckpointRequests = requests;
+		lastCheckpointChanged = 0;
+		lastCheckpointSerialized = serialized;
+		lastCheckpointSnapshot = false;
+	}
+
+	private void onCheckpoint(long time, long bytes, int requests, int changed, int serialized, boolean snapshot) {
+		checkpoints++;
+		totalCheckpointTime += time;
+		lastCheckpointTime = time;
+		lastCheckpointBytes = bytes;
+		lastCheckpointRequests = requests;
+		lastCheckpointChanged = changed;
+		lastCheckpointSerialized = serialized;
+		lastCheckpointSnapshot = snapshot;
+		lastWritten = System.currentTimeMillis();
+	}
+
+	synchronized boolean shouldCompact() {
+		return files.size() >= MAX_FILES || journalBytes > Math.max(snapshotBytes / 2, MIN_COMPACT_BYTES);
+	}
+
+	/** The journal up to and including upTo has been merged into a new snapshot. */
+	synchronized void onCompacted(long upTo, long bytes, long time) {
+		SortedMap<Long, Long> merged = files.headMap(upTo + 1);
+		for(long size : merged.values())
+			journalBytes -= size;
+		merged.clear();
+		if(upTo > compactedUpTo) compactedUpTo = upTo;
+		snapshotBytes = bytes;
+		compactions++;
+		lastCompactionTime = time;
+	}
+
+	public synchronized long getCheckpoints() {
+		return checkpoints;
+	}
+
+	public synchronized long getSnapshots() {
+		return snapshots;
+	}
+
+	public synchronized long getJournalWrites() {
+		return journalWrites;
+	}
+
+	public synchronized double getAverageCheckpointTime() {
+		if(checkpoints == 0) return 0.0;
+		return ((double) totalCheckpointTime) / checkpoints;
+	}
+
+	public synchronized long getLastCheckpointTime() {
+		return lastCheckpointTime;
+	}
+
+	public synchronized long getLastCheckpointBytes() {
+		return lastCheckpointBytes;
+	}
+
+	public synchronized int getLastCheckpointRequests() {
+		return lastCheckpointRequests;
+	}
+
+	public synchronized int getLastCheckpointChanged() {
+		return lastCheckpointChanged;
+	}
+
+	public synchronized int getLastCheckpointSerialized() {
+		return lastCheckpointSerialized;
+	}
+
+	public synchronized boolean wasLastCheckpointSnapshot() {
+		return lastCheckpointSnapshot;
+	}
+
+	public synchronized int getJournalFiles() {
+		return files.size();
+	}
+
+	public synchronized long getJournalBytes() {
+		return journalBytes;
+	}
+
+	public synchronized long getSnapshotBytes() {
+		return snapshotBytes;
+	}
+
+	public synchronized long getCompactions() {
+		return compactions;
+	}
+
+	public synchronized long getLastCompactionTime() {
+		return lastCompactionTime;
+	}
+
+}
@@ -1,11 +1,9 @@
 package freenet.client.async;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInput;
 import java.io.DataInputStream;
-import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
@@ -13,41 +11,61 @@ import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import freenet.client.async.ClientLayerJournal.Record;
 import freenet.clients.fcp.ClientRequest;
 import freenet.clients.fcp.RequestIdentifier;
 import freenet.crypt.CRCChecksumChecker;
 import freenet.crypt.ChecksumChecker;
 import freenet.crypt.ChecksumFailedException;
+import freenet.crypt.SHA256;
 import freenet.node.DatabaseKey;
 import freenet.node.MasterKeysWrongPasswordException;
 import freenet.node.Node;
 import freenet.node.NodeClientCore;
-import freenet.node.NodeInitException;
+import freenet.node.PrioRunnable;
+import freenet.node.RequestStarter;
 import freenet.node.RequestStarterGroup;
 import freenet.support.Executor;
 import freenet.support.Logger;
 import freenet.support.Ticker;
 import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.BucketTools;
+import freenet.support.io.Closer;
 import freenet.support.io.DelayedFree;
 import freenet.support.io.FileBucket;
 import freenet.support.io.FileUtil;
+import freenet.support.io.NativeThread;
 import freenet.support.io.PersistentTempBucketFactory;
 import freenet.support.io.PrependLengthOutputStream;
 import freenet.support.io.StorageFormatException;
 import freenet.support.io.TempBucketFactory;
 
 import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 /** Top level of persistence mechanism for ClientRequest's (persistent downloads and uploads).
  * Note that we use three different persistence mechanisms here:
  * 1) Splitfile persistence. The downloaded data and all the status for a splitfile is kept in a 
  * single random access file (technically a LockableRandomAccessBuffer).
  * 2) Java persistence. The overall list of ClientRequest's is stored to client.dat using 
- * serialization, by this class.
+ * serialization, by this class. Between full snapshots, checkpoints only write the requests which
+ * have changed, to a journal, see {@link ClientLayerJournal}.
  * 3) A simple binary fallback. For complicated requests this will just record enough information 
  * to restart the request, but for simple splitfile downloads, we can resume from (1).
  * 
@@ -98,11 +116,51 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
     private File writeToBackupFilename;
     private File deleteAfterSuccessfulWrite;
     private File otherDeleteAfterSuccessfulWrite;
+    private DatabaseKey writeEncryptionKey;
     private File dir;
     private String baseName;
+
+    private final ClientLayerJournal journal = new ClientLayerJournal();
+    /** Held while writing client.dat, or replacing it or deleting journal files, so a compaction
+     * doesn't race a checkpoint writing a full snapshot. */
+    private final Object journalLock = new Object();
+    /** If true, the next checkpoint writes every request to client.dat rather than the changes to
+     * the journal. Always true for the first checkpoint after loading. */
+    private boolean mustWriteSnapshot = true;
+    /** Incremented by every checkpoint which writes client.dat. A compaction started before then
+     * is discarded. */
+    private long snapshotGeneration;
+    private boolean compacting;
+    /** Requests which haven't said they have changed are checked anyway now and then, in case 
+     * something changed without telling us. Each checkpoint checks one group of this many. */
+    static final int UNCHANGED_GROUPS = 16;
+    /** The group of unchanged requests the next journal checkpoint checks. */
+    private int checkGroup;
+
+    /** Requests at this priority or higher are resumed before startup continues. */
+    private static final short URGENT_PRIORITY = RequestStarter.IMMEDIATE_SPLITFILE_PRIORITY_CLASS;
+    private int loadThreads = 1;
+    private boolean resumeInBackground;
+    private final Object resumeLock = new Object();
+    /** Requests loaded at startup and not resumed yet, highest priority first. */
+    private final Map<RequestIdentifier, PartiallyLoadedRequest> toResume = 
+        new LinkedHashMap<RequestIdentifier, PartiallyLoadedRequest>();
+    /** Requests being resumed right now. */
+    private final Map<RequestIdentifier, PartiallyLoadedRequest> resuming = 
+        new HashMap<RequestIdentifier, PartiallyLoadedRequest>();
+    private int resumeTotal;
+    private int urgentToResume;
+    /** Number of persistent jobs resuming requests, each of which queues the next when done. */
+    private int resumeChains;
+    /** Number of requests resumed, by RequestLoadStatus. */
+    private final int[] resumed = new int[RequestLoadStatus.values().length];
     
     private static final long MAGIC = 0xd332925f3caf4aedL;
-    private static final int VERSION = 1;
+    /** Journal files start with this rather than MAGIC. */
+    private static final long JOURNAL_MAGIC = 0x5e3b0c7a91d24f68L;
+    /** Version 2 adds the number of the last journal file included, after the version. */
+    private static final int VERSION = 2;
+    private static final int VERSION_NO_JOURNAL = 1;
     
     private static volatile boolean logMINOR;
     static {
@@ -146,6 +204,8 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                 deleteFile(dir, baseName, false, true);
                 deleteFile(dir, baseName, true, false);
                 deleteFile(dir, baseName, true, true);
+                deleteJournalFiles(false);
+                deleteJournalFiles(true);
                 onStarted(true);
                 if(salt == null) {
                     salt = new byte[32];
@@ -153,16 +213,8 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                     requestStarters.setGlobalSalt(salt);
                 }
             } else if(!hasLoaded()) {
-                // Some serialization failures cause us to fail only at the point of scheduling the request.
-                // So if that happens we need to retry with serialization turned off.
-                // The requests that loaded fine already will not be affected as we check for duplicates.
-                if(innerSetFilesAndLoad(false, dir, baseName, writeEncrypted, encryptionKey, context, 
-                        requestStarters, random)) {
-                    Logger.error(this, "Some requests failed to restart after serializing. Trying to recover/restart ...");
-                    System.err.println("Some requests failed to restart after serializing. Trying to recover/restart ...");
-                    innerSetFilesAndLoad(true, dir, baseName, writeEncrypted, encryptionKey, context, 
-                            requestStarters, random);
-                }
+                innerSetFilesAndLoad(dir, baseName, writeEncrypted, encryptionKey, context, 
+                        requestStarters, random);
                 onStarted(noWrite);
             } else {
                 innerSetFilesOnly(dir, baseName, writeEncrypted, encryptionKey);
@@ -172,7 +224,10 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
     }
     
     private void deleteFile(File dir, String baseName, boolean backup, boolean encrypted) {
-        File f = makeFilename(dir, baseName, backup, encrypted);
+        deleteFile(makeFilename(dir, baseName, backup, encrypted));
+    }
+
+    private void deleteFile(File f) {
         try {
             FileUtil.secureDelete(f);
         } catch (IOException e) {
@@ -190,11 +245,16 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         if(writeEncrypted && encryptionKey == null)
             throw new MasterKeysWrongPasswordException();
         File oldWriteToFilename = writeToFilename;
-        writeToBucket = makeBucket(dir, baseName, false, writeEncrypted ? encryptionKey : null);
+        writeEncryptionKey = writeEncrypted ? encryptionKey : null;
+        writeToBucket = makeBucket(dir, baseName, false, writeEncryptionKey);
         writeToFilename = makeFilename(dir, baseName, false, writeEncrypted);
         writeToBackupFilename = makeFilename(dir, baseName, true, writeEncrypted);
         if(writeToFilename.equals(oldWriteToFilename)) return;
         System.out.println("Will save downloads to "+writeToFilename);
+        // The journal is in the old format, so start again with a full snapshot.
+        synchronized(journalLock) {
+            mustWriteSnapshot = true;
+        }
         deleteAfterSuccessfulWrite = makeFilename(dir, baseName, false, !writeEncrypted);
         otherDeleteAfterSuccessfulWrite = makeFilename(dir, baseName, true, !writeEncrypted);
         queueNormalOrDrop(new PersistentJob() {
@@ -208,7 +268,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         });
     }
 
-    private boolean innerSetFilesAndLoad(boolean noSerialize, File dir, String baseName, 
+    private void innerSetFilesAndLoad(File dir, String baseName, 
             boolean writeEncrypted, DatabaseKey encryptionKey, ClientContext context, 
             RequestStarterGroup requestStarters, Random random) throws MasterKeysWrongPasswordException {
         if(writeEncrypted && encryptionKey == null)
@@ -225,91 +285,53 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             if(clientDatCryptExists || clientDatBakCryptExists)
                 throw new MasterKeysWrongPasswordException();
         }
-        boolean failedSerialize = false;
+        long[] journalFiles = ClientLayerJournal.list(dir, baseName, false);
+        long[] journalFilesCrypt = ClientLayerJournal.list(dir, baseName, true);
+        if(encryptionKey == null && journalFilesCrypt.length > 0)
+            throw new MasterKeysWrongPasswordException();
+        // Left behind by a journal write or a compaction which didn't finish.
+        deleteTempFiles();
+        if(journalFiles.length > 0)
+            journal.setNextSequence(journalFiles[journalFiles.length-1] + 1);
+        if(journalFilesCrypt.length > 0)
+            journal.setNextSequence(journalFilesCrypt[journalFilesCrypt.length-1] + 1);
         PartialLoad loaded = new PartialLoad();
-        if(clientDatExists) {
-            innerLoad(loaded, makeBucket(dir, baseName, false, null), noSerialize, context, requestStarters, random);
+        boolean loadedBak = false;
+        boolean loadedBakCrypt = false;
+        if(clientDatExists || journalFiles.length > 0) {
+            loadedBak = innerLoadWithJournal(loaded, dir, baseName, null, journalFiles, context, requestStarters);
         }
-        if(clientDatCryptExists && loaded.needsMore()) {
-            innerLoad(loaded, makeBucket(dir, baseName, false, encryptionKey), noSerialize, context, requestStarters, random);
+        if((clientDatCryptExists || journalFilesCrypt.length > 0) && loaded.needsMore()) {
+            loadedBakCrypt = innerLoadWithJournal(loaded, dir, baseName, encryptionKey, journalFilesCrypt, context, requestStarters);
         }
-        if(clientDatBakExists) {
-            innerLoad(loaded, makeBucket(dir, baseName, true, null), noSerialize, context, requestStarters, random);
+        // The backup is older than the journal, so only use it if something failed.
+        if(clientDatBakExists && !loadedBak && loaded.needsMore()) {
+            innerLoad(loaded, makeBucket(dir, baseName, true, null), context, requestStarters);
         }
-        if(clientDatBakCryptExists && loaded.needsMore()) {
-            innerLoad(loaded, makeBucket(dir, baseName, true, encryptionKey), noSerialize, context, requestStarters, random);
+        if(clientDatBakCryptExists && !loadedBakCrypt && loaded.needsMore()) {
+            innerLoad(loaded, makeBucket(dir, baseName, true, encryptionKey), context, requestStarters);
         }
         
         deleteAfterSuccessfulWrite = writeEncrypted ? clientDat : clientDatCrypt;
         otherDeleteAfterSuccessfulWrite = writeEncrypted ? clientDatBak : clientDatBakCrypt;
         
-        writeToBucket = makeBucket(dir, baseName, false, writeEncrypted ? encryptionKey : null);
+        writeEncryptionKey = writeEncrypted ? encryptionKey : null;
+        writeToBucket = makeBucket(dir, baseName, false, writeEncryptionKey);
         writeToFilename = makeFilename(dir, baseName, false, writeEncrypted);
         writeToBackupFilename = makeFilename(dir, baseName, true, writeEncrypted);
         
         if(loaded.doneSomething()) {
-            if(!noSerialize) {
-                onLoading();
-                if(loaded.getSalt() == null) {
-                    salt = new byte[32];
-                    random.nextBytes(salt);
-                    Logger.error(this, "Checksum failed for salt value");
-                    System.err.println("Salt value corrupted, downloads will need to regenerate Bloom filters, this may cause some delay and disk/CPU usage...");
-                    newSalt = true;
-                } else {
-                    salt = loaded.salt;
-                }
-            }
-            int success = 0;
-            int restoredRestarted = 0;
-            int restoredFully = 0;
-            int failed = 0;
-            // Resume the requests.
-            for(PartiallyLoadedRequest partial : loaded.partiallyLoadedRequests.values()) {
-                ClientRequest req = partial.request;
-                if(req == null) continue;
-                try {
-                    req.onResume(context);
-                    if(partial.status == RequestLoadStatus.RESTORED_FULLY || 
-                            partial.status == RequestLoadStatus.RESTORED_RESTARTED) {
-                        req.start(context);
-                    }
-                    switch(partial.status) {
-                    case LOADED:
-                        success++;
-                        break;
-                    case RESTORED_FULLY:
-                        restoredFully++;
-                        break;
-                    case RESTORED_RESTARTED:
-                        restoredRestarted++;
-                        break;
-                    case FAILED:
-                        failed++;
-                        break;
-                    }
-                } catch (Throwable t) {
-                    if(partial.status == RequestLoadStatus.LOADED)
-                        failedSerialize = true;
-                    failed++;
-                    System.err.println("Unable to resume request "+req+" after loading it.");
-                    Logger.error(this, "Unable to resume request "+req+" after loading it: "+t, t);
-                    try {
-                        req.cancel(context);
-                    } catch (Throwable t1) {
-                        Logger.error(this, "Unable to terminate "+req+" after failure: "+t1, t1);
-                    }
-                }
+            onLoading();
+            if(loaded.getSalt() == null) {
+                salt = new byte[32];
+                random.nextBytes(salt);
+                Logger.error(this, "Checksum failed for salt value");
+                System.err.println("Salt value corrupted, downloads will need to regenerate Bloom filters, this may cause some delay and disk/CPU usage...");
+                newSalt = true;
+            } else {
+                salt = loaded.salt;
             }
-            if(success > 0)
-                System.out.println("Resumed "+success+" requests ...");
-            if(restoredFully > 0)
-                System.out.println("Restored "+restoredFully+" requests (in spite of data corruption)");
-            if(restoredRestarted > 0)
-                System.out.println("Restarted "+restoredRestarted+" requests (due to data corruption)");
-            if(failed > 0)
-                System.err.println("Failed to restore "+failed+" requests due to data corruption");
-            return failedSerialize;
+            startResume(loaded, context);
         } else {
             // FIXME backups etc!
             System.err.println("Starting request persistence layer without resuming ...");
@@ -317,7 +339,6 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             random.nextBytes(salt);
             requestStarters.setGlobalSalt(salt);
             onStarted(false);
-            return false;
         }
     }
     
@@ -328,7 +349,11 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
      * @param encryptionKey Non-null if we want an encrypted file.
      */
     private Bucket makeBucket(File dir, String baseName, boolean backup, DatabaseKey encryptionKey) {
-        File filename = makeFilename(dir, baseName, backup, encryptionKey != null);
+        return makeBucket(makeFilename(dir, baseName, backup, encryptionKey != null), encryptionKey);
+    }
+
+    /** Create a Bucket for any of our files, encrypted if encryptionKey is non-null. */
+    private Bucket makeBucket(File filename, DatabaseKey encryptionKey) {
         Bucket bucket = new FileBucket(filename, false, false, false, false);
         if(encryptionKey != null)
             bucket = encryptionKey.createEncryptedBucketForClientLayer(bucket);
@@ -351,9 +376,13 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
     private class PartiallyLoadedRequest {
         final ClientRequest request;
         final RequestLoadStatus status;
-        PartiallyLoadedRequest(ClientRequest request, RequestLoadStatus status) {
+        /** The record it was loaded from, for writing until it has been resumed, and for 
+         * restarting it if it fails to resume. */
+        final byte[] record;
+        PartiallyLoadedRequest(ClientRequest request, RequestLoadStatus status, byte[] record) {
             this.request = request;
             this.status = status;
+            this.record = record;
         }
     }
     
@@ -361,6 +390,9 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         private final Map<RequestIdentifier, PartiallyLoadedRequest> partiallyLoadedRequests 
             = new HashMap<RequestIdentifier, PartiallyLoadedRequest>();
         
+        /** Requests removed in a journal file newer than the files still to be read. */
+        private final Set<RequestIdentifier> removedRequests = new HashSet<RequestIdentifier>();
+        
         private byte[] salt;
         
         private boolean somethingFailed;
@@ -370,8 +402,9 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         /** Add a partially loaded request. 
          * @param reqID The request identifier. Must be non-null; caller should regenerate it if
          * necessary. */
-        void addPartiallyLoadedRequest(RequestIdentifier reqID, ClientRequest request, 
-                RequestLoadStatus status) {
+        void addPartiallyLoadedRequest(RequestIdentifier reqID, PartiallyLoadedRequest partial) {
+            ClientRequest request = partial.request;
+            RequestLoadStatus status = partial.status;
             if(reqID == null) {
                 if(request == null) {
                     somethingFailed = true;
@@ -380,14 +413,29 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                     reqID = request.getRequestIdentifier();
                 }
             }
+            if(removedRequests.contains(reqID)) return;
             PartiallyLoadedRequest old = partiallyLoadedRequests.get(reqID);
             if(old == null || old.status.ordinal() > status.ordinal()) {
-                partiallyLoadedRequests.put(reqID, new PartiallyLoadedRequest(request, status));
+                partiallyLoadedRequests.put(reqID, partial);
                 if(!(status == RequestLoadStatus.LOADED || status == RequestLoadStatus.RESTORED_FULLY))
                     somethingFailed = true;
                 doneSomething = true;
             }
         }
+        
+        /** A journal file says the request was removed. Files are read newest first, so this
+         * only applies if we haven't already read a newer copy. */
+        void removeRequest(RequestIdentifier reqID) {
+            if(!partiallyLoadedRequests.containsKey(reqID))
+                removedRequests.add(reqID);
+        }
+        
+        /** @return True if there is no point reading an older copy of the request. */
+        boolean alreadyLoaded(RequestIdentifier reqID) {
+            if(removedRequests.contains(reqID)) return true;
+            PartiallyLoadedRequest old = partiallyLoadedRequests.get(reqID);
+            return old != null && old.status == RequestLoadStatus.LOADED;
+        }
 
         public boolean needsMore() {
             return somethingFailed || !doneSomething;
@@ -412,25 +460,70 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
-    private void innerLoad(PartialLoad loaded, Bucket bucket, boolean noSerialize,
-            ClientContext context, RequestStarterGroup requestStarters, Random random) {
+    /** Load client.dat, or client.dat.bak if client.dat can't be read, and then the journal
+     * files written since.
+     * @return True if we read client.dat.bak, so the caller shouldn't read it again. */
+    private boolean innerLoadWithJournal(PartialLoad loaded, File dir, String baseName, 
+            DatabaseKey encryptionKey, long[] journalFiles, ClientContext context, 
+            RequestStarterGroup requestStarters) {
+        boolean encrypted = encryptionKey != null;
+        boolean first = !loaded.doneSomething();
+        boolean usedBackup = false;
+        Bucket snapshot = null;
+        InputStream fis = null;
+        ObjectInputStream ois = null;
+        long sequence = 0;
+        for(int i=0;i<2 && ois == null;i++) {
+            boolean backup = i == 1;
+            if(!makeFilename(dir, baseName, backup, encrypted).exists()) continue;
+            usedBackup = backup;
+            snapshot = makeBucket(dir, baseName, backup, encryptionKey);
+            // Keep the snapshot open while reading the journal, so we only read it once.
+            try {
+                fis = new BufferedInputStream(snapshot.getInputStream());
+                ois = new ObjectInputStream(fis);
+                sequence = readHeader(ois, false, loaded, requestStarters);
+            } catch (Throwable t) {
+                loadFailed(loaded, snapshot, t);
+                ois = null;
+                Closer.close(fis);
+                fis = null;
+            }
+        }
+        try {
+            // Newest first, so we don't deserialize requests only to replace them.
+            boolean latest = first;
+            for(int i=journalFiles.length-1;i>=0 && journalFiles[i] > sequence;i--) {
+                File f = ClientLayerJournal.makeFilename(dir, baseName, journalFiles[i], encrypted);
+                innerLoad(loaded, makeBucket(f, encryptionKey), true, latest, context, requestStarters);
+                latest = false;
+            }
+            if(ois != null) {
+                try {
+                    innerLoadBody(loaded, ois, snapshot.size(), latest, false, context);
+                    fis = null;
+                } catch (Throwable t) {
+                    loadFailed(loaded, snapshot, t);
+                }
+            }
+        } finally {
+            Closer.close(fis);
+        }
+        return usedBackup;
+    }
+    
+    private void innerLoad(PartialLoad loaded, Bucket bucket, boolean journal, boolean latest, 
+            ClientContext context, RequestStarterGroup requestStarters) {
         long length = bucket.size();
         InputStream fis = null;
         try {
             fis = bucket.getInputStream();
-            innerLoad(loaded, fis, length, !noSerialize && !loaded.doneSomething(), context, 
-                    requestStarters, random, noSerialize);
-        } catch (IOException e) {
-            // FIXME tell user more obviously.
-            Logger.error(this, "Failed to load persistent requests from "+bucket+" : "+e, e);
-            System.err.println("Failed to load persistent requests from "+bucket+" : "+e);
-            e.printStackTrace();
-            loaded.setSomethingFailed();
+            ObjectInputStream ois = new ObjectInputStream(fis);
+            readHeader(ois, journal, loaded, requestStarters);
+            innerLoadBody(loaded, ois, length, latest, journal, context);
+            fis = null;
         } catch (Throwable t) {
-            Logger.error(this, "Failed to load persistent requests from "+bucket+" : "+t, t);
-            System.err.println("Failed to load persistent requests from "+bucket+" : "+t);
-            t.printStackTrace();
-            loaded.setSomethingFailed();
+            loadFailed(loaded, bucket, t);
         } finally {
             try {
                 if(fis != null) fis.close();
@@ -441,13 +534,34 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
-    private void innerLoad(PartialLoad loaded, InputStream fis, long length, boolean latest, 
-            ClientContext context, RequestStarterGroup requestStarters, Random random, boolean noSerialize) throws NodeInitException, IOException {
-        ObjectInputStream ois = new ObjectInputStream(fis);
+    private void innerLoad(PartialLoad loaded, Bucket bucket, ClientContext context, 
+            RequestStarterGroup requestStarters) {
+        innerLoad(loaded, bucket, false, !loaded.doneSomething(), context, requestStarters);
+    }
+    
+    private void loadFailed(PartialLoad loaded, Bucket bucket, Throwable t) {
+        // FIXME tell user more obviously.
+        Logger.error(this, "Failed to load persistent requests from "+bucket+" : "+t, t);
+        System.err.println("Failed to load persistent requests from "+bucket+" : "+t);
+        t.printStackTrace();
+        loaded.setSomethingFailed();
+    }
+    
+    /** Read the header of client.dat or a journal file, including the salt.
+     * @return The number of the last journal file included in client.dat, or the number of the 
+     * journal file. */
+    private long readHeader(ObjectInputStream ois, boolean journal, PartialLoad loaded, 
+            RequestStarterGroup requestStarters) throws IOException {
         long magic = ois.readLong();
-        if(magic != MAGIC) throw new IOException("Bad magic");
+        if(magic != (journal ? JOURNAL_MAGIC : MAGIC)) throw new IOException("Bad magic");
         int version = ois.readInt();
-        if(version != VERSION) throw new IOException("Bad version");
+        long sequence = 0;
+        if(version == VERSION)
+            sequence = ois.readLong();
+        else if(journal || version != VERSION_NO_JOURNAL)
+            throw new IOException("Bad version");
+        // Don't reuse the number, or the file would be ignored next time.
+        this.journal.setNextSequence(sequence + 1);
         byte[] salt = new byte[32];
         try {
             checker.readAndChecksum(ois, salt, 0, salt.length);
@@ -456,31 +570,110 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             Logger.error(this, "Unable to read global salt (checksum failed)");
         }
         requestStarters.setGlobalSalt(salt);
+        return sequence;
+    }
+    
+    private void innerLoadBody(PartialLoad loaded, ObjectInputStream ois, long length, 
+            boolean latest, boolean journal, ClientContext context) throws IOException {
+        // Read the records first, and deserialize them afterwards, in parallel.
         int requestCount = ois.readInt();
+        List<Record> records = new ArrayList<Record>(requestCount);
         for(int i=0;i<requestCount;i++) {
-            ClientRequest request = null;
-            RequestIdentifier reqID = readRequestIdentifier(ois);
+            Record record = ClientLayerJournal.readRecord(ois, checker, length);
+            RequestIdentifier reqID = record.id;
             if(reqID != null && context.persistentRoot.hasRequest(reqID)) {
                 Logger.warning(this, "Not reading request because already have it");
-                skipChecksummedObject(ois, length); // Request itself
-                skipChecksummedObject(ois, length); // Recovery data
                 continue;
             }
+            if(reqID != null && loaded.alreadyLoaded(reqID)) {
+                if(logMINOR) Logger.minor(this, "Not reading request because the journal has a newer copy");
+                continue;
+            }
+            records.add(record);
+        }
+        if(journal) {
+            int removedCount = ois.readInt();
+            for(int i=0;i<removedCount;i++) {
+                RequestIdentifier reqID = ClientLayerJournal.readRequestIdentifier(ois, checker);
+                if(reqID != null) loaded.removeRequest(reqID);
+            }
+        }
+        if(latest) {
             try {
-                if(!noSerialize) {
-                    request = (ClientRequest) readChecksummedObject(ois, length);
-                    if(request != null) {
-                        if(reqID != null) {
-                            if(!reqID.sameIdentifier(request.getRequestIdentifier())) {
-                                Logger.error(this, "Request does not match request identifier, discarding");
-                                request = null;
-                            } else {
-                                loaded.addPartiallyLoadedRequest(reqID, request, RequestLoadStatus.LOADED);
-                            }
+                // Don't bother with the buckets to free or the stats unless reading from the latest version (client.dat not client.dat.bak).
+                readStatsAndBuckets(ois, length, context);
+            } catch (Throwable t) {
+                Logger.error(this, "Failed to restore stats and delete old temp files: "+t, t);
+            }
+        }
+        ois.close();
+        PartiallyLoadedRequest[] requests = loadRecords(records);
+        for(int i=0;i<requests.length;i++) {
+            PartiallyLoadedRequest partial = requests[i];
+            if(partial == null) continue;
+            loaded.addPartiallyLoadedRequest(records.get(i).id, partial);
+        }
+    }
+    
+    /** Deserialize the records, on up to loadThreads threads. */
+    private PartiallyLoadedRequest[] loadRecords(final List<Record> records) {
+        final PartiallyLoadedRequest[] requests = new PartiallyLoadedRequest[records.size()];
+        int threads = Math.min(getLoadThreads(), records.size());
+        if(threads <= 1) {
+            for(int i=0;i<requests.length;i++)
+                requests[i] = loadRecord(records.get(i));
+            return requests;
+        }
+        final AtomicInteger next = new AtomicInteger();
+        final int[] running = new int[] { threads };
+        for(int i=0;i<threads;i++) {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        int i;
+                        while((i = next.getAndIncrement()) < requests.length)
+                            requests[i] = loadRecord(records.get(i));
+                    } finally {
+                        synchronized(running) {
+                            running[0]--;
+                            running.notifyAll();
                         }
                     }
-                } else
-                    skipChecksummedObject(ois, length);
+                }
+                
+            }, "Loading persistent requests");
+        }
+        synchronized(running) {
+            while(running[0] > 0) {
+                try {
+                    running.wait();
+                } catch (InterruptedException e) {
+                    // Ignore.
+                }
+            }
+        }
+        return requests;
+    }
+    
+    /** Deserialize a request, or if that fails, restore it from the recovery data.
+     * @return Null if the request is gone, e.g. it was restored but the recovery data didn't 
+     * identify a request. */
+    private PartiallyLoadedRequest loadRecord(Record record) {
+        RequestIdentifier reqID = record.id;
+        long length = record.data.length;
+        ClientRequest request = null;
+        try {
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(record.data));
+            skipRequestIdentifier(dis);
+            try {
+                request = (ClientRequest) readChecksummedObject(dis, length);
+                if(request != null && reqID != null && 
+                        !reqID.sameIdentifier(request.getRequestIdentifier())) {
+                    Logger.error(this, "Request does not match request identifier, discarding");
+                    request = null;
+                }
             } catch (ChecksumFailedException e) {
                 Logger.error(this, "Failed to load request (checksum failed)");
                 System.err.println("Failed to load a request (checksum failed)");
@@ -490,49 +683,69 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                 System.err.println("Failed to load a request: "+t);
                 t.printStackTrace();
             }
-            if(request == null || logMINOR) {
-                try {
-                    ClientRequest restored = readRequestFromRecoveryData(ois, length, reqID);
-                    if(request == null && restored != null) {
-                        request = restored;
-                        boolean loadedFully = restored.fullyResumed();
-                        loaded.addPartiallyLoadedRequest(reqID, request, 
-                                loadedFully ? RequestLoadStatus.RESTORED_FULLY : RequestLoadStatus.RESTORED_RESTARTED);
-                    }
-                } catch (ChecksumFailedException e) {
-                    if(request == null) {
-                        Logger.error(this, "Failed to recover a request (checksum failed)");
-                        System.err.println("Failed to recover a request (checksum failed)");
-                    } else {
-                        Logger.error(this, "Test recovery failed: Checksum failed for "+reqID);
-                    }
-                    if(request == null)
-                        loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED);
-                } catch (StorageFormatException e) {
-                    if(request == null) {
-                        Logger.error(this, "Failed to recovery a request (storage format): "+e, e);
-                        System.err.println("Failed to recovery a request (storage format): "+e);
-                        e.printStackTrace();
-                    } else {
-                        Logger.error(this, "Test recovery failed for "+reqID+" : "+e, e);
-                    }
-                    if(request == null)
-                        loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED);
-                }
-            } else {
-                skipChecksummedObject(ois, length);
+            if(request != null && !logMINOR)
+                return new PartiallyLoadedRequest(request, RequestLoadStatus.LOADED, record.data);
+            if(request == null) {
+                // Start again from the record, as readChecksummedObject may have stopped part way.
+                dis = new DataInputStream(new ByteArrayInputStream(record.data));
+                skipRequestIdentifier(dis);
             }
-        }
-        if(latest) {
+            skipChecksummedObject(dis, length);
             try {
-                // Don't bother with the buckets to free or the stats unless reading from the latest version (client.dat not client.dat.bak).
-                readStatsAndBuckets(ois, length, context);
-            } catch (Throwable t) {
-                Logger.error(this, "Failed to restore stats and delete old temp files: "+t, t);
+                ClientRequest restored = readRequestFromRecoveryData(dis, length, reqID);
+                if(request != null)
+                    return new PartiallyLoadedRequest(request, RequestLoadStatus.LOADED, record.data);
+                if(restored == null) return null;
+                boolean loadedFully = restored.fullyResumed();
+                return new PartiallyLoadedRequest(restored, 
+                        loadedFully ? RequestLoadStatus.RESTORED_FULLY : RequestLoadStatus.RESTORED_RESTARTED,
+                        record.data);
+            } catch (ChecksumFailedException e) {
+                if(request == null) {
+                    Logger.error(this, "Failed to recover a request (checksum failed)");
+                    System.err.println("Failed to recover a request (checksum failed)");
+                } else {
+                    Logger.error(this, "Test recovery failed: Checksum failed for "+reqID);
+                }
+            } catch (StorageFormatException e) {
+                if(request == null) {
+                    Logger.error(this, "Failed to recovery a request (storage format): "+e, e);
+                    System.err.println("Failed to recovery a request (storage format): "+e);
+                    e.printStackTrace();
+                } else {
+                    Logger.error(this, "Test recovery failed for "+reqID+" : "+e, e);
+                }
             }
+        } catch (IOException e) {
+            // Impossible, we checked the lengths when reading the record.
+            Logger.error(this, "Failed to parse request: "+e, e);
         }
-        ois.close();
-        fis = null;
+        if(request != null)
+            return new PartiallyLoadedRequest(request, RequestLoadStatus.LOADED, record.data);
+        return new PartiallyLoadedRequest(null, RequestLoadStatus.FAILED, null);
+    }
+    
+    private void skipRequestIdentifier(DataInputStream dis) throws IOException {
+        short length = dis.readShort();
+        if(length > 0)
+            FileUtil.skipFully(dis, length + checker.checksumLength());
+    }
+    
+    /** Restart a request from the recovery data, after it failed to resume. */
+    private ClientRequest restoreFromRecord(byte[] data, RequestIdentifier reqID) {
+        try {
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+            skipRequestIdentifier(dis);
+            skipChecksummedObject(dis, data.length);
+            return readRequestFromRecoveryData(dis, data.length, reqID);
+        } catch (ChecksumFailedException e) {
+            Logger.error(this, "Failed to recover "+reqID+" (checksum failed)");
+        } catch (StorageFormatException e) {
+            Logger.error(this, "Failed to recover "+reqID+" (storage format): "+e, e);
+        } catch (IOException e) {
+            Logger.error(this, "Failed to recover "+reqID+" : "+e, e);
+        }
+        return null;
     }
 
     private void readStatsAndBuckets(ObjectInputStream ois, long length, ClientContext context) throws IOException, ClassNotFoundException {
@@ -550,6 +763,257 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         persistentTempFactory.finishDelayedFree(buckets);
     }
 
+    /** Resume the loaded requests, highest priority first, on up to loadThreads persistent jobs
+     * at a time. Waits for the urgent ones, or all of them if not resuming in the background. */
+    private void startResume(PartialLoad loaded, ClientContext context) {
+        List<Map.Entry<RequestIdentifier, PartiallyLoadedRequest>> requests = 
+            new ArrayList<Map.Entry<RequestIdentifier, PartiallyLoadedRequest>>();
+        for(Map.Entry<RequestIdentifier, PartiallyLoadedRequest> entry : loaded.partiallyLoadedRequests.entrySet()) {
+            if(entry.getValue().request != null) requests.add(entry);
+        }
+        Collections.sort(requests, new Comparator<Map.Entry<RequestIdentifier, PartiallyLoadedRequest>>() {
+
+            @Override
+            public int compare(Map.Entry<RequestIdentifier, PartiallyLoadedRequest> e0, 
+                    Map.Entry<RequestIdentifier, PartiallyLoadedRequest> e1) {
+                return e0.getValue().request.getPriority() - e1.getValue().request.getPriority();
+            }
+            
+        });
+        // So that new requests can't take them before they are resumed.
+        for(Map.Entry<RequestIdentifier, PartiallyLoadedRequest> entry : requests)
+            context.persistentRoot.reserve(entry.getKey());
+        int chains;
+        synchronized(resumeLock) {
+            for(Map.Entry<RequestIdentifier, PartiallyLoadedRequest> entry : requests) {
+                toResume.put(entry.getKey(), entry.getValue());
+                if(entry.getValue().request.getPriority() <= URGENT_PRIORITY)
+                    urgentToResume++;
+            }
+            resumeTotal = toResume.size();
+            chains = Math.min(getLoadThreads(), toResume.size());
+            resumeChains = chains;
+            if(chains == 0) return;
+        }
+        for(int i=0;i<chains;i++)
+            queueResume();
+        waitForResume(getResumeInBackground());
+    }
+    
+    private void queueResume() {
+        PersistentJob job = new PersistentJob() {
+
+            @Override
+            public boolean run(ClientContext context) {
+                Map.Entry<RequestIdentifier, PartiallyLoadedRequest> next = null;
+                synchronized(resumeLock) {
+                    Iterator<Map.Entry<RequestIdentifier, PartiallyLoadedRequest>> it = toResume.entrySet().iterator();
+                    if(it.hasNext()) {
+                        next = it.next();
+                        it.remove();
+                        resuming.put(next.getKey(), next.getValue());
+                    }
+                }
+                if(next != null)
+                    resumeLoaded(next.getKey(), next.getValue(), context);
+                boolean more;
+                boolean last = false;
+                synchronized(resumeLock) {
+                    more = !toResume.isEmpty();
+                    if(!more) {
+                        resumeChains--;
+                        last = resumeChains == 0;
+                        resumeLock.notifyAll();
+                    }
+                }
+                if(more) queueResume();
+                else if(last) onResumed();
+                return false;
+            }
+            
+        };
+        // Low priority requests are resumed in the background, after startup.
+        int priority = NativeThread.LOW_PRIORITY;
+        synchronized(resumeLock) {
+            if(!toResume.isEmpty() && 
+                    toResume.values().iterator().next().request.getPriority() <= URGENT_PRIORITY)
+                priority = NativeThread.NORM_PRIORITY;
+        }
+        try {
+            queue(job, priority);
+        } catch (PersistenceDisabledException e) {
+            // Shutting down. The rest will be written with the next checkpoint.
+            synchronized(resumeLock) {
+                resumeChains--;
+                resumeLock.notifyAll();
+            }
+        }
+    }
+    
+    /** Resume the requests loaded at startup on a queue now, rather than waiting their turn, so
+     * that they can be listed or removed. Called on a persistent job. Also waits for any being
+     * resumed already.
+     * @param clientName The name of the FCP client, ignored if global is true.
+     * @param identifier If not null, only resume this request. */
+    public void resumeEarly(boolean global, String clientName, String identifier, 
+            ClientContext context) {
+        Map<RequestIdentifier, PartiallyLoadedRequest> early = 
+            new LinkedHashMap<RequestIdentifier, PartiallyLoadedRequest>();
+        synchronized(resumeLock) {
+            if(toResume.isEmpty() && resuming.isEmpty()) return;
+            Iterator<Map.Entry<RequestIdentifier, PartiallyLoadedRequest>> it = toResume.entrySet().iterator();
+            while(it.hasNext()) {
+                Map.Entry<RequestIdentifier, PartiallyLoadedRequest> entry = it.next();
+                if(!entry.getKey().matches(global, clientName, identifier)) continue;
+                early.put(entry.getKey(), entry.getValue());
+                it.remove();
+            }
+            resuming.putAll(early);
+        }
+        for(Map.Entry<RequestIdentifier, PartiallyLoadedRequest> entry : early.entrySet())
+            resumeLoaded(entry.getKey(), entry.getValue(), context);
+        synchronized(resumeLock) {
+            while(!shuttingDown()) {
+                boolean wait = false;
+                for(RequestIdentifier reqID : resuming.keySet())
+                    if(reqID.matches(global, clientName, identifier)) wait = true;
+                if(!wait) return;
+                try {
+                    resumeLock.wait(SECONDS.toMillis(1));
+                } catch (InterruptedException e) {
+                    // Ignore.
+                }
+            }
+        }
+    }
+    
+    /** Resume a request loaded at startup, which the caller has moved to resuming. */
+    private void resumeLoaded(RequestIdentifier reqID, PartiallyLoadedRequest partial, 
+            ClientContext context) {
+        RequestLoadStatus status = resume(reqID, partial, context);
+        // It's gone, so a new request can have the identifier.
+        if(status == RequestLoadStatus.FAILED)
+            context.persistentRoot.release(reqID);
+        synchronized(resumeLock) {
+            resuming.remove(reqID);
+            resumed[status.ordinal()]++;
+            if(partial.request.getPriority() <= URGENT_PRIORITY)
+                urgentToResume--;
+            resumeLock.notifyAll();
+        }
+    }
+    
+    /** Resume a request, or if it was deserialized but won't resume, restart it from the 
+     * recovery data. */
+    private RequestLoadStatus resume(RequestIdentifier reqID, PartiallyLoadedRequest partial, 
+            ClientContext context) {
+        ClientRequest req = partial.request;
+        RequestLoadStatus status = partial.status;
+        try {
+            req.onResume(context);
+            if(status == RequestLoadStatus.RESTORED_FULLY || 
+                    status == RequestLoadStatus.RESTORED_RESTARTED) {
+                req.start(context);
+            }
+            // Resuming may have changed it since the record was written.
+            req.setChanged();
+            return status;
+        } catch (Throwable t) {
+            System.err.println("Unable to resume request "+req+" after loading it.");
+            Logger.error(this, "Unable to resume request "+req+" after loading it: "+t, t);
+            try {
+                req.cancel(context);
+            } catch (Throwable t1) {
+                Logger.error(this, "Unable to terminate "+req+" after failure: "+t1, t1);
+            }
+        }
+        if(status != RequestLoadStatus.LOADED) return RequestLoadStatus.FAILED;
+        // Some serialization failures cause us to fail only at the point of scheduling the 
+        // request. So restart it from the recovery data.
+        req = restoreFromRecord(partial.record, reqID);
+        if(req == null) return RequestLoadStatus.FAILED;
+        try {
+            req.onResume(context);
+            req.start(context);
+            return req.fullyResumed() ? RequestLoadStatus.RESTORED_FULLY : RequestLoadStatus.RESTORED_RESTARTED;
+        } catch (Throwable t) {
+            Logger.error(this, "Unable to restart request "+req+" from recovery data: "+t, t);
+            try {
+                req.cancel(context);
+            } catch (Throwable t1) {
+                Logger.error(this, "Unable to terminate "+req+" after failure: "+t1, t1);
+            }
+            return RequestLoadStatus.FAILED;
+        }
+    }
+    
+    private void onResumed() {
+        int success;
+        int restoredFully;
+        int restoredRestarted;
+        int failed;
+        synchronized(resumeLock) {
+            success = resumed[RequestLoadStatus.LOADED.ordinal()];
+            restoredFully = resumed[RequestLoadStatus.RESTORED_FULLY.ordinal()];
+            restoredRestarted = resumed[RequestLoadStatus.RESTORED_RESTARTED.ordinal()];
+            failed = resumed[RequestLoadStatus.FAILED.ordinal()];
+        }
+        if(success > 0)
+            System.out.println("Resumed "+success+" requests ...");
+        if(restoredFully > 0)
+            System.out.println("Restored "+restoredFully+" requests (in spite of data corruption)");
+        if(restoredRestarted > 0)
+            System.out.println("Restarted "+restoredRestarted+" requests (due to data corruption)");
+        if(failed > 0)
+            System.err.println("Failed to restore "+failed+" requests due to data corruption");
+    }
+    
+    /** Wait until the requests loaded at startup have been resumed.
+     * @param urgentOnly If true, only wait for those with high priority. */
+    public void waitForResume(boolean urgentOnly) {
+        synchronized(resumeLock) {
+            while(resumeChains > 0 && (urgentOnly ? urgentToResume > 0 : true)) {
+                if(shuttingDown()) return;
+                try {
+                    // Shutting down doesn't notify us.
+                    resumeLock.wait(SECONDS.toMillis(1));
+                } catch (InterruptedException e) {
+                    // Ignore.
+                }
+            }
+        }
+    }
+    
+    /** @return The number of requests loaded at startup. */
+    public int getResumeTotal() {
+        synchronized(resumeLock) {
+            return resumeTotal;
+        }
+    }
+    
+    /** @return The number of requests loaded at startup which haven't been resumed yet. They 
+     * won't be visible on the queue until they have been, or a client lists them, see
+     * resumeEarly(). Their identifiers are reserved in the meantime. */
+    public int getResumeRemaining() {
+        synchronized(resumeLock) {
+            return toResume.size() + resuming.size();
+        }
+    }
+    
+    /** @return The records of the requests not yet resumed, so they can be written with the 
+     * others. */
+    private Map<RequestIdentifier, byte[]> getUnresumedRecords() {
+        synchronized(resumeLock) {
+            if(toResume.isEmpty() && resuming.isEmpty()) return Collections.emptyMap();
+            Map<RequestIdentifier, byte[]> records = new LinkedHashMap<RequestIdentifier, byte[]>();
+            for(Map.Entry<RequestIdentifier, PartiallyLoadedRequest> entry : resuming.entrySet())
+                records.put(entry.getKey(), entry.getValue().record);
+            for(Map.Entry<RequestIdentifier, PartiallyLoadedRequest> entry : toResume.entrySet())
+                records.put(entry.getKey(), entry.getValue().record);
+            return records;
+        }
+    }
+    
     @Override
     protected void innerCheckpoint(boolean shutdown) {
         save(shutdown);
@@ -557,10 +1021,47 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
     
     protected void save(boolean shutdown) {
         if(writeToFilename == null) return;
-        if(writeToFilename.exists()) {
-            FileUtil.renameTo(writeToFilename, writeToBackupFilename);
+        // Before getRequests(), so a request which finishes resuming in between is in one or the
+        // other.
+        Map<RequestIdentifier, byte[]> unresumed = getUnresumedRecords();
+        ClientRequest[] requests = getRequests();
+        if(!unresumed.isEmpty()) {
+            for(ClientRequest req : requests)
+                unresumed.remove(req.getRequestIdentifier());
+        }
+        if(shutdown) {
+            for(ClientRequest req : requests) {
+                if(req == null) continue;
+                try {
+                    req.onShutdown(getClientContext());
+                } catch (Throwable t) {
+                    Logger.error(this, "Caught while calling shutdown callback on "+req+": "+t, t);
+                }
+            }
         }
-        if(innerSave(shutdown)) {
+        boolean snapshot;
+        synchronized(journalLock) {
+            snapshot = mustWriteSnapshot;
+        }
+        if(snapshot)
+            saveSnapshot(requests, unresumed);
+        else
+            saveJournal(requests, unresumed, shutdown);
+    }
+    
+    /** Write every request to client.dat, and delete the journal. */
+    private void saveSnapshot(ClientRequest[] requests, Map<RequestIdentifier, byte[]> unresumed) {
+        long start = System.currentTimeMillis();
+        synchronized(journalLock) {
+            long sequence = journal.nextSequence();
+            snapshotGeneration++;
+            if(writeToFilename.exists()) {
+                FileUtil.renameTo(writeToFilename, writeToBackupFilename);
+            }
+            Map<RequestIdentifier, byte[]> hashes = new HashMap<RequestIdentifier, byte[]>();
+            if(!innerSave(requests, unresumed, sequence, hashes)) return;
+            mustWriteSnapshot = false;
+            deleteJournalFiles(sequence);
             if(deleteAfterSuccessfulWrite != null) {
                 deleteAfterSuccessfulWrite.delete();
                 deleteAfterSuccessfulWrite = null;
@@ -569,10 +1070,12 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                 otherDeleteAfterSuccessfulWrite.delete();
                 otherDeleteAfterSuccessfulWrite = null;
             }
+            journal.onSnapshot(hashes, writeToFilename.length(), System.currentTimeMillis() - start);
         }
     }
     
-    private boolean innerSave(boolean shutdown) {
+    private boolean innerSave(ClientRequest[] requests, Map<RequestIdentifier, byte[]> unresumed, 
+            long sequence, Map<RequestIdentifier, byte[]> hashes) {
         DelayedFree[] buckets = persistentTempFactory.grabBucketsToFree();
         OutputStream fos = null;
         try {
@@ -581,41 +1084,22 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             ObjectOutputStream oos = new ObjectOutputStream(bos);
             oos.writeLong(MAGIC);
             oos.writeInt(VERSION);
+            oos.writeLong(sequence);
             checker.writeAndChecksum(oos, salt);
-            ClientRequest[] requests = getRequests();
-            if(shutdown) {
-                for(ClientRequest req : requests) {
-                    if(req == null) continue;
-                    try {
-                        req.onShutdown(getClientContext());
-                    } catch (Throwable t) {
-                        Logger.error(this, "Caught while calling shutdown callback on "+req+": "+t, t);
-                    }
-                }
-            }
-            oos.writeInt(requests.length);
+            oos.writeInt(requests.length + unresumed.size());
             for(ClientRequest req : requests) {
-                // Write the request identifier so we can skip reading the request if we already have it.
-                writeRequestIdentifier(oos, req.getRequestIdentifier());
-                // Write the actual request.
-                writeChecksummedObject(oos, req, req.toString());
-                // Write recovery data. This is just enough to restart the request from scratch, 
-                // but may support continuing the request in simple cases e.g. if a fetch is now
-                // just a single splitfile.
-                writeRecoveryData(oos, req);
-            }
-            bandwidthStatsPutter.updateData(node);
-            oos.writeObject(bandwidthStatsPutter);
-            if(buckets == null) {
-                oos.writeInt(0);
-            } else {
-                oos.writeInt(buckets.length);
-                for(DelayedFree bucket : buckets)
-                    writeChecksummedObject(oos, bucket, null);
+                req.clearChanged();
+                hashes.put(req.getRequestIdentifier(), writeRecord(oos, req));
             }
+            // Requests loaded at startup which haven't been resumed yet are written as loaded.
+            for(Map.Entry<RequestIdentifier, byte[]> entry : unresumed.entrySet()) {
+                oos.write(entry.getValue());
+                hashes.put(entry.getKey(), SHA256.digest(entry.getValue()));
+            }
+            writeStatsAndBuckets(oos, buckets);
             oos.close();
             fos = null;
-            Logger.normal(this, "Saved "+requests.length+" requests to "+writeToFilename);
+            Logger.normal(this, "Saved "+(requests.length + unresumed.size())+" requests to "+writeToFilename);
             persistentTempFactory.finishDelayedFree(buckets);
             return true;
         } catch (IOException e) {
@@ -632,7 +1116,354 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
-    private void writeRecoveryData(ObjectOutputStream os, ClientRequest req) throws IOException {
+    /** Write the requests which have changed since the last checkpoint, and the identifiers of 
+     * those which have gone, to a new journal file. We only serialize the requests which are new
+     * or say they have changed, and one group of the others, except when shutting down or 
+     * freeing buckets. */
+    private void saveJournal(ClientRequest[] requests, Map<RequestIdentifier, byte[]> unresumed, 
+            boolean shutdown) {
+        long start = System.currentTimeMillis();
+        Map<RequestIdentifier, byte[]> hashes = new HashMap<RequestIdentifier, byte[]>();
+        List<Bucket> changed = new ArrayList<Bucket>();
+        int serialized = 0;
+        int group = checkGroup;
+        checkGroup = (group + 1) % UNCHANGED_GROUPS;
+        // Before writing the requests, so none of them still refers to these.
+        DelayedFree[] buckets = persistentTempFactory.grabBucketsToFree();
+        // A request may have given up a bucket without saying it has changed. Its old record 
+        // must not outlive the bucket, so write everything, as innerSave() does.
+        boolean all = shutdown || buckets != null;
+        File tmp = null;
+        OutputStream fos = null;
+        try {
+            for(ClientRequest req : requests) {
+                RequestIdentifier reqID = req.getRequestIdentifier();
+                byte[] oldHash = journal.getHash(reqID);
+                // Clear the flag before writing, so a change while we write is written next time.
+                if(!(req.clearChanged() || oldHash == null || all || 
+                        (reqID.hashCode() & Integer.MAX_VALUE) % UNCHANGED_GROUPS == group)) {
+                    hashes.put(reqID, oldHash);
+                    continue;
+                }
+                serialized++;
+                Bucket record = tempBucketFactory.makeBucket(-1);
+                OutputStream os = record.getOutputStream();
+                byte[] hash;
+                try {
+                    hash = writeRecord(os, req);
+                } finally {
+                    os.close();
+                }
+                hashes.put(reqID, hash);
+                if(journal.changed(reqID, hash))
+                    changed.add(record);
+                else
+                    record.free();
+            }
+            for(Map.Entry<RequestIdentifier, byte[]> entry : unresumed.entrySet()) {
+                // The record doesn't change until the request has been resumed.
+                byte[] hash = journal.getHash(entry.getKey());
+                if(hash == null) {
+                    hash = SHA256.digest(entry.getValue());
+                    changed.add(new ArrayBucket(entry.getValue()));
+                }
+                hashes.put(entry.getKey(), hash);
+            }
+            List<RequestIdentifier> removed = journal.removed(hashes.keySet());
+            if(changed.isEmpty() && removed.isEmpty() && buckets == null && !shutdown && 
+                    !journal.writeDue(start, INTERVAL)) {
+                journal.onUnchanged(requests.length, serialized, System.currentTimeMillis() - start);
+                return;
+            }
+            long sequence = journal.nextSequence();
+            File file = ClientLayerJournal.makeFilename(dir, baseName, sequence, writeEncryptionKey != null);
+            tmp = new File(file.getPath()+".tmp");
+            fos = makeBucket(tmp, writeEncryptionKey).getOutputStream();
+            BufferedOutputStream bos = new BufferedOutputStream(fos);
+            ObjectOutputStream oos = new ObjectOutputStream(bos);
+            oos.writeLong(JOURNAL_MAGIC);
+            oos.writeInt(VERSION);
+            oos.writeLong(sequence);
+            checker.writeAndChecksum(oos, salt);
+            oos.writeInt(changed.size());
+            for(Bucket record : changed)
+                BucketTools.copyTo(record, oos, Long.MAX_VALUE);
+            oos.writeInt(removed.size());
+            for(RequestIdentifier reqID : removed)
+                ClientLayerJournal.writeRequestIdentifier(oos, reqID, checker);
+            writeStatsAndBuckets(oos, buckets);
+            oos.close();
+            fos = null;
+            if(!FileUtil.renameTo(tmp, file))
+                throw new IOException("Unable to rename "+tmp+" to "+file);
+            tmp = null;
+            if(logMINOR) Logger.minor(this, "Saved "+changed.size()+" changed and "+removed.size()+" removed requests to "+file+" after serializing "+serialized);
+            persistentTempFactory.finishDelayedFree(buckets);
+            journal.onJournal(sequence, hashes, file.length(), changed.size(), serialized, System.currentTimeMillis() - start);
+            maybeCompact();
+        } catch (IOException e) {
+            System.err.println("Failed to write persistent requests: "+e);
+            e.printStackTrace();
+            // Start again from a full snapshot.
+            synchronized(journalLock) {
+                mustWriteSnapshot = true;
+            }
+        } finally {
+            for(Bucket record : changed)
+                record.free();
+            try {
+                if(fos != null) fos.close();
+            } catch (IOException e) {
+                System.err.println("Failed to write persistent requests: "+e);
+                e.printStackTrace();
+            }
+            if(tmp != null) tmp.delete();
+        }
+    }
+    
+    /** Write a request as stored in client.dat or the journal.
+     * @return The hash of what we wrote, so we can tell whether it has changed next time. */
+    private byte[] writeRecord(OutputStream os, ClientRequest req) throws IOException {
+        MessageDigest md = SHA256.getMessageDigest();
+        try {
+            DataOutputStream dos = new DataOutputStream(new DigestOutputStream(os, md));
+            // Write the request identifier so we can skip reading the request if we already have it.
+            ClientLayerJournal.writeRequestIdentifier(dos, req.getRequestIdentifier(), checker);
+            // Write the actual request.
+            writeChecksummedObject(dos, req, req.toString());
+            // Write recovery data. This is just enough to restart the request from scratch, 
+            // but may support continuing the request in simple cases e.g. if a fetch is now
+            // just a single splitfile.
+            writeRecoveryData(dos, req);
+            dos.flush();
+            return md.digest();
+        } finally {
+            SHA256.returnMessageDigest(md);
+        }
+    }
+    
+    private void writeStatsAndBuckets(ObjectOutputStream oos, DelayedFree[] buckets) throws IOException {
+        bandwidthStatsPutter.updateData(node);
+        oos.writeObject(bandwidthStatsPutter);
+        if(buckets == null) {
+            oos.writeInt(0);
+        } else {
+            oos.writeInt(buckets.length);
+            for(DelayedFree bucket : buckets)
+                writeChecksummedObject(oos, bucket, null);
+        }
+    }
+    
+    private void maybeCompact() {
+        synchronized(journalLock) {
+            if(compacting || !journal.shouldCompact()) return;
+            compacting = true;
+        }
+        executor.execute(new PrioRunnable() {
+
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } finally {
+                    synchronized(journalLock) {
+                        compacting = false;
+                    }
+                }
+            }
+
+            @Override
+            public int getPriority() {
+                return NativeThread.LOW_PRIORITY;
+            }
+            
+        }, "Compacting "+baseName);
+    }
+    
+    /** Merge the journal into a new client.dat. Runs off the checkpoint thread, and only copies
+     * the records, so we don't have to deserialize anything. If a checkpoint writes a full
+     * snapshot in the meantime, the result is thrown away. */
+    void compact() {
+        long start = System.currentTimeMillis();
+        File snapshotFile;
+        File backupFile;
+        DatabaseKey encryptionKey;
+        long generation;
+        long[] sequences;
+        synchronized(journalLock) {
+            if(writeToFilename == null || mustWriteSnapshot) return;
+            snapshotFile = writeToFilename;
+            backupFile = writeToBackupFilename;
+            encryptionKey = writeEncryptionKey;
+            generation = snapshotGeneration;
+            sequences = ClientLayerJournal.list(dir, baseName, encryptionKey != null);
+        }
+        if(sequences.length == 0 || !snapshotFile.exists()) return;
+        long upTo = sequences[sequences.length-1];
+        File tmp = new File(snapshotFile.getPath()+".tmp");
+        Bucket kept = null;
+        InputStream fis = null;
+        OutputStream fos = null;
+        boolean success = false;
+        try {
+            Bucket snapshot = makeBucket(snapshotFile, encryptionKey);
+            long length = snapshot.size();
+            fis = new BufferedInputStream(snapshot.getInputStream());
+            ObjectInputStream ois = new ObjectInputStream(fis);
+            if(ois.readLong() != MAGIC) throw new IOException("Bad magic");
+            if(ois.readInt() != VERSION) throw new IOException("Bad version");
+            long sequence = ois.readLong();
+            // Skip the salt.
+            FileUtil.skipFully(ois, salt.length + checker.checksumLength());
+            // Newest first, so the first record for each request is the latest. Null means removed.
+            Map<RequestIdentifier, byte[]> newer = new HashMap<RequestIdentifier, byte[]>();
+            List<byte[]> unidentified = new ArrayList<byte[]>();
+            PersistentStatsPutter stats = null;
+            for(int i=sequences.length-1;i>=0 && sequences[i] > sequence;i--) {
+                File f = ClientLayerJournal.makeFilename(dir, baseName, sequences[i], encryptionKey != null);
+                PersistentStatsPutter s = readJournalForCompaction(makeBucket(f, encryptionKey), newer, unidentified, stats == null);
+                if(stats == null) stats = s;
+            }
+            if(stats == null) return;
+            // Copy the older records to temporary storage, as we need the count before them.
+            kept = tempBucketFactory.makeBucket(-1);
+            OutputStream os = kept.getOutputStream();
+            int keptCount = 0;
+            try {
+                DataOutputStream dos = new DataOutputStream(os);
+                int count = ois.readInt();
+                for(int i=0;i<count;i++) {
+                    Record record = ClientLayerJournal.readRecord(ois, checker, length);
+                    if(record.id != null && newer.containsKey(record.id)) continue;
+                    dos.write(record.data);
+                    keptCount++;
+                }
+                dos.flush();
+            } finally {
+                os.close();
+            }
+            ois.close();
+            fis = null;
+            int count = keptCount + unidentified.size();
+            for(byte[] data : newer.values())
+                if(data != null) count++;
+            fos = makeBucket(tmp, encryptionKey).getOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(fos));
+            oos.writeLong(MAGIC);
+            oos.writeInt(VERSION);
+            oos.writeLong(upTo);
+            checker.writeAndChecksum(oos, salt);
+            oos.writeInt(count);
+            BucketTools.copyTo(kept, oos, Long.MAX_VALUE);
+            for(byte[] data : newer.values())
+                if(data != null) oos.write(data);
+            for(byte[] data : unidentified)
+                oos.write(data);
+            oos.writeObject(stats);
+            // The buckets to free were freed after writing the journal.
+            oos.writeInt(0);
+            oos.close();
+            fos = null;
+            synchronized(journalLock) {
+                if(generation != snapshotGeneration || mustWriteSnapshot || 
+                        !snapshotFile.equals(writeToFilename)) {
+                    Logger.normal(this, "Discarding compacted "+tmp+" as "+snapshotFile+" has been written since");
+                    return;
+                }
+                FileUtil.renameTo(snapshotFile, backupFile);
+                if(!FileUtil.renameTo(tmp, snapshotFile))
+                    throw new IOException("Unable to rename "+tmp+" to "+snapshotFile);
+                deleteJournalFiles(upTo);
+                journal.onCompacted(upTo, snapshotFile.length(), System.currentTimeMillis() - start);
+            }
+            success = true;
+            Logger.normal(this, "Compacted journal up to "+upTo+" into "+snapshotFile+" with "+count+" requests");
+        } catch (Throwable t) {
+            Logger.error(this, "Unable to compact journal into "+snapshotFile+" : "+t, t);
+            // Start again from a full snapshot.
+            synchronized(journalLock) {
+                mustWriteSnapshot = true;
+            }
+        } finally {
+            Closer.close(fis);
+            Closer.close(fos);
+            if(kept != null) kept.free();
+            if(!success) tmp.delete();
+        }
+    }
+    
+    /** Read the records in a journal file which aren't superseded by a newer journal file.
+     * @return The stats if readStats, otherwise null. */
+    private PersistentStatsPutter readJournalForCompaction(Bucket bucket, 
+            Map<RequestIdentifier, byte[]> newer, List<byte[]> unidentified, boolean readStats) 
+            throws IOException, ClassNotFoundException {
+        long length = bucket.size();
+        InputStream fis = new BufferedInputStream(bucket.getInputStream());
+        try {
+            ObjectInputStream ois = new ObjectInputStream(fis);
+            if(ois.readLong() != JOURNAL_MAGIC) throw new IOException("Bad magic");
+            if(ois.readInt() != VERSION) throw new IOException("Bad version");
+            ois.readLong();
+            FileUtil.skipFully(ois, salt.length + checker.checksumLength());
+            int count = ois.readInt();
+            for(int i=0;i<count;i++) {
+                Record record = ClientLayerJournal.readRecord(ois, checker, length);
+                if(record.id == null)
+                    unidentified.add(record.data);
+                else if(!newer.containsKey(record.id))
+                    newer.put(record.id, record.data);
+            }
+            int removedCount = ois.readInt();
+            for(int i=0;i<removedCount;i++) {
+                RequestIdentifier reqID = ClientLayerJournal.readRequestIdentifier(ois, checker);
+                if(reqID == null) throw new IOException("Corrupt journal");
+                if(!newer.containsKey(reqID))
+                    newer.put(reqID, null);
+            }
+            PersistentStatsPutter stats = null;
+            if(readStats)
+                stats = (PersistentStatsPutter) ois.readObject();
+            ois.close();
+            fis = null;
+            return stats;
+        } finally {
+            Closer.close(fis);
+        }
+    }
+    
+    /** Delete the journal files up to and including upTo. Caller must hold journalLock. */
+    private void deleteJournalFiles(long upTo) {
+        for(int i=0;i<2;i++) {
+            boolean encrypted = i == 1;
+            for(long sequence : ClientLayerJournal.list(dir, baseName, encrypted)) {
+                if(sequence > upTo) break;
+                ClientLayerJournal.makeFilename(dir, baseName, sequence, encrypted).delete();
+            }
+        }
+    }
+    
+    /** Securely delete all the journal files, and any temporary files left behind. */
+    private void deleteJournalFiles(boolean encrypted) {
+        synchronized(journalLock) {
+            for(long sequence : ClientLayerJournal.list(dir, baseName, encrypted))
+                deleteFile(ClientLayerJournal.makeFilename(dir, baseName, sequence, encrypted));
+            deleteTempFiles();
+        }
+    }
+    
+    /** Securely delete the temporary files written before renaming a journal file or a compacted
+     * client.dat into place. */
+    private void deleteTempFiles() {
+        File[] files = dir.listFiles();
+        if(files == null) return;
+        for(File f : files) {
+            String name = f.getName();
+            if(name.startsWith(baseName) && name.endsWith(".tmp"))
+                deleteFile(f);
+        }
+    }
+    
+    private void writeRecoveryData(OutputStream os, ClientRequest req) throws IOException {
         PrependLengthOutputStream oos = checker.checksumWriterWithLength(os, tempBucketFactory);
         DataOutputStream dos = new DataOutputStream(oos);
         try {
@@ -649,7 +1480,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
-    private ClientRequest readRequestFromRecoveryData(ObjectInputStream is, long totalLength, RequestIdentifier reqID) throws IOException, ChecksumFailedException, StorageFormatException {
+    private ClientRequest readRequestFromRecoveryData(InputStream is, long totalLength, RequestIdentifier reqID) throws IOException, ChecksumFailedException, StorageFormatException {
         InputStream tmp = checker.checksumReaderWithLength(is, this.tempBucketFactory, totalLength);
         try {
             DataInputStream dis = new DataInputStream(tmp);
@@ -666,7 +1497,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
 
-    private void writeChecksummedObject(ObjectOutputStream os, Object req, String name) throws IOException {
+    private void writeChecksummedObject(OutputStream os, Object req, String name) throws IOException {
         PrependLengthOutputStream oos = checker.checksumWriterWithLength(os, tempBucketFactory);
         try {
             ObjectOutputStream innerOOS = new ObjectOutputStream(oos);
@@ -681,7 +1512,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
-    private Object readChecksummedObject(ObjectInputStream is, long totalLength) throws IOException, ChecksumFailedException, ClassNotFoundException {
+    private Object readChecksummedObject(InputStream is, long totalLength) throws IOException, ChecksumFailedException, ClassNotFoundException {
         InputStream ois = checker.checksumReaderWithLength(is, this.tempBucketFactory, totalLength);
         try {
             ObjectInputStream oo = new ObjectInputStream(ois);
@@ -698,13 +1529,13 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
 
-    private void skipChecksummedObject(ObjectInputStream is, long totalLength) throws IOException {
+    private void skipChecksummedObject(DataInputStream is, long totalLength) throws IOException {
         long length = is.readLong();
         if(length > totalLength) throw new IOException("Too long: "+length+" > "+totalLength);
         FileUtil.skipFully(is, length + checker.checksumLength());
     }
 
-    private ClientRequest[] getRequests() {
+    protected ClientRequest[] getRequests() {
         return clientCore.getPersistentRequests();
     }
 
@@ -712,34 +1543,30 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         return newSalt;
     }
     
-    private RequestIdentifier readRequestIdentifier(DataInput is) throws IOException {
-        short length = is.readShort();
-        if(length <= 0) return null;
-        byte[] buf = new byte[length];
-        try {
-            checker.readAndChecksum(is, buf, 0, length);
-        } catch (ChecksumFailedException e) {
-            Logger.error(this, "Checksum failed reading RequestIdentifier. This is not serious but means we will have to read the next request even if we don't need it.");
-            return null;
-        }
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(buf));
-        try {
-            return new RequestIdentifier(dis);
-        } catch (IOException e) {
-            Logger.error(this, "Failed to parse RequestIdentifier in spite of valid checksum (probably a bug): "+e, e);
-            return null;
-        }
+    /** Set the number of threads used to deserialize requests at startup, and the number of 
+     * requests resumed at once. */
+    public synchronized void setLoadThreads(int loadThreads) {
+        if(loadThreads < 1) throw new IllegalArgumentException();
+        this.loadThreads = loadThreads;
     }
-    
-    private void writeRequestIdentifier(DataOutput os, RequestIdentifier req) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        OutputStream oos = checker.checksumWriter(baos);
-        DataOutputStream dos = new DataOutputStream(oos);
-        req.writeTo(dos);
-        dos.close();
-        byte[] buf = baos.toByteArray();
-        os.writeShort(buf.length - checker.checksumLength());
-        os.write(buf);
+
+    public synchronized int getLoadThreads() {
+        return loadThreads;
+    }
+
+    /** If true, only wait for high priority requests to resume at startup. The rest are resumed
+     * in the background. */
+    public synchronized void setResumeInBackground(boolean resumeInBackground) {
+        this.resumeInBackground = resumeInBackground;
+    }
+
+    public synchronized boolean getResumeInBackground() {
+        return resumeInBackground;
+    }
+
+    /** @return Statistics on checkpoints and the journal. */
+    public ClientLayerJournal getJournal() {
+        return journal;
     }
 
     public synchronized File getWriteFilename() {
@@ -757,14 +1584,19 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             deleteFile(dir, baseName, false, true);
             deleteFile(dir, baseName, true, false);
             deleteFile(dir, baseName, true, true);
+            deleteJournalFiles(false);
+            deleteJournalFiles(true);
         }
     }
 
     public void disableWrite() {
         synchronized(serializeCheckpoints) {
-            writeToFilename = null;
-            writeToBackupFilename = null;
-            writeToBucket = null;
+            synchronized(journalLock) {
+                writeToFilename = null;
+                writeToBackupFilename = null;
+                writeToBucket = null;
+                writeEncryptionKey = null;
+            }
         }
         super.disableWrite();
     }
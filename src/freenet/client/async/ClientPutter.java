@@ -389,6 +389,8 @@ public class ClientPutter extends BaseClientPutter implements PutCompletionCallb
 	@Override
 	public void onTransition(ClientPutState oldState, ClientPutState newState, ClientContext context) {
 		if(newState == null) throw new NullPointerException();
+		// Either way we persist the new state.
+		setChanged();
 
 		synchronized (this) {
 			if (currentState == oldState) {
@@ -102,6 +102,24 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 		return cancelled;
 	}
 
+	/** Set when something we persist changes, such as a state transition, which the FCP layer 
+	 * isn't told about. */
+	private transient volatile boolean changed;
+
+	/** Something we persist has changed, so the next checkpoint should write the persistent 
+	 * request which owns us, see ClientRequest.setChanged(). */
+	public void setChanged() {
+		changed = true;
+	}
+
+	/** Called by the FCP layer just before writing the request which owns us.
+	 * @return True if we have changed since the last call. */
+	public boolean clearChanged() {
+		if(!changed) return false;
+		changed = false;
+		return true;
+	}
+
 	/** Get the URI for the request or insert. For a request this is set at
 	 * creation, but for an insert, it is set when we know what the final 
 	 * URI will be. */
@@ -0,0 +1,96 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps track of the compression codecs InsertCompressor is trying in parallel, and tells each
+ * one when it can no longer win, so it can give up early.
+ *
+ * We pick the same codec as trying them one at a time in order would: the first one (in order)
+ * to fit in minSize, otherwise the first one with the fewest blocks, if that is fewer than the
+ * original data. So a codec can give up once it has written more than minSize, and as many
+ * blocks as the best codec before it in the order, or one block more than the best codec after
+ * it. If a codec before it fits in minSize it needn't run at all.
+ */
+final class CompressionRace {
+
+	private final long origBlocks;
+	private final long minSize;
+	private final long blockSize;
+	/** The compressed size for each codec. -1 if it hasn't finished or it failed. */
+	private final long[] sizes;
+	/** How much each codec can write before it has lost. Read without locking on every write. */
+	private final AtomicLongArray limits;
+	private boolean aborted;
+
+	CompressionRace(int codecs, long origSize, long minSize, long blockSize) {
+		this.origBlocks = origSize / blockSize;
+		this.minSize = minSize;
+		this.blockSize = blockSize;
+		sizes = new long[codecs];
+		for(int i=0;i<codecs;i++) sizes[i] = -1;
+		limits = new AtomicLongArray(codecs);
+		updateLimits();
+	}
+
+	/** @return The number of bytes a codec can write before it can't win any more. Only ever
+	 * goes down. */
+	long getLimit(int codec) {
+		return limits.get(codec);
+	}
+
+	synchronized void onCompressed(int codec, long size) {
+		sizes[codec] = size;
+		updateLimits();
+	}
+
+	/** Something went badly wrong, so all of them should stop. */
+	synchronized void abort() {
+		aborted = true;
+		updateLimits();
+	}
+
+	private void updateLimits() {
+		for(int i=0;i<sizes.length;i++) {
+			if(aborted) {
+				limits.set(i, 0);
+				continue;
+			}
+			// Beat the original data.
+			long limit = Math.max(minSize + 1, origBlocks * blockSize);
+			for(int j=0;j<sizes.length;j++) {
+				long size = sizes[j];
+				if(j == i || size == -1) continue;
+				if(size <= minSize) {
+					limit = Math.min(limit, j < i ? 0 : minSize + 1);
+				} else {
+					long blocks = size / blockSize;
+					if(i < j) blocks++;
+					limit = Math.min(limit, Math.max(minSize + 1, blocks * blockSize));
+				}
+			}
+			limits.set(i, limit);
+		}
+	}
+
+	/** @return The codec to use, or -1 to use the original data. */
+	synchronized int getWinner() {
+		for(int i=0;i<sizes.length;i++)
+			if(sizes[i] != -1 && sizes[i] <= minSize) return i;
+		int winner = -1;
+		long bestBlocks = origBlocks;
+		for(int i=0;i<sizes.length;i++) {
+			if(sizes[i] == -1) continue;
+			long blocks = sizes[i] / blockSize;
+			if(blocks < bestBlocks) {
+				winner = i;
+				bestBlocks = blocks;
+			}
+		}
+		return winner;
+	}
+
+}
@@ -0,0 +1,200 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import freenet.support.Logger;
+
+/**
+ * Limits how many completed downloads are filtered at once. Every ClientGetter which finishes with
+ * filtering turned on runs the content filter in onSuccess(), and a whole freesite can finish
+ * hundreds of files together. Without a limit they all filter in parallel, each with its own
+ * worker and decompressor threads, and thrash the CPU. With one, the completions wait here before
+ * starting, and at most maxThreads filter at a time.
+ *
+ * The data must be read before onSuccess() returns, as the fetcher frees it afterwards, so the
+ * completion waits on its own thread rather than being queued.
+ *
+ * Also keeps a histogram of how long filtering takes for each MIME type.
+ */
+public class ContentFilterStage {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(ContentFilterStage.class);
+	}
+
+	private int maxThreads;
+	private int running;
+	private int waiting;
+	private long totalWaitTime;
+	private long totalStarted;
+	private final Map<String, FilterTimes> times = new TreeMap<String, FilterTimes>();
+
+	public ContentFilterStage(int maxThreads) {
+		if(maxThreads < 1) throw new IllegalArgumentException();
+		this.maxThreads = maxThreads;
+	}
+
+	/** Wait until a filter thread is free. Must be followed by {@link #release()}. */
+	public synchronized void acquire() {
+		long start = System.currentTimeMillis();
+		waiting++;
+		try {
+			while(running >= maxThreads) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore.
+				}
+			}
+		} finally {
+			waiting--;
+		}
+		running++;
+		totalStarted++;
+		long waited = System.currentTimeMillis() - start;
+		totalWaitTime += waited;
+		if(logMINOR && waited > 0) Logger.minor(this, "Waited "+waited+"ms to filter, "+running+" running");
+	}
+
+	public synchronized void release() {
+		assert(running > 0);
+		running--;
+		notify();
+	}
+
+	/**
+	 * Record a successful filter.
+	 * @param mimeType The MIME type the data was filtered as, without parameters.
+	 * @param time How long it took in milliseconds, including reading and decompressing the data.
+	 * @param bytes The size of the filtered data.
+	 */
+	public synchronized void report(String mimeType, long time, long bytes) {
+		FilterTimes t = times.get(mimeType);
+		if(t == null) {
+			t = new FilterTimes(mimeType);
+			times.put(mimeType, t);
+		}
+		t.report(time, bytes);
+	}
+
+	public synchronized void setMaxThreads(int maxThreads) {
+		if(maxThreads < 1) throw new IllegalArgumentException();
+		this.maxThreads = maxThreads;
+		notifyAll();
+	}
+
+	public synchronized int getMaxThreads() {
+		return maxThreads;
+	}
+
+	public synchronized int getRunning() {
+		return running;
+	}
+
+	public synchronized int getWaiting() {
+		return waiting;
+	}
+
+	/** @return The average time spent waiting for a thread, in milliseconds. */
+	public synchronized double getAverageWaitTime() {
+		if(totalStarted == 0) return 0.0;
+		return ((double) totalWaitTime) / totalStarted;
+	}
+
+	/** @return Copies of the times for each MIME type, in order of MIME type. */
+	public synchronized List<FilterTimes> getTimes() {
+		List<FilterTimes> list = new ArrayList<FilterTimes>(times.size());
+		for(FilterTimes t : times.values())
+			list.add(new FilterTimes(t));
+		return list;
+	}
+
+	/**
+	 * Filter times for one MIME type. Bucket 0 counts times under 1ms, bucket i times from
+	 * 2^(i-1)ms up to 2^i ms, and the last bucket everything longer.
+	 */
+	public static class FilterTimes {
+
+		public static final int BUCKETS = 20;
+
+		public final String mimeType;
+		private long count;
+		private long totalTime;
+		private long totalBytes;
+		private long maxTime;
+		private final long[] buckets;
+
+		FilterTimes(String mimeType) {
+			this.mimeType = mimeType;
+			buckets = new long[BUCKETS];
+		}
+
+		FilterTimes(FilterTimes t) {
+			mimeType = t.mimeType;
+			count = t.count;
+			totalTime = t.totalTime;
+			totalBytes = t.totalBytes;
+			maxTime = t.maxTime;
+			buckets = t.buckets.clone();
+		}
+
+		static int bucket(long time) {
+			if(time < 1) return 0;
+			int b = 64 - Long.numberOfLeadingZeros(time);
+			return Math.min(b, BUCKETS - 1);
+		}
+
+		void report(long time, long bytes) {
+			if(time < 0) time = 0;
+			count++;
+			totalTime += time;
+			totalBytes += bytes;
+			if(time > maxTime) maxTime = time;
+			buckets[bucket(time)]++;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getTotalBytes() {
+			return totalBytes;
+		}
+
+		public long getMaxTime() {
+			return maxTime;
+		}
+
+		public double getAverageTime() {
+			if(count == 0) return 0.0;
+			return ((double) totalTime) / count;
+		}
+
+		/** @return The number of filters whose times fell in each bucket. */
+		public long[] getBuckets() {
+			return buckets.clone();
+		}
+
+		/** @return An upper bound, in milliseconds, on the given fraction of the filter times,
+		 * from the histogram. */
+		public long getPercentile(double fraction) {
+			if(count == 0) return 0;
+			long target = (long) Math.ceil(count * fraction);
+			long seen = 0;
+			for(int i=0;i<BUCKETS-1;i++) {
+				seen += buckets[i];
+				if(seen >= target)
+					return Math.min(1L << i, maxTime);
+			}
+			return maxTime;
+		}
+	}
+
+}
@@ -182,7 +182,12 @@ public class DatastoreChecker implements PrioRunnable {
 		}
 		sched = getter.getScheduler(context);
 		boolean anyValid = false;
-		for(Key key : keys) {
+		// Look up the whole set at once so the store can combine the disk reads.
+		KeyBlock[] fetched = null;
+		if(blocks == null)
+			fetched = node.fetch(keys, true, true, false);
+		for(int i=0;i<keys.length;i++) {
+			Key key = keys[i];
 			if(random != null) {
 				if(random.nextInt(RESET_COUNTER) < KILL_BLOCKS) {
 					anyValid = true;
@@ -193,7 +198,7 @@ public class DatastoreChecker implements PrioRunnable {
 			if(blocks != null)
 				block = blocks.get(key);
 			else
-				block = node.fetch(key, true, true, false, false, null);
+				block = fetched[i];
 			if(block != null) {
 				if(logMINOR) Logger.minor(this, "Found key");
 				if(key instanceof NodeSSK)
@@ -1,8 +1,15 @@
 package freenet.client.async;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import freenet.client.InsertException;
 import freenet.client.InsertException.InsertExceptionMode;
@@ -22,6 +29,7 @@ import freenet.support.compress.CompressionOutputSizeException;
 import freenet.support.compress.InvalidCompressionCodecException;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 import freenet.support.io.Closer;
+import freenet.support.io.FileUtil;
 import freenet.support.io.NativeThread;
 
 /**
@@ -86,121 +94,56 @@ public class InsertCompressor implements CompressJob {
 	@Override
 	public void tryCompress(final ClientContext context) throws InsertException {
 		long origSize = origData.size();
-		long origNumberOfBlocks = origSize/CHKBlock.DATA_LENGTH;
 		COMPRESSOR_TYPE bestCodec = null;
 		RandomAccessBucket bestCompressedData = origData;
-		long bestCompressedDataSize = origSize;
-		long bestNumberOfBlocks = origNumberOfBlocks;
 		
 		HashResult[] hashes = null;
 		
 		if(logMINOR) Logger.minor(this, "Attempt to compress the data");
 		// Try to compress the data.
-		// Try each algorithm, starting with the fastest and weakest.
-		// Stop when run out of algorithms, or the compressed data fits in a single block.
+		// Try all the algorithms at once, on this thread and any compressor threads which are free.
+		// Each one gives up as soon as it can't win, and we pick the same one as we would if we
+		// tried them one at a time, starting with the fastest and weakest, and stopped when the
+		// compressed data fits in a single block.
 		try {
 			COMPRESSOR_TYPE[] comps = COMPRESSOR_TYPE.getCompressorsArray(compressorDescriptor, pre1254);
-			boolean first = true;
-			for (final COMPRESSOR_TYPE comp : comps) {
-				boolean shouldFreeOnFinally = true;
-				RandomAccessBucket result = null;
-				try {
-					if(logMINOR)
-						Logger.minor(this, "Attempt to compress using " + comp);
-					// Only produce if we are compressing *the original data*
-					if(persistent) {
-						context.jobRunner.queue(new PersistentJob() {
-
-							@Override
-							public boolean run(ClientContext context) {
-								inserter.onStartCompression(comp, context);
-								return false;
-							}
-
-						}, NativeThread.NORM_PRIORITY+1);
-					} else {
-						try {
-							inserter.onStartCompression(comp, context);
-						} catch (Throwable t) {
-							Logger.error(this, "Transient insert callback threw "+t, t);
-						}
-					}
-
-					InputStream is = null;
-					OutputStream os = null;
-					MultiHashInputStream hasher = null;
-					try {
-						is = origData.getInputStream();
-						result = bucketFactory.makeBucket(-1);
-						os = result.getOutputStream();
-						if(first && generateHashes != 0) {
-							if(logMINOR) Logger.minor(this, "Generating hashes: "+generateHashes);
-							is = hasher = new MultiHashInputStream(is, generateHashes);
-						}
-						try {
-							comp.compress(is, os, origSize, bestCompressedDataSize);
-						} catch (RuntimeException e) {
-							// ArithmeticException has been seen in bzip2 codec.
-							Logger.error(this, "Compression failed with codec "+comp+" : "+e, e);
-							// Try the next one
-							// RuntimeException is iffy, so lets not try the hasher.
-							continue;
-						} catch (CompressionOutputSizeException e) {
-							if(hasher != null) {
-								is.skip(Long.MAX_VALUE);
-								hashes = hasher.getResults();
-								first = false;
-							}
-							continue; // try next compressor type
-						}
-						if(hasher != null) {
-							hashes = hasher.getResults();
-							first = false;
-						}
-					} finally {
-						Closer.close(is);
-						Closer.close(os);
-					}
-					long resultSize = result.size();
-					long resultNumberOfBlocks = resultSize/CHKBlock.DATA_LENGTH;
-					// minSize is {SSKBlock,CHKBlock}.MAX_COMPRESSED_DATA_LENGTH
-					if(resultSize <= minSize) {
-						if(logMINOR)
-							Logger.minor(this, "New size " + resultSize + " smaller then minSize "
-											   + minSize);
-
-						bestCodec = comp;
-						if(bestCompressedData != null && bestCompressedData != origData)
-							// Don't need to removeFrom() : we haven't stored it.
-							bestCompressedData.free();
-						bestCompressedData = result;
-						bestCompressedDataSize = resultSize;
-						bestNumberOfBlocks = resultNumberOfBlocks;
-						shouldFreeOnFinally = false;
-						break;
-					}
-					if(resultNumberOfBlocks < bestNumberOfBlocks) {
-						if(logMINOR)
-							Logger.minor(this, "New size "+resultSize+" ("+resultNumberOfBlocks+" blocks) better than old best "+bestCompressedDataSize+ " ("+bestNumberOfBlocks+" blocks)");
-						if(bestCompressedData != null && bestCompressedData != origData)
-							bestCompressedData.free();
-						bestCompressedData = result;
-						bestCompressedDataSize = resultSize;
-						bestNumberOfBlocks = resultNumberOfBlocks;
-						bestCodec = comp;
-						shouldFreeOnFinally = false;
-					}
-				} catch (PersistenceDisabledException e) {
-				    if(!context.jobRunner.shuttingDown())
-				        Logger.error(this, "Database disabled compressing data", new Exception("error"));
-					shouldFreeOnFinally = true;
-					if(bestCompressedData != null && bestCompressedData != origData && bestCompressedData != result)
-						bestCompressedData.free();
-				} finally {
-					if(shouldFreeOnFinally && (result != null) && result != origData)
-						result.free();
+			// Not if the caller chose the codecs, they may be relying on getting the same key.
+			if(context.rc.isSamplingPrePass() && compressorDescriptor == null && 
+					origSize >= SAMPLE_MIN_SIZE)
+				comps = sample(comps, origSize);
+			CompressionRace race = new CompressionRace(comps.length, origSize, minSize, CHKBlock.DATA_LENGTH);
+			Attempts attempts = new Attempts(context, comps, race, origSize);
+			for(int i=1;i<comps.length;i++)
+				context.rc.offerJob(attempts, "Compressor helper for "+this);
+			// We might have to do them all ourselves, if the other threads are busy.
+			attempts.run();
+			attempts.waitForAll();
+			int winner = race.getWinner();
+			for(int i=0;i<comps.length;i++) {
+				RandomAccessBucket result = attempts.results[i];
+				if(result == null) continue;
+				if(i == winner && attempts.error == null && !attempts.persistenceDisabled) {
+					bestCodec = comps[i];
+					bestCompressedData = result;
+				} else {
+					result.free();
 				}
 			}
+			if(attempts.persistenceDisabled)
+				throw new PersistenceDisabledException();
+			if(attempts.error != null)
+				throw attempts.error;
+			if(logMINOR) {
+				if(bestCodec == null)
+					Logger.minor(this, "Not compressing: no codec saves a block on "+origSize+" bytes");
+				else
+					Logger.minor(this, "Compressed "+origSize+" bytes to "+bestCompressedData.size()+" with "+bestCodec);
+			}
+			hashes = attempts.hashes;
+			if(hashes == null && generateHashes != 0) {
+				// The codec which was generating them failed, or we didn't try any.
+				hashes = hash(origSize);
+			}
 			
 			final CompressionOutput output = new CompressionOutput(bestCompressedData, bestCodec, hashes);
 			
@@ -238,7 +181,8 @@ public class InsertCompressor implements CompressJob {
 				}, "Insert thread for "+this);
 			}
 		} catch (PersistenceDisabledException e) {
-			Logger.error(this, "Database disabled compressing data", new Exception("error"));
+			if(!context.jobRunner.shuttingDown())
+				Logger.error(this, "Database disabled compressing data", new Exception("error"));
 			if(bestCompressedData != null && bestCompressedData != origData)
 				bestCompressedData.free();
 		} catch (InvalidCompressionCodecException e) {
@@ -248,6 +192,278 @@ public class InsertCompressor implements CompressJob {
 		}	
 	}
 
+	/** The codecs we are trying. Runs on the compressor thread that is running the whole job,
+	 * and on any others which are free, each taking the next codec which hasn't been started. */
+	private class Attempts implements Runnable {
+
+		private final ClientContext context;
+		private final COMPRESSOR_TYPE[] comps;
+		private final CompressionRace race;
+		private final long origSize;
+		/** The compressed data for each codec which finished. Only read after waitForAll(). */
+		final RandomAccessBucket[] results;
+		HashResult[] hashes;
+		/** Reading the original data or writing the compressed data failed. */
+		IOException error;
+		boolean persistenceDisabled;
+		private int next;
+		private int running;
+
+		Attempts(ClientContext context, COMPRESSOR_TYPE[] comps, CompressionRace race, long origSize) {
+			this.context = context;
+			this.comps = comps;
+			this.race = race;
+			this.origSize = origSize;
+			results = new RandomAccessBucket[comps.length];
+		}
+
+		@Override
+		public void run() {
+			while(true) {
+				int i;
+				synchronized(this) {
+					if(next == comps.length) return;
+					i = next++;
+					running++;
+				}
+				try {
+					attempt(i);
+				} finally {
+					synchronized(this) {
+						running--;
+						notifyAll();
+					}
+				}
+			}
+		}
+
+		/** Wait for the codecs other threads have started. Call after run() has returned. */
+		synchronized void waitForAll() {
+			while(running > 0) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore.
+				}
+			}
+		}
+
+		private void attempt(final int index) {
+			final COMPRESSOR_TYPE comp = comps[index];
+			// Only the first one tried generates the hashes.
+			boolean hashing = index == 0 && generateHashes != 0;
+			if(race.getLimit(index) == 0) {
+				if(logMINOR) Logger.minor(InsertCompressor.this, "Not trying "+comp+" : can't win");
+				return;
+			}
+			if(logMINOR)
+				Logger.minor(InsertCompressor.this, "Attempt to compress using " + comp);
+			try {
+				if(persistent) {
+					context.jobRunner.queue(new PersistentJob() {
+
+						@Override
+						public boolean run(ClientContext context) {
+							inserter.onStartCompression(comp, context);
+							return false;
+						}
+
+					}, NativeThread.NORM_PRIORITY+1);
+				} else {
+					try {
+						inserter.onStartCompression(comp, context);
+					} catch (Throwable t) {
+						Logger.error(InsertCompressor.this, "Transient insert callback threw "+t, t);
+					}
+				}
+			} catch (PersistenceDisabledException e) {
+				synchronized(this) {
+					persistenceDisabled = true;
+				}
+				race.abort();
+				return;
+			}
+			RandomAccessBucket result = null;
+			InputStream is = null;
+			AbortableOutputStream os = null;
+			MultiHashInputStream hasher = null;
+			boolean compressed = false;
+			try {
+				try {
+					is = origData.getInputStream();
+					result = bucketFactory.makeBucket(-1);
+					os = new AbortableOutputStream(result.getOutputStream(), race, index);
+					if(hashing) {
+						if(logMINOR) Logger.minor(InsertCompressor.this, "Generating hashes: "+generateHashes);
+						is = hasher = new MultiHashInputStream(is, generateHashes);
+					}
+					try {
+						comp.compress(new AbortableInputStream(is, os), os, origSize, origSize);
+						compressed = true;
+					} catch (RuntimeException e) {
+						// ArithmeticException has been seen in bzip2 codec.
+						Logger.error(InsertCompressor.this, "Compression failed with codec "+comp+" : "+e, e);
+						// RuntimeException is iffy, so lets not try the hasher.
+						hasher = null;
+					} catch (CompressionOutputSizeException e) {
+						// Too big.
+					} catch (IOException e) {
+						if(!os.aborted) throw e;
+						if(logMINOR) Logger.minor(InsertCompressor.this, "Gave up on "+comp+" : can't win");
+					}
+					if(hasher != null) {
+						hasher.skip(Long.MAX_VALUE);
+						HashResult[] results = hasher.getResults();
+						synchronized(this) {
+							hashes = results;
+						}
+					}
+				} finally {
+					Closer.close(is);
+					Closer.close(os);
+				}
+				if(compressed) {
+					long resultSize = result.size();
+					if(logMINOR)
+						Logger.minor(InsertCompressor.this, "Compressed to "+resultSize+" with "+comp);
+					synchronized(this) {
+						results[index] = result;
+					}
+					race.onCompressed(index, resultSize);
+				}
+			} catch (IOException e) {
+				compressed = false;
+				synchronized(this) {
+					if(error == null) error = e;
+				}
+				race.abort();
+			} finally {
+				if(!compressed && result != null)
+					result.free();
+			}
+		}
+
+	}
+
+	/** Counts what a codec has written, and gives up when it can't win any more. */
+	private static class AbortableOutputStream extends FilterOutputStream {
+
+		private final CompressionRace race;
+		private final int index;
+		private long written;
+		volatile boolean aborted;
+
+		AbortableOutputStream(OutputStream os, CompressionRace race, int index) {
+			super(os);
+			this.race = race;
+			this.index = index;
+		}
+
+		void check() throws IOException {
+			if(written >= race.getLimit(index)) {
+				aborted = true;
+				throw new IOException("Compressed data too big to be used");
+			}
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			written++;
+			check();
+		}
+
+		@Override
+		public void write(byte[] buf, int offset, int length) throws IOException {
+			out.write(buf, offset, length);
+			written += length;
+			check();
+		}
+
+	}
+
+	/** Checks whether to give up while reading too, because the codec may buffer a lot of
+	 * compressed data before it writes any. */
+	private static class AbortableInputStream extends FilterInputStream {
+
+		private final AbortableOutputStream os;
+
+		AbortableInputStream(InputStream is, AbortableOutputStream os) {
+			super(is);
+			this.os = os;
+		}
+
+		@Override
+		public int read() throws IOException {
+			os.check();
+			return in.read();
+		}
+
+		@Override
+		public int read(byte[] buf, int offset, int length) throws IOException {
+			os.check();
+			return in.read(buf, offset, length);
+		}
+
+	}
+
+	/** Don't bother sampling small files, they don't take long to compress anyway. */
+	static final long SAMPLE_MIN_SIZE = 4*1024*1024;
+	static final int SAMPLE_CHUNKS = 4;
+	static final int SAMPLE_CHUNK_SIZE = 64*1024;
+	/** Don't try a codec which can't get the sample below this proportion of its size. */
+	static final double SAMPLE_MAX_RATIO = 0.98;
+
+	/**
+	 * Compress a few pieces from across a large file with each codec, and leave out the codecs
+	 * which can't make them noticeably smaller. Most big uploads are already compressed (video,
+	 * archives etc), and otherwise we'd spend minutes of CPU time finding that out.
+	 */
+	private COMPRESSOR_TYPE[] sample(COMPRESSOR_TYPE[] comps, long origSize) throws IOException {
+		byte[] sample = new byte[SAMPLE_CHUNKS * SAMPLE_CHUNK_SIZE];
+		InputStream is = origData.getInputStream();
+		try {
+			DataInputStream dis = new DataInputStream(is);
+			long pos = 0;
+			for(int i=0;i<SAMPLE_CHUNKS;i++) {
+				long offset = (origSize - SAMPLE_CHUNK_SIZE) * i / (SAMPLE_CHUNKS - 1);
+				FileUtil.skipFully(dis, offset - pos);
+				dis.readFully(sample, i * SAMPLE_CHUNK_SIZE, SAMPLE_CHUNK_SIZE);
+				pos = offset + SAMPLE_CHUNK_SIZE;
+			}
+		} finally {
+			Closer.close(is);
+		}
+		List<COMPRESSOR_TYPE> worthTrying = new ArrayList<COMPRESSOR_TYPE>(comps.length);
+		for(COMPRESSOR_TYPE comp : comps) {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(sample.length);
+			try {
+				comp.compress(new ByteArrayInputStream(sample), baos, sample.length, sample.length);
+				if(baos.size() > sample.length * SAMPLE_MAX_RATIO) {
+					if(logMINOR) Logger.minor(this, "Not trying "+comp+" : only compressed sample to "+baos.size()+" bytes");
+					continue;
+				}
+			} catch (CompressionOutputSizeException e) {
+				if(logMINOR) Logger.minor(this, "Not trying "+comp+" : can't compress sample");
+				continue;
+			} catch (RuntimeException e) {
+				// Try it on the real data anyway, and see what happens.
+			}
+			worthTrying.add(comp);
+		}
+		return worthTrying.toArray(new COMPRESSOR_TYPE[worthTrying.size()]);
+	}
+
+	private HashResult[] hash(long origSize) throws IOException {
+		MultiHashInputStream hasher = new MultiHashInputStream(origData.getInputStream(), generateHashes);
+		try {
+			hasher.skip(origSize);
+			return hasher.getResults();
+		} finally {
+			Closer.close(hasher);
+		}
+	}
+
 	private void fail(final InsertException ie, ClientContext context, Bucket bestCompressedData) {
 		if(persistent) {
 			try {
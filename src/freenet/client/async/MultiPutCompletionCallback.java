@@ -236,6 +236,7 @@ public class MultiPutCompletionCallback implements PutCompletionCallback, Client
 		if(generator == oldState)
 			generator = newState;
 		if(oldState == newState) return;
+		parent.setChanged();
 		for(int i=0;i<waitingFor.size();i++) {
 			if(waitingFor.get(i) == oldState) {
 				waitingFor.set(i, newState);
@@ -0,0 +1,101 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+/**
+ * How long each stage of decoding splitfile segments took. Each SplitFileFetcherStorage keeps one
+ * for its own segments, which is added to the one in ClientContext when the download succeeds,
+ * for the stats page.
+ *
+ * Reading overlaps with checking the blocks read, and writing the decoded blocks overlaps with
+ * checking them and encoding the check blocks, so the stages add up to more than the total.
+ */
+public class SegmentDecodeTimes {
+
+    /** Reading the fetched blocks from disk. */
+    public static final int READ = 0;
+    /** Checking the fetched blocks against their keys. */
+    public static final int VERIFY = 1;
+    /** FEC decoding the missing data blocks. */
+    public static final int DECODE = 2;
+    /** Checking the decoded data blocks against their keys. */
+    public static final int CHECK_DECODED = 3;
+    /** Writing the decoded data blocks to disk. */
+    public static final int WRITE = 4;
+    /** FEC encoding the missing check blocks. */
+    public static final int ENCODE = 5;
+    /** Checking the encoded check blocks against their keys. */
+    public static final int CHECK_ENCODED = 6;
+    /** The whole decode, from starting to read to writing the metadata. */
+    public static final int TOTAL = 7;
+    public static final int STAGES = 8;
+
+    private static final String[] NAMES = new String[] { "read", "verify", "decode",
+        "check decoded", "write", "encode", "check encoded", "total" };
+
+    private long segments;
+    private final long[] totalTimes = new long[STAGES];
+    private final long[] maxTimes = new long[STAGES];
+
+    public static String getName(int stage) {
+        return NAMES[stage];
+    }
+
+    /** Record a decoded segment.
+     * @param times How long each stage took, in milliseconds. */
+    public synchronized void add(long[] times) {
+        segments++;
+        for(int i=0;i<STAGES;i++) {
+            totalTimes[i] += times[i];
+            if(times[i] > maxTimes[i]) maxTimes[i] = times[i];
+        }
+    }
+
+    /** Add the segments from another, e.g. those from a download that has finished. */
+    public void add(SegmentDecodeTimes times) {
+        long count;
+        long[] total;
+        long[] max;
+        synchronized(times) {
+            count = times.segments;
+            total = times.totalTimes.clone();
+            max = times.maxTimes.clone();
+        }
+        synchronized(this) {
+            segments += count;
+            for(int i=0;i<STAGES;i++) {
+                totalTimes[i] += total[i];
+                if(max[i] > maxTimes[i]) maxTimes[i] = max[i];
+            }
+        }
+    }
+
+    public synchronized long getSegments() {
+        return segments;
+    }
+
+    public synchronized long getTotalTime(int stage) {
+        return totalTimes[stage];
+    }
+
+    public synchronized long getMaxTime(int stage) {
+        return maxTimes[stage];
+    }
+
+    public synchronized double getAverageTime(int stage) {
+        if(segments == 0) return 0.0;
+        return ((double) totalTimes[stage]) / segments;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(segments).append(" segments:");
+        for(int i=0;i<STAGES;i++) {
+            sb.append(' ').append(NAMES[i]).append('=').append(totalTimes[i]).append("ms");
+        }
+        return sb.toString();
+    }
+
+}
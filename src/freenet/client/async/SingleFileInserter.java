@@ -590,6 +590,7 @@ class SingleFileInserter implements ClientPutState, Serializable {
 				sfi = newState;
 			if(oldState == metadataPutter)
 				metadataPutter = newState;
+			parent.setChanged();
 		}
 		
 		@Override
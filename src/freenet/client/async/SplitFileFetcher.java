@@ -264,6 +264,9 @@ public class SplitFileFetcher implements ClientGetState, SplitFileFetcherStorage
         }
         context.getChkFetchScheduler(realTimeFlag).removePendingKeys(storage.keyListener, true);
         getter.cancel(context);
+        context.segmentDecodeTimes.add(storage.decodeTimes);
+        if(storage.segments.length > 1)
+            Logger.normal(this, "Decoded "+this+" : "+storage.decodeTimes);
         if(this.callbackCompleteViaTruncation != null) {
             long finalLength = storage.finalLength;
             this.callbackCompleteViaTruncation.onSuccess(fileCompleteViaTruncation, 
@@ -400,6 +403,7 @@ public class SplitFileFetcher implements ClientGetState, SplitFileFetcherStorage
         // We need to fetch more blocks. Some of them may even be in the datastore.
         getter.unregister(context, getPriorityClass());
         getter.schedule(context, false);
+        parent.setChanged();
         context.jobRunner.setCheckpointASAP();
     }
 
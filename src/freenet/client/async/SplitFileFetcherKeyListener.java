@@ -63,6 +63,9 @@ public class SplitFileFetcherKeyListener implements KeyListener {
     private boolean dirty;
     private transient boolean mustRegenerateMainFilter;
     private transient boolean mustRegenerateSegmentFilters;
+    /** All the keys are SHA256 hashes, so we can use double hashing. Filters written by storage
+     * format version 1 used MERSENNE_TWISTER and must be regenerated. */
+    static final BloomFilter.HashFunction HASH_FUNCTION = BloomFilter.HashFunction.DOUBLE_HASHING;
     
     /** Create a set of bloom filters for a new download.
      * @throws FetchException */
@@ -110,17 +113,22 @@ public class SplitFileFetcherKeyListener implements KeyListener {
             ByteBuffer slice;
             
             slice = baseBuffer.slice();
-            segmentFilters[i] = new BinaryBloomFilter(slice, perSegmentBloomFilterSizeBytes * 8, perSegmentK);
+            segmentFilters[i] = new BinaryBloomFilter(slice, perSegmentBloomFilterSizeBytes * 8, perSegmentK, HASH_FUNCTION);
             start += perSegmentBloomFilterSizeBytes;
             end += perSegmentBloomFilterSizeBytes;
         }
         byte[] filterBuffer = new byte[mainBloomFilterSizeBytes];
-        filter = new CountingBloomFilter(mainBloomFilterSizeBytes * 8 / 2, mainBloomK, filterBuffer);
+        filter = new CountingBloomFilter(mainBloomFilterSizeBytes * 8 / 2, mainBloomK, filterBuffer, HASH_FUNCTION);
         filter.setWarnOnRemoveFromEmpty();
     }
     
+    /** Restore the bloom filters for a persistent download.
+     * @param newSalt True if the global salt has changed, so the main filter must be regenerated.
+     * @param oldHashFunction True if the filters on disk were written with the old hash 
+     * function, so both must be regenerated. */
     public SplitFileFetcherKeyListener(SplitFileFetcherStorage storage, 
-            SplitFileFetcherStorageCallback callback, DataInputStream dis, boolean persistent, boolean newSalt) 
+            SplitFileFetcherStorageCallback callback, DataInputStream dis, boolean persistent, boolean newSalt,
+            boolean oldHashFunction) 
     throws IOException, StorageFormatException {
         this.storage = storage;
         this.fetcher = callback;
@@ -143,10 +151,14 @@ public class SplitFileFetcherKeyListener implements KeyListener {
         int segments = storage.segments.length;
         segmentFilters = new BinaryBloomFilter[segments];
         byte[] segmentsFilterBuffer = new byte[perSegmentBloomFilterSizeBytes * segments];
-        try {
-            storage.preadChecksummed(storage.offsetSegmentBloomFilters, segmentsFilterBuffer, 0, segmentsFilterBuffer.length);
-        } catch (ChecksumFailedException e) {
-            Logger.error(this, "Checksummed read for segment filters at "+storage.offsetSegmentBloomFilters+" failed for "+this+": "+e);
+        if(!oldHashFunction) {
+            try {
+                storage.preadChecksummed(storage.offsetSegmentBloomFilters, segmentsFilterBuffer, 0, segmentsFilterBuffer.length);
+            } catch (ChecksumFailedException e) {
+                Logger.error(this, "Checksummed read for segment filters at "+storage.offsetSegmentBloomFilters+" failed for "+this+": "+e);
+                mustRegenerateSegmentFilters = true;
+            }
+        } else {
             mustRegenerateSegmentFilters = true;
         }
         ByteBuffer baseBuffer = ByteBuffer.wrap(segmentsFilterBuffer);
@@ -158,12 +170,12 @@ public class SplitFileFetcherKeyListener implements KeyListener {
             ByteBuffer slice;
             
             slice = baseBuffer.slice();
-            segmentFilters[i] = new BinaryBloomFilter(slice, perSegmentBloomFilterSizeBytes * 8, perSegmentK);
+            segmentFilters[i] = new BinaryBloomFilter(slice, perSegmentBloomFilterSizeBytes * 8, perSegmentK, HASH_FUNCTION);
             start += perSegmentBloomFilterSizeBytes;
             end += perSegmentBloomFilterSizeBytes;
         }
         byte[] filterBuffer = new byte[mainBloomFilterSizeBytes];
-        if(!newSalt) {
+        if(!(newSalt || oldHashFunction)) {
             try {
                 storage.preadChecksummed(storage.offsetMainBloomFilter, filterBuffer, 0, mainBloomFilterSizeBytes);
             } catch (ChecksumFailedException e) {
@@ -173,7 +185,7 @@ public class SplitFileFetcherKeyListener implements KeyListener {
         } else {
             mustRegenerateMainFilter = true;
         }
-        filter = new CountingBloomFilter(mainBloomFilterSizeBytes * 8 / 2, mainBloomK, filterBuffer);
+        filter = new CountingBloomFilter(mainBloomFilterSizeBytes * 8 / 2, mainBloomK, filterBuffer, HASH_FUNCTION);
         filter.setWarnOnRemoveFromEmpty();
     }
 
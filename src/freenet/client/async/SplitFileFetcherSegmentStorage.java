@@ -1,5 +1,7 @@
 package freenet.client.async;
 
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
@@ -25,6 +27,7 @@ import freenet.keys.ClientCHKBlock;
 import freenet.keys.Key;
 import freenet.keys.NodeCHK;
 import freenet.node.KeysFetchingLocally;
+import freenet.node.PrioRunnable;
 import freenet.support.Logger;
 import freenet.support.MemoryLimitedChunk;
 import freenet.support.MemoryLimitedJob;
@@ -336,7 +339,11 @@ public class SplitFileFetcherSegmentStorage {
     }
     
     /** Attempt FEC decoding. Check blocks before decoding in case there is disk corruption. Check
-     * the new decoded blocks afterwards to ensure reproducible behaviour. */
+     * the new decoded blocks afterwards to ensure reproducible behaviour. 
+     * 
+     * The disk I/O overlaps with the CPU work: the blocks are read on another thread while we 
+     * check each one as it arrives, and the decoded blocks are written on another thread while 
+     * we check them and encode the check blocks. */
     private void innerDecode(MemoryLimitedChunk chunk) throws IOException {
         if(logMINOR) Logger.minor(this, "Trying to decode "+this+" for "+parent);
         // Even if we fail, once we set tryDecode=true, we need to notify the parent when we're done.
@@ -350,18 +357,17 @@ public class SplitFileFetcherSegmentStorage {
             return;
         }
         
+        long startTime = System.nanoTime();
+        long[] times = new long[SegmentDecodeTimes.STAGES];
         int totalBlocks = totalBlocks();
-        byte[][] allBlocks = readAllBlocks();
         SplitFileSegmentKeys keys = getSegmentKeys();
-        if(allBlocks == null || keys == null) {
+        if(keys == null) {
             return;
         }
         class MyBlock {
-            final byte[] buf;
             final int blockNumber;
             final int slot;
-            MyBlock(byte[] buf, int blockNumber, int slot) {
-                this.buf = buf;
+            MyBlock(int blockNumber, int slot) {
                 this.blockNumber = blockNumber;
                 this.slot = slot;
             }
@@ -375,7 +381,7 @@ public class SplitFileFetcherSegmentStorage {
                     Logger.warning(this, "Inconsistency decoding splitfile: slot "+i+" has bogus block number "+blocksFetched[i]);
                     if(blocksFetched[i] != -1)
                         blocksFetched[i] = -1;
-                    maybeBlocks.add(new MyBlock(allBlocks[i], (short)-1, i));
+                    maybeBlocks.add(new MyBlock((short)-1, i));
                     continue;
                 } else if(used[blocksFetched[i]]) {
                     Logger.warning(this, "Inconsistency decoding splitfile: slot "+i+" has duplicate block number "+blocksFetched[i]);
@@ -383,7 +389,7 @@ public class SplitFileFetcherSegmentStorage {
                     continue;
                 } else {
                     if(logMINOR) Logger.minor(this, "Found block "+blocksFetched[i]+" in slot "+i);
-                    maybeBlocks.add(new MyBlock(allBlocks[i], blocksFetched[i], i));
+                    maybeBlocks.add(new MyBlock(blocksFetched[i], i));
                     used[blocksFetched[i]] = true;
                     fetchedCount++;
                 }
@@ -416,52 +422,66 @@ public class SplitFileFetcherSegmentStorage {
         byte[][] dataBlocks = new byte[blocksForDecode()][];
         byte[][] checkBlocks = new byte[this.checkBlocks][];
         
-        for(MyBlock test : maybeBlocks) {
-            boolean failed = false;
-            int blockNumber = test.blockNumber;
-            byte[] buf = test.buf;
-            ClientCHK decodeKey = blockNumber == -1 ? null : keys.getKey(blockNumber, null, false);
-            // Encode it to check whether the key is the same.
-            try {
-                ClientCHKBlock block =
-                    ClientCHKBlock.encodeSplitfileBlock(buf, decodeKey.getCryptoKey(), decodeKey.getCryptoAlgorithm());
-                ClientCHK actualKey = block.getClientKey();
-                if(decodeKey == null || !decodeKey.equals(actualKey)) {
-                    // Is it a different block?
-                    blockNumber = (short)keys.getBlockNumber(actualKey, null);
-                    if(blockNumber == -1) {
-                        Logger.error(this, "Block which should be block #"+test.blockNumber+" in slot "+test.slot+" for segment "+this+" is not valid for key "+decodeKey);
-                        failed = true;
-                        synchronized(this) {
-                            blockChooser.onUnSuccess(blockNumber);
-                            if(blocksFetched[test.slot] == test.blockNumber) {
-                                blocksFetched[test.slot] = (short)-1;
+        int[] slots = new int[maybeBlocks.size()];
+        for(int i=0;i<slots.length;i++)
+            slots[i] = maybeBlocks.get(i).slot;
+        BlockPrefetcher prefetcher = new BlockPrefetcher(slots);
+        prefetcher.start("Read blocks for "+this);
+        long verifyTime = 0;
+        try {
+            for(int x=0;x<maybeBlocks.size();x++) {
+                MyBlock test = maybeBlocks.get(x);
+                byte[] buf = prefetcher.take(x);
+                long verifyStart = System.nanoTime();
+                boolean failed = false;
+                int blockNumber = test.blockNumber;
+                ClientCHK decodeKey = blockNumber == -1 ? null : keys.getKey(blockNumber, null, false);
+                // Encode it to check whether the key is the same.
+                try {
+                    ClientCHKBlock block =
+                        ClientCHKBlock.encodeSplitfileBlock(buf, decodeKey.getCryptoKey(), decodeKey.getCryptoAlgorithm());
+                    ClientCHK actualKey = block.getClientKey();
+                    if(decodeKey == null || !decodeKey.equals(actualKey)) {
+                        // Is it a different block?
+                        blockNumber = (short)keys.getBlockNumber(actualKey, null);
+                        if(blockNumber == -1) {
+                            Logger.error(this, "Block which should be block #"+test.blockNumber+" in slot "+test.slot+" for segment "+this+" is not valid for key "+decodeKey);
+                            failed = true;
+                            synchronized(this) {
+                                blockChooser.onUnSuccess(blockNumber);
+                                if(blocksFetched[test.slot] == test.blockNumber) {
+                                    blocksFetched[test.slot] = (short)-1;
+                                }
+                            }
+                        } else {
+                            synchronized(this) {
+                                blockChooser.onUnSuccess(blockNumber);
+                                blocksFetched[test.slot] = blockNumber;
+                                this.blockChooser.onSuccess(blockNumber);
                             }
-                        }
-                    } else {
-                        synchronized(this) {
-                            blockChooser.onUnSuccess(blockNumber);
-                            blocksFetched[test.slot] = blockNumber;
-                            this.blockChooser.onSuccess(blockNumber);
                         }
                     }
+                    
+                } catch (CHKEncodeException e) {
+                    Logger.error(this, "Block which should be "+blockNumber+" for segment "+this+" cannot be encoded for key "+decodeKey);
+                    failed = true;
                 }
-                
-            } catch (CHKEncodeException e) {
-                Logger.error(this, "Block which should be "+blockNumber+" for segment "+this+" cannot be encoded for key "+decodeKey);
-                failed = true;
-            }
-            if(!failed) {
-                validBlocks++;
-                if(blockNumber < blocksForDecode())
-                    validDataBlocks++;
-                if(blockNumber < dataBlocks.length)
-                    dataBlocks[blockNumber] = buf;
-                else
-                    checkBlocks[blockNumber - dataBlocks.length] = buf;
+                if(!failed) {
+                    validBlocks++;
+                    if(blockNumber < blocksForDecode())
+                        validDataBlocks++;
+                    if(blockNumber < dataBlocks.length)
+                        dataBlocks[blockNumber] = buf;
+                    else
+                        checkBlocks[blockNumber - dataBlocks.length] = buf;
+                }
+                verifyTime += System.nanoTime() - verifyStart;
             }
+        } finally {
+            prefetcher.cancel();
         }
-        allBlocks = null;
+        times[SegmentDecodeTimes.READ] = prefetcher.join();
+        times[SegmentDecodeTimes.VERIFY] = NANOSECONDS.toMillis(verifyTime);
         maybeBlocks.clear();
         maybeBlocks = null;
         if(validBlocks < blocksForDecode()) {
@@ -491,49 +511,212 @@ public class SplitFileFetcherSegmentStorage {
                 checkBlocksPresent[i] = true;
             }
         }
+        long stageStart = System.nanoTime();
         if(validDataBlocks < blocksForDecode()) {
             if(logMINOR) Logger.minor(this, "Decoding in memory for "+this);
             parent.fecCodec.decode(dataBlocks, checkBlocks, dataBlocksPresent, checkBlocksPresent, CHKBlock.DATA_LENGTH);
         }
+        times[SegmentDecodeTimes.DECODE] = NANOSECONDS.toMillis(System.nanoTime() - stageStart);
         boolean capturingBinaryBlob = parent.fetcher.wantBinaryBlob();
         boolean checkDecodedKeys = FORCE_CHECK_FEC_KEYS || capturingBinaryBlob;
-        if(checkDecodedKeys) {
-            // Check that the decoded blocks correspond to the keys given.
-            // This will catch odd bugs and ensure consistent behaviour.
-            checkDecodedDataBlocks(dataBlocks, dataBlocksPresent, keys, capturingBinaryBlob);
-        }
-        writeAllDataBlocks(dataBlocks);
-        // Report success if we are not verifying decoded keys, but if we *are*, we need to wait
-        // until FEC encoding completes.
-        if(!checkDecodedKeys)
-            parent.finishedSuccess(this);
-        triggerAllCrossSegmentCallbacks();
-        parent.fecCodec.encode(dataBlocks, checkBlocks, checkBlocksPresent, CHKBlock.DATA_LENGTH);
-        // Check these *after* we complete, to reduce the critical path.
-        // FIXME possibility of inconsistency with malicious splitfiles?
-        if(checkDecodedKeys) {
-            if(!checkEncodedDataBlocks(checkBlocks, checkBlocksPresent, keys, capturingBinaryBlob)) {
-                // The downloaded blocks were correct, the encoded blocks are not.
-                // That means the splitfile is broken as inserted, or there's some wierd in-memory data corruption.
-                synchronized(this) {
-                    finished = true;
+        final byte[][] decodedBlocks = dataBlocks;
+        Stage writer = new Stage() {
+
+            @Override
+            void innerRun() throws IOException {
+                writeAllDataBlocks(decodedBlocks);
+                triggerAllCrossSegmentCallbacks();
+            }
+            
+        };
+        writer.start("Write decoded blocks for "+this);
+        boolean written = false;
+        try {
+            if(checkDecodedKeys) {
+                // Check that the decoded blocks correspond to the keys given.
+                // This will catch odd bugs and ensure consistent behaviour.
+                stageStart = System.nanoTime();
+                checkDecodedDataBlocks(dataBlocks, dataBlocksPresent, keys, capturingBinaryBlob);
+                times[SegmentDecodeTimes.CHECK_DECODED] = NANOSECONDS.toMillis(System.nanoTime() - stageStart);
+            } else {
+                // Report success if we are not verifying decoded keys, but if we *are*, we need to wait
+                // until FEC encoding completes.
+                times[SegmentDecodeTimes.WRITE] = writer.join();
+                written = true;
+                parent.finishedSuccess(this);
+            }
+            stageStart = System.nanoTime();
+            parent.fecCodec.encode(dataBlocks, checkBlocks, checkBlocksPresent, CHKBlock.DATA_LENGTH);
+            times[SegmentDecodeTimes.ENCODE] = NANOSECONDS.toMillis(System.nanoTime() - stageStart);
+            // Check these *after* we complete, to reduce the critical path.
+            // FIXME possibility of inconsistency with malicious splitfiles?
+            if(checkDecodedKeys) {
+                stageStart = System.nanoTime();
+                boolean encodedOK = checkEncodedDataBlocks(checkBlocks, checkBlocksPresent, keys, capturingBinaryBlob);
+                times[SegmentDecodeTimes.CHECK_ENCODED] = NANOSECONDS.toMillis(System.nanoTime() - stageStart);
+                times[SegmentDecodeTimes.WRITE] = writer.join();
+                written = true;
+                if(!encodedOK) {
+                    // The downloaded blocks were correct, the encoded blocks are not.
+                    // That means the splitfile is broken as inserted, or there's some wierd in-memory data corruption.
+                    synchronized(this) {
+                        finished = true;
+                    }
+                    parent.fail(new FetchException(FetchExceptionMode.SPLITFILE_DECODE_ERROR, "Encoded blocks do not match metadata"));
+                    return;
                 }
-                parent.fail(new FetchException(FetchExceptionMode.SPLITFILE_DECODE_ERROR, "Encoded blocks do not match metadata"));
-                return;
+                parent.finishedSuccess(this);
             }
-            parent.finishedSuccess(this);
+        } finally {
+            // Don't free the blocks while they are still being written.
+            if(!written) writer.joinQuietly();
         }
         queueHeal(dataBlocks, checkBlocks, dataBlocksPresent, checkBlocksPresent);
         dataBlocks = null;
         checkBlocks = null;
         // Finished a segment, definitely want to write metadata right now.
         writeMetadata();
+        times[SegmentDecodeTimes.TOTAL] = NANOSECONDS.toMillis(System.nanoTime() - startTime);
+        parent.decodeTimes.add(times);
         // Now we've REALLY finished.
         synchronized(this) {
             corruptMetadata = false;
             finished = true;
         }
-        if(logMINOR) Logger.minor(this, "Finished decoding "+this+" for "+parent);
+        if(logMINOR) Logger.minor(this, "Finished decoding "+this+" for "+parent+" in "+
+                times[SegmentDecodeTimes.TOTAL]+"ms: "+Arrays.toString(times));
+    }
+    
+    /** Runs part of a decode on another thread, so that disk I/O can overlap with CPU work. */
+    private abstract class Stage implements PrioRunnable {
+        
+        boolean finished;
+        Throwable error;
+        long time;
+        
+        abstract void innerRun() throws IOException;
+        
+        void start(String name) {
+            parent.ticker.getExecutor().execute(this, name);
+        }
+        
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            try {
+                innerRun();
+            } catch (Throwable t) {
+                synchronized(this) {
+                    error = t;
+                }
+            } finally {
+                synchronized(this) {
+                    finished = true;
+                    time = NANOSECONDS.toMillis(System.nanoTime() - start);
+                    notifyAll();
+                }
+            }
+        }
+        
+        /** Wait for the stage to finish.
+         * @return How long it took, in milliseconds.
+         * @throws IOException If it failed with a disk error. Other errors are rethrown too. */
+        synchronized long join() throws IOException {
+            waitFinished();
+            if(error != null) rethrow(error);
+            return time;
+        }
+        
+        /** Wait for the stage to finish, e.g. because we are giving up on the decode and mustn't
+         * free the blocks while it is using them. Only logs errors. */
+        synchronized void joinQuietly() {
+            waitFinished();
+            if(error != null)
+                Logger.error(this, "Stage failed for "+SplitFileFetcherSegmentStorage.this+" : "+error, error);
+        }
+        
+        protected synchronized void waitFinished() {
+            while(!finished) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // Ignore.
+                }
+            }
+        }
+        
+        protected void rethrow(Throwable t) throws IOException {
+            if(t instanceof IOException) throw (IOException) t;
+            if(t instanceof RuntimeException) throw (RuntimeException) t;
+            if(t instanceof Error) throw (Error) t;
+            throw new IOException(t);
+        }
+        
+        @Override
+        public int getPriority() {
+            // Same as the decode itself.
+            return MemoryLimitedJobRunner.THREAD_PRIORITY;
+        }
+        
+    }
+    
+    /** Reads the blocks in the given slots, in order, so we can check each one as it arrives. */
+    private class BlockPrefetcher extends Stage {
+        
+        private final int[] slots;
+        private final byte[][] blocks;
+        private int read;
+        private boolean cancelled;
+        
+        BlockPrefetcher(int[] slots) {
+            this.slots = slots;
+            this.blocks = new byte[slots.length][];
+        }
+        
+        @Override
+        void innerRun() throws IOException {
+            RAFLock lock = parent.lockRAFOpen();
+            try {
+                for(int i=0;i<slots.length;i++) {
+                    synchronized(this) {
+                        if(cancelled) return;
+                    }
+                    byte[] buf = readBlock(slots[i]);
+                    synchronized(this) {
+                        blocks[i] = buf;
+                        read++;
+                        notifyAll();
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        /** Wait for a block to be read. */
+        synchronized byte[] take(int i) throws IOException {
+            while(read <= i) {
+                if(finished) {
+                    if(error != null) rethrow(error);
+                    throw new IllegalStateException("Stopped reading after "+read+" blocks");
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // Ignore.
+                }
+            }
+            byte[] buf = blocks[i];
+            blocks[i] = null;
+            return buf;
+        }
+        
+        /** Stop reading, and wait for the reader to finish. */
+        synchronized void cancel() {
+            cancelled = true;
+            joinQuietly();
+        }
+        
     }
 
     private void checkDecodedDataBlocks(byte[][] dataBlocks, boolean[] dataBlocksPresent, 
@@ -621,19 +804,6 @@ public class SplitFileFetcherSegmentStorage {
         parent.fetcher.queueHeal(data, cryptoKey, cryptoAlgorithm);
     }
 
-    private synchronized byte[][] readAllBlocks() throws IOException {
-        RAFLock lock = parent.lockRAFOpen();
-        try {
-            // FIXME consider using a single big byte[].
-            byte[][] ret = new byte[blocksForDecode()][];
-            for(int i=0;i<ret.length;i++)
-                ret[i] = readBlock(i);
-            return ret;
-        } finally {
-            lock.unlock();
-        }
-    }
-
     private void triggerAllCrossSegmentCallbacks() {
         SplitFileFetcherCrossSegmentStorage[] crossSegmentsByBlockCopy;
         synchronized(this) {
@@ -135,6 +135,10 @@ public class SplitFileFetcherStorage {
      * encoded we call onSuccess(), and we don't free the data. Also, if this is true, cross-check 
      * blocks will be kept on disk *AFTER* all the main data and check blocks for the whole file. */
     final boolean completeViaTruncation;
+    /** True if we loaded an older format version and haven't yet regenerated the bloom filters. */
+    private boolean oldFormatVersion;
+    /** Length of the basic settings, needed to rewrite the footer. Only set when loading. */
+    int basicSettingsLength;
     /** The segments */
     final SplitFileFetcherSegmentStorage[] segments;
     /** The cross-segments. Null if no cross-segments. */
@@ -151,6 +155,8 @@ public class SplitFileFetcherStorage {
     final Ticker ticker;
     final PersistentJobRunner jobRunner;
     final MemoryLimitedJobRunner memoryLimitedJobRunner;
+    /** How long decoding the segments took, stage by stage. Not persistent. */
+    final SegmentDecodeTimes decodeTimes = new SegmentDecodeTimes();
     /** Final length of the downloaded data. *BEFORE* decompression, filtering, etc. I.e. this is 
      * the length of the data on disk, which will be written by the StreamGenerator. */
     final long finalLength;
@@ -220,8 +226,9 @@ public class SplitFileFetcherStorage {
     static final long HAS_CHECKED_DATASTORE_FLAG = 1;
     /** Fixed value posted at the end of the file (if plaintext!) */
     static final long END_MAGIC = 0x28b32d99416eb6efL;
-    /** Current format version */
-    static final int VERSION = 1;
+    /** Current format version. Version 2 uses double hashing in the bloom filters. Version 1 
+     * files are still read, but their filters are regenerated, and the version updated. */
+    static final int VERSION = 2;
     
     /** List of segments we need to tryStartDecode() on because their metadata was corrupted on
      * startup. */
@@ -562,37 +569,10 @@ public class SplitFileFetcherStorage {
                 metadataTemp.free();
                 raf.pwrite(offsetOriginalDetails, encodedURI, 0, encodedURI.length);
                 raf.pwrite(offsetBasicSettings, encodedBasicSettings, 0, encodedBasicSettings.length);
-                
-                // This bit tricky because version is included in the checksum.
-                // When the RAF is encrypted, we use HMAC's and this is important.
-                // FIXME is Fields.bytesToInt etc compatible with DataOutputStream.*?
-                // FIXME if not, we need something that is ...
+                writeFooter(encodedBasicSettings.length - checksumLength, VERSION);
+                // Write magic last.
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
                 DataOutputStream dos = new DataOutputStream(baos);
-                dos.writeInt(encodedBasicSettings.length - checksumLength);
-                byte[] bufToWrite = baos.toByteArray();
-                baos = new ByteArrayOutputStream();
-                dos = new DataOutputStream(baos);
-                dos.writeInt(0); // flags
-                dos.writeShort(checksumChecker.getChecksumTypeID());
-                dos.writeInt(VERSION);
-                byte[] version = baos.toByteArray();
-                byte[] bufToChecksum = Arrays.copyOf(bufToWrite, bufToWrite.length+version.length);
-                System.arraycopy(version, 0, bufToChecksum, bufToWrite.length, version.length);
-                byte[] checksum = 
-                    checksumChecker.generateChecksum(bufToChecksum);
-                // Pointers.
-                raf.pwrite(offsetBasicSettings + encodedBasicSettings.length, bufToWrite, 0, 
-                        bufToWrite.length);
-                // Checksum.
-                raf.pwrite(offsetBasicSettings + encodedBasicSettings.length + bufToWrite.length, 
-                        checksum, 0, checksum.length);
-                // Version.
-                raf.pwrite(offsetBasicSettings + encodedBasicSettings.length + bufToWrite.length + 
-                        checksum.length, version, 0, version.length);
-                // Write magic last.
-                baos = new ByteArrayOutputStream();
-                dos = new DataOutputStream(baos);
                 dos.writeLong(END_MAGIC);
                 byte[] buf = baos.toByteArray();
                 raf.pwrite(totalLength - 8, buf, 0, 8);
@@ -603,6 +583,36 @@ public class SplitFileFetcherStorage {
         if(logMINOR) Logger.minor(this, "Fetching "+thisKey+" on "+this+" for "+fetcher);
     }
     
+    /** Write the footer, apart from the magic: the basic settings length, a checksum, the 
+     * flags, the checksum type and the version. Caller must have the RAF open. */
+    void writeFooter(int basicSettingsLength, int version) throws IOException {
+        // This bit tricky because version is included in the checksum.
+        // When the RAF is encrypted, we use HMAC's and this is important.
+        // FIXME is Fields.bytesToInt etc compatible with DataOutputStream.*?
+        // FIXME if not, we need something that is ...
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(basicSettingsLength);
+        byte[] bufToWrite = baos.toByteArray();
+        baos = new ByteArrayOutputStream();
+        dos = new DataOutputStream(baos);
+        dos.writeInt(0); // flags
+        dos.writeShort(checksumChecker.getChecksumTypeID());
+        dos.writeInt(version);
+        byte[] versionBuf = baos.toByteArray();
+        byte[] bufToChecksum = Arrays.copyOf(bufToWrite, bufToWrite.length+versionBuf.length);
+        System.arraycopy(versionBuf, 0, bufToChecksum, bufToWrite.length, versionBuf.length);
+        byte[] checksum = 
+            checksumChecker.generateChecksum(bufToChecksum);
+        long offset = rafLength - (22 + checksumLength);
+        // Pointers.
+        raf.pwrite(offset, bufToWrite, 0, bufToWrite.length);
+        // Checksum and version in one write, as they must match.
+        byte[] buf = Arrays.copyOf(checksum, checksum.length + versionBuf.length);
+        System.arraycopy(versionBuf, 0, buf, checksum.length, versionBuf.length);
+        raf.pwrite(offset + bufToWrite.length, buf, 0, buf.length);
+    }
+    
     /** Construct a SplitFileFetcherStorage from a stored RandomAccessBuffer, and appropriate local
      * settings passed in. Ideally this would work with only basic system utilities such as 
      * those on ClientContext, i.e. we'd be able to restore the splitfile download without knowing
@@ -649,8 +659,9 @@ public class SplitFileFetcherStorage {
         raf.pread(rafLength-12, versionBuf, 0, 4);
         dis = new DataInputStream(new ByteArrayInputStream(versionBuf));
         int version = dis.readInt();
-        if(version != 1)
+        if(version != 1 && version != VERSION)
             throw new StorageFormatException("Wrong version "+version);
+        oldFormatVersion = version < VERSION;
         // 2 bytes: Checksum type
         byte[] checksumTypeBuf = new byte[2];
         raf.pread(rafLength-14, checksumTypeBuf, 0, 2);
@@ -677,7 +688,7 @@ public class SplitFileFetcherStorage {
         if(!checksumChecker.checkChecksum(buf, 0, 14, checksum))
             throw new StorageFormatException("Checksum failed on basic settings length and version");
         dis = new DataInputStream(new ByteArrayInputStream(buf));
-        int basicSettingsLength = dis.readInt();
+        basicSettingsLength = dis.readInt();
         if(basicSettingsLength < 0 || basicSettingsLength + 12 + 4 + checksumLength > raf.size() || 
                 basicSettingsLength > 1024*1024)
             throw new StorageFormatException("Bad basic settings length");
@@ -827,7 +838,7 @@ public class SplitFileFetcherStorage {
             for(int i=0;i<crossSegments;i++) {
                 this.crossSegments[i] = new SplitFileFetcherCrossSegmentStorage(this, i, dis);
             }
-            this.keyListener = new SplitFileFetcherKeyListener(this, fetcher, dis, false, newSalt);
+            this.keyListener = new SplitFileFetcherKeyListener(this, fetcher, dis, false, newSalt, oldFormatVersion);
         } catch (IOException e) {
             // We are reading from an array! Bad as written perhaps?
             throw new StorageFormatException("Cannot read basic settings even though passed checksum: "+e, e);
@@ -978,6 +989,11 @@ public class SplitFileFetcherStorage {
                         try {
                             keyListener.initialWriteSegmentBloomFilters(offsetSegmentBloomFilters);
                             keyListener.innerWriteMainBloomFilter(offsetMainBloomFilter);
+                            if(oldFormatVersion) {
+                                // Only now are the filters on disk in the new format.
+                                writeFooter(basicSettingsLength, VERSION);
+                                oldFormatVersion = false;
+                            }
                         } catch (IOException e) {
                             if(persistent)
                                 failOnDiskError(e);
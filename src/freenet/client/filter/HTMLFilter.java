@@ -19,6 +19,7 @@ import java.nio.charset.Charset;
 import java.nio.charset.MalformedInputException;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -60,6 +61,18 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 	public static int metaRefreshSamePageMinInterval = 1;
 	/** -1 means don't allow it */
 	public static int metaRefreshRedirectMinInterval = 30;
+
+	/** Sanitize the common tags straight from their tokens. See {@link #sanitizeTokens}. */
+	private final boolean sanitizeTokens;
+
+	public HTMLFilter() {
+		this(true);
+	}
+
+	/** @param sanitizeTokens False to parse every tag into a ParsedTag first, for comparison. */
+	HTMLFilter(boolean sanitizeTokens) {
+		this.sanitizeTokens = sanitizeTokens;
+	}
 	
 	@Override
 	public void readFilter(InputStream input, OutputStream output, String charset, HashMap<String, String> otherParams,
@@ -191,7 +204,10 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 			 */
 			StringBuilder b = new StringBuilder(100);
 			StringBuilder balt = new StringBuilder(4000);
-			List<String> splitTag = new ArrayList<String>();
+			TagTokens splitTag = new TagTokens();
+			char[] buf = new char[READ_BUFFER_SIZE];
+			int bufPos = 0;
+			int bufLen = 0;
 			String currentTag = null;
 			char pprevC = 0;
 			char prevC = 0;
@@ -210,25 +226,26 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 				// If detecting charset, and found it, stop afterwards.
 				if(onlyDetectingCharset && detectedCharset != null)
 					return;
-				int x;
-				
-				try {
-					x = r.read();
-				}
-				/** 
-				 * libgcj up to at least 4.2.2 has a bug: InputStreamReader.refill() throws this exception when BufferedInputReader.refill() returns false for EOF. See:
-				 * line 299 at InputStreamReader.java (in refill()): http://www.koders.com/java/fidD8F7E2EB1E4C22DA90EBE0130306AE30F876AB00.aspx?s=refill#L279 
-				 * line 355 at BufferedInputStream.java (in refill()): http://www.koders.com/java/fid1949641524FAC0083432D79793F554CD85F46759.aspx?s=refill#L355
-				 * TODO: remove this when the gcj bug is fixed and the affected gcj versions are outdated. 
-				 */
-				catch(java.io.CharConversionException cce) {
-					if(freenet.node.Node.checkForGCJCharConversionBug()) /* only ignore the exception on affected libgcj */
-						x = -1; 
-					else
-						throw cce;
+				if(bufPos == bufLen) {
+					try {
+						bufLen = r.read(buf);
+						bufPos = 0;
+					}
+					/** 
+					 * libgcj up to at least 4.2.2 has a bug: InputStreamReader.refill() throws this exception when BufferedInputReader.refill() returns false for EOF. See:
+					 * line 299 at InputStreamReader.java (in refill()): http://www.koders.com/java/fidD8F7E2EB1E4C22DA90EBE0130306AE30F876AB00.aspx?s=refill#L279 
+					 * line 355 at BufferedInputStream.java (in refill()): http://www.koders.com/java/fid1949641524FAC0083432D79793F554CD85F46759.aspx?s=refill#L355
+					 * TODO: remove this when the gcj bug is fixed and the affected gcj versions are outdated. 
+					 */
+					catch(java.io.CharConversionException cce) {
+						if(freenet.node.Node.checkForGCJCharConversionBug()) /* only ignore the exception on affected libgcj */
+							bufLen = -1; 
+						else
+							throw cce;
+					}
 				}
 				
-				if (x == -1) {
+				if (bufLen == -1) {
 					switch (mode) {
 						case INTEXT :
 							if(textAllowed) {
@@ -262,9 +279,28 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 					}
 					break;
 				} else {
+					if(mode == INTEXT) {
+						// Take a run of ordinary text in one go.
+						int end = bufPos;
+						while(end < bufLen) {
+							char ch = buf[end];
+							if(ch == '<' || ch == 0 || ch == 0xFEFF) break;
+							end++;
+						}
+						int run = end - bufPos;
+						if(run > 0) {
+							b.append(buf, bufPos, run);
+							pprevC = run >= 3 ? buf[end-3] : (run == 2 ? c : prevC);
+							prevC = run >= 2 ? buf[end-2] : c;
+							c = buf[end-1];
+							firstChar = false;
+							bufPos = end;
+							continue;
+						}
+					}
 					pprevC = prevC;
 					prevC = c;
-					c = (char) x;
+					c = buf[bufPos++];
 					if(c == 0xFEFF) {
 						if(firstChar) {
 							// BOM
@@ -299,7 +335,7 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 						case INTAG :
 							balt.append(c);
 							if (HTMLDecoder.isWhitespace(c)) {
-								splitTag.add(b.toString());
+								splitTag.add(b);
 								mode = INTAGWHITESPACE;
 								b.setLength(0);
 							} else if ((c == '<') && Character.isWhitespace(balt.charAt(0))) {
@@ -316,7 +352,7 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 								b.setLength(0);
 								splitTag.clear();
 							} else if (c == '>') {
-								splitTag.add(b.toString());
+								splitTag.add(b);
 								b.setLength(0);
 								String s = processTag(splitTag, w, this);
 								currentTag = s;
@@ -478,6 +514,7 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 			return;
 		}
 		int mode;
+		static final int READ_BUFFER_SIZE = 4096;
 		static final int INTEXT = 0;
 		static final int INTAG = 1;
 		static final int INTAGQUOTES = 2;
@@ -526,26 +563,40 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 			return;
 		}
 		
-		StringBuilder out = new StringBuilder(s.length()*2);
-		
-		for(int i=0;i<s.length();i++) {
-			char c = s.charAt(i);
-			if(c == '<' && !(pc.inStyle || pc.inScript)) {
-				//Scripts and styles parsed elsewhere
-				out.append("&lt;");
-			}
-			else if((c < 32) && (c != '\t') && (c != '\n') && (c != '\r')) {
-				// Not a real character
-				// STRONGLY suggests somebody is using a bogus charset.
-				// This could be in order to break the filter.
-				if(logDEBUG) Logger.debug(this, "Removing '"+c+"' from the output stream");
-				continue;
-			}
-			else {
-				out.append(c);
+		// Usually there is nothing to change.
+		int clean = 0;
+		for(;clean<s.length();clean++) {
+			char c = s.charAt(clean);
+			if((c == '<' && !(pc.inStyle || pc.inScript)) ||
+					((c < 32) && (c != '\t') && (c != '\n') && (c != '\r')))
+				break;
+		}
+		String sout;
+		if(clean == s.length()) {
+			sout = s.toString();
+		} else {
+			StringBuilder out = new StringBuilder(s.length()*2);
+			out.append(s, 0, clean);
+			
+			for(int i=clean;i<s.length();i++) {
+				char c = s.charAt(i);
+				if(c == '<' && !(pc.inStyle || pc.inScript)) {
+					//Scripts and styles parsed elsewhere
+					out.append("&lt;");
+				}
+				else if((c < 32) && (c != '\t') && (c != '\n') && (c != '\r')) {
+					// Not a real character
+					// STRONGLY suggests somebody is using a bogus charset.
+					// This could be in order to break the filter.
+					if(logDEBUG) Logger.debug(this, "Removing '"+c+"' from the output stream");
+					continue;
+				}
+				else {
+					out.append(c);
+				}
 			}
+			sout = out.toString();
 		}
-		String sout = out.toString();
 		
 		if (pc.inStyle || pc.inScript) {
 			pc.currentStyleScriptChunk += sout;
@@ -557,16 +608,15 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 		w.write(sout);
 	}
 
-	String processTag(List<String> splitTag, Writer w, HTMLParseContext pc)
+	String processTag(TagTokens splitTag, Writer w, HTMLParseContext pc)
 		throws IOException, DataFilterException {
 		// First, check that it is a recognized tag
 		if(logDEBUG) {
 			for(int i=0;i<splitTag.size();i++)
 				Logger.debug(this, "Tag["+i+"]="+splitTag.get(i));
 		}
-		ParsedTag t = new ParsedTag(splitTag);
 		if (!pc.killTag) {
-			t = t.sanitize(pc);
+			ParsedTag t = sanitizeTokens(splitTag, pc);
 			if (t != null) {
 				// We have to check whether <head> exists etc even if we are just checking the charset.
 				// This enables us to quit when we see </head>.
@@ -650,6 +700,210 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 		}
 	}
 
+	/**
+	 * Sanitize a tag. The same as {@code new ParsedTag(splitTag.toList()).sanitize(pc)}, but for
+	 * the many tags whose verifier has no rules of its own, we work on the tokens directly, and
+	 * only turn the attributes which are rewritten into separate Strings.
+	 */
+	ParsedTag sanitizeTokens(TagTokens splitTag, HTMLParseContext pc) throws DataFilterException {
+		if(sanitizeTokens) {
+			// Find the slashes as ParsedTag(List) does.
+			int len = splitTag.size();
+			int lastStart = splitTag.start(len - 1);
+			int lastEnd = splitTag.end(len - 1);
+			boolean endSlash = false;
+			if (((len - 1 != 0) || (lastEnd - lastStart > 1)) && lastEnd > lastStart && splitTag.charAt(lastEnd - 1) == '/') {
+				lastEnd--;
+				if (lastEnd == lastStart)
+					len--;
+				endSlash = true;
+			}
+			int elementStart = splitTag.start(0);
+			int elementEnd = splitTag.size() == 1 ? lastEnd : splitTag.end(0);
+			boolean startSlash = false;
+			if ((elementEnd - elementStart > 1) && splitTag.charAt(elementStart) == '/') {
+				elementStart++;
+				startSlash = true;
+			}
+			TagVerifier tv = allowedTagsVerifiers.get(splitTag.lowerName(elementStart, elementEnd));
+			if(tv != null) {
+				String element = splitTag.name(elementStart, elementEnd);
+				ParsedTag t = tv.sanitizeTokens(splitTag, len - 1, lastEnd, element, startSlash, endSlash, pc);
+				if(t != UNHANDLED) return t;
+			}
+		}
+		return new ParsedTag(splitTag.toList()).sanitize(pc);
+	}
+
+	/**
+	 * The tokens of a tag, as spans of one buffer which is reused for every tag in the page,
+	 * instead of a String each.
+	 */
+	static final class TagTokens {
+		private static final int NAME_CACHE_SIZE = 64;
+		/** Tags with more attributes than this are sanitized via ParsedTag. */
+		static final int MAX_ATTRS = 32;
+
+		private char[] buf = new char[256];
+		private int[] ends = new int[16];
+		private int count;
+		/** Recent element and attribute names, so we don't need a new String each time. */
+		private final String[] names = new String[NAME_CACHE_SIZE];
+		private final String[] lowerNames = new String[NAME_CACHE_SIZE];
+
+		static final String[] NO_ATTRS = new String[0];
+		/** An output attribute without a value. Compared by identity. */
+		static final String NO_VALUE = new String("(no value)");
+		/** An output attribute to be filled in by a subclass, or removed. Compared by identity. */
+		static final String PLACEHOLDER = new String("(placeholder)");
+
+		// Scratch space for TagVerifier.sanitizeTokens().
+		final String[] attrNames = new String[MAX_ATTRS];
+		/** -1 if the attribute has no value. */
+		final int[] valueStarts = new int[MAX_ATTRS];
+		final int[] valueEnds = new int[MAX_ATTRS];
+		// The output attributes, in order, as the LinkedHashMap in sanitizeHash().
+		final String[] outNames = new String[MAX_ATTRS + 4];
+		/** The value as a String, a marker, or null for the value of outAttrs[i]. */
+		final String[] outValues = new String[MAX_ATTRS + 4];
+		final int[] outAttrs = new int[MAX_ATTRS + 4];
+		int outCount;
+		final StringBuilder sb = new StringBuilder(100);
+
+		/** Set an output attribute, keeping its place if it is already there. */
+		void put(String name, String value, int attr) {
+			int k = 0;
+			while (k < outCount && !outNames[k].equals(name))
+				k++;
+			if (k == outCount) {
+				outNames[k] = name;
+				outCount++;
+			}
+			outValues[k] = value;
+			outAttrs[k] = attr;
+		}
+
+		/** Set an output attribute to the value of an input attribute. */
+		void putAttr(String name, int attr) {
+			if (valueStarts[attr] >= 0)
+				put(name, null, attr);
+			else
+				put(name, NO_VALUE, -1);
+		}
+
+		/** @return The input attribute with this name and a value, or -1. */
+		int findValue(String name, int attrs) {
+			for (int i = 0; i < attrs; i++)
+				if (valueStarts[i] >= 0 && attrNames[i].equals(name)) return i;
+			return -1;
+		}
+
+		void add(CharSequence token) {
+			int start = count == 0 ? 0 : ends[count - 1];
+			int len = token.length();
+			if (start + len > buf.length)
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, start + len));
+			if (count == ends.length)
+				ends = Arrays.copyOf(ends, count * 2);
+			for (int i = 0; i < len; i++)
+				buf[start + i] = token.charAt(i);
+			ends[count++] = start + len;
+		}
+
+		void clear() {
+			count = 0;
+		}
+
+		int size() {
+			return count;
+		}
+
+		int start(int token) {
+			return token == 0 ? 0 : ends[token - 1];
+		}
+
+		int end(int token) {
+			return ends[token];
+		}
+
+		char charAt(int offset) {
+			return buf[offset];
+		}
+
+		int indexOf(char c, int start, int end) {
+			for (int i = start; i < end; i++)
+				if (buf[i] == c) return i;
+			return -1;
+		}
+
+		/** The same as substring(start, end).equalsIgnoreCase(s). */
+		boolean equalsIgnoreCase(int start, int end, String s) {
+			if (s.length() != end - start) return false;
+			for (int i = start; i < end; i++) {
+				char a = buf[i];
+				char b = s.charAt(i - start);
+				if (a == b) continue;
+				a = Character.toUpperCase(a);
+				b = Character.toUpperCase(b);
+				if (a == b || Character.toLowerCase(a) == Character.toLowerCase(b)) continue;
+				return false;
+			}
+			return true;
+		}
+
+		String substring(int start, int end) {
+			return new String(buf, start, end - start);
+		}
+
+		void appendTo(StringBuilder out, int start, int end) {
+			out.append(buf, start, end - start);
+		}
+
+		String get(int token) {
+			return substring(start(token), end(token));
+		}
+
+		List<String> toList() {
+			List<String> list = new ArrayList<String>(count);
+			for (int i = 0; i < count; i++)
+				list.add(get(i));
+			return list;
+		}
+
+		String name(int start, int end) {
+			return names[cacheName(start, end)];
+		}
+
+		/** @return The same as name(start, end).toLowerCase(). */
+		String lowerName(int start, int end) {
+			int slot = cacheName(start, end);
+			String lower = lowerNames[slot];
+			if (lower == null)
+				lowerNames[slot] = lower = names[slot].toLowerCase();
+			return lower;
+		}
+
+		private int cacheName(int start, int end) {
+			int h = 0;
+			for (int i = start; i < end; i++)
+				h = 31 * h + buf[i];
+			int slot = (h ^ (h >>> 16)) & (NAME_CACHE_SIZE - 1);
+			String s = names[slot];
+			if (s == null || !matches(s, start, end)) {
+				names[slot] = substring(start, end);
+				lowerNames[slot] = null;
+			}
+			return slot;
+		}
+
+		private boolean matches(String s, int start, int end) {
+			if (s.length() != end - start) return false;
+			for (int i = start; i < end; i++)
+				if (s.charAt(i - start) != buf[i]) return false;
+			return true;
+		}
+	}
+
 	void saveComment(StringBuilder s, Writer w, HTMLParseContext pc)
 		throws IOException {
 		if(pc.onlyDetectingCharset) return;
@@ -718,6 +972,13 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 			this.unparsedAttrs = attrs;
 		}
 		
+		ParsedTag(String element, String[] outAttrs, boolean startSlash, boolean endSlash) {
+			this.element = element;
+			this.unparsedAttrs = outAttrs;
+			this.startSlash = startSlash;
+			this.endSlash = endSlash;
+		}
+
 		public ParsedTag(ParsedTag t, String[] outAttrs) {
 			this.element = t.element;
 			this.unparsedAttrs = outAttrs;
@@ -817,18 +1078,31 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 			return map;
 		}
 
+		/** Write toString(), closing void elements in XHTML, without building the String. */
 		public void htmlwrite(Writer w,HTMLParseContext pc) throws IOException {
-			String s = toString();
-			if(pc.getisXHTML())
-			{
-				if(ElementInfo.isVoidElement(element) && s.charAt(s.length()-2)!='/')
-				{
-					s=s.substring(0,s.length()-1)+" />";
+			if (element == null)
+				return;
+			w.write('<');
+			if (startSlash)
+				w.write('/');
+			w.write(element);
+			// The character before the '>'.
+			char last = element.length() > 0 ? element.charAt(element.length() - 1) : (startSlash ? '/' : '<');
+			if (unparsedAttrs != null) {
+				for (String attr : unparsedAttrs) {
+					w.write(' ');
+					w.write(attr);
+					last = attr.length() > 0 ? attr.charAt(attr.length() - 1) : ' ';
 				}
 			}
-			if (s != null) {
-				w.write(s);
+			if (endSlash) {
+				w.write(" /");
+				last = '/';
 			}
+			if(pc.getisXHTML() && ElementInfo.isVoidElement(element) && last != '/')
+				w.write(" />");
+			else
+				w.write('>');
 		}
 
 		public void write(Writer w,HTMLParseContext pc) throws IOException {
@@ -1977,6 +2251,9 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 		protected final HashSet<String> parsedAttrs;
 		private final HashSet<String> uriAttrs;
 		private final HashSet<String> inlineURIAttrs;
+		/** True if sanitizeTokens() gives the same result as sanitize(), i.e. the subclass
+		 * adds no rules beyond those sanitizeTokens() knows about. */
+		private final boolean sanitizesTokens;
 
 		TagVerifier(String tag, String[] allowedAttrs) {
 			this(tag, allowedAttrs, null, null);
@@ -2000,6 +2277,115 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 				for (String inlineURIAttr: inlineURIAttrs)
 					this.inlineURIAttrs.add(inlineURIAttr);
 			}
+			sanitizesTokens = getClass() == TagVerifier.class || getClass() == BaseCoreTagVerifier.class
+				|| getClass() == CoreTagVerifier.class;
+		}
+
+		/**
+		 * Sanitize a tag straight from its tokens, without the attribute maps. Gives the same
+		 * result as {@link #sanitize(ParsedTag, HTMLParseContext)}.
+		 * @param attrs The number of attributes, which are tokens 1 to attrs.
+		 * @param lastEnd Where the last token ends, not counting a closing slash.
+		 * @return The sanitized tag, null to delete it, or {@link #UNHANDLED} if it needs
+		 * sanitize().
+		 */
+		ParsedTag sanitizeTokens(TagTokens tokens, int attrs, int lastEnd, String element,
+				boolean startSlash, boolean endSlash, HTMLParseContext pc) throws DataFilterException {
+			if (!sanitizesTokens || attrs > TagTokens.MAX_ATTRS) return UNHANDLED;
+			String[] names = tokens.attrNames;
+			int[] valueStarts = tokens.valueStarts;
+			int[] valueEnds = tokens.valueEnds;
+			for (int i = 0; i < attrs; i++) {
+				int start = tokens.start(i + 1);
+				int end = (i + 1 == tokens.size() - 1) ? lastEnd : tokens.end(i + 1);
+				int idx = tokens.indexOf('=', start, end);
+				// sanitize() joins up e.g. name= "value", leave that to it.
+				if (idx == start || idx == end - 1) return UNHANDLED;
+				if (idx > start) {
+					names[i] = tokens.lowerName(start, idx);
+					int valueStart = idx + 1;
+					int valueEnd = end;
+					// As stripQuotes().
+					if (valueEnd - valueStart >= 2) {
+						char q = tokens.charAt(valueStart);
+						if ((q == '"' || q == '\'') && tokens.charAt(valueEnd - 1) == q) {
+							valueStart++;
+							valueEnd--;
+						}
+					}
+					valueStarts[i] = valueStart;
+					valueEnds[i] = valueEnd;
+				} else {
+					names[i] = tokens.name(start, end);
+					valueStarts[i] = -1;
+				}
+				// If an attribute is repeated the last one wins, in the last one's place.
+				for (int j = 0; j < i; j++)
+					if (names[j].equals(names[i])) return UNHANDLED;
+			}
+			// As sanitizeHash().
+			tokens.outCount = 0;
+			for (int i = 0; i < attrs; i++) {
+				String x = names[i];
+				boolean hasValue = valueStarts[i] >= 0;
+				boolean inline = inlineURIAttrs.contains(x);
+				if (inline || uriAttrs.contains(x)) {
+					if (hasValue) {
+						String uri = HTMLDecoder.decode(tokens.substring(valueStarts[i], valueEnds[i]));
+						uri = htmlSanitizeURI(uri, null, null, null, pc.cb, pc, inline);
+						if (uri == null) continue;
+						tokens.put(x, HTMLEncoder.encode(uri), -1);
+					} else
+						tokens.put(x, TagTokens.NO_VALUE, -1);
+				} else if (parsedAttrs.contains(x)) {
+					tokens.put(x, TagTokens.PLACEHOLDER, -1);
+				} else if (allowedAttrs.contains(x) || x.equals("xml:lang") || x.equals("lang")
+						|| (x.equals("dir") && hasValue && (tokens.equalsIgnoreCase(valueStarts[i], valueEnds[i], "ltr")
+								|| tokens.equalsIgnoreCase(valueStarts[i], valueEnds[i], "rtl")))) {
+					tokens.putAttr(x, i);
+				}
+			}
+			if (!sanitizeTokenAttrs(tokens, attrs, pc)) return UNHANDLED;
+			// Remove any blank entries
+			int n = 0;
+			for (int k = 0; k < tokens.outCount; k++) {
+				String v = tokens.outValues[k];
+				if (v == TagTokens.PLACEHOLDER) continue;
+				if (pc.isXHTML && (v == null ? valueStarts[tokens.outAttrs[k]] == valueEnds[tokens.outAttrs[k]] : v.equals("")))
+					continue;
+				tokens.outNames[n] = tokens.outNames[k];
+				tokens.outValues[n] = v;
+				tokens.outAttrs[n] = tokens.outAttrs[k];
+				n++;
+			}
+			if (n == 0 && expungeTagIfNoAttributes()) return null;
+			if (startSlash)
+				return new ParsedTag(element, null, startSlash, endSlash);
+			String[] outAttrs = n == 0 ? TagTokens.NO_ATTRS : new String[n];
+			StringBuilder sb = tokens.sb;
+			for (int k = 0; k < n; k++) {
+				String v = tokens.outValues[k];
+				if (v == TagTokens.NO_VALUE) {
+					outAttrs[k] = tokens.outNames[k];
+					continue;
+				}
+				sb.setLength(0);
+				sb.append(tokens.outNames[k]).append("=\"");
+				if (v == null) {
+					int attr = tokens.outAttrs[k];
+					tokens.appendTo(sb, valueStarts[attr], valueEnds[attr]);
+				} else
+					sb.append(v);
+				sb.append('"');
+				outAttrs[k] = sb.toString();
+			}
+			return new ParsedTag(element, outAttrs, startSlash, endSlash);
+		}
+
+		/** The token version of the subclass part of sanitizeHash(). @return False if it can't
+		 * be done from the tokens. */
+		boolean sanitizeTokenAttrs(TagTokens tokens, int attrs, HTMLParseContext pc) throws DataFilterException {
+			return true;
 		}
 
 		ParsedTag sanitize(ParsedTag t, HTMLParseContext pc) throws DataFilterException {
@@ -2149,6 +2535,9 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 		}  
 	}
 
+	/** Returned by TagVerifier.sanitizeTokens() when the tag needs the full ParsedTag path. */
+	static final ParsedTag UNHANDLED = new ParsedTag(null, new String[0], false, false);
+
 	static String stripQuotes(String s) {
 		final String quotes = "\"'";
 		if (s.length() >= 2) {
@@ -2372,6 +2761,29 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 			}
 			return hn;
 		}
+
+		@Override
+		boolean sanitizeTokenAttrs(TagTokens tokens, int attrs, HTMLParseContext pc) throws DataFilterException {
+			int id = tokens.findValue("id", attrs);
+			if (id >= 0)
+				tokens.putAttr("id", id);
+			int classNames = tokens.findValue("class", attrs);
+			if (classNames >= 0)
+				tokens.putAttr("class", classNames);
+			int styleAttr = tokens.findValue("style", attrs);
+			if (styleAttr >= 0) {
+				String style = tokens.substring(tokens.valueStarts[styleAttr], tokens.valueEnds[styleAttr]);
+				style = sanitizeStyle(style, pc.cb, pc, true);
+				if (style != null)
+					style = escapeQuotes(style);
+				if (style != null)
+					tokens.put("style", style, -1);
+			}
+			int title = tokens.findValue("title", attrs);
+			if (title >= 0)
+				tokens.putAttr("title", title);
+			return true;
+		}
 	}
 
 	static class CoreTagVerifier extends BaseCoreTagVerifier {
@@ -2452,6 +2864,19 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 			
 			return hn;
 		}
+
+		@Override
+		boolean sanitizeTokenAttrs(TagTokens tokens, int attrs, HTMLParseContext pc) throws DataFilterException {
+			if (!super.sanitizeTokenAttrs(tokens, attrs, pc)) return false;
+			for (int i = 0; i < attrs; i++) {
+				if (tokens.valueStarts[i] >= 0 && eventAttrs.contains(tokens.attrNames[i])) {
+					// Nothing gets through at the moment. If it does, the order matters.
+					if (sanitizeScripting(tokens.substring(tokens.valueStarts[i], tokens.valueEnds[i])) != null)
+						return false;
+				}
+			}
+			return true;
+		}
 	}
 
 	static class LinkTagVerifier extends CoreTagVerifier {
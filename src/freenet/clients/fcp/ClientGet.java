@@ -330,6 +330,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 			synchronized(this) {
 				started = true;
 			}
+			setChanged();
 			if(client != null) {
 				RequestStatusCache cache = client.getRequestStatusCache();
 				if(cache != null) {
@@ -575,6 +576,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 	@Override
 	public void receive(ClientEvent ce, ClientContext context) {
 	    if(logMINOR) Logger.minor(this, "Receiving "+ce+" on "+this);
+	    setChanged();
 	    final FCPMessage progress;
 		final int verbosityMask;
 		if(ce instanceof SplitfileProgressEvent) {
@@ -680,6 +682,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 
 	private void innerHandleCompatibilityMode(SplitfileCompatibilityModeEvent ce, ClientContext context) {
 	    compatMode.merge(ce.minCompatibilityMode, ce.maxCompatibilityMode, ce.splitfileCryptoKey, ce.dontCompress, ce.bottomLayer);
+	    setChanged();
 	    if(client != null) {
 	        RequestStatusCache cache = client.getRequestStatusCache();
 	        if(cache != null) {
@@ -890,6 +893,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 			if(disableFilterData)
 				fctx.filterData = false;
 		}
+		setChanged();
 		if(client != null) {
 			RequestStatusCache cache = client.getRequestStatusCache();
 			if(cache != null) {
@@ -301,6 +301,7 @@ public class ClientPut extends ClientPutBase {
 			synchronized(this) {
 				started = true;
 			}
+			setChanged();
 			if(client != null) {
 				RequestStatusCache cache = client.getRequestStatusCache();
 				if(cache != null) {
@@ -215,6 +215,7 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 				generatedURI = uri;
 			}
 		}
+		setChanged();
 		trySendGeneratedURIMessage(null, null);
 		if(client != null) {
 			RequestStatusCache cache = client.getRequestStatusCache();
@@ -241,6 +242,7 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 				generatedMetadata = metadata;
 			}
 		}
+		setChanged();
 		if(delete) {
 			metadata.free();
 		} else {
@@ -290,6 +292,7 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 	public void receive(final ClientEvent ce, ClientContext context) {
 		if(finished) return;
 		if(logMINOR) Logger.minor(this, "Receiving event "+ce+" on "+this);
+		setChanged();
 		if(ce instanceof SplitfileProgressEvent) {
 			if((verbosity & VERBOSITY_SPLITFILE_PROGRESS) == VERBOSITY_SPLITFILE_PROGRESS) {
 				SimpleProgressMessage progress = 
@@ -333,6 +336,7 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 	@Override
 	public void onFetchable(BaseClientPutter putter) {
 		if(finished) return;
+		setChanged();
 		if((verbosity & VERBOSITY_PUT_FETCHABLE) == VERBOSITY_PUT_FETCHABLE) {
 			FreenetURI temp;
 			synchronized (this) {
@@ -533,6 +537,7 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 	    this.putFailedMessage = null;
 	    this.progressMessage = null;
 	    started = false;
+	    setChanged();
 	}
 
 }
@@ -199,6 +199,7 @@ public class ClientPutDir extends ClientPutBase {
 				putter.start(context);
 
 			started = true;
+			setChanged();
 			if(client != null) {
 				RequestStatusCache cache = client.getRequestStatusCache();
 				if(cache != null) {
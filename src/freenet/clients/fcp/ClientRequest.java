@@ -64,6 +64,9 @@ public abstract class ClientRequest implements Serializable {
 	protected long completionTime;
 
 	protected transient RequestClient lowLevelClient;
+	/** Set when something written to client.dat changes, so the next checkpoint writes the 
+	 * request. A request which has just been loaded is as it was written. */
+	private transient volatile boolean changed;
 	private final int hashCode; // for debugging it is good to have a persistent id
 	
 	@Override
@@ -256,6 +259,25 @@ public abstract class ClientRequest implements Serializable {
 			origHandler.finishedClientRequest(this);
 		else
 			client.finishedClientRequest(this);
+		setChanged();
+	}
+
+	/** The request has changed, so the next checkpoint should write it. Requests which haven't
+	 * been marked are only checked now and then, see ClientLayerPersister. */
+	public void setChanged() {
+		changed = true;
+	}
+
+	/** Called by ClientLayerPersister just before writing the request.
+	 * @return True if the request, or the ClientRequester doing the work, has changed since the
+	 * last call. */
+	public boolean clearChanged() {
+		ClientRequester req = getClientRequest();
+		// Clear both.
+		boolean ret = req != null && req.clearChanged();
+		if(!changed) return ret;
+		changed = false;
+		return true;
 	}
 
 	public abstract double getSuccessFraction();
@@ -348,6 +370,7 @@ public abstract class ClientRequest implements Serializable {
 			return; // quick return, nothing was changed
 		}
 		
+		setChanged();
 		server.core.clientContext.jobRunner.setCheckpointASAP();
 		
 		// this could become too complex with more parameters, but for now its ok
@@ -368,6 +391,7 @@ public abstract class ClientRequest implements Serializable {
 		synchronized(this) {
 			this.started = false;
 		}
+		setChanged();
 		if(client != null) {
 			RequestStatusCache cache = client.getRequestStatusCache();
 			if(cache != null) {
@@ -5,6 +5,7 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.Socket;
 import java.util.HashMap;
@@ -29,6 +30,7 @@ import freenet.support.HexUtil;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
+import freenet.support.SimpleFieldSet;
 import freenet.support.api.BucketFactory;
 import freenet.support.io.Closer;
 import freenet.support.io.FileUtil;
@@ -70,6 +72,8 @@ public class FCPConnectionHandler implements Closeable {
 	final FCPServer server;
 	final Socket sock;
 	final FCPConnectionInputHandler inputHandler;
+	/** Null unless the connection is served by the selector engine. */
+	final NonBlockingFCPConnection transport;
 	final Map<String, SubscribeUSK> uskSubscriptions;
 	public final FCPConnectionOutputHandler outputHandler;
 	private boolean isClosed;
@@ -145,6 +149,11 @@ public class FCPConnectionHandler implements Closeable {
 		uskSubscriptions = new HashMap<String, SubscribeUSK>();
 		this.inputHandler = new FCPConnectionInputHandler(this);
 		this.outputHandler = new FCPConnectionOutputHandler(this);
+		FCPSelectorPool selectorPool = server.selectorPool;
+		if(selectorPool != null && s != null && s.getChannel() != null)
+			this.transport = new NonBlockingFCPConnection(new TransportHandler(), s.getChannel(), selectorPool.nextLoop());
+		else
+			this.transport = null;
 		
 		byte[] identifier = new byte[16];
 		server.node.random.nextBytes(identifier);
@@ -170,7 +179,33 @@ public class FCPConnectionHandler implements Closeable {
         outputHandler.queue(message);
     }
 
+	/** Messages read by the selector engine. */
+	private class TransportHandler implements NonBlockingFCPConnection.MessageHandler {
+
+		@Override
+		public boolean isOutputQueueFull() {
+			return outputHandler.isQueueFull();
+		}
+
+		@Override
+		public boolean handleMessage(String messageName, SimpleFieldSet fs, InputStream data) throws IOException {
+			if(inputHandler.shuttingDown()) return false;
+			return inputHandler.handleMessage(messageName, fs, data);
+		}
+
+		@Override
+		public void closedInput() {
+			close();
+			FCPConnectionHandler.this.closedInput();
+		}
+
+	}
+
 	void start() {
+		if(transport != null) {
+			transport.start();
+			return;
+		}
 		inputHandler.start();
 		outputHandler.start();
 	}
@@ -233,6 +268,8 @@ public class FCPConnectionHandler implements Closeable {
 	}
 	
 	public void closedInput() {
+		if(transport != null)
+			return; // Closed with the output, see closedOutput().
 		try {
 			sock.shutdownInput();
 		} catch (IOException e) {
@@ -250,6 +287,11 @@ public class FCPConnectionHandler implements Closeable {
 	}
 	
 	public void closedOutput() {
+		if(transport != null) {
+			// The input has already gone, or will be ignored now we are closed.
+			transport.closeAfterWrite();
+			return;
+		}
 		try {
 			sock.shutdownOutput();
 		} catch (IOException e) {
@@ -886,6 +928,8 @@ public class FCPConnectionHandler implements Closeable {
 		PersistentRequestClient client =
 			global ? server.globalForeverClient :
 			getForeverClient();
+		// It may still be waiting to be resumed after startup.
+		server.core.clientLayerPersister.resumeEarly(global, client.name, identifier, server.core.clientContext);
 		ClientRequest req = client.getRequest(identifier);
 		if(req != null) {
 			client.removeByIdentifier(identifier, true, server, server.core.clientContext);
@@ -13,6 +13,8 @@ import freenet.support.LogThresholdCallback;
 
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
+import freenet.support.io.FileChannelBucket;
+import freenet.support.io.FileTransferTarget;
 
 public class FCPConnectionOutputHandler implements Runnable {
 
@@ -20,6 +22,11 @@ public class FCPConnectionOutputHandler implements Runnable {
 	final Deque<FCPMessage> outQueue;
 	// Synced on outQueue
 	private boolean closedOutputQueue;
+	/** Selector engine only: A writer task has been started and has not yet emptied the queue.
+	 * Synced on outQueue. */
+	private boolean writing;
+	/** Selector engine only: Only used by the writer task. */
+	private OutputStream writerStream;
 
         private static volatile boolean logMINOR;
         private static volatile boolean logDEBUG;
@@ -41,6 +48,8 @@ public class FCPConnectionOutputHandler implements Runnable {
 	void start() {
 		if (handler.sock == null)
 			return;
+		if (handler.transport != null)
+			return; // Messages are written by a task started when they are queued.
 		handler.server.node.executor.execute(this, "FCP output handler for "+handler.sock.getRemoteSocketAddress()+ ':' +handler.sock.getPort());
 	}
 	
@@ -155,7 +164,83 @@ public class FCPConnectionOutputHandler implements Runnable {
 			}
 			outQueue.add(msg);
 			outQueue.notifyAll();
+			if(handler.transport == null || writing) return;
+			writing = true;
 		}
+		handler.server.node.executor.execute(writer, "FCP output writer for "+handler.sock.getRemoteSocketAddress());
+	}
+	
+	private final Runnable writer = new Runnable() {
+		
+		@Override
+		public void run() {
+		    freenet.support.Logger.OSThread.logPID(this);
+			writeQueued();
+		}
+		
+	};
+	
+	/** Selector engine: Write messages until the queue is empty, then close the output if the
+	 * connection has been closed. At most one of these runs at a time for a connection. */
+	private void writeQueued() {
+		try {
+			if(writerStream == null)
+				writerStream = new TransferOutputStream(handler.transport.getOutputStream());
+			boolean flushed = true;
+			while(true) {
+				FCPMessage msg;
+				boolean wasFull;
+				synchronized(outQueue) {
+					wasFull = outQueue.size() >= handler.server.maxMessageQueueLength();
+					msg = outQueue.poll();
+					if(msg == null && flushed) {
+						writing = false;
+						outQueue.notifyAll();
+						break;
+					}
+				}
+				if(msg == null) {
+					writerStream.flush();
+					flushed = true;
+					continue;
+				}
+				if(wasFull)
+					handler.transport.outputQueueDrained();
+				if(logMINOR) Logger.minor(this, "Sending "+msg);
+				msg.send(writerStream);
+				flushed = false;
+			}
+		} catch (IOException e) {
+			if(logMINOR)
+				Logger.minor(this, "Caught "+e, e);
+			synchronized(outQueue) {
+				writing = false;
+				closedOutputQueue = true;
+				outQueue.notifyAll();
+			}
+			handler.close();
+			handler.closedOutput();
+			return;
+		} catch (Throwable t) {
+			Logger.error(this, "Caught "+t, t);
+			synchronized(outQueue) {
+				writing = false;
+				outQueue.notifyAll();
+			}
+		}
+		if(handler.isClosed())
+			closeIfIdle();
+	}
+	
+	/** Selector engine: Close the output, unless a writer is still running, in which case it
+	 * will do it when it has finished. */
+	private void closeIfIdle() {
+		synchronized(outQueue) {
+			if(writing || closedOutputQueue) return;
+			closedOutputQueue = true;
+			outQueue.notifyAll();
+		}
+		handler.closedOutput();
 	}
 
 	public void onClosed() {
@@ -173,6 +258,17 @@ public class FCPConnectionOutputHandler implements Runnable {
 				}
 			}
 		}
+		if(handler.transport != null)
+			closeIfIdle();
+	}
+
+	/** @return True if we shouldn't read any more messages from the client until some of the
+	 * queued messages have been sent. */
+	public boolean isQueueFull() {
+		int MAX_QUEUE_LENGTH = handler.server.maxMessageQueueLength();
+		synchronized(outQueue) {
+			return outQueue.size() >= MAX_QUEUE_LENGTH;
+		}
 	}
 
 	public boolean isQueueHalfFull() {
@@ -181,5 +277,21 @@ public class FCPConnectionOutputHandler implements Runnable {
 			return outQueue.size() > MAX_QUEUE_LENGTH / 2;
 		}
 	}
+
+	/** Selector engine: Buffers the messages, but lets attached data go straight from the file
+	 * to the socket. */
+	private static class TransferOutputStream extends BufferedOutputStream implements FileTransferTarget {
+
+		TransferOutputStream(OutputStream os) {
+			super(os, 4096);
+		}
+
+		@Override
+		public boolean transferFrom(FileChannelBucket bucket, long length) throws IOException {
+			flush();
+			return ((FileTransferTarget) out).transferFrom(bucket, length);
+		}
+
+	}
 	
 }
@@ -0,0 +1,116 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+
+import freenet.support.Executor;
+import freenet.support.Logger;
+
+/**
+ * A few selector threads serving all the FCP connections, instead of an input thread and an
+ * output thread for each connection. Each connection stays on the same selector thread. See
+ * {@link NonBlockingFCPConnection}.
+ */
+final class FCPSelectorPool {
+
+	private final Loop[] loops;
+	private int next;
+
+	FCPSelectorPool(int threads, Executor executor) throws IOException {
+		loops = new Loop[threads];
+		for(int i=0;i<threads;i++)
+			loops[i] = new Loop(executor);
+	}
+
+	void start() {
+		for(int i=0;i<loops.length;i++) {
+			Thread t = new Thread(loops[i], "FCP selector "+i);
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/** @return The selector thread for a new connection. */
+	synchronized Loop nextLoop() {
+		Loop loop = loops[next];
+		next = (next + 1) % loops.length;
+		return loop;
+	}
+
+	/** A selector and the thread which runs it. */
+	static final class Loop implements Runnable {
+
+		private final Executor executor;
+		private final Selector selector;
+		/** Connections waiting to be registered. Synced on this. */
+		private List<NonBlockingFCPConnection> newConnections = new ArrayList<NonBlockingFCPConnection>();
+		/** Connections whose state has been changed by another thread. Synced on this. */
+		private List<NonBlockingFCPConnection> changed = new ArrayList<NonBlockingFCPConnection>();
+
+		Loop(Executor executor) throws IOException {
+			this.executor = executor;
+			this.selector = Selector.open();
+		}
+
+		void register(NonBlockingFCPConnection conn) {
+			synchronized(this) {
+				newConnections.add(conn);
+			}
+			selector.wakeup();
+		}
+
+		/** Look at the connection again, e.g. to update what we are waiting for. */
+		void changed(NonBlockingFCPConnection conn) {
+			synchronized(this) {
+				changed.add(conn);
+			}
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			freenet.support.Logger.OSThread.logPID(this);
+			while(true) {
+				try {
+					selector.select();
+					processSelected();
+				} catch (Throwable t) {
+					Logger.error(this, "Caught "+t+" in FCP selector", t);
+				}
+			}
+		}
+
+		private void processSelected() {
+			List<NonBlockingFCPConnection> newList;
+			List<NonBlockingFCPConnection> changedList;
+			synchronized(this) {
+				newList = newConnections;
+				changedList = changed;
+				newConnections = new ArrayList<NonBlockingFCPConnection>();
+				changed = new ArrayList<NonBlockingFCPConnection>();
+			}
+			for(NonBlockingFCPConnection conn : newList)
+				run(conn, conn.register(selector));
+			for(NonBlockingFCPConnection conn : changedList)
+				run(conn, conn.process(false));
+			for(SelectionKey key : selector.selectedKeys()) {
+				NonBlockingFCPConnection conn = (NonBlockingFCPConnection) key.attachment();
+				run(conn, conn.process(true));
+			}
+			selector.selectedKeys().clear();
+		}
+
+		private void run(NonBlockingFCPConnection conn, Runnable task) {
+			if(task != null)
+				executor.execute(task, "FCP message handler for "+conn);
+		}
+
+	}
+
+}
@@ -30,11 +30,13 @@ import freenet.clients.fcp.ClientRequest.Persistence;
 import freenet.clients.fcp.FCPPluginConnection.SendDirection;
 import freenet.config.Config;
 import freenet.config.InvalidConfigValueException;
+import freenet.config.NodeNeedRestartException;
 import freenet.config.SubConfig;
 import freenet.crypt.SSL;
 import freenet.io.AllowedHosts;
 import freenet.io.NetworkInterface;
 import freenet.io.SSLNetworkInterface;
+import freenet.io.SelectableNetworkInterface;
 import freenet.keys.FreenetURI;
 import freenet.l10n.NodeL10n;
 import freenet.node.Node;
@@ -84,8 +86,13 @@ public class FCPServer implements Runnable, DownloadCache {
 	private boolean assumeUploadDDAIsAllowed;
 	private boolean neverDropAMessage;
 	private int maxMessageQueueLength;
+	/** Number of selector threads serving the connections, or 0 for an input and an output thread
+	 * for each connection. */
+	private int selectorThreads;
+	/** Null unless selectorThreads > 0. */
+	FCPSelectorPool selectorPool;
 
-	public FCPServer(String ipToBindTo, String allowedHosts, String allowedHostsFullAccess, int port, Node node, NodeClientCore core, boolean isEnabled, boolean assumeDDADownloadAllowed, boolean assumeDDAUploadAllowed, boolean neverDropAMessage, int maxMessageQueueLength, PersistentRequestRoot persistentRoot) throws IOException, InvalidConfigValueException {
+	public FCPServer(String ipToBindTo, String allowedHosts, String allowedHostsFullAccess, int port, Node node, NodeClientCore core, boolean isEnabled, boolean assumeDDADownloadAllowed, boolean assumeDDAUploadAllowed, boolean neverDropAMessage, int maxMessageQueueLength, int selectorThreads, PersistentRequestRoot persistentRoot) throws IOException, InvalidConfigValueException {
 		this.bindTo = ipToBindTo;
 		this.allowedHosts=allowedHosts;
 		this.allowedHostsFullAccess = new AllowedHosts(allowedHostsFullAccess);
@@ -97,6 +104,7 @@ public class FCPServer implements Runnable, DownloadCache {
 		this.assumeUploadDDAIsAllowed = assumeDDAUploadAllowed;
 		this.neverDropAMessage = neverDropAMessage;
 		this.maxMessageQueueLength = maxMessageQueueLength;
+		this.selectorThreads = selectorThreads;
 		rebootClientsByName = new WeakHashMap<String, PersistentRequestClient>();
 		this.persistentRoot = persistentRoot;
         globalForeverClient = persistentRoot.globalForeverClient;
@@ -122,6 +130,10 @@ public class FCPServer implements Runnable, DownloadCache {
 		try {
 			if(ssl) {
 				tempNetworkInterface = SSLNetworkInterface.create(port, bindTo, allowedHosts, node.executor, true);
+			} else if(selectorThreads > 0) {
+				tempNetworkInterface = SelectableNetworkInterface.create(port, bindTo, allowedHosts, node.executor, true);
+				selectorPool = new FCPSelectorPool(selectorThreads, node.executor);
+				selectorPool.start();
 			} else {
 				tempNetworkInterface = NetworkInterface.create(port, bindTo, allowedHosts, node.executor, true);
 			}
@@ -422,6 +434,25 @@ public class FCPServer implements Runnable, DownloadCache {
 	}
 
 
+	static class SelectorThreadsCallback extends IntCallback {
+		FCPServer server;
+
+		@Override
+		public Integer get() {
+			return server.selectorThreads;
+		}
+
+		@Override
+		public void set(Integer val) throws InvalidConfigValueException, NodeNeedRestartException {
+			if(get().equals(val))
+				return;
+			if(val < 0)
+				throw new InvalidConfigValueException("Must not be negative");
+			server.selectorThreads = val;
+			throw new NodeNeedRestartException("Cannot change the FCP selector threads on the fly, please restart freenet");
+		}
+	}
+
 	public static FCPServer maybeCreate(Node node, NodeClientCore core, Config config, PersistentRequestRoot root) throws IOException, InvalidConfigValueException {
 		SubConfig fcpConfig = config.createSubConfig("fcp");
 		short sortOrder = 0;
@@ -436,22 +467,25 @@ public class FCPServer implements Runnable, DownloadCache {
 		AssumeDDAUploadIsAllowedCallback cb5;
 		NeverDropAMessageCallback cb6;
 		MaxMessageQueueLengthCallback cb7;
+		SelectorThreadsCallback cb8;
 		fcpConfig.register("assumeDownloadDDAIsAllowed", false, sortOrder++, true, false, "FcpServer.assumeDownloadDDAIsAllowed", "FcpServer.assumeDownloadDDAIsAllowedLong", cb4 = new AssumeDDADownloadIsAllowedCallback());
 		fcpConfig.register("assumeUploadDDAIsAllowed", false, sortOrder++, true, false, "FcpServer.assumeUploadDDAIsAllowed", "FcpServer.assumeUploadDDAIsAllowedLong", cb5 = new AssumeDDAUploadIsAllowedCallback());
 		fcpConfig.register("maxMessageQueueLength", 1024, sortOrder++, true, false, "FcpServer.maxMessageQueueLength", "FcpServer.maxMessageQueueLengthLong", cb7 = new MaxMessageQueueLengthCallback(), false);
 		fcpConfig.register("neverDropAMessage", false, sortOrder++, true, false, "FcpServer.neverDropAMessage", "FcpServer.neverDropAMessageLong", cb6 = new NeverDropAMessageCallback());
+		fcpConfig.register("selectorThreads", 0, sortOrder++, true, false, "FcpServer.selectorThreads", "FcpServer.selectorThreadsLong", cb8 = new SelectorThreadsCallback(), false);
 
 		if(SSL.available()) {
 			ssl = fcpConfig.getBoolean("ssl");
 		}
 
-		FCPServer fcp = new FCPServer(fcpConfig.getString("bindTo"), fcpConfig.getString("allowedHosts"), fcpConfig.getString("allowedHostsFullAccess"), fcpConfig.getInt("port"), node, core, fcpConfig.getBoolean("enabled"), fcpConfig.getBoolean("assumeDownloadDDAIsAllowed"), fcpConfig.getBoolean("assumeUploadDDAIsAllowed"), fcpConfig.getBoolean("neverDropAMessage"), fcpConfig.getInt("maxMessageQueueLength"), root);
+		FCPServer fcp = new FCPServer(fcpConfig.getString("bindTo"), fcpConfig.getString("allowedHosts"), fcpConfig.getString("allowedHostsFullAccess"), fcpConfig.getInt("port"), node, core, fcpConfig.getBoolean("enabled"), fcpConfig.getBoolean("assumeDownloadDDAIsAllowed"), fcpConfig.getBoolean("assumeUploadDDAIsAllowed"), fcpConfig.getBoolean("neverDropAMessage"), fcpConfig.getInt("maxMessageQueueLength"), Math.max(0, fcpConfig.getInt("selectorThreads")), root);
 
 		if(fcp != null) {
 			cb4.server = fcp;
 			cb5.server = fcp;
 			cb6.server = fcp;
 			cb7.server = fcp;
+			cb8.server = fcp;
 		}
 
 		fcpConfig.finishedInitialization();
@@ -4,6 +4,7 @@
 package freenet.clients.fcp;
 
 import freenet.client.async.ClientContext;
+import freenet.client.async.ClientLayerPersister;
 import freenet.client.async.PersistenceDisabledException;
 import freenet.client.async.PersistentJob;
 import freenet.node.Node;
@@ -168,6 +169,11 @@ public class ListPersistentRequestsMessage extends FCPMessage {
                         	@Override
                         	public boolean run(ClientContext context) {
                         		PersistentRequestClient foreverClient = handler.getForeverClient();
+                        		// Include any still waiting to be resumed after startup.
+                        		ClientLayerPersister persister = handler.server.core.clientLayerPersister;
+                        		persister.resumeEarly(false, foreverClient.name, null, context);
+                        		if(handler.getRebootClient().watchGlobal)
+                        			persister.resumeEarly(true, null, null, context);
                         		PersistentListJob job = new PersistentListJob(foreverClient, outputHandler, context, listRequestIdentifier) {
 
                         			@Override
@@ -0,0 +1,521 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.SimpleFieldSet;
+import freenet.support.io.FileChannelBucket;
+import freenet.support.io.FileTransferTarget;
+
+/**
+ * An FCP connection served by a selector thread from {@link FCPSelectorPool}, rather than by
+ * its own {@link FCPConnectionInputHandler} and {@link FCPConnectionOutputHandler} threads.
+ *
+ * The selector thread reads into a buffer and parses the message name and fields a line at a
+ * time as they arrive. Once it has a whole message up to its end marker, the message is handled
+ * on a pooled thread, using the same code as the blocking engine; any attached data is read by
+ * that thread from the connection's buffer, which the selector keeps filling. One message is
+ * handled at a time, in order. We don't start on the next message while the output queue has
+ * maxMessageQueueLength messages on it, so a client which doesn't read its replies eventually
+ * blocks instead of making us drop messages.
+ *
+ * Messages to the client are written by a task started when they are queued, see
+ * {@link FCPConnectionOutputHandler}, into a buffer which the selector thread sends.
+ *
+ * Data attached to messages is copied straight between the socket and the file when the bucket
+ * is a plain file, see {@link FileChannelBucket}: AllData is sent with transferTo() by the writer,
+ * which waits for the selector to tell it when the socket is writable, and data sent by the client
+ * is written to the file with transferFrom() from the buffer.
+ *
+ * LOCKING: All the state is protected by the lock on this object.
+ */
+final class NonBlockingFCPConnection {
+
+	/** As the blocking engine. */
+	static final int MAX_MESSAGE_NAME_LENGTH = 128;
+	static final int MAX_FIELD_LENGTH = 4096;
+	static final int MIN_INPUT_BUFFER = 4096;
+	static final int MAX_INPUT_BUFFER = 65536;
+	/** The writer blocks while this much is waiting to be sent. */
+	static final int MAX_BUFFERED_OUTPUT = 256*1024;
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/** What the connection needs from the rest of FCP. */
+	interface MessageHandler {
+
+		/** @return True if we shouldn't start on another message until some of the replies
+		 * have been sent. */
+		boolean isOutputQueueFull();
+
+		/** Handle a whole message, reading any attached data from data. Called for each
+		 * message in turn, never for two at once.
+		 * @return False to stop reading from the connection. */
+		boolean handleMessage(String messageName, SimpleFieldSet fs, InputStream data) throws IOException;
+
+		/** We have stopped reading, because the client closed its side, sent something we
+		 * couldn't parse or handleMessage() said so. Close the connection. */
+		void closedInput();
+
+	}
+
+	private final MessageHandler handler;
+	private final SocketChannel channel;
+	private final FCPSelectorPool.Loop loop;
+	private SelectionKey key;
+	/** Data read but not yet parsed or read by the message handler. Ready to be filled. */
+	private ByteBuffer in = ByteBuffer.allocate(MIN_INPUT_BUFFER);
+	/** The name of the message being parsed, or null. */
+	private String messageName;
+	/** The lines of the message being parsed so far. */
+	private List<String> lines;
+	/** A message is being handled. */
+	private boolean handling;
+	/** The client has closed its side. */
+	private boolean eof;
+	/** We have stopped reading, and closed the handler or started to. */
+	private boolean inputFinished;
+	private final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+	private int outBytes;
+	/** The writer is sending a file, and is waiting for the socket to be writable. */
+	private boolean waitingToWrite;
+	private boolean closeAfterWrite;
+	private boolean closed;
+	private final InputStream dataStream = new DataInputStream();
+	private final OutputStream outputStream = new ChannelOutputStream();
+
+	NonBlockingFCPConnection(MessageHandler handler, SocketChannel channel, FCPSelectorPool.Loop loop) {
+		this.handler = handler;
+		this.channel = channel;
+		this.loop = loop;
+	}
+
+	void start() {
+		loop.register(this);
+	}
+
+	/** Called on the selector thread.
+	 * @return A task to close the handler if we failed, or null. */
+	synchronized Runnable register(Selector selector) {
+		try {
+			channel.configureBlocking(false);
+			key = channel.register(selector, SelectionKey.OP_READ, this);
+			return null;
+		} catch (IOException e) {
+			Logger.normal(this, "Could not register FCP connection: "+e, e);
+			return close();
+		}
+	}
+
+	/**
+	 * Read and write what we can, and parse the next message if we can. Called on the selector
+	 * thread.
+	 * @param selected True if the key has been selected.
+	 * @return A task to run on another thread, or null.
+	 */
+	synchronized Runnable process(boolean selected) {
+		if(closed || key == null) return null;
+		try {
+			int ready = (selected && key.isValid()) ? key.readyOps() : 0;
+			if((ready & SelectionKey.OP_WRITE) != 0)
+				writeQueued();
+			if((ready & SelectionKey.OP_READ) != 0)
+				read();
+			Runnable task = null;
+			if(!handling && !inputFinished && !closeAfterWrite)
+				task = parse();
+			if(closeAfterWrite && out.isEmpty()) {
+				// The handler has already been closed.
+				close();
+				return null;
+			}
+			int ops = 0;
+			if(!eof && !inputFinished && (in.hasRemaining() || in.capacity() < MAX_INPUT_BUFFER))
+				ops |= SelectionKey.OP_READ;
+			if(!out.isEmpty() || waitingToWrite)
+				ops |= SelectionKey.OP_WRITE;
+			key.interestOps(ops);
+			return task;
+		} catch (IOException e) {
+			if(logMINOR) Logger.minor(this, "Caught "+e, e);
+			return close();
+		}
+	}
+
+	private void read() throws IOException {
+		if(!in.hasRemaining()) {
+			if(in.capacity() >= MAX_INPUT_BUFFER) return;
+			ByteBuffer bigger = ByteBuffer.allocate(Math.min(in.capacity() * 2, MAX_INPUT_BUFFER));
+			in.flip();
+			bigger.put(in);
+			in = bigger;
+		}
+		if(channel.read(in) < 0)
+			eof = true;
+		notifyAll();
+	}
+
+	private void writeQueued() throws IOException {
+		while(!out.isEmpty()) {
+			ByteBuffer buf = out.peek();
+			outBytes -= channel.write(buf);
+			if(buf.hasRemaining()) break;
+			out.poll();
+		}
+		if(out.isEmpty())
+			waitingToWrite = false;
+		notifyAll();
+	}
+
+	/**
+	 * Parse as many lines as we have, until we have a whole message.
+	 * @return A task to handle the message, or to close the connection, or null.
+	 */
+	private Runnable parse() {
+		byte[] buf = in.array();
+		int end = in.position();
+		int start = 0;
+		boolean needMore = false;
+		Runnable task = null;
+		try {
+			while(task == null) {
+				// Don't start on another message if the client isn't reading the replies.
+				if(messageName == null && handler.isOutputQueueFull()) break;
+				int maxLength = messageName == null ? MAX_MESSAGE_NAME_LENGTH : MAX_FIELD_LENGTH;
+				int nl = indexOf(buf, (byte)'\n', start, end);
+				if(nl < 0) {
+					// Allow for the \r.
+					if(end - start > maxLength + 1)
+						throw new LineTooLongException(maxLength);
+					needMore = true;
+					break;
+				}
+				int lineEnd = (nl > start && buf[nl-1] == '\r') ? nl-1 : nl;
+				if(lineEnd - start > maxLength)
+					throw new LineTooLongException(maxLength);
+				String line = toString(buf, start, lineEnd);
+				start = nl+1;
+				if(messageName == null) {
+					if(line.length() != 0) {
+						messageName = line;
+						lines = new ArrayList<String>();
+					}
+					continue;
+				}
+				lines.add(line);
+				if(isEndMarker(line)) {
+					task = new MessageTask(messageName, lines.toArray(new String[lines.size()]));
+					messageName = null;
+					lines = null;
+					handling = true;
+				}
+			}
+		} catch (LineTooLongException e) {
+			Logger.normal(this, "Caught "+e.getMessage(), e);
+			in.clear();
+			inputFinished = true;
+			return closeHandlerTask;
+		}
+		if(start > 0) {
+			in.flip();
+			in.position(start);
+			in.compact();
+		}
+		if(task == null && needMore && eof) {
+			inputFinished = true;
+			return closeHandlerTask;
+		}
+		return task;
+	}
+
+	private static int indexOf(byte[] buf, byte b, int start, int end) {
+		for(int i=start;i<end;i++)
+			if(buf[i] == b) return i;
+		return -1;
+	}
+
+	/** As SimpleFieldSet: the first line which isn't empty, a comment or a field. */
+	private static boolean isEndMarker(String line) {
+		return line.length() != 0 && line.charAt(0) != '#' && line.indexOf(SimpleFieldSet.KEYVALUE_SEPARATOR_CHAR) < 0;
+	}
+
+	private static String toString(byte[] buf, int start, int end) {
+		try {
+			return new String(buf, start, end - start, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new Error("Impossible: JVM doesn't support UTF-8: " + e, e);
+		}
+	}
+
+	/** Close the connection once everything queued has been written. */
+	void closeAfterWrite() {
+		synchronized(this) {
+			closeAfterWrite = true;
+		}
+		loop.changed(this);
+	}
+
+	/** Called when the output queue is no longer full, so we can read more messages. */
+	void outputQueueDrained() {
+		loop.changed(this);
+	}
+
+	/**
+	 * Close the channel.
+	 * @return A task to close the handler, if it hasn't been done already.
+	 */
+	private synchronized Runnable close() {
+		if(closed) return null;
+		closed = true;
+		if(key != null) key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Ignore
+		}
+		out.clear();
+		outBytes = 0;
+		notifyAll();
+		if(inputFinished || handling) return null;
+		inputFinished = true;
+		return closeHandlerTask;
+	}
+
+	private final Runnable closeHandlerTask = new Runnable() {
+
+		@Override
+		public void run() {
+			handler.closedInput();
+		}
+
+	};
+
+	private class MessageTask implements Runnable {
+
+		private final String messageName;
+		private final String[] lines;
+
+		MessageTask(String messageName, String[] lines) {
+			this.messageName = messageName;
+			this.lines = lines;
+		}
+
+		@Override
+		public void run() {
+			freenet.support.Logger.OSThread.logPID(this);
+			boolean keepReading = false;
+			try {
+				SimpleFieldSet fs = new SimpleFieldSet(lines, true, true, false);
+				keepReading = handler.handleMessage(messageName, fs, dataStream);
+			} catch (IOException e) {
+				if(logMINOR)
+					Logger.minor(this, "Caught "+e, e);
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t, t);
+			}
+			synchronized(NonBlockingFCPConnection.this) {
+				handling = false;
+				if(closed || !keepReading) {
+					if(inputFinished) return;
+					inputFinished = true;
+					keepReading = false;
+				}
+			}
+			if(keepReading)
+				loop.changed(NonBlockingFCPConnection.this);
+			else
+				closeHandlerTask.run();
+		}
+
+	}
+
+	private static class LineTooLongException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		LineTooLongException(int maxLength) {
+			super("Line longer than "+maxLength+" bytes");
+		}
+	}
+
+	OutputStream getOutputStream() {
+		return outputStream;
+	}
+
+	/** Data attached to a message, read by the thread handling the message. A channel too, so
+	 * it can be written straight to a file. */
+	private class DataInputStream extends InputStream implements ReadableByteChannel {
+
+		@Override
+		public int read() throws IOException {
+			byte[] buf = new byte[1];
+			int read = read(buf, 0, 1);
+			return read < 0 ? -1 : (buf[0] & 0xFF);
+		}
+
+		@Override
+		public int read(byte[] buf, int offset, int length) throws IOException {
+			return read(ByteBuffer.wrap(buf, offset, length));
+		}
+
+		@Override
+		public int read(ByteBuffer buf) throws IOException {
+			if(!buf.hasRemaining()) return 0;
+			int read;
+			boolean wasFull;
+			synchronized(NonBlockingFCPConnection.this) {
+				while(in.position() == 0) {
+					if(eof || closed) return -1;
+					try {
+						NonBlockingFCPConnection.this.wait();
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException();
+					}
+				}
+				wasFull = !in.hasRemaining();
+				in.flip();
+				read = Math.min(buf.remaining(), in.remaining());
+				ByteBuffer data = in.duplicate();
+				data.limit(data.position() + read);
+				buf.put(data);
+				in.position(in.position() + read);
+				in.compact();
+			}
+			// The selector stops reading when the buffer is full.
+			if(wasFull) loop.changed(NonBlockingFCPConnection.this);
+			return read;
+		}
+
+		@Override
+		public boolean isOpen() {
+			synchronized(NonBlockingFCPConnection.this) {
+				return !closed;
+			}
+		}
+
+	}
+
+	/** Written by the output handler's writer task, sent by the selector thread. */
+	private class ChannelOutputStream extends OutputStream implements FileTransferTarget {
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] buf, int offset, int length) throws IOException {
+			if(length == 0) return;
+			synchronized(NonBlockingFCPConnection.this) {
+				while(outBytes >= MAX_BUFFERED_OUTPUT && !closed) {
+					try {
+						NonBlockingFCPConnection.this.wait();
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException();
+					}
+				}
+				if(closed) throw new ClosedChannelException();
+				if(out.isEmpty()) {
+					// Try to write it straight away.
+					ByteBuffer direct = ByteBuffer.wrap(buf, offset, length);
+					channel.write(direct);
+					if(!direct.hasRemaining()) return;
+					offset = direct.position();
+					length = direct.remaining();
+				}
+				ByteBuffer copy = ByteBuffer.allocate(length);
+				copy.put(buf, offset, length);
+				copy.flip();
+				out.add(copy);
+				outBytes += length;
+			}
+			loop.changed(NonBlockingFCPConnection.this);
+		}
+
+		/** Send from the file on the writer's thread, so the selector thread never waits for the
+		 * disk. */
+		@Override
+		public boolean transferFrom(FileChannelBucket bucket, long length) throws IOException {
+			synchronized(NonBlockingFCPConnection.this) {
+				// Anything already written goes first.
+				while(!out.isEmpty() && !closed) {
+					try {
+						NonBlockingFCPConnection.this.wait();
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException();
+					}
+				}
+				if(closed) throw new ClosedChannelException();
+			}
+			FileChannelBucket.Transfer transfer = bucket.openTransfer();
+			if(transfer == null) return false;
+			try {
+				long sent = 0;
+				boolean writable = false;
+				while(sent < length) {
+					long written = transfer.transferTo(sent, length - sent, channel);
+					sent += written;
+					if(written > 0) {
+						writable = false;
+						continue;
+					}
+					// Nothing sent even though the socket was writable.
+					if(writable) throw new EOFException("Bucket ended after "+sent+" of "+length+" bytes");
+					synchronized(NonBlockingFCPConnection.this) {
+						if(closed) throw new ClosedChannelException();
+						waitingToWrite = true;
+					}
+					loop.changed(NonBlockingFCPConnection.this);
+					synchronized(NonBlockingFCPConnection.this) {
+						while(waitingToWrite && !closed) {
+							try {
+								NonBlockingFCPConnection.this.wait();
+							} catch (InterruptedException e) {
+								waitingToWrite = false;
+								throw new InterruptedIOException();
+							}
+						}
+						if(closed) throw new ClosedChannelException();
+					}
+					writable = true;
+				}
+				return true;
+			} finally {
+				transfer.close();
+			}
+		}
+
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+" for "+channel.socket().getRemoteSocketAddress();
+	}
+
+}
@@ -6,6 +6,7 @@ import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import freenet.client.FetchException.FetchExceptionMode;
 import freenet.client.InsertException.InsertExceptionMode;
@@ -36,6 +37,7 @@ public class PersistentRequestClient {
 		runningPersistentRequests = new ArrayList<ClientRequest>();
 		completedUnackedRequests = new ArrayList<ClientRequest>();
 		clientRequestsByIdentifier = new HashMap<String, ClientRequest>();
+		reservedIdentifiers = new HashSet<String>();
 		this.isGlobalQueue = isGlobalQueue;
 		this.persistence = persistence;
 		assert(persistence == Persistence.FOREVER || persistence == Persistence.REBOOT);
@@ -67,6 +69,9 @@ public class PersistentRequestClient {
 	private final List<ClientRequest> completedUnackedRequests;
 	/** ClientRequest's by identifier */
 	private final Map<String, ClientRequest> clientRequestsByIdentifier;
+	/** Identifiers of requests loaded at startup which haven't been resumed yet. New requests
+	 * can't use them. */
+	private final Set<String> reservedIdentifiers;
 	/** Are we the global queue? */
 	public final boolean isGlobalQueue;
 	/** Are we watching the global queue? */
@@ -221,6 +226,8 @@ public class PersistentRequestClient {
 			ClientRequest old = clientRequestsByIdentifier.get(ident);
 			if((old != null) && (old != cg))
 				throw new IdentifierCollisionException();
+			if(reservedIdentifiers.contains(ident))
+				throw new IdentifierCollisionException();
 			if(cg.hasFinished()) {
 				completedUnackedRequests.add(cg);
 			} else {
@@ -292,8 +299,9 @@ public class PersistentRequestClient {
 		return true;
 	}
 
-	public boolean hasPersistentRequests() {
-		return !(runningPersistentRequests.isEmpty() && completedUnackedRequests.isEmpty());
+	public synchronized boolean hasPersistentRequests() {
+		return !(runningPersistentRequests.isEmpty() && completedUnackedRequests.isEmpty() && 
+				reservedIdentifiers.isEmpty());
 	}
 
 	public void addPersistentRequests(List<ClientRequest> v, boolean onlyForever) {
@@ -532,24 +540,32 @@ public class PersistentRequestClient {
             requesters.add(req.getClientRequest());
     }
 
-    public void resume(ClientRequest clientRequest) {
+    public synchronized void resume(ClientRequest clientRequest) {
+        String identifier = clientRequest.identifier;
+        ClientRequest old = clientRequestsByIdentifier.get(identifier);
+        if(old == clientRequest) {
+            Logger.error(this, "Adding the same identifier twice: "+identifier);
+            return;
+        } else if(old != null) {
+            throw new IllegalArgumentException("Adding new client request "+clientRequest+
+                    " with same name \""+identifier+"\" as "+old);
+        }
+        reservedIdentifiers.remove(identifier);
         if(clientRequest.hasFinished())
             completedUnackedRequests.add(clientRequest);
         else
             runningPersistentRequests.add(clientRequest);
-        String identifier = clientRequest.identifier;
-        if(clientRequestsByIdentifier.get(identifier) != null) {
-            if(clientRequest != clientRequestsByIdentifier.get(identifier))
-                throw new IllegalArgumentException("Adding new client request "+clientRequest+
-                        " with same name \""+identifier+"\" as "+
-                        clientRequestsByIdentifier.get(identifier));
-            else {
-                Logger.error(this, "Adding the same identifier twice: "+identifier);
-                return;
-            }
-        } else {
-            clientRequestsByIdentifier.put(identifier, clientRequest);
-        }
+        clientRequestsByIdentifier.put(identifier, clientRequest);
+    }
+
+    /** Keep the identifier of a request loaded at startup until it has been resumed. */
+    synchronized void reserve(String identifier) {
+        reservedIdentifiers.add(identifier);
+    }
+
+    /** The request loaded at startup couldn't be resumed, so its identifier can be reused. */
+    synchronized void release(String identifier) {
+        reservedIdentifiers.remove(identifier);
     }
 
 }
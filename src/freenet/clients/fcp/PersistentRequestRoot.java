@@ -88,6 +88,17 @@ public class PersistentRequestRoot {
         return client;
     }
     
+    /** Reserve the identifier of a request loaded at startup, so that a new request can't use it
+     * while it is waiting to be resumed. */
+    public void reserve(RequestIdentifier req) {
+        makeClient(req.globalQueue, req.clientName).reserve(req.identifier);
+    }
+
+    /** A request loaded at startup has failed to resume, so its identifier can be reused. */
+    public void release(RequestIdentifier req) {
+        makeClient(req.globalQueue, req.clientName).release(req.identifier);
+    }
+
     PersistentRequestClient makeClient(boolean global, String clientName) {
         if(global) {
             return globalForeverClient;
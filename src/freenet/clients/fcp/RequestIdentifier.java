@@ -73,6 +73,14 @@ public final class RequestIdentifier {
         if(!identifier.equals(other.identifier)) return false;
         return true;
     }
+    
+    /** Is the request on the given queue, and if identifier is not null, is it that request?
+     * @param clientName The name of the FCP client, ignored for the global queue. */
+    public boolean matches(boolean global, String clientName, String identifier) {
+        if(globalQueue != global) return false;
+        if(!globalQueue && !this.clientName.equals(clientName)) return false;
+        return identifier == null || this.identifier.equals(identifier);
+    }
 
     @Override
     public int hashCode() {
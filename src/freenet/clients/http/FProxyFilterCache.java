@@ -0,0 +1,264 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import freenet.client.filter.ContentFilter;
+import freenet.client.filter.FilterMIMEType;
+import freenet.client.filter.HTMLFilter;
+import freenet.keys.FreenetURI;
+import freenet.support.LRUMap;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.io.BucketTools;
+import freenet.support.io.MultiReaderBucket;
+
+/**
+ * Recently served pages after the content filter has run over them, so a popular page is filtered
+ * once rather than on every hit after {@link FProxyFetchTracker} has dropped the fetch. Only CHKs
+ * and SSKs are cached: they never change, so the key asked for is the final key and we can't
+ * serve an old edition. Only types which need filtering are kept; anything else is cheap to send
+ * again. Limited by the total size of the data, in temp buckets, with the least recently used
+ * pages dropped first. Unlike persistent downloads, which RE_FILTER exists for, the cache doesn't
+ * survive a restart, so every page in it was filtered by the filter code now running; pages are
+ * served as stored unless the policy is RE_FETCH. The key includes the filter settings, and the
+ * cache is cleared when the toadlets which may except links from the filter change.
+ */
+final class FProxyFilterCache {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/** Each page may use at most this fraction of the cache, so one big page doesn't empty it. */
+	static final int MAX_ENTRY_FRACTION = 4;
+
+	private final LRUMap<CacheKey, Entry> entries = new LRUMap<CacheKey, Entry>();
+	private long maxSize;
+	private long size;
+	private long hits;
+	private long misses;
+	private long bytesSaved;
+
+	FProxyFilterCache(long maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/** What the filtered data depends on, apart from the data itself. */
+	static final class CacheKey {
+		final FreenetURI uri;
+		final String overrideMIME;
+		final String charset;
+		/** The filter's limits on meta refreshes, which are set in the fproxy config. */
+		final int metaRefreshSamePageMinInterval;
+		final int metaRefreshRedirectMinInterval;
+		private final int hashCode;
+
+		CacheKey(FreenetURI uri, String overrideMIME, String charset, int metaRefreshSamePageMinInterval, int metaRefreshRedirectMinInterval) {
+			this.uri = uri;
+			this.overrideMIME = overrideMIME;
+			this.charset = charset;
+			this.metaRefreshSamePageMinInterval = metaRefreshSamePageMinInterval;
+			this.metaRefreshRedirectMinInterval = metaRefreshRedirectMinInterval;
+			int h = uri.hashCode();
+			h = h * 31 + (overrideMIME == null ? 0 : overrideMIME.hashCode());
+			h = h * 31 + (charset == null ? 0 : charset.hashCode());
+			h = h * 31 + metaRefreshSamePageMinInterval;
+			h = h * 31 + metaRefreshRedirectMinInterval;
+			hashCode = h;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof CacheKey)) return false;
+			CacheKey k = (CacheKey) o;
+			return uri.equals(k.uri) && equals(overrideMIME, k.overrideMIME) && equals(charset, k.charset) &&
+				metaRefreshSamePageMinInterval == k.metaRefreshSamePageMinInterval &&
+				metaRefreshRedirectMinInterval == k.metaRefreshRedirectMinInterval;
+		}
+
+		private static boolean equals(String a, String b) {
+			return a == null ? b == null : a.equals(b);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public String toString() {
+			return uri+" type="+overrideMIME+" charset="+charset+" refresh="+metaRefreshSamePageMinInterval+"/"+metaRefreshRedirectMinInterval;
+		}
+	}
+
+	/** A cached page. The cache holds one reader on the data, and each hit gets another. */
+	private static final class Entry {
+		final String mimeType;
+		final long size;
+		final MultiReaderBucket data;
+		final Bucket ownReader;
+
+		Entry(String mimeType, Bucket data) {
+			this.mimeType = mimeType;
+			this.size = data.size();
+			this.data = new MultiReaderBucket(data);
+			this.ownReader = this.data.getReaderBucket();
+		}
+	}
+
+	/** A page found in the cache. The caller must free the data once it has been sent. */
+	static final class CachedPage {
+		final String mimeType;
+		final Bucket data;
+
+		private CachedPage(String mimeType, Bucket data) {
+			this.mimeType = mimeType;
+			this.data = data;
+		}
+	}
+
+	/** @return A cache key if this request could be served from the cache, otherwise null. */
+	static CacheKey makeKey(FreenetURI uri, String overrideMIME, String charset) {
+		if(!(uri.isCHK() || uri.isSSK())) return null;
+		return new CacheKey(uri, overrideMIME, charset,
+				HTMLFilter.metaRefreshSamePageMinInterval, HTMLFilter.metaRefreshRedirectMinInterval);
+	}
+
+	/**
+	 * @param maxLength The most data the request will accept. Bigger pages are treated as misses,
+	 * so the fetch can fail as it would have done.
+	 * @return The page, or null.
+	 */
+	CachedPage get(CacheKey key, long maxLength) {
+		synchronized(this) {
+			if(maxSize == 0) return null;
+			Entry entry = entries.get(key);
+			if(entry != null && entry.size <= maxLength) {
+				Bucket reader = entry.data.getReaderBucket();
+				if(reader != null) {
+					entries.push(key, entry);
+					hits++;
+					bytesSaved += entry.size;
+					if(logMINOR) Logger.minor(this, "Hit for "+key);
+					return new CachedPage(entry.mimeType, reader);
+				}
+			}
+			misses++;
+			return null;
+		}
+	}
+
+	/**
+	 * Keep a copy of a filtered page, if it is small enough and of a type which was filtered.
+	 * @param data The filtered data. Not freed, the caller still owns it.
+	 */
+	void put(CacheKey key, String mimeType, Bucket data, BucketFactory bf) {
+		long length = data.size();
+		synchronized(this) {
+			if(length == 0 || length > maxSize / MAX_ENTRY_FRACTION) return;
+			if(entries.containsKey(key)) return;
+		}
+		if(mimeType == null) return;
+		FilterMIMEType type = ContentFilter.getMIMEType(ContentFilter.stripMIMEType(mimeType));
+		if(type == null || type.readFilter == null) return;
+		Bucket copy = null;
+		try {
+			copy = bf.makeBucket(length);
+			BucketTools.copy(data, copy);
+		} catch (IOException e) {
+			// Still serve the page, just don't cache it.
+			Logger.error(this, "Unable to cache "+key+" : "+e, e);
+			if(copy != null) copy.free();
+			return;
+		}
+		copy.setReadOnly();
+		Entry entry = new Entry(mimeType, copy);
+		List<Entry> dropped = new ArrayList<Entry>();
+		synchronized(this) {
+			if(entries.containsKey(key) || length > maxSize / MAX_ENTRY_FRACTION) {
+				dropped.add(entry);
+			} else {
+				entries.push(key, entry);
+				size += length;
+				evict(dropped);
+				if(logMINOR) Logger.minor(this, "Cached "+length+" bytes for "+key);
+			}
+		}
+		free(dropped);
+	}
+
+	/** Change the limit on the total size, dropping pages if necessary. Zero disables the cache. */
+	void setMaxSize(long maxSize) {
+		List<Entry> dropped = new ArrayList<Entry>();
+		synchronized(this) {
+			this.maxSize = maxSize;
+			evict(dropped);
+		}
+		free(dropped);
+	}
+
+	/** Drop every page, because something the filter depends on has changed. */
+	void clear() {
+		List<Entry> dropped = new ArrayList<Entry>();
+		synchronized(this) {
+			while(!entries.isEmpty())
+				dropped.add(entries.popValue());
+			size = 0;
+		}
+		free(dropped);
+	}
+
+	private void evict(List<Entry> dropped) {
+		while(size > maxSize && !entries.isEmpty()) {
+			Entry e = entries.popValue();
+			size -= e.size;
+			dropped.add(e);
+		}
+	}
+
+	/** Free the cache's reader outside the lock. Pages still being sent are freed when they finish. */
+	private static void free(List<Entry> dropped) {
+		for(Entry e : dropped)
+			e.ownReader.free();
+	}
+
+	synchronized long getMaxSize() {
+		return maxSize;
+	}
+
+	synchronized long getSize() {
+		return size;
+	}
+
+	synchronized int getCount() {
+		return entries.size();
+	}
+
+	synchronized long getHits() {
+		return hits;
+	}
+
+	synchronized long getMisses() {
+		return misses;
+	}
+
+	/** @return The total size of the pages served from the cache, which didn't need filtering. */
+	synchronized long getBytesSaved() {
+		return bytesSaved;
+	}
+
+}
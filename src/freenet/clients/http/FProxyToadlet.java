@@ -31,6 +31,7 @@ import freenet.client.filter.FoundURICallback;
 import freenet.client.filter.FilterMIMEType;
 import freenet.client.filter.PushingTagReplacerCallback;
 import freenet.client.filter.UnsafeContentTypeException;
+import freenet.clients.http.FProxyFetchInProgress.REFILTER_POLICY;
 import freenet.clients.http.ajaxpush.DismissAlertToadlet;
 import freenet.clients.http.ajaxpush.LogWritebackToadlet;
 import freenet.clients.http.ajaxpush.PushDataToadlet;
@@ -76,6 +77,8 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 	final NodeClientCore core;
 	final ClientContext context;
 	final FProxyFetchTracker fetchTracker;
+	/** Filtered pages, so we don't run the filter again on every hit. */
+	final FProxyFilterCache filterCache;
 
 	static final Set<String> prefetchAllowedTypes = new HashSet<String>();
 	static {
@@ -114,13 +117,14 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 	// FIXME make this configurable (or get rid of prefetch support)
 	static final int MAX_PREFETCH = 50;
 
-	public FProxyToadlet(final HighLevelSimpleClient client, NodeClientCore core, FProxyFetchTracker tracker) {
+	public FProxyToadlet(final HighLevelSimpleClient client, NodeClientCore core, FProxyFetchTracker tracker, FProxyFilterCache filterCache) {
 		super(client);
 		client.setMaxLength(MAX_LENGTH_NO_PROGRESS);
 		client.setMaxIntermediateLength(MAX_LENGTH_NO_PROGRESS);
 		this.core = core;
 		this.context = core.clientContext;
 		fetchTracker = tracker;
+		this.filterCache = filterCache;
 	}
 	
 	@Override
@@ -691,11 +695,28 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 
 		FProxyFetchResult fr = null;
 
+		// Pushing changes the filtered page for each request, so it can't be shared.
+		FProxyFilterCache.CacheKey cacheKey = null;
+		boolean fromCache = false;
+		if(fctx.filterData && fctx.tagReplacer == null && ctx.getReFilterPolicy() != REFILTER_POLICY.RE_FETCH)
+			cacheKey = FProxyFilterCache.makeKey(key, requestedMimeType, maybeCharset);
+		if(cacheKey != null) {
+			FProxyFilterCache.CachedPage page = filterCache.get(cacheKey, maxSize);
+			if(page != null) {
+				if(logMINOR) Logger.minor(this, "Serving filtered "+key+" from the cache");
+				data = page.data;
+				mimeType = page.mimeType;
+				fromCache = true;
+			}
+		}
+
 			FProxyFetchWaiter fetch = null;
-			try {
-				fetch = fetchTracker.makeFetcher(key, maxSize, fctx, ctx.getReFilterPolicy());
-			} catch (FetchException e) {
-            fe = e;
+			if(data == null) {
+				try {
+					fetch = fetchTracker.makeFetcher(key, maxSize, fctx, ctx.getReFilterPolicy());
+				} catch (FetchException e) {
+					fe = e;
+				}
 			}
 			if(fetch != null)
 			while(true) {
@@ -828,6 +849,8 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 				}
 			} else if(fe != null) throw fe;
 
+			if(cacheKey != null && !fromCache)
+				filterCache.put(cacheKey, mimeType, data, ctx.getBucketFactory());
 			handleDownload(ctx, data, ctx.getBucketFactory(), mimeType, requestedMimeType, forceString, httprequest.isParameterSet("forcedownload"), "/", key, "&max-size="+maxSizeDownload, referer, true, ctx, core, fr != null, maybeCharset);
 		} catch (FetchException e) {
 			//Handle exceptions thrown from the ContentFilter
@@ -1124,7 +1147,7 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 				new RequestClientBuilder().realTime().build());
 
 
-		FProxyToadlet fproxy = new FProxyToadlet(client, core, fetchTracker);
+		FProxyToadlet fproxy = new FProxyToadlet(client, core, fetchTracker, server.getFilterCache());
 		core.setFProxy(fproxy);
 
 		server.registerMenu("/",
@@ -0,0 +1,608 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.MultiValueTable;
+import freenet.support.io.NativeThread;
+
+/**
+ * Serves FProxy connections from a single selector thread, rather than a thread per connection.
+ * The selector thread reads and parses the request line and headers; complete requests are
+ * handed to a pooled thread, which runs the toadlet as usual, reading any request body and
+ * writing the reply through streams backed by the connection's buffers. So a connection only
+ * ties up a thread while a request is actually being handled, not while it is idle between
+ * requests, or while a slow client sends its headers or reads the end of its reply.
+ *
+ * Doesn't support SSL.
+ */
+final class NonBlockingHTTPServer implements Runnable {
+
+	/** Longest request or header line, as for the blocking engine. */
+	static final int MAX_LINE_LENGTH = 32768;
+	/** Initial size of a connection's input buffer. */
+	static final int MIN_INPUT_BUFFER = 4096;
+	/** Largest size of a connection's input buffer, and so of the request line plus headers. */
+	static final int MAX_INPUT_BUFFER = 65536;
+	/** Toadlets block writing their reply while this much is waiting to be sent. */
+	static final int MAX_BUFFERED_REPLY = 256*1024;
+	/** Close connections which have done nothing for this long. */
+	static final long IDLE_TIMEOUT = MINUTES.toMillis(5);
+	/** Open connections allowed for each request we may handle at once. Idle connections are
+	 * cheap, and browsers keep several open to each server. */
+	static final int CONNECTIONS_PER_REQUEST = 10;
+	private static final long SELECT_TIMEOUT = SECONDS.toMillis(10);
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/** What the engine needs from the toadlet server. */
+	interface Handler {
+
+		/** @return False if we are already handling as many requests as we are allowed to. */
+		boolean startRequest();
+
+		void finishRequest();
+
+		/** @return The most requests we may handle at once. */
+		int getMaxRequests();
+
+		/** If false, handle requests on new threads rather than the executor. */
+		boolean hasFinishedStartup();
+
+		/** Handle a request, reading the body from data and writing the reply to os.
+		 * @return True to keep the connection open for another request. */
+		boolean handle(String method, URI uri, boolean isHTTP10, MultiValueTable<String,String> headers, InputStream data, OutputStream os, InetAddress remoteAddr);
+
+	}
+
+	private final Handler server;
+	private final Executor executor;
+	private final long idleTimeout;
+	private final Selector selector;
+	/** Accepted but not yet registered with the selector. */
+	private final ArrayDeque<SocketChannel> newChannels = new ArrayDeque<SocketChannel>();
+	/** Connections whose state has been changed by another thread, so the selector thread needs
+	 * to look at them. */
+	private List<Connection> changed = new ArrayList<Connection>();
+	/** Requests waiting for SimpleToadletServer to allow another request to be handled. */
+	private final ArrayDeque<Request> waiting = new ArrayDeque<Request>();
+	private Thread selectorThread;
+	private long lastIdleCheck;
+
+	NonBlockingHTTPServer(Handler server, Executor executor) throws IOException {
+		this(server, executor, IDLE_TIMEOUT);
+	}
+
+	NonBlockingHTTPServer(Handler server, Executor executor, long idleTimeout) throws IOException {
+		this.server = server;
+		this.executor = executor;
+		this.idleTimeout = idleTimeout;
+		this.selector = Selector.open();
+	}
+
+	/** Start the selector thread, if it isn't already running. */
+	synchronized void start() {
+		if(selectorThread != null) return;
+		selectorThread = new Thread(this, "HTTP selector");
+		selectorThread.setDaemon(true);
+		selectorThread.start();
+	}
+
+	/** Serve a newly accepted connection. */
+	void register(SocketChannel channel) {
+		synchronized(newChannels) {
+			newChannels.add(channel);
+		}
+		selector.wakeup();
+	}
+
+	private void changed(Connection conn) {
+		synchronized(newChannels) {
+			changed.add(conn);
+		}
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		freenet.support.Logger.OSThread.logPID(this);
+		while(true) {
+			try {
+				selector.select(Math.min(SELECT_TIMEOUT, idleTimeout));
+			} catch (IOException e) {
+				Logger.error(this, "Caught "+e+" in select", e);
+				continue;
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t+" in select", t);
+				continue;
+			}
+			try {
+				processSelected();
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t+" in HTTP selector", t);
+			}
+		}
+	}
+
+	private void processSelected() {
+		List<SocketChannel> newList;
+		List<Connection> changedList;
+		synchronized(newChannels) {
+			newList = newChannels.isEmpty() ? null : new ArrayList<SocketChannel>(newChannels);
+			newChannels.clear();
+			changedList = changed;
+			changed = new ArrayList<Connection>();
+		}
+		if(newList != null) {
+			for(SocketChannel channel : newList)
+				accept(channel);
+		}
+		for(Connection conn : changedList)
+			dispatch(conn.process(false));
+		for(SelectionKey key : selector.selectedKeys())
+			dispatch(((Connection) key.attachment()).process(true));
+		selector.selectedKeys().clear();
+		long now = System.currentTimeMillis();
+		if(now - lastIdleCheck > Math.min(SELECT_TIMEOUT, idleTimeout)) {
+			lastIdleCheck = now;
+			for(SelectionKey key : selector.keys())
+				((Connection) key.attachment()).checkIdle(now);
+		}
+	}
+
+	private void accept(SocketChannel channel) {
+		try {
+			if(selector.keys().size() >= maxConnections()) {
+				Logger.normal(this, "Too many HTTP connections, closing "+channel);
+				channel.close();
+				return;
+			}
+			channel.configureBlocking(false);
+			Connection conn = new Connection(channel);
+			synchronized(conn) {
+				conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+			}
+			if(logMINOR) Logger.minor(this, "Accepted connection from "+conn.remoteAddr);
+		} catch (IOException e) {
+			Logger.normal(this, "Could not register HTTP connection: "+e, e);
+			try {
+				channel.close();
+			} catch (IOException e1) {
+				// Ignore
+			}
+		}
+	}
+
+	/** @return How many connections we keep open at once. */
+	int maxConnections() {
+		return Math.max(1, server.getMaxRequests()) * CONNECTIONS_PER_REQUEST;
+	}
+
+	/** Start handling a request, or queue it if we are already handling as many as we are allowed
+	 * to. */
+	private void dispatch(Request request) {
+		if(request == null) return;
+		synchronized(waiting) {
+			if(!(waiting.isEmpty() && server.startRequest())) {
+				waiting.add(request);
+				return;
+			}
+		}
+		start(request);
+	}
+
+	private void start(Request request) {
+		if(server.hasFinishedStartup())
+			executor.execute(request, "HTTP request handler@"+request.hashCode());
+		else
+			new Thread(request).start();
+	}
+
+	private void finished() {
+		server.finishRequest();
+		Request next;
+		synchronized(waiting) {
+			if(waiting.isEmpty() || !server.startRequest()) return;
+			next = waiting.poll();
+		}
+		start(next);
+	}
+
+	/** A request which has been parsed and is waiting to be handled. */
+	private class Request implements PrioRunnable {
+
+		final Connection conn;
+		final String method;
+		final URI uri;
+		final boolean isHTTP10;
+		final MultiValueTable<String,String> headers;
+
+		Request(Connection conn, String method, URI uri, boolean isHTTP10, MultiValueTable<String,String> headers) {
+			this.conn = conn;
+			this.method = method;
+			this.uri = uri;
+			this.isHTTP10 = isHTTP10;
+			this.headers = headers;
+		}
+
+		@Override
+		public void run() {
+			freenet.support.Logger.OSThread.logPID(this);
+			boolean keepOpen = false;
+			try {
+				keepOpen = server.handle(method, uri, isHTTP10, headers, conn.body, conn.reply, conn.remoteAddr);
+			} catch (Throwable t) {
+				Logger.error(this, "Caught in NonBlockingHTTPServer: "+t, t);
+			} finally {
+				conn.requestDone(keepOpen);
+				finished();
+			}
+		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.HIGH_PRIORITY-1;
+		}
+
+	}
+
+	/**
+	 * LOCKING: Everything is protected by the lock on the Connection. The selector thread does the
+	 * reading and parsing, handler threads read the body and write the reply, and wait on the
+	 * Connection for more data or more space respectively.
+	 */
+	private class Connection {
+
+		final SocketChannel channel;
+		final InetAddress remoteAddr;
+		SelectionKey key;
+		/** Data read but not yet parsed or read by the handler. Ready to be filled. */
+		ByteBuffer in = ByteBuffer.allocate(MIN_INPUT_BUFFER);
+		/** Reply data waiting to be written. */
+		final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+		int outBytes;
+		/** A request is being handled. */
+		boolean handling;
+		/** The handler is waiting for more of the request body. */
+		boolean readingBody;
+		/** The client has closed its side of the connection. */
+		boolean eof;
+		/** Close as soon as the reply has been written. */
+		boolean closeAfterWrite;
+		boolean closed;
+		long lastActive;
+		final InputStream body = new BodyInputStream(this);
+		final OutputStream reply = new ReplyOutputStream(this);
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+			this.remoteAddr = channel.socket().getInetAddress();
+			lastActive = System.currentTimeMillis();
+		}
+
+		/**
+		 * Read and write what we can, and parse the next request if we can. Called by the
+		 * selector thread.
+		 * @param selected True if the key has been selected.
+		 * @return A request to handle, or null.
+		 */
+		synchronized Request process(boolean selected) {
+			if(closed) return null;
+			try {
+				int ready = (selected && key.isValid()) ? key.readyOps() : 0;
+				if((ready & SelectionKey.OP_WRITE) != 0)
+					writeQueued();
+				if((ready & SelectionKey.OP_READ) != 0)
+					read();
+				Request request = null;
+				if(!handling && !closeAfterWrite)
+					request = parse();
+				if(closeAfterWrite && !handling && out.isEmpty()) {
+					close();
+					return null;
+				}
+				int ops = 0;
+				if(!eof && !closeAfterWrite && (in.hasRemaining() || in.capacity() < MAX_INPUT_BUFFER))
+					ops |= SelectionKey.OP_READ;
+				if(!out.isEmpty())
+					ops |= SelectionKey.OP_WRITE;
+				key.interestOps(ops);
+				return request;
+			} catch (IOException e) {
+				if(logMINOR) Logger.minor(this, "Closing connection from "+remoteAddr+": "+e, e);
+				close();
+				return null;
+			}
+		}
+
+		private void read() throws IOException {
+			if(!in.hasRemaining()) {
+				if(in.capacity() >= MAX_INPUT_BUFFER) return;
+				ByteBuffer bigger = ByteBuffer.allocate(Math.min(in.capacity() * 2, MAX_INPUT_BUFFER));
+				in.flip();
+				bigger.put(in);
+				in = bigger;
+			}
+			int read = channel.read(in);
+			if(read < 0)
+				eof = true;
+			else if(read > 0)
+				lastActive = System.currentTimeMillis();
+			notifyAll();
+		}
+
+		private void writeQueued() throws IOException {
+			while(!out.isEmpty()) {
+				ByteBuffer buf = out.peek();
+				int written = channel.write(buf);
+				outBytes -= written;
+				if(written > 0)
+					lastActive = System.currentTimeMillis();
+				if(buf.hasRemaining()) break;
+				out.poll();
+			}
+			notifyAll();
+		}
+
+		/**
+		 * Parse the request line and headers, if we have all of them. Leading empty lines are
+		 * ignored, as in the blocking engine. Errors are reported to the client, which is then
+		 * disconnected.
+		 * @return The request, or null if we don't have the whole of it yet.
+		 */
+		private Request parse() throws IOException {
+			byte[] buf = in.array();
+			int end = in.position();
+			int lineStart = 0;
+			List<String> lines = null;
+			try {
+				for(int i=0;i<end;i++) {
+					if(buf[i] != '\n') continue;
+					int lineEnd = (i > lineStart && buf[i-1] == '\r') ? i-1 : i;
+					if(lineEnd - lineStart > MAX_LINE_LENGTH)
+						throw new LineTooLongException();
+					if(lineEnd == lineStart) {
+						if(lines == null) {
+							// Empty line before the request line.
+							lineStart = i+1;
+							continue;
+						}
+						consume(i+1);
+						return makeRequest(lines);
+					}
+					if(lines == null) lines = new ArrayList<String>();
+					lines.add(toString(buf, lineStart, lineEnd)); // ISO-8859-1 or US-ASCII, not UTF-8
+					lineStart = i+1;
+				}
+				if(end - lineStart > MAX_LINE_LENGTH || (!in.hasRemaining() && in.capacity() >= MAX_INPUT_BUFFER))
+					throw new LineTooLongException();
+				if(lines == null)
+					consume(lineStart);
+				if(eof)
+					closeAfterWrite = true;
+				return null;
+			} catch (LineTooLongException e) {
+				ToadletContextImpl.sendTooLongError(reply);
+			} catch (ParseException e) {
+				ToadletContextImpl.sendParseError(reply, e);
+			} catch (URISyntaxException e) {
+				ToadletContextImpl.sendURIParseError(reply, true, e);
+			}
+			in.clear();
+			closeAfterWrite = true;
+			return null;
+		}
+
+		private Request makeRequest(List<String> lines) throws ParseException, URISyntaxException {
+			String firstLine = lines.get(0);
+			if(logMINOR)
+				Logger.minor(this, "first line: "+firstLine);
+			String[] split = ToadletContextImpl.parseRequestLine(firstLine);
+			URI uri = ToadletContextImpl.parseURI(split[1]);
+			MultiValueTable<String,String> headers = new MultiValueTable<String,String>();
+			for(int i=1;i<lines.size();i++)
+				ToadletContextImpl.parseHeader(lines.get(i), headers);
+			handling = true;
+			return new Request(this, split[0], uri, split[2].equals("HTTP/1.0"), headers);
+		}
+
+		private String toString(byte[] buf, int start, int end) {
+			try {
+				return new String(buf, start, end - start, "ISO-8859-1");
+			} catch (UnsupportedEncodingException e) {
+				throw new Error("Impossible: JVM doesn't support ISO-8859-1: " + e, e);
+			}
+		}
+
+		/** Remove bytes from the start of the input buffer. */
+		private void consume(int bytes) {
+			if(bytes == 0) return;
+			in.flip();
+			in.position(bytes);
+			in.compact();
+		}
+
+		/** Called by the handler thread when it has finished with a request. */
+		void requestDone(boolean keepOpen) {
+			synchronized(this) {
+				handling = false;
+				readingBody = false;
+				if(!keepOpen) closeAfterWrite = true;
+				lastActive = System.currentTimeMillis();
+			}
+			changed(this);
+		}
+
+		synchronized void checkIdle(long now) {
+			if(closed) return;
+			// A toadlet may take a while to produce its reply.
+			if(handling && !readingBody && out.isEmpty()) return;
+			if(now - lastActive > idleTimeout) {
+				if(logMINOR) Logger.minor(this, "Closing idle connection from "+remoteAddr);
+				close();
+			}
+		}
+
+		synchronized void close() {
+			if(closed) return;
+			closed = true;
+			if(key != null) key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+			out.clear();
+			outBytes = 0;
+			notifyAll();
+		}
+
+	}
+
+	private static class LineTooLongException extends Exception {
+		private static final long serialVersionUID = 1L;
+	}
+
+	/** The request body, read by the handler thread from the connection's input buffer. */
+	private class BodyInputStream extends InputStream {
+
+		private final Connection conn;
+
+		BodyInputStream(Connection conn) {
+			this.conn = conn;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] buf = new byte[1];
+			int read = read(buf, 0, 1);
+			return read < 0 ? -1 : (buf[0] & 0xFF);
+		}
+
+		@Override
+		public int read(byte[] buf, int offset, int length) throws IOException {
+			if(length == 0) return 0;
+			int read;
+			boolean wasFull;
+			synchronized(conn) {
+				while(conn.in.position() == 0) {
+					if(conn.eof || conn.closed) return -1;
+					conn.readingBody = true;
+					try {
+						conn.wait();
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException();
+					} finally {
+						conn.readingBody = false;
+					}
+				}
+				ByteBuffer in = conn.in;
+				wasFull = !in.hasRemaining();
+				in.flip();
+				read = Math.min(length, in.remaining());
+				in.get(buf, offset, read);
+				in.compact();
+			}
+			// The selector stops reading when the buffer is full.
+			if(wasFull) changed(conn);
+			return read;
+		}
+
+	}
+
+	/** The reply, written by the handler thread (or by the selector thread for errors). */
+	private class ReplyOutputStream extends OutputStream {
+
+		private final Connection conn;
+
+		ReplyOutputStream(Connection conn) {
+			this.conn = conn;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] buf, int offset, int length) throws IOException {
+			if(length == 0) return;
+			synchronized(conn) {
+				if(Thread.currentThread() != selectorThread) {
+					// Wait for the client to read some of what we have already written.
+					while(conn.outBytes >= MAX_BUFFERED_REPLY && !conn.closed) {
+						try {
+							conn.wait();
+						} catch (InterruptedException e) {
+							throw new InterruptedIOException();
+						}
+					}
+				}
+				if(conn.closed) throw new IOException("Connection closed");
+				if(conn.out.isEmpty()) {
+					// Try to write it straight away.
+					ByteBuffer direct = ByteBuffer.wrap(buf, offset, length);
+					try {
+						conn.channel.write(direct);
+					} catch (IOException e) {
+						conn.close();
+						throw e;
+					}
+					conn.lastActive = System.currentTimeMillis();
+					if(!direct.hasRemaining()) return;
+					offset = direct.position();
+					length = direct.remaining();
+				}
+				ByteBuffer copy = ByteBuffer.allocate(length);
+				copy.put(buf, offset, length);
+				copy.flip();
+				conn.out.add(copy);
+				conn.outBytes += length;
+			}
+			changed(conn);
+		}
+
+		@Override
+		public void close() {
+			synchronized(conn) {
+				conn.closeAfterWrite = true;
+			}
+			changed(conn);
+		}
+
+	}
+
+}
@@ -1443,6 +1443,8 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		if(ctx.isAllowedFullAccess())
 			contentNode.addChild(ctx.getAlertManager().createSummary());
 
+		addResumeProgress(pageMaker, contentNode);
+
 		/* navigation bar */
 		InfoboxNode infobox = pageMaker.getInfobox("navbar", l10n("requestNavigation"), null, false);
 		HTMLNode navigationBar = infobox.outer;
@@ -1775,6 +1777,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
         /* add alert summary box */
         if(ctx.isAllowedFullAccess())
             contentNode.addChild(ctx.getAlertManager().createSummary());
+        addResumeProgress(pageMaker, contentNode);
         HTMLNode infoboxContent = pageMaker.getInfobox("infobox-information", l10n("globalQueueIsEmpty"), contentNode, "queue-empty", true);
         infoboxContent.addChild("#", l10n("noTaskOnGlobalQueue"));
         if(!uploads)
@@ -1782,6 +1785,17 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
         return pageNode;
     }
 
+    /** Requests loaded at startup don't appear on the queue until they have resumed, so say how
+     * many are still to come. */
+    private void addResumeProgress(PageMaker pageMaker, HTMLNode contentNode) {
+        int remaining = core.clientLayerPersister.getResumeRemaining();
+        if(remaining == 0) return;
+        int total = core.clientLayerPersister.getResumeTotal();
+        HTMLNode infoboxContent = pageMaker.getInfobox("infobox-information", l10n("resumingTitle"), contentNode, "queue-resuming", true);
+        infoboxContent.addChild("#", l10n("resuming", new String[] { "resumed", "total" },
+                new String[] { String.valueOf(total - remaining), String.valueOf(total) }));
+    }
+
     private HTMLNode createReasonCell(String failureReason) {
 		HTMLNode reasonCell = new HTMLNode("td", "class", "request-reason");
 		if (failureReason == null) {
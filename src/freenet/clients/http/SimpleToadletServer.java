@@ -7,10 +7,13 @@ import org.tanukisoftware.wrapper.WrapperManager;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.SocketChannel;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -30,6 +33,7 @@ import freenet.crypt.SSL;
 import freenet.io.AllowedHosts;
 import freenet.io.NetworkInterface;
 import freenet.io.SSLNetworkInterface;
+import freenet.io.SelectableNetworkInterface;
 import freenet.keys.FreenetURI;
 import freenet.l10n.NodeL10n;
 import freenet.node.Node;
@@ -45,6 +49,7 @@ import freenet.support.HTMLNode;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
+import freenet.support.MultiValueTable;
 import freenet.support.Ticker;
 import freenet.support.api.BooleanCallback;
 import freenet.support.api.BucketFactory;
@@ -80,6 +85,9 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 	private String bindTo;
 	private String allowedHosts;
 	private NetworkInterface networkInterface;
+	/** Null unless we are using the selector engine. */
+	private NonBlockingHTTPServer httpServer;
+	private HTTP_ENGINE httpEngine;
 	private boolean ssl = false;
 	public static final int DEFAULT_FPROXY_PORT = 8888;
 	
@@ -109,6 +117,7 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 	private boolean enableActivelinks;
 	private boolean enableExtendedMethodHandling;
 	private boolean enableCachingForChkAndSskKeys;
+	private FProxyFilterCache filterCache;
 	
 	// Something does not really belongs to here
 	volatile static boolean isPanicButtonToBeShown;				// move to QueueToadlet ?
@@ -391,6 +400,47 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 	
 	// FIXME factor this out to a global helper class somehow?
 	
+	/** How we read requests and write replies. */
+	public enum HTTP_ENGINE {
+		/** A thread for each connection. */
+		BLOCKING,
+		/** One selector thread for all the connections, with a pooled thread handling each
+		 * request. Not used with SSL. */
+		SELECTOR
+	}
+	
+	private class HTTPEngineCallback extends StringCallback implements EnumerableOptionCallback {
+
+		@Override
+		public String[] getPossibleValues() {
+			HTTP_ENGINE[] possible = HTTP_ENGINE.values();
+			String[] ret = new String[possible.length];
+			for(int i=0;i<possible.length;i++)
+				ret[i] = possible[i].name();
+			return ret;
+		}
+
+		@Override
+		public String get() {
+			return httpEngine.name();
+		}
+
+		@Override
+		public void set(String val) throws InvalidConfigValueException,
+				NodeNeedRestartException {
+			HTTP_ENGINE engine;
+			try {
+				engine = HTTP_ENGINE.valueOf(val);
+			} catch (IllegalArgumentException e) {
+				throw new InvalidConfigValueException("Unknown HTTP engine "+val);
+			}
+			if(engine == httpEngine) return;
+			httpEngine = engine;
+			throw new NodeNeedRestartException("Cannot change the HTTP engine on the fly, please restart freenet");
+		}
+		
+	};
+	
 	private class ReFilterCallback extends StringCallback implements EnumerableOptionCallback {
 
 		@Override
@@ -662,6 +712,19 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 			}
 		});
 		enableCachingForChkAndSskKeys = fproxyConfig.getBoolean("enableCachingForChkAndSskKeys");
+		fproxyConfig.register("filterCacheSize", "16MiB", configItemOrder++, true, false, "SimpleToadletServer.filterCacheSize", "SimpleToadletServer.filterCacheSizeLong", new LongCallback() {
+			@Override
+			public Long get() {
+				return filterCache.getMaxSize();
+			}
+
+			@Override
+			public void set(Long val) throws InvalidConfigValueException {
+				if(val < 0) throw new InvalidConfigValueException(NodeL10n.getBase().getString("Node.mustBePositive"));
+				filterCache.setMaxSize(val);
+			}
+		}, true);
+		filterCache = new FProxyFilterCache(fproxyConfig.getLong("filterCacheSize"));
 		fproxyConfig.register("allowedHosts", "127.0.0.1,0:0:0:0:0:0:0:1", configItemOrder++, true, true, "SimpleToadletServer.allowedHosts", "SimpleToadletServer.allowedHostsLong",
 				new FProxyAllowedHostsCallback());
 		fproxyConfig.register("allowedHostsFullAccess", "127.0.0.1,0:0:0:0:0:0:0:1", configItemOrder++, true, true, "SimpleToadletServer.allowedFullAccess", 
@@ -719,6 +782,10 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		}, false);
 		maxFproxyConnections = fproxyConfig.getInt("maxFproxyConnections");
 		
+		fproxyConfig.register("httpEngine", HTTP_ENGINE.BLOCKING.name(), configItemOrder++, true, false, "SimpleToadletServer.httpEngine", "SimpleToadletServer.httpEngineLong",
+				new HTTPEngineCallback());
+		httpEngine = HTTP_ENGINE.valueOf(fproxyConfig.getString("httpEngine"));
+		
 		fproxyConfig.register("metaRefreshSamePageInterval", 1, configItemOrder++, true, false, "SimpleToadletServer.metaRefreshSamePageInterval", "SimpleToadletServer.metaRefreshSamePageIntervalLong",
 				new IntCallback() {
 
@@ -826,6 +893,9 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		if (this.networkInterface!=null) return;
 		if(ssl) {
 			this.networkInterface = SSLNetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
+		} else if(httpEngine == HTTP_ENGINE.SELECTOR) {
+			this.networkInterface = SelectableNetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
+			this.httpServer = new NonBlockingHTTPServer(new SelectorHandler(), executor);
 		} else {
 			this.networkInterface = NetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
 		}
@@ -904,6 +974,9 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 			else toadlets.addLast(te);
 			t.container = this;
 		}
+		// Filtered pages may have links which the new toadlet excepts from the filter.
+		if(t instanceof LinkFilterExceptedToadlet && filterCache != null)
+			filterCache.clear();
 		if (menu != null && name != null) {
 			pageMaker.addNavigationLink(menu, urlPrefix, name, title, fullOnly, cb, l10n);
 		}
@@ -929,6 +1002,8 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 			if(e.menu != null && e.name != null) {
 				pageMaker.removeNavigationLink(e.menu, e.name);
 			}
+			if(t instanceof LinkFilterExceptedToadlet && filterCache != null)
+				filterCache.clear();
 		}
 	}
 	
@@ -983,9 +1058,11 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 	@Override
 	public void run() {
 		boolean finishedStartup = false;
+		if(httpServer != null) httpServer.start();
 		while(true) {
 			synchronized(this) {
-				while(fproxyConnections > maxFproxyConnections) {
+				// The selector engine limits the requests being handled instead.
+				while(httpServer == null && fproxyConnections > maxFproxyConnections) {
 					try {
 						wait();
 					} catch (InterruptedException e) {
@@ -1003,11 +1080,58 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
                 continue; // timeout
             if(logMINOR)
                 Logger.minor(this, "Accepted connection");
+            SocketChannel channel = conn.getChannel();
+            if(httpServer != null && channel != null) {
+                httpServer.register(channel);
+                continue;
+            }
             SocketHandler sh = new SocketHandler(conn, finishedStartup);
             sh.start();
 		}
 	}
 	
+	/** Lets the selector engine limit and handle requests. */
+	private class SelectorHandler implements NonBlockingHTTPServer.Handler {
+
+		@Override
+		public boolean startRequest() {
+			synchronized(SimpleToadletServer.this) {
+				if(fproxyConnections >= maxFproxyConnections) return false;
+				fproxyConnections++;
+				return true;
+			}
+		}
+
+		@Override
+		public void finishRequest() {
+			synchronized(SimpleToadletServer.this) {
+				fproxyConnections--;
+				SimpleToadletServer.this.notifyAll();
+			}
+		}
+
+		@Override
+		public int getMaxRequests() {
+			synchronized(SimpleToadletServer.this) {
+				return maxFproxyConnections;
+			}
+		}
+
+		@Override
+		public boolean hasFinishedStartup() {
+			synchronized(SimpleToadletServer.this) {
+				return finishedStartup;
+			}
+		}
+
+		@Override
+		public boolean handle(String method, URI uri, boolean isHTTP10, MultiValueTable<String,String> headers, InputStream data, OutputStream os, InetAddress remoteAddr) {
+			return ToadletContextImpl.handle(method, uri, isHTTP10, headers, data, os, remoteAddr,
+					SimpleToadletServer.this, pageMaker, getUserAlertManager(), bookmarkManager);
+		}
+
+	}
+	
 	public class SocketHandler implements PrioRunnable {
 
 		Socket sock;
@@ -1169,6 +1293,10 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		return enableExtendedMethodHandling;
 	}
 
+	FProxyFilterCache getFilterCache() {
+		return filterCache;
+	}
+
 	@Override
 	public boolean enableCachingForChkAndSskKeys() {
 		return enableCachingForChkAndSskKeys;
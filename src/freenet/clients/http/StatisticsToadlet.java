@@ -13,14 +13,19 @@ import java.text.NumberFormat;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 
+import freenet.client.async.ClientLayerJournal;
 import freenet.client.async.ClientRequester;
+import freenet.client.async.ContentFilterStage;
+import freenet.client.async.SegmentDecodeTimes;
 import freenet.client.HighLevelSimpleClient;
 import freenet.config.SubConfig;
 import freenet.crypt.ciphers.Rijndael;
 import freenet.io.comm.IncomingPacketFilterImpl;
+import freenet.io.comm.UdpSocketHandler;
 import freenet.io.xfer.BlockReceiver;
 import freenet.io.xfer.BlockTransmitter;
 import freenet.l10n.NodeL10n;
@@ -31,6 +36,8 @@ import freenet.node.NodeClientCore;
 import freenet.node.NodeStarter;
 import freenet.node.NodeStats;
 import freenet.node.OpennetManager;
+import freenet.node.PacketSendPipeline;
+import freenet.node.PacketSender;
 import freenet.node.PeerManager;
 import freenet.node.PeerNodeStatus;
 import freenet.node.RequestClient;
@@ -41,6 +48,7 @@ import freenet.node.stats.DataStoreInstanceType;
 import freenet.node.stats.DataStoreStats;
 import freenet.node.stats.StatsNotAvailableException;
 import freenet.node.stats.StoreAccessStats;
+import freenet.store.caching.CachingFreenetStoreTracker;
 import freenet.support.BandwidthStatsContainer;
 import freenet.support.HTMLNode;
 import freenet.support.SizeUtil;
@@ -222,6 +230,20 @@ public class StatisticsToadlet extends Toadlet {
              HTMLNode storeSizeInfobox = contentNode.addChild("div","class", "infobox");
 			
 			drawStoreSizeBox(storeSizeInfobox, myLocation, nodeUptimeSeconds);
+
+			CachingFreenetStoreTracker cacheTracker = node.getCachingFreenetStoreTracker();
+			if(cacheTracker != null)
+				drawWriteCacheBox(contentNode.addChild("div", "class", "infobox"), cacheTracker);
+
+			FProxyToadlet fproxy = core.getFProxy();
+			if(fproxy != null)
+				drawFilterCacheBox(contentNode.addChild("div", "class", "infobox"), fproxy.filterCache);
+
+			drawContentFilterBox(contentNode.addChild("div", "class", "infobox"), core.contentFilterStage);
+
+			drawPersistenceBox(contentNode.addChild("div", "class", "infobox"), core.clientLayerPersister.getJournal());
+
+			drawSegmentDecodeBox(contentNode.addChild("div", "class", "infobox"), core.clientContext.segmentDecodeTimes);
            
 			
 			if(numberOfConnected + numberOfRoutingBackedOff > 0) {
@@ -437,6 +459,10 @@ public class StatisticsToadlet extends Toadlet {
 						
 			HTMLNode threadsPriorityInfobox = nextTableCell.addChild("div", "class", "infobox");
 			drawThreadPriorityStatsBox(threadsPriorityInfobox);
+
+			// packet sender box
+			HTMLNode packetSenderInfobox = nextTableCell.addChild("div", "class", "infobox");
+			drawPacketSenderBox(packetSenderInfobox);
 			
 			nextTableCell = overviewTableRow.addChild("td");
 
@@ -827,6 +853,95 @@ public class StatisticsToadlet extends Toadlet {
 
 	}
 
+	private void drawWriteCacheBox(HTMLNode writeCacheInfobox, CachingFreenetStoreTracker tracker) {
+		writeCacheInfobox.addChild("div", "class", "infobox-header", "Datastore write cache");
+		HTMLNode writeCacheList = writeCacheInfobox.addChild("div", "class", "infobox-content").addChild("ul");
+		writeCacheList.addChild("li", "Dirty:\u00a0" + SizeUtil.formatSize(tracker.getSizeOfCache()) + "\u00a0/\u00a0" + SizeUtil.formatSize(tracker.getMaxSize()));
+		long hits = tracker.getCacheHits();
+		long total = hits + tracker.getCacheMisses();
+		if(total > 0)
+			writeCacheList.addChild("li", "Hits:\u00a0" + thousandPoint.format(hits) + "\u00a0(" + fix3p1pct.format(((double) hits) / total) + ')');
+		writeCacheList.addChild("li", "Written:\u00a0" + SizeUtil.formatSize(tracker.getBytesFlushed()) + " in " + thousandPoint.format(tracker.getFlushes()) + " batches");
+		writeCacheList.addChild("li", "Batch write time:\u00a0" + fix1p1.format(tracker.getAverageFlushTime()) + "ms (max\u00a0" + tracker.getMaxFlushTime() + "ms)");
+	}
+
+	private void drawFilterCacheBox(HTMLNode filterCacheInfobox, FProxyFilterCache cache) {
+		filterCacheInfobox.addChild("div", "class", "infobox-header", "Filtered page cache");
+		HTMLNode filterCacheList = filterCacheInfobox.addChild("div", "class", "infobox-content").addChild("ul");
+		filterCacheList.addChild("li", "Cached:\u00a0" + SizeUtil.formatSize(cache.getSize()) + "\u00a0/\u00a0" + SizeUtil.formatSize(cache.getMaxSize()) + " in " + thousandPoint.format(cache.getCount()) + " pages");
+		long hits = cache.getHits();
+		long misses = cache.getMisses();
+		long total = hits + misses;
+		if(total > 0)
+			filterCacheList.addChild("li", "Hits:\u00a0" + thousandPoint.format(hits) + "\u00a0(" + fix3p1pct.format(((double) hits) / total) + "), misses:\u00a0" + thousandPoint.format(misses));
+		filterCacheList.addChild("li", "Not filtered again:\u00a0" + SizeUtil.formatSize(cache.getBytesSaved()));
+	}
+
+	private void drawContentFilterBox(HTMLNode contentFilterInfobox, ContentFilterStage stage) {
+		contentFilterInfobox.addChild("div", "class", "infobox-header", "Content filter");
+		HTMLNode contentFilterContent = contentFilterInfobox.addChild("div", "class", "infobox-content");
+		HTMLNode contentFilterList = contentFilterContent.addChild("ul");
+		contentFilterList.addChild("li", "Filtering:\u00a0" + stage.getRunning() + "\u00a0/\u00a0" + stage.getMaxThreads() + ", waiting:\u00a0" + stage.getWaiting());
+		contentFilterList.addChild("li", "Average wait:\u00a0" + TimeUtil.formatTime((long) stage.getAverageWaitTime(), 2, true));
+		List<ContentFilterStage.FilterTimes> times = stage.getTimes();
+		if(times.isEmpty()) return;
+		HTMLNode timesTable = contentFilterContent.addChild("table", "border", "0");
+		HTMLNode row = timesTable.addChild("tr");
+		row.addChild("th", "MIME type");
+		row.addChild("th", "Files");
+		row.addChild("th", "Data");
+		row.addChild("th", "Average");
+		row.addChild("th", "50%");
+		row.addChild("th", "90%");
+		row.addChild("th", "99%");
+		row.addChild("th", "Max");
+		for(ContentFilterStage.FilterTimes t : times) {
+			row = timesTable.addChild("tr");
+			row.addChild("td", t.mimeType);
+			row.addChild("td", thousandPoint.format(t.getCount()));
+			row.addChild("td", SizeUtil.formatSize(t.getTotalBytes()));
+			row.addChild("td", TimeUtil.formatTime((long) t.getAverageTime(), 2, true));
+			row.addChild("td", "\u2264\u00a0" + TimeUtil.formatTime(t.getPercentile(0.5), 2, true));
+			row.addChild("td", "\u2264\u00a0" + TimeUtil.formatTime(t.getPercentile(0.9), 2, true));
+			row.addChild("td", "\u2264\u00a0" + TimeUtil.formatTime(t.getPercentile(0.99), 2, true));
+			row.addChild("td", TimeUtil.formatTime(t.getMaxTime(), 2, true));
+		}
+	}
+
+	private void drawSegmentDecodeBox(HTMLNode decodeInfobox, SegmentDecodeTimes times) {
+		decodeInfobox.addChild("div", "class", "infobox-header", "Splitfile decoding");
+		HTMLNode decodeContent = decodeInfobox.addChild("div", "class", "infobox-content");
+		decodeContent.addChild("#", "Segments decoded by downloads which have finished:\u00a0" + thousandPoint.format(times.getSegments()));
+		if(times.getSegments() == 0) return;
+		HTMLNode timesTable = decodeContent.addChild("table", "border", "0");
+		HTMLNode row = timesTable.addChild("tr");
+		row.addChild("th", "Stage");
+		row.addChild("th", "Total");
+		row.addChild("th", "Average");
+		row.addChild("th", "Max");
+		for(int i=0;i<SegmentDecodeTimes.STAGES;i++) {
+			row = timesTable.addChild("tr");
+			row.addChild("td", SegmentDecodeTimes.getName(i));
+			row.addChild("td", TimeUtil.formatTime(times.getTotalTime(i), 2, true));
+			row.addChild("td", TimeUtil.formatTime((long) times.getAverageTime(i), 2, true));
+			row.addChild("td", TimeUtil.formatTime(times.getMaxTime(i), 2, true));
+		}
+	}
+
+	private void drawPersistenceBox(HTMLNode persistenceInfobox, ClientLayerJournal journal) {
+		persistenceInfobox.addChild("div", "class", "infobox-header", "Persistent requests");
+		HTMLNode persistenceContent = persistenceInfobox.addChild("div", "class", "infobox-content");
+		HTMLNode persistenceList = persistenceContent.addChild("ul");
+		persistenceList.addChild("li", "Checkpoints:\u00a0" + thousandPoint.format(journal.getCheckpoints()) + " (" + thousandPoint.format(journal.getSnapshots()) + "\u00a0full, " + thousandPoint.format(journal.getJournalWrites()) + "\u00a0journal)");
+		persistenceList.addChild("li", "Average checkpoint:\u00a0" + TimeUtil.formatTime((long) journal.getAverageCheckpointTime(), 2, true));
+		if(journal.getCheckpoints() > 0)
+			persistenceList.addChild("li", "Last checkpoint:\u00a0" + (journal.wasLastCheckpointSnapshot() ? "full" : "journal") + ", " + journal.getLastCheckpointChanged() + "\u00a0/\u00a0" + journal.getLastCheckpointRequests() + " requests written (" + journal.getLastCheckpointSerialized() + " serialized), " + SizeUtil.formatSize(journal.getLastCheckpointBytes()) + " in " + TimeUtil.formatTime(journal.getLastCheckpointTime(), 2, true));
+		persistenceList.addChild("li", "Snapshot:\u00a0" + SizeUtil.formatSize(journal.getSnapshotBytes()));
+		persistenceList.addChild("li", "Journal:\u00a0" + journal.getJournalFiles() + " files, " + SizeUtil.formatSize(journal.getJournalBytes()));
+		if(journal.getCompactions() > 0)
+			persistenceList.addChild("li", "Compactions:\u00a0" + thousandPoint.format(journal.getCompactions()) + ", last took " + TimeUtil.formatTime(journal.getLastCompactionTime(), 2, true));
+	}
+
 	private void drawUnclaimedFIFOMessageCountsBox(HTMLNode unclaimedFIFOMessageCountsInfobox) {
 		
 		unclaimedFIFOMessageCountsInfobox.addChild("div", "class", "infobox-header", "unclaimedFIFO Message Counts");
@@ -857,6 +972,48 @@ public class StatisticsToadlet extends Toadlet {
 		
 	}
 
+	private void drawPacketSenderBox(HTMLNode packetSenderInfobox) {
+		packetSenderInfobox.addChild("div", "class", "infobox-header", "Packet Sender");
+		HTMLNode packetSenderList = packetSenderInfobox.addChild("div", "class", "infobox-content").addChild("ul");
+		PacketSender ps = node.ps;
+		long iterations = ps.getLoopIterations();
+		long wasted = ps.getWastedWakeups();
+		long examined = ps.getPeersExamined();
+		packetSenderList.addChild("li", "Scheduled peers:\u00a0" + ps.getScheduledPeers());
+		packetSenderList.addChild("li", "Loop iterations:\u00a0" + iterations);
+		if(iterations > 0) {
+			packetSenderList.addChild("li", "Wasted wakeups:\u00a0" + wasted + "\u00a0(" + fix3p1pct.format(((double) wasted) / iterations) + ')');
+			packetSenderList.addChild("li", "Peers examined per iteration:\u00a0" + fix1p2.format(((double) examined) / iterations));
+		}
+		PacketSendPipeline pipeline = node.packetSendPipeline;
+		packetSenderList.addChild("li", "Encryption threads:\u00a0" + pipeline.getThreads());
+		if(pipeline.isThreaded()) {
+			packetSenderList.addChild("li", "Queued packets:\u00a0" + pipeline.getQueueDepth() + "\u00a0(max\u00a0" + pipeline.getMaxQueueDepth() + ')');
+			packetSenderList.addChild("li", "Peers held back by a full queue:\u00a0" + pipeline.getStalls());
+		}
+		long sendBufferDrops = 0;
+		for(UdpSocketHandler handler : node.getPacketSocketHandlers())
+			sendBufferDrops += handler.getSendBufferDrops();
+		packetSenderList.addChild("li", "Packets dropped by a full socket buffer:\u00a0" + sendBufferDrops);
+		HTMLNode stageTable = packetSenderInfobox.addChild("div", "class", "infobox-content").addChild("table", "border", "0");
+		HTMLNode row = stageTable.addChild("tr");
+		row.addChild("th", "Stage");
+		row.addChild("th", "Packets");
+		row.addChild("th", "Average\u00a0\u00b5s");
+		drawPacketSendStage(stageTable, "Assembly", pipeline.assembly);
+		if(pipeline.isThreaded())
+			drawPacketSendStage(stageTable, "Queue", pipeline.queueWait);
+		drawPacketSendStage(stageTable, "Encryption", pipeline.encryption);
+		drawPacketSendStage(stageTable, "Write", pipeline.write);
+	}
+
+	private void drawPacketSendStage(HTMLNode stageTable, String name, PacketSendPipeline.StageStats stage) {
+		HTMLNode row = stageTable.addChild("tr");
+		row.addChild("td", name);
+		row.addChild("td", Long.toString(stage.getCount()));
+		row.addChild("td", fix1p1.format(stage.getAverageMicros()));
+	}
+
 	private void drawSwapStatsBox(HTMLNode locationSwapInfobox, double location, long nodeUptimeSeconds, double swaps, double noSwaps) {
 		
 		locationSwapInfobox.addChild("div", "class", "infobox-header", "Location swaps");
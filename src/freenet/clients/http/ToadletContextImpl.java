@@ -100,13 +100,21 @@ public class ToadletContextImpl implements ToadletContext {
 	private boolean shouldDisconnect;
 	
 	public ToadletContextImpl(Socket sock, MultiValueTable<String,String> headers, BucketFactory bf, PageMaker pageMaker, ToadletContainer container, UserAlertManager userAlertManager, BookmarkManager bookmarkManager, URI uri, long uniqueID) throws IOException {
+		this(sock.getOutputStream(), sock.getInetAddress(), headers, bf, pageMaker, container, userAlertManager, bookmarkManager, uri, uniqueID);
+	}
+	
+	/**
+	 * @param sockOutputStream The stream to write the reply to.
+	 * @param remoteAddr The address of the client.
+	 */
+	ToadletContextImpl(OutputStream sockOutputStream, InetAddress remoteAddr, MultiValueTable<String,String> headers, BucketFactory bf, PageMaker pageMaker, ToadletContainer container, UserAlertManager userAlertManager, BookmarkManager bookmarkManager, URI uri, long uniqueID) {
 		this.headers = headers;
 		this.cookies = null;
 		this.replyCookies = null;
 		this.closed = false;
 		this.uri=uri;
-		sockOutputStream = sock.getOutputStream();
-		remoteAddr = sock.getInetAddress();
+		this.sockOutputStream = sockOutputStream;
+		this.remoteAddr = remoteAddr;
 		if(logDEBUG)
 			Logger.debug(this, "Connection from "+remoteAddr);
 		this.bf = bf;
@@ -168,7 +176,7 @@ public class ToadletContextImpl implements ToadletContext {
 		sendError(sockOutputStream, 404, "Not Found", l10n("noSuchToadlet"), shouldDisconnect, null);
 	}
 	
-	private static void sendURIParseError(OutputStream os, boolean shouldDisconnect, Throwable e) throws IOException {
+	static void sendURIParseError(OutputStream os, boolean shouldDisconnect, Throwable e) throws IOException {
 		StringWriter sw = new StringWriter();
 		PrintWriter pw = new PrintWriter(sw);
 		e.printStackTrace(pw);
@@ -505,18 +513,11 @@ public class ToadletContextImpl implements ToadletContext {
 				if(logMINOR)
 					Logger.minor(ToadletContextImpl.class, "first line: "+firstLine);
 				
-				String[] split = firstLine.split(" ");
-				
-				if(split.length != 3)
-					throw new ParseException("Could not parse request line (split.length="+split.length+"): "+firstLine, -1);
-				
-				if(!split[2].startsWith("HTTP/1."))
-					throw new ParseException("Unrecognized protocol "+split[2], -1);
+				String[] split = parseRequestLine(firstLine);
 				
 				URI uri;
 				try {
-					uri = URIPreEncoder.encodeURI(split[1]).normalize();
-					if(logMINOR) Logger.minor(ToadletContextImpl.class, "URI: "+uri+" path "+uri.getPath()+" host "+uri.getHost()+" frag "+uri.getFragment()+" port "+uri.getPort()+" query "+uri.getQuery()+" scheme "+uri.getScheme());
+					uri = parseURI(split[1]);
 				} catch (URISyntaxException e) {
 					sendURIParseError(sock.getOutputStream(), true, e);
 					return;
@@ -533,156 +534,24 @@ public class ToadletContextImpl implements ToadletContext {
 					}
 					//System.out.println("Length="+line.length()+": "+line);
 					if(line.length() == 0) break;
-					int index = line.indexOf(':');
-					if (index < 0) {
-						throw new ParseException("Missing ':' in request header field", -1);
-					}
-					String before = line.substring(0, index).toLowerCase();
-					String after = line.substring(index+1);
-					after = after.trim();
-					headers.put(before, after);
+					parseHeader(line, headers);
 				}
 				
-				boolean disconnect = shouldDisconnectAfterHandled(split[2].equals("HTTP/1.0"), headers) || !container.enablePersistentConnections();
-
-				boolean allowPost = container.allowPosts();
-				BucketFactory bf = container.getBucketFactory();
-				
-				ToadletContextImpl ctx = new ToadletContextImpl(sock, headers, bf, pageMaker, container, userAlertManager, bookmarkManager, uri, container.generateUniqueID());
-				ctx.shouldDisconnect = disconnect;
-				
-				/*
-				 * copy the data into a bucket now,
-				 * before we go into the redirect loop
-				 */
-				
-				Bucket data;
-
-				boolean methodIsConfigurable = true;
-
-				String slen = headers.get("content-length");
-
-				if (METHODS_MUST_HAVE_DATA.contains(method)) {
-					// <method> must have data
-					methodIsConfigurable = false;
-					if (slen == null) {
-						ctx.shouldDisconnect = true;
-						ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
-						return;
-					}
-				} else if (METHODS_CANNOT_HAVE_DATA.contains(method)) {
-					// <method> can not have data
-					methodIsConfigurable = false;
-					if (slen != null) {
-						ctx.shouldDisconnect = true;
-						ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
-						return;
-					}
-				}
-
-				if (slen != null) {
-					long len;
-					try {
-						len = Integer.parseInt(slen);
-						if(len < 0) throw new NumberFormatException("content-length less than 0");
-					} catch (NumberFormatException e) {
-						ctx.shouldDisconnect = true;
-						ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
-						return;
-					}
-					if(allowPost && ((!container.publicGatewayMode()) || ctx.isAllowedFullAccess())) {
-						data = bf.makeBucket(len);
-						BucketTools.copyFrom(data, is, len);
-					} else {
-						FileUtil.skipFully(is, len);
-						if (method.equals("POST")) {
-							ctx.sendMethodNotAllowed("POST", true);
-						} else {
-							sendError(sock.getOutputStream(), 403, "Forbidden", "Content not allowed in this configuration", true, null);
-						}
-						ctx.close();
-						return;
-					}
-				} else {
-					// we're not doing to use it, but we have to keep
-					// the compiler happy
-					data = null;
-				}
-
-				if (!container.enableExtendedMethodHandling()) {
-					if (!METHODS_RESTRICTED_MODE.contains(method)) {
-						sendError(sock.getOutputStream(), 403, "Forbidden", "Method not allowed in this configuration", true, null);
-						return;
-					}
-				}
-
-				// Handle it.
-				try {
-					boolean redirect = true;
-					while (redirect) {
-						// don't go around the loop unless set explicitly
-						redirect = false;
-						
-						Toadlet t;
-						try {
-							t = container.findToadlet(uri);
-						} catch (PermanentRedirectException e) {
-							Toadlet.writePermanentRedirect(ctx, "Found elsewhere", e.newuri.toASCIIString());
-							break;
-						}
-					
-						if(t == null) {
-							ctx.sendNoToadletError(ctx.shouldDisconnect);
-							break;
-						}
-
-						// if the Toadlet does not support the method, we don't need to parse the data
-						// also due this pre check a 'NoSuchMethodException' should never appear
-						if (!(t.findSupportedMethods().contains(method))) {
-							ctx.sendMethodNotAllowed(method, ctx.shouldDisconnect);
-							break;
-						}
-
-						HTTPRequestImpl req = new HTTPRequestImpl(uri, data, ctx, method);
-						
-						// require form password if it's a POST, unless the toadlet requests otherwise
-						if (method.equals("POST") && !t.allowPOSTWithoutPassword()) {
-							if (!ctx.checkFormPassword(req, t.path())) {
-								break;
-							}
-						}
-						
-						if(ctx.isAllowedFullAccess()) {
-							ctx.getPageMaker().parseMode(req, container);
-						}
-						
-						try {
-							callToadletMethod(t, method, uri, req, ctx, data, sock, redirect);
-						} catch (RedirectException re) {
-							uri = re.newuri;
-							redirect = true;
-						} finally {
-							req.freeParts();
-						}
-					}
-					if(ctx.shouldDisconnect) {
-						sock.close();
-						return;
-					}
-				} finally {
-					if(data != null) data.free();
+				if(!handleRequest(method, uri, split[2].equals("HTTP/1.0"), headers, is, sock.getOutputStream(), sock.getInetAddress(), container, pageMaker, userAlertManager, bookmarkManager)) {
+					sock.close();
+					return;
 				}
 			}
 			
 		} catch (ParseException e) {
 			try {
-				sendError(sock.getOutputStream(), 400, "Bad Request", l10n("parseErrorWithError", "error", e.getMessage()), true, null);
+				sendParseError(sock.getOutputStream(), e);
 			} catch (IOException e1) {
 				// Ignore
 			}
 		} catch (TooLongException e) {
 			try {
-				sendError(sock.getOutputStream(), 400, "Bad Request", l10n("headersLineTooLong"), true, null);
+				sendTooLongError(sock.getOutputStream());
 			} catch (IOException e1) {
 				// Ignore
 			}
@@ -691,31 +560,235 @@ public class ToadletContextImpl implements ToadletContext {
 		} catch (ToadletContextClosedException e) {
 			Logger.error(ToadletContextImpl.class, "ToadletContextClosedException while handling connection!");
 		} catch (Throwable t) {
-			Logger.error(ToadletContextImpl.class, "Caught error: "+t+" handling socket", t);
+			sendInternalError(sock, t);
+		}
+	}
+	
+	/**
+	 * Handle a single request, for a connection which doesn't have a thread of its own reading
+	 * from it. Errors are reported to the client.
+	 * @param data The request body, if any.
+	 * @param os The stream to write the reply to.
+	 * @return True if the connection can be kept open for another request.
+	 */
+	static boolean handle(String method, URI uri, boolean isHTTP10, MultiValueTable<String,String> headers, InputStream data, OutputStream os, InetAddress remoteAddr, ToadletContainer container, PageMaker pageMaker, UserAlertManager userAlertManager, BookmarkManager bookmarkManager) {
+		try {
+			return handleRequest(method, uri, isHTTP10, headers, data, os, remoteAddr, container, pageMaker, userAlertManager, bookmarkManager);
+		} catch (IOException e) {
+			// ignore and return
+		} catch (ToadletContextClosedException e) {
+			Logger.error(ToadletContextImpl.class, "ToadletContextClosedException while handling connection!");
+		} catch (Throwable t) {
+			sendInternalError(os, t);
+		}
+		return false;
+	}
+	
+	/** @return The method, URI and protocol. */
+	static String[] parseRequestLine(String firstLine) throws ParseException {
+		String[] split = firstLine.split(" ");
+		
+		if(split.length != 3)
+			throw new ParseException("Could not parse request line (split.length="+split.length+"): "+firstLine, -1);
+		
+		if(!split[2].startsWith("HTTP/1."))
+			throw new ParseException("Unrecognized protocol "+split[2], -1);
+		return split;
+	}
+	
+	static URI parseURI(String s) throws URISyntaxException {
+		URI uri = URIPreEncoder.encodeURI(s).normalize();
+		if(logMINOR) Logger.minor(ToadletContextImpl.class, "URI: "+uri+" path "+uri.getPath()+" host "+uri.getHost()+" frag "+uri.getFragment()+" port "+uri.getPort()+" query "+uri.getQuery()+" scheme "+uri.getScheme());
+		return uri;
+	}
+	
+	static void parseHeader(String line, MultiValueTable<String,String> headers) throws ParseException {
+		int index = line.indexOf(':');
+		if (index < 0) {
+			throw new ParseException("Missing ':' in request header field", -1);
+		}
+		String before = line.substring(0, index).toLowerCase();
+		String after = line.substring(index+1);
+		after = after.trim();
+		headers.put(before, after);
+	}
+	
+	static void sendParseError(OutputStream os, ParseException e) throws IOException {
+		sendError(os, 400, "Bad Request", l10n("parseErrorWithError", "error", e.getMessage()), true, null);
+	}
+	
+	static void sendTooLongError(OutputStream os) throws IOException {
+		sendError(os, 400, "Bad Request", l10n("headersLineTooLong"), true, null);
+	}
+	
+	private static void sendInternalError(Socket sock, Throwable t) {
+		try {
+			sendInternalError(sock.getOutputStream(), t);
+		} catch (IOException e) {
+			// ignore and return
+		}
+	}
+	
+	private static void sendInternalError(OutputStream os, Throwable t) {
+		Logger.error(ToadletContextImpl.class, "Caught error: "+t+" handling socket", t);
+		try {
+			String msg = "<html><head><title>"+NodeL10n.getBase().getString("Toadlet.internalErrorTitle")+
+					"</title></head><body><h1>"+NodeL10n.getBase().getString("Toadlet.internalErrorPleaseReport")+"</h1><pre>";
+			StringWriter sw = new StringWriter();
+			PrintWriter pw = new PrintWriter(sw);
+			t.printStackTrace(pw);
+			pw.flush();
+			msg = msg + sw.toString() + "</pre></body></html>";
+			byte[] messageBytes = msg.getBytes("UTF-8");
+			sendReplyHeaders(os, 500, "Internal failure", null, "text/html; charset=UTF-8", messageBytes.length, null, true, false, false);
+			os.write(messageBytes);
+		} catch (IOException e1) {
+			// ignore and return
+		}
+	}
+	
+	/**
+	 * Handle a single request, whose request line and headers have already been read.
+	 * @param is The connection's input stream, at the start of the request body if any.
+	 * @param os The stream to write the reply to.
+	 * @return True if the connection can be kept open for another request.
+	 */
+	private static boolean handleRequest(String method, URI uri, boolean isHTTP10, MultiValueTable<String,String> headers, InputStream is, OutputStream os, InetAddress remoteAddr, ToadletContainer container, PageMaker pageMaker, UserAlertManager userAlertManager, BookmarkManager bookmarkManager) throws Throwable {
+		boolean disconnect = shouldDisconnectAfterHandled(isHTTP10, headers) || !container.enablePersistentConnections();
+
+		boolean allowPost = container.allowPosts();
+		BucketFactory bf = container.getBucketFactory();
+		
+		ToadletContextImpl ctx = new ToadletContextImpl(os, remoteAddr, headers, bf, pageMaker, container, userAlertManager, bookmarkManager, uri, container.generateUniqueID());
+		ctx.shouldDisconnect = disconnect;
+		
+		/*
+		 * copy the data into a bucket now,
+		 * before we go into the redirect loop
+		 */
+		
+		Bucket data;
+
+		boolean methodIsConfigurable = true;
+
+		String slen = headers.get("content-length");
+
+		if (METHODS_MUST_HAVE_DATA.contains(method)) {
+			// <method> must have data
+			methodIsConfigurable = false;
+			if (slen == null) {
+				ctx.shouldDisconnect = true;
+				ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
+				return false;
+			}
+		} else if (METHODS_CANNOT_HAVE_DATA.contains(method)) {
+			// <method> can not have data
+			methodIsConfigurable = false;
+			if (slen != null) {
+				ctx.shouldDisconnect = true;
+				ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
+				return false;
+			}
+		}
+
+		if (slen != null) {
+			long len;
 			try {
-				String msg = "<html><head><title>"+NodeL10n.getBase().getString("Toadlet.internalErrorTitle")+
-						"</title></head><body><h1>"+NodeL10n.getBase().getString("Toadlet.internalErrorPleaseReport")+"</h1><pre>";
-				StringWriter sw = new StringWriter();
-				PrintWriter pw = new PrintWriter(sw);
-				t.printStackTrace(pw);
-				pw.flush();
-				msg = msg + sw.toString() + "</pre></body></html>";
-				byte[] messageBytes = msg.getBytes("UTF-8");
-				sendReplyHeaders(sock.getOutputStream(), 500, "Internal failure", null, "text/html; charset=UTF-8", messageBytes.length, null, true, false, false);
-				sock.getOutputStream().write(messageBytes);
-			} catch (IOException e1) {
-				// ignore and return
+				len = Integer.parseInt(slen);
+				if(len < 0) throw new NumberFormatException("content-length less than 0");
+			} catch (NumberFormatException e) {
+				ctx.shouldDisconnect = true;
+				ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
+				return false;
+			}
+			if(allowPost && ((!container.publicGatewayMode()) || ctx.isAllowedFullAccess())) {
+				data = bf.makeBucket(len);
+				BucketTools.copyFrom(data, is, len);
+			} else {
+				FileUtil.skipFully(is, len);
+				if (method.equals("POST")) {
+					ctx.sendMethodNotAllowed("POST", true);
+				} else {
+					sendError(os, 403, "Forbidden", "Content not allowed in this configuration", true, null);
+				}
+				ctx.close();
+				return false;
+			}
+		} else {
+			// we're not doing to use it, but we have to keep
+			// the compiler happy
+			data = null;
+		}
+
+		if (!container.enableExtendedMethodHandling()) {
+			if (!METHODS_RESTRICTED_MODE.contains(method)) {
+				sendError(os, 403, "Forbidden", "Method not allowed in this configuration", true, null);
+				return false;
+			}
+		}
+
+		// Handle it.
+		try {
+			boolean redirect = true;
+			while (redirect) {
+				// don't go around the loop unless set explicitly
+				redirect = false;
+				
+				Toadlet t;
+				try {
+					t = container.findToadlet(uri);
+				} catch (PermanentRedirectException e) {
+					Toadlet.writePermanentRedirect(ctx, "Found elsewhere", e.newuri.toASCIIString());
+					break;
+				}
+			
+				if(t == null) {
+					ctx.sendNoToadletError(ctx.shouldDisconnect);
+					break;
+				}
+
+				// if the Toadlet does not support the method, we don't need to parse the data
+				// also due this pre check a 'NoSuchMethodException' should never appear
+				if (!(t.findSupportedMethods().contains(method))) {
+					ctx.sendMethodNotAllowed(method, ctx.shouldDisconnect);
+					break;
+				}
+
+				HTTPRequestImpl req = new HTTPRequestImpl(uri, data, ctx, method);
+				
+				// require form password if it's a POST, unless the toadlet requests otherwise
+				if (method.equals("POST") && !t.allowPOSTWithoutPassword()) {
+					if (!ctx.checkFormPassword(req, t.path())) {
+						break;
+					}
+				}
+				
+				if(ctx.isAllowedFullAccess()) {
+					ctx.getPageMaker().parseMode(req, container);
+				}
+				
+				try {
+					callToadletMethod(t, method, uri, req, ctx, data, os, redirect);
+				} catch (RedirectException re) {
+					uri = re.newuri;
+					redirect = true;
+				} finally {
+					req.freeParts();
+				}
 			}
+			return !ctx.shouldDisconnect;
+		} finally {
+			if(data != null) data.free();
 		}
 	}
 	
 	private static void callToadletMethod(Toadlet t, String method, URI uri, HTTPRequestImpl req, 
-			ToadletContextImpl ctx, Bucket data, Socket sock, boolean methodIsConfigurable) throws Throwable {
+			ToadletContextImpl ctx, Bucket data, OutputStream os, boolean methodIsConfigurable) throws Throwable {
 		String methodName = Toadlet.HANDLE_METHOD_PREFIX + method;
 		if("GET".equals(method)) {
 			// Short cut the common case.
 			if (data != null) {
-				sendError(sock.getOutputStream(), 400, "Bad Request", "Content not allowed", true, null);
+				sendError(os, 400, "Bad Request", "Content not allowed", true, null);
 				ctx.close();
 				return;
 			}
@@ -730,13 +803,13 @@ public class ToadletContextImpl implements ToadletContext {
 				AllowData anno = m.getAnnotation(AllowData.class);
 				if (anno == null) {
 					if (data != null) {
-						sendError(sock.getOutputStream(), 400, "Bad Request", "Content not allowed", true, null);
+						sendError(os, 400, "Bad Request", "Content not allowed", true, null);
 						ctx.close();
 						return;
 					}
 				} else if (anno.value()) {
 					if (data == null) {
-						sendError(sock.getOutputStream(), 400, "Bad Request", "Missing Content", true, null);
+						sendError(os, 400, "Bad Request", "Missing Content", true, null);
 						ctx.close();
 						return;
 					}
@@ -73,12 +73,10 @@ public class IncomingPacketFilterImpl implements IncomingPacketFilter {
 			if(logMINOR) successfullyDecodedPackets.incrementAndGet();
 		} else if(decoded == DECODED.NOT_DECODED) {
 			
-			for(PeerNode pn : crypto.getPeerNodes()) {
-				if(pn == opn) continue;
-				if(pn.handleReceivedPacket(buf, offset, length, now, peer)) {
-					if(logMINOR) successfullyDecodedPackets.incrementAndGet();
-					return DECODED.DECODED;
-				}
+			// Maybe a known peer whose address has changed.
+			if(crypto.getSequenceNumberIndex().handleFromUnknownAddress(buf, offset, length, peer, now, crypto.getPeerNodes(), opn) != null) {
+				if(logMINOR) successfullyDecodedPackets.incrementAndGet();
+				return DECODED.DECODED;
 			}
 			
 			if(logMINOR) failedDecodePackets.incrementAndGet();
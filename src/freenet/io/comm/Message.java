@@ -19,13 +19,12 @@
 
 package freenet.io.comm;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -49,6 +48,10 @@ import freenet.support.Logger.LogLevel;
  * 
  * FIXME we should get rid of sub-messages.
  *
+ * The fields are stored in slots according to the layout in the MessageType: primitive fields
+ * in an array of longs, without boxing, and everything else in an array of objects. The
+ * String-keyed methods look up the field index in the MessageType.
+ *
  * @author ian
  */
 public class Message {
@@ -70,7 +73,12 @@ public class Message {
 	private final MessageType _spec;
 	private final WeakReference<? extends PeerContext> _sourceRef;
 	private final boolean _internal;
-	private final HashMap<String, Object> _payload = new HashMap<String, Object>(8);
+	/** Primitive fields, by slot. Floating point values are stored as their raw bits. */
+	private final long[] _primitives;
+	/** Bit mask of the primitive slots which have been set */
+	private long _primitivesSet;
+	/** Other fields, by slot. Null if not set. */
+	private final Object[] _objects;
 	private List<Message> _subMessages;
 	public final long localInstantiationTime;
 	final int _receivedByteCount;
@@ -107,14 +115,8 @@ public class Message {
 		}
 		Message m = new Message(mspec, peer, recvByteCount);
 		try {
-			for (String name : mspec.getOrderedFields()) {
-				Class<?> type = mspec.getFields().get(name);
-				if (type.equals(LinkedList.class)) { // Special handling for LinkedList to deal with element type
-					m.set(name, Serializer
-					      .readListFromDataInputStream(mspec.getLinkedListTypes().get(name), bb));
-				} else {
-					m.set(name, Serializer.readFromDataInputStream(type, bb));
-				}
+			for (int i = 0; i < mspec.getFieldCount(); i++) {
+				m.readField(i, bb);
 			}
 			if (mayHaveSubMessages) {
 				while (bb.remaining() > 2) { // sizeof(unsigned short) == 2
@@ -167,6 +169,8 @@ public class Message {
 		}
 		_receivedByteCount = recvByteCount;
 		priority = spec.getDefaultPriority();
+		_primitives = new long[spec.primitiveCount()];
+		_objects = new Object[spec.objectCount()];
 	}
 
 	/** Drops sub-messages, and makes it locally originated */
@@ -174,7 +178,9 @@ public class Message {
 		_spec = m._spec;
 		_sourceRef = null;
 		_internal = m._internal;
-		_payload.putAll(m._payload);
+		_primitives = m._primitives.clone();
+		_primitivesSet = m._primitivesSet;
+		_objects = m._objects.clone();
 		_subMessages = null;
 		localInstantiationTime = System.currentTimeMillis();
 		_receivedByteCount = 0;
@@ -184,80 +190,171 @@ public class Message {
 	}
 
 	public boolean getBoolean(String key) {
-		return (Boolean) _payload.get(key);
+		int index = primitiveIndex(key, MessageType.KIND_BOOLEAN);
+		if (index < 0) return (Boolean) getObject(key);
+		return _primitives[_spec.fieldSlot(index)] != 0;
 	}
 
 	public byte getByte(String key) {
-		return (Byte) _payload.get(key);
+		int index = primitiveIndex(key, MessageType.KIND_BYTE);
+		if (index < 0) return (Byte) getObject(key);
+		return (byte) _primitives[_spec.fieldSlot(index)];
 	}
 
 	public short getShort(String key) {
-		return (Short) _payload.get(key);
+		int index = primitiveIndex(key, MessageType.KIND_SHORT);
+		if (index < 0) return (Short) getObject(key);
+		return (short) _primitives[_spec.fieldSlot(index)];
 	}
 
 	public int getInt(String key) {
-		return (Integer) _payload.get(key);
+		int index = primitiveIndex(key, MessageType.KIND_INT);
+		if (index < 0) return (Integer) getObject(key);
+		return (int) _primitives[_spec.fieldSlot(index)];
 	}
 
 	public long getLong(String key) {
-		return (Long) _payload.get(key);
+		int index = primitiveIndex(key, MessageType.KIND_LONG);
+		if (index < 0) return (Long) getObject(key);
+		return _primitives[_spec.fieldSlot(index)];
 	}
 
 	public double getDouble(String key) {
-		return (Double) _payload.get(key);
+		int index = primitiveIndex(key, MessageType.KIND_DOUBLE);
+		if (index < 0) return (Double) getObject(key);
+		return Double.longBitsToDouble(_primitives[_spec.fieldSlot(index)]);
 	}
 
 	public float getFloat(String key) {
-		return (Float) _payload.get(key);
+		int index = primitiveIndex(key, MessageType.KIND_FLOAT);
+		if (index < 0) return (Float) getObject(key);
+		return Float.intBitsToFloat((int) _primitives[_spec.fieldSlot(index)]);
+	}
+
+	/**
+	 * @return The index of a primitive field of the given kind which is set, or -1 if the
+	 * field isn't defined, is a different type, or isn't set. The caller then falls back to
+	 * the boxed value, so we get the same exceptions as when the fields were kept in a map.
+	 */
+	private int primitiveIndex(String key, byte kind) {
+		int index = _spec.getFieldIndex(key);
+		if (index < 0 || _spec.fieldKind(index) != kind) return -1;
+		if ((_primitivesSet & (1L << _spec.fieldSlot(index))) == 0) return -1;
+		return index;
 	}
 
 	public double[] getDoubleArray(String key) {
-		return ((double[]) _payload.get(key));
+		return ((double[]) getObject(key));
 	}
 
 	public float[] getFloatArray(String key) {
-		return (float[]) _payload.get(key);
+		return (float[]) getObject(key);
 	}
 
 	public String getString(String key) {
-		return (String)_payload.get(key);
+		return (String)getObject(key);
 	}
 
 	public Object getObject(String key) {
-		return _payload.get(key);
+		int index = _spec.getFieldIndex(key);
+		if (index < 0) return null;
+		return getObject(index);
+	}
+
+	/** Get a field as an object, boxing it if it is primitive.
+	 * @param index The index of the field, see MessageType.getFieldIndex().
+	 * @return The value, or null if it is not set. */
+	public Object getObject(int index) {
+		int slot = _spec.fieldSlot(index);
+		byte kind = _spec.fieldKind(index);
+		if (kind == MessageType.KIND_OBJECT) return _objects[slot];
+		if ((_primitivesSet & (1L << slot)) == 0) return null;
+		long v = _primitives[slot];
+		switch (kind) {
+		case MessageType.KIND_BOOLEAN:
+			return Boolean.valueOf(v != 0);
+		case MessageType.KIND_BYTE:
+			return Byte.valueOf((byte) v);
+		case MessageType.KIND_SHORT:
+			return Short.valueOf((short) v);
+		case MessageType.KIND_INT:
+			return Integer.valueOf((int) v);
+		case MessageType.KIND_LONG:
+			return Long.valueOf(v);
+		case MessageType.KIND_FLOAT:
+			return Float.valueOf(Float.intBitsToFloat((int) v));
+		case MessageType.KIND_DOUBLE:
+			return Double.valueOf(Double.longBitsToDouble(v));
+		default:
+			throw new IllegalStateException();
+		}
 	}
-	
+
 	public byte[] getShortBufferBytes(String key) {
 		ShortBuffer buffer = (ShortBuffer) getObject(key);
 		return buffer.getData();
 	}
 
 	public void set(String key, boolean b) {
-		set(key, Boolean.valueOf(b));
+		int index = _spec.getFieldIndex(key);
+		if (index >= 0 && _spec.fieldKind(index) == MessageType.KIND_BOOLEAN)
+			setPrimitive(index, b ? 1 : 0);
+		else
+			set(key, Boolean.valueOf(b));
 	}
 
 	public void set(String key, byte b) {
-		set(key, Byte.valueOf(b));
+		int index = _spec.getFieldIndex(key);
+		if (index >= 0 && _spec.fieldKind(index) == MessageType.KIND_BYTE)
+			setPrimitive(index, b);
+		else
+			set(key, Byte.valueOf(b));
 	}
 
 	public void set(String key, short s) {
-		set(key, Short.valueOf(s));
+		int index = _spec.getFieldIndex(key);
+		if (index >= 0 && _spec.fieldKind(index) == MessageType.KIND_SHORT)
+			setPrimitive(index, s);
+		else
+			set(key, Short.valueOf(s));
 	}
 
 	public void set(String key, int i) {
-		set(key, Integer.valueOf(i));
+		int index = _spec.getFieldIndex(key);
+		if (index >= 0 && _spec.fieldKind(index) == MessageType.KIND_INT)
+			setPrimitive(index, i);
+		else
+			set(key, Integer.valueOf(i));
 	}
 
 	public void set(String key, long l) {
-		set(key, Long.valueOf(l));
+		int index = _spec.getFieldIndex(key);
+		if (index >= 0 && _spec.fieldKind(index) == MessageType.KIND_LONG)
+			setPrimitive(index, l);
+		else
+			set(key, Long.valueOf(l));
 	}
 
 	public void set(String key, double d) {
-		set(key, Double.valueOf(d));
+		int index = _spec.getFieldIndex(key);
+		if (index >= 0 && _spec.fieldKind(index) == MessageType.KIND_DOUBLE)
+			setPrimitive(index, Double.doubleToRawLongBits(d));
+		else
+			set(key, Double.valueOf(d));
 	}
 
 	public void set(String key, float f) {
-		set(key, Float.valueOf(f));
+		int index = _spec.getFieldIndex(key);
+		if (index >= 0 && _spec.fieldKind(index) == MessageType.KIND_FLOAT)
+			setPrimitive(index, Float.floatToRawIntBits(f));
+		else
+			set(key, Float.valueOf(f));
+	}
+
+	private void setPrimitive(int index, long value) {
+		int slot = _spec.fieldSlot(index);
+		_primitives[slot] = value;
+		_primitivesSet |= 1L << slot;
 	}
 
 	public void set(String key, Object value) {
@@ -267,45 +364,230 @@ public class Message {
 			}
 			throw new IncorrectTypeException("Got " + value.getClass() + ", expected " + _spec.typeOf(key));
 		}
-		_payload.put(key, value);
+		int index = _spec.getFieldIndex(key);
+		switch (_spec.fieldKind(index)) {
+		case MessageType.KIND_OBJECT:
+			_objects[_spec.fieldSlot(index)] = value;
+			break;
+		case MessageType.KIND_BOOLEAN:
+			setPrimitive(index, ((Boolean) value) ? 1 : 0);
+			break;
+		case MessageType.KIND_FLOAT:
+			setPrimitive(index, Float.floatToRawIntBits((Float) value));
+			break;
+		case MessageType.KIND_DOUBLE:
+			setPrimitive(index, Double.doubleToRawLongBits((Double) value));
+			break;
+		default:
+			setPrimitive(index, ((Number) value).longValue());
+		}
+	}
+
+	/** Read a field from a packet. Primitive fields are read straight into their slots. */
+	private void readField(int index, ByteBufferInputStream bb) throws IOException {
+		switch (_spec.fieldKind(index)) {
+		case MessageType.KIND_BOOLEAN:
+			final byte bool = bb.readByte();
+			// Only 0 and 1 are written, see Serializer.
+			if (bool != 0 && bool != 1) throw new IOException("Boolean is non boolean value: " + bool);
+			setPrimitive(index, bool);
+			break;
+		case MessageType.KIND_BYTE:
+			setPrimitive(index, bb.readByte());
+			break;
+		case MessageType.KIND_SHORT:
+			setPrimitive(index, bb.readShort());
+			break;
+		case MessageType.KIND_INT:
+			setPrimitive(index, bb.readInt());
+			break;
+		case MessageType.KIND_LONG:
+			setPrimitive(index, bb.readLong());
+			break;
+		case MessageType.KIND_FLOAT:
+			setPrimitive(index, bb.readInt());
+			break;
+		case MessageType.KIND_DOUBLE:
+			setPrimitive(index, bb.readLong());
+			break;
+		default:
+			Class<?> type = _spec.fieldType(index);
+			Object value;
+			if (type.equals(LinkedList.class)) { // Special handling for LinkedList to deal with element type
+				value = Serializer.readListFromDataInputStream(_spec.getLinkedListTypes().get(_spec.fieldName(index)), bb);
+			} else {
+				value = Serializer.readFromDataInputStream(type, bb);
+			}
+			set(_spec.fieldName(index), value);
+		}
 	}
 
 	public byte[] encodeToPacket() {
-		return encodeToPacket(true, false);
+		byte[] buf = new byte[encodedLength(true)];
+		encodeToPacket(buf, 0, true);
+		if (logDEBUG) Logger.debug(this, "Length: "+buf.length+", hash: "+Fields.hashCode(buf));
+		return buf;
 	}
 
-	private byte[] encodeToPacket(boolean includeSubMessages, boolean isSubMessage) {
+	/** @return The number of bytes encodeToPacket() will write. */
+	public int getEncodedLength() {
+		return encodedLength(true);
+	}
 
-		if (logDEBUG) Logger.debug(this, "My spec code: "+_spec.getName().hashCode()+" for "+_spec.getName());
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		DataOutputStream dos = new DataOutputStream(baos);
-		try {
-			dos.writeInt(_spec.getName().hashCode());
-			for (String name : _spec.getOrderedFields()) {
-				Serializer.writeToDataOutputStream(_payload.get(name), dos);
+	/**
+	 * Encode the message into a buffer provided by the caller.
+	 * @return The number of bytes written, which is getEncodedLength().
+	 * @throws ArrayIndexOutOfBoundsException If the buffer is too small.
+	 */
+	public int encodeToPacket(byte[] buf, int offset) {
+		return encodeToPacket(buf, offset, true) - offset;
+	}
+
+	private int encodedLength(boolean includeSubMessages) {
+		int length = 4; // _spec.getName().hashCode()
+		for (int i = 0; i < _spec.getFieldCount(); i++) {
+			switch (_spec.fieldKind(i)) {
+			case MessageType.KIND_BOOLEAN:
+			case MessageType.KIND_BYTE:
+				length += 1;
+				break;
+			case MessageType.KIND_SHORT:
+				length += 2;
+				break;
+			case MessageType.KIND_INT:
+			case MessageType.KIND_FLOAT:
+				length += 4;
+				break;
+			case MessageType.KIND_LONG:
+			case MessageType.KIND_DOUBLE:
+				length += 8;
+				break;
+			default:
+				length += objectLength(i);
 			}
-			dos.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
-			throw new IllegalStateException(e.getMessage());
 		}
+		if (_subMessages != null && includeSubMessages) {
+			for (Message subMessage : _subMessages)
+				length += 2 + subMessage.encodedLength(false);
+		}
+		return length;
+	}
 
+	private int objectLength(int index) {
+		Object o = _objects[_spec.fieldSlot(index)];
+		if (o == null) throw new FieldNotSetException(_spec.fieldName(index)+" not set");
+		if (o instanceof ShortBuffer) return 2 + ((ShortBuffer) o).getLength();
+		if (o instanceof String) return 4 + ((String) o).length() * 2;
+		if (o instanceof double[]) return 1 + ((double[]) o).length * 8;
+		if (o instanceof float[]) return 2 + ((float[]) o).length * 4;
+		// Keys, Peers etc: count what Serializer would write.
+		PacketWriter counter = new PacketWriter(null, 0);
+		counter.writeObject(o);
+		return counter.pos;
+	}
+
+	/** @return The offset after the encoded message */
+	private int encodeToPacket(byte[] buf, int offset, boolean includeSubMessages) {
+		if (logDEBUG) Logger.debug(this, "My spec code: "+_spec.getName().hashCode()+" for "+_spec.getName());
+		PacketWriter out = new PacketWriter(buf, offset);
+		out.writeInt(_spec.getName().hashCode());
+		for (int i = 0; i < _spec.getFieldCount(); i++) {
+			byte kind = _spec.fieldKind(i);
+			if (kind == MessageType.KIND_OBJECT) {
+				Object o = _objects[_spec.fieldSlot(i)];
+				if (o == null) throw new FieldNotSetException(_spec.fieldName(i)+" not set");
+				out.writeObject(o);
+				continue;
+			}
+			int slot = _spec.fieldSlot(i);
+			if ((_primitivesSet & (1L << slot)) == 0) throw new FieldNotSetException(_spec.fieldName(i)+" not set");
+			long v = _primitives[slot];
+			switch (kind) {
+			case MessageType.KIND_BOOLEAN:
+			case MessageType.KIND_BYTE:
+				out.write((int) v);
+				break;
+			case MessageType.KIND_SHORT:
+				out.writeShort((int) v);
+				break;
+			case MessageType.KIND_INT:
+			case MessageType.KIND_FLOAT:
+				out.writeInt((int) v);
+				break;
+			default:
+				out.writeLong(v);
+			}
+		}
 		if (_subMessages != null && includeSubMessages) {
-			for (Message _subMessage : _subMessages) {
-				byte[] temp = _subMessage.encodeToPacket(false, true);
-				try {
-					dos.writeShort(temp.length);
-					dos.write(temp);
-				} catch (IOException e) {
-					e.printStackTrace();
-					throw new IllegalStateException(e.getMessage());
-				}
+			for (Message subMessage : _subMessages) {
+				int start = out.pos;
+				int end = subMessage.encodeToPacket(buf, start + 2, false);
+				out.writeShort(end - start - 2);
+				out.pos = end;
 			}
 		}
+		return out.pos;
+	}
 
-		byte[] buf = baos.toByteArray();
-		if (logDEBUG) Logger.debug(this, "Length: "+buf.length+", hash: "+Fields.hashCode(buf));
-		return buf;
+	/**
+	 * Writes a message directly into a byte array, in the same format as DataOutputStream. If
+	 * the array is null, just counts the bytes.
+	 */
+	private static class PacketWriter extends OutputStream {
+		private final byte[] buf;
+		int pos;
+		private DataOutputStream dos;
+
+		PacketWriter(byte[] buf, int pos) {
+			this.buf = buf;
+			this.pos = pos;
+		}
+
+		@Override
+		public void write(int b) {
+			if (buf != null) buf[pos] = (byte) b;
+			pos++;
+		}
+
+		@Override
+		public void write(byte[] data, int offset, int length) {
+			if (buf != null) System.arraycopy(data, offset, buf, pos, length);
+			pos += length;
+		}
+
+		void writeShort(int v) {
+			if (buf != null) {
+				buf[pos] = (byte) (v >>> 8);
+				buf[pos+1] = (byte) v;
+			}
+			pos += 2;
+		}
+
+		void writeInt(int v) {
+			if (buf != null) {
+				buf[pos] = (byte) (v >>> 24);
+				buf[pos+1] = (byte) (v >>> 16);
+				buf[pos+2] = (byte) (v >>> 8);
+				buf[pos+3] = (byte) v;
+			}
+			pos += 4;
+		}
+
+		void writeLong(long v) {
+			writeInt((int) (v >>> 32));
+			writeInt((int) v);
+		}
+
+		void writeObject(Object o) {
+			if (dos == null) dos = new DataOutputStream(this);
+			try {
+				Serializer.writeToDataOutputStream(o, dos);
+				dos.flush();
+			} catch (IOException e) {
+				// Impossible, we don't throw.
+				throw new IllegalStateException(e);
+			}
+		}
 	}
 
 	@Override
@@ -313,9 +595,9 @@ public class Message {
 		StringBuilder ret = new StringBuilder(1000);
 		String comma = "";
 		ret.append(_spec.getName()).append(" {");
-		for (String name : _spec.getFields().keySet()) {
+		for (int i = 0; i < _spec.getFieldCount(); i++) {
 			ret.append(comma);
-			ret.append(name).append('=').append(_payload.get(name));
+			ret.append(_spec.fieldName(i)).append('=').append(getObject(i));
 			comma = ", ";
 		}
 		ret.append('}');
@@ -335,17 +617,45 @@ public class Message {
 	}
 
 	public boolean isSet(String fieldName) {
-		return _payload.containsKey(fieldName);
+		int index = _spec.getFieldIndex(fieldName);
+		return index >= 0 && isSet(index);
+	}
+
+	/** @param index The index of the field, see MessageType.getFieldIndex(). */
+	public boolean isSet(int index) {
+		int slot = _spec.fieldSlot(index);
+		if (_spec.fieldKind(index) == MessageType.KIND_OBJECT) return _objects[slot] != null;
+		return (_primitivesSet & (1L << slot)) != 0;
 	}
 
 	public Object getFromPayload(String fieldName) throws FieldNotSetException {
-		Object r =  _payload.get(fieldName);
+		Object r =  getObject(fieldName);
 		if (r == null) {
 			throw new FieldNotSetException(fieldName+" not set");
 		}
 		return r;
 	}
 
+	/**
+	 * Is the field set to the given value? Equivalent to
+	 * value.equals(getFromPayload(fieldName)), but doesn't box primitive fields.
+	 */
+	boolean fieldEquals(String fieldName, Object value) {
+		int index = _spec.getFieldIndex(fieldName);
+		if (index < 0 || !isSet(index)) return false;
+		int slot = _spec.fieldSlot(index);
+		switch (_spec.fieldKind(index)) {
+		case MessageType.KIND_LONG:
+			return value instanceof Long && (Long) value == _primitives[slot];
+		case MessageType.KIND_INT:
+			return value instanceof Integer && (Integer) value == (int) _primitives[slot];
+		case MessageType.KIND_OBJECT:
+			return value.equals(_objects[slot]);
+		default:
+			return value.equals(getObject(index));
+		}
+	}
+
 	public static class FieldNotSetException extends RuntimeException {
 		private static final long serialVersionUID = 1L;
 
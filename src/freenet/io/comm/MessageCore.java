@@ -24,18 +24,17 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.ListIterator;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-import freenet.io.comm.MessageFilter.MATCHED;
+import freenet.io.comm.MessageFilterIndex.Entry;
+import freenet.io.comm.MessageFilterIndex.Unclaimed;
 import freenet.node.PeerNode;
 import freenet.support.Executor;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Ticker;
-import freenet.support.TimeUtil;
 import freenet.support.Logger.LogLevel;
 
 public class MessageCore {
@@ -56,23 +55,33 @@ public class MessageCore {
 
 	private Dispatcher _dispatcher;
 	private Executor _executor;
-	/** _filters serves as lock for both */
-	private final LinkedList<MessageFilter> _filters = new LinkedList<MessageFilter>();
-	private final LinkedList<Message> _unclaimed = new LinkedList<Message>();
-	private static final int MAX_UNMATCHED_FIFO_SIZE = 50000;
+	/** The number of stripes the filters and unclaimed messages are split into by source, so
+	 * that messages from different peers can be matched in parallel. Must be a power of 2. */
+	private static final int FILTER_STRIPES = 32;
+	/** Each stripe is its own lock, see MessageFilterIndex. */
+	private final MessageFilterIndex[] _stripes;
+	/** Orders filters with the same timeout, and unclaimed messages, across stripes. */
+	private final AtomicLong _sequence = new AtomicLong();
+	/** The number of unclaimed messages in all the stripes. */
+	private final AtomicInteger _unclaimedCount = new AtomicInteger();
+	/** The most unclaimed messages we keep, from all peers together, as with a single list. */
+	static final int MAX_UNMATCHED_FIFO_SIZE = 50000;
 	private static final long MAX_UNCLAIMED_FIFO_ITEM_LIFETIME = MINUTES.toMillis(10);  // maybe this should be per message type??
 	// FIXME do we need MIN_FILTER_REMOVE_TIME? Can we make this more efficient?
 	// FIXME may not work well for newly added filters with timeouts close to the minimum, or filters with timeouts close to the minimum in general.
 	private static final long MAX_FILTER_REMOVE_TIME = SECONDS.toMillis(10);
 	private static final long MIN_FILTER_REMOVE_TIME = SECONDS.toMillis(1);
 	private long startedTime;
-	
+
 	public synchronized long getStartedTime() {
 		return startedTime;
 	}
 
 	public MessageCore(Executor executor) {
 		_executor = executor;
+		_stripes = new MessageFilterIndex[FILTER_STRIPES];
+		for(int i=0;i<_stripes.length;i++)
+			_stripes[i] = new MessageFilterIndex(_unclaimedCount);
 	}
 
 	/**
@@ -110,10 +119,42 @@ public class MessageCore {
 					ticker.queueTimedJob(this, Math.max(MIN_FILTER_REMOVE_TIME, nextRun - System.currentTimeMillis()));
 				}
 			}
-    		
+
     	}, MIN_FILTER_REMOVE_TIME);
     }
-    
+
+    /** The stripe for messages from a peer */
+    private MessageFilterIndex stripeFor(PeerContext source) {
+    	if(source == null) return _stripes[0];
+    	int h = source.hashCode();
+    	h ^= (h >>> 16);
+    	return _stripes[h & (FILTER_STRIPES - 1)];
+    }
+
+    /** The stripes a filter must be added to: those of all the sources in the or() chain, or
+     * all of them if any of the filters in the chain doesn't have a source. */
+    private MessageFilterIndex[] stripesFor(Entry e) {
+    	if(e.sources == null) return _stripes;
+    	if(e.sources.length == 1) return new MessageFilterIndex[] { stripeFor(e.sources[0]) };
+    	ArrayList<MessageFilterIndex> stripes = new ArrayList<MessageFilterIndex>(e.sources.length);
+    	for(PeerContext source : e.sources) {
+    		MessageFilterIndex stripe = stripeFor(source);
+    		if(!stripes.contains(stripe)) stripes.add(stripe);
+    	}
+    	return stripes.toArray(new MessageFilterIndex[stripes.size()]);
+    }
+
+    /** Remove a filter from all its stripes, except one which it has already been removed from.
+     * Takes each stripe lock in turn, so the caller must not hold any of them. */
+    private void removeFromStripes(Entry e, MessageFilterIndex except) {
+    	for(MessageFilterIndex stripe : stripesFor(e)) {
+    		if(stripe == except) continue;
+    		synchronized(stripe) {
+    			stripe.remove(e);
+    		}
+    	}
+    }
+
     /**
      * Remove timed out filters.
      */
@@ -123,48 +164,21 @@ public class MessageCore {
 		// Avoids exhaustive and unsuccessful search in waitFor() removal of a timed out filter.
 		if(logMINOR)
 			Logger.minor(this, "Removing timed out filters");
-		HashSet<MessageFilter> timedOutFilters = null;
-		synchronized (_filters) {
-			for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-				MessageFilter f = i.next();
-				if (f.timedOut(tStart)) {
-					if(logMINOR)
-						Logger.minor(this, "Removing "+f);
-					i.remove();
-					if(timedOutFilters == null) 
-						timedOutFilters = new HashSet<MessageFilter>();
-					if(!timedOutFilters.add(f))
-						Logger.error(this, "Filter "+f+" is in filter list twice!");
-					if(logMINOR) {
-						for (ListIterator<Message> it = _unclaimed.listIterator(); it.hasNext();) {
-							Message m = it.next();
-							MATCHED status = f.match(m, true, tStart);
-							if (status == MATCHED.MATCHED) {
-								// Don't match it, we timed out; two-level timeouts etc may want it for the next filter.
-								Logger.error(this, "Timed out but should have matched in _unclaimed: "+m+" for "+f);
-								break;
-							}
-						}
-					}
-				} else {
-					if(f.hasCallback() && nextTimeout > f.getTimeout())
-						nextTimeout = f.getTimeout();
-				}
-				// Do not break after finding a non-timed-out filter because some filters may 
-				// be timed out because their client callbacks say they should be.
-				// Also simplifies the logic significantly, we've had some major bugs here.
-				
-				// See also the end of waitFor() for another weird case.
+		ArrayList<Entry> timedOutFilters = new ArrayList<Entry>();
+		for(MessageFilterIndex stripe : _stripes) {
+			synchronized (stripe) {
+				// Checks all the filters with callbacks, because some filters may be timed out
+				// because their client callbacks say they should be.
+				nextTimeout = stripe.removeTimedOut(tStart, nextTimeout, timedOutFilters);
 			}
 		}
-		
-		if(timedOutFilters != null) {
-			for(MessageFilter f : timedOutFilters) {
-				f.setMessage(null);
-				f.onTimedOut(_executor);
-			}
+
+		for(Entry e : timedOutFilters) {
+			removeFromStripes(e, null);
+			e.filter.setMessage(null);
+			e.filter.onTimedOut(_executor);
 		}
-		
+
 		long tEnd = System.currentTimeMillis();
 		if(tEnd - tStart > 50) {
 			if(tEnd - tStart > 3000)
@@ -182,55 +196,34 @@ public class MessageCore {
 	 */
 	public void checkFilters(Message m, PacketSocketHandler from) {
 		final boolean logMINOR = MessageCore.logMINOR;
-		final boolean logDEBUG = MessageCore.logDEBUG;
 		long tStart = System.currentTimeMillis();
 		if(logMINOR) Logger.minor(this, "checkFilters: "+m+" from "+m.getSource());
-		if ((m.getSource()) instanceof PeerNode)
+		PeerContext source = m.getSource();
+		if (source instanceof PeerNode)
 		{
-			((PeerNode)m.getSource()).addToLocalNodeReceivedMessagesFromStatistic(m);
+			((PeerNode)source).addToLocalNodeReceivedMessagesFromStatistic(m);
 		}
 		boolean matched = false;
 		if (logMINOR && !(m.getSpec().equals(DMT.packetTransmit))) {
 			Logger.minor(this, "" + (System.currentTimeMillis() % 60000) + ' ' + from + " <- "
-					+ m.getSource() + " : " + m);
+					+ source + " : " + m);
 		}
-		MessageFilter match = null;
-		ArrayList<MessageFilter> timedOut = null;
-		synchronized (_filters) {
-			for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-				MessageFilter f = i.next();
-				if (f.matched()) {
-					Logger.error(this, "removed pre-matched message filter found in _filters: "+f);
-					i.remove();
-					continue;
-				}
-				MATCHED status = f.match(m, tStart);
-				if(status == MATCHED.TIMED_OUT || status == MATCHED.TIMED_OUT_AND_MATCHED) {
-					if(timedOut == null)
-						timedOut = new ArrayList<MessageFilter>();
-					timedOut.add(f);
-					i.remove();
-					continue;
-				} else if(status == MATCHED.MATCHED) {
-					matched = true;
-					i.remove();
-					match = f;
-					// We must setMessage() inside the lock to ensure that waitFor() sees it even if it times out.
-					f.setMessage(m);
-					if(logMINOR) Logger.minor(this, "Matched (1): "+f);
-					break; // Only one match permitted per message
-				} else if(logDEBUG) Logger.minor(this, "Did not match "+f);
-			}
+		MessageFilterIndex stripe = stripeFor(source);
+		Entry match;
+		ArrayList<Entry> timedOut = new ArrayList<Entry>();
+		synchronized (stripe) {
+			// Only one match permitted per message. The filter's message is set inside the
+			// lock to ensure that waitFor() sees it even if it times out.
+			match = stripe.match(m, tStart, timedOut);
 		}
-		if(timedOut != null) {
-			for(MessageFilter f : timedOut) {
-				if(logMINOR) Logger.minor(this, "Timed out "+f);
-				f.setMessage(null);
-				f.onTimedOut(_executor);
-			}
+		if(match != null) {
+			matched = true;
+			if(logMINOR) Logger.minor(this, "Matched (1): "+match.filter);
 		}
+		onTimedOut(timedOut, stripe);
 		if(match != null) {
-			match.onMatched(_executor);
+			removeFromStripes(match, stripe);
+			match.filter.onMatched(_executor);
 		}
 		// Feed unmatched messages to the dispatcher
 		if ((!matched) && (_dispatcher != null)) {
@@ -241,14 +234,14 @@ public class MessageCore {
 		        Logger.error(this, "Dispatcher threw "+t, t);
 		    }
 		}
-		if(timedOut != null) timedOut.clear();
+		timedOut.clear();
 		// Keep the last few _unclaimed messages around in case the intended receiver isn't receiving yet
 		if (!matched) {
 			if(logMINOR) Logger.minor(this, "Unclaimed: "+m);
 		    /** Check filters and then add to _unmatched is ATOMIC
 		     * It has to be atomic, because otherwise we can get a
 		     * race condition that results in timeouts on MFs.
-		     * 
+		     *
 		     * Specifically:
 		     * - Thread A receives packet
 		     * - Thread A checks filters. It doesn't match any.
@@ -259,109 +252,132 @@ public class MessageCore {
 		     * - Thread B sleeps.
 		     * - Thread A returns from Dispatcher. Which didn't match.
 		     * - Thread A adds to _unmatched.
-		     * 
+		     *
 		     * OOPS!
 		     * The only way to fix this is to have checking the
 		     * filters and unmatched be a single atomic operation.
 		     * Another race is possible if we merely recheck the
 		     * filters after we return from dispatcher, for example.
+		     *
+		     * Any filter which could match the message is in the stripe for its source, and is
+		     * added while holding the stripe lock, so the stripe lock is sufficient.
 		     */
-			synchronized (_filters) {
+			synchronized (stripe) {
 				if(logMINOR) Logger.minor(this, "Rechecking filters and adding message");
-				for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-					MessageFilter f = i.next();
-					MATCHED status = f.match(m, tStart);
-					if(status == MATCHED.MATCHED) {
-						matched = true;
-						match = f;
-						i.remove();
-						if(logMINOR) Logger.minor(this, "Matched (2): "+f);
-						match.setMessage(m);
-						break; // Only one match permitted per message
-					} else if(status == MATCHED.TIMED_OUT || status == MATCHED.TIMED_OUT_AND_MATCHED) {
-						if(timedOut == null)
-							timedOut = new ArrayList<MessageFilter>();
-						timedOut.add(f);
-						i.remove();
-						continue;
-					}
-				}
-				if(!matched) {
-				    while (_unclaimed.size() > MAX_UNMATCHED_FIFO_SIZE) {
-				        Message removed = _unclaimed.removeFirst();
-				        long messageLifeTime = System.currentTimeMillis() - removed.localInstantiationTime;
-				        if ((removed.getSource()) instanceof PeerNode) {
-				            Logger.normal(this, "Dropping unclaimed from "+removed.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (quantity)"+": "+removed);
-				        } else {
-				            Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (quantity)"+": "+removed);
-				        }
-				    }
-				    _unclaimed.addLast(m);
-				    if(logMINOR) Logger.minor(this, "Done");
+				match = stripe.match(m, tStart, timedOut);
+				if(match == null) {
+					stripe.addUnclaimed(m, _sequence.incrementAndGet());
+					if(logMINOR) Logger.minor(this, "Done");
 				}
 			}
 			if(match != null) {
-				match.onMatched(_executor);
-			}
-			if(timedOut != null) {
-				for(MessageFilter f : timedOut) {
-					f.setMessage(null);
-					f.onTimedOut(_executor);
-				}
+				matched = true;
+				if(logMINOR) Logger.minor(this, "Matched (2): "+match.filter);
+				removeFromStripes(match, stripe);
+				match.filter.onMatched(_executor);
+			} else if(_unclaimedCount.get() > MAX_UNMATCHED_FIFO_SIZE) {
+				dropOldestUnclaimed();
 			}
+			onTimedOut(timedOut, stripe);
 		}
 		long tEnd = System.currentTimeMillis();
 		long dT = tEnd - tStart;
 		if(dT > 50) {
 			if(dT > 3000)
-				Logger.error(this, "checkFilters took "+(dT)+"ms with unclaimedFIFOSize of "+_unclaimed.size()+" for matched: "+matched);
+				Logger.error(this, "checkFilters took "+(dT)+"ms with unclaimedFIFOSize of "+getUnclaimedFIFOSize()+" for matched: "+matched);
 			else
-				if(logMINOR) Logger.minor(this, "checkFilters took "+(dT)+"ms with unclaimedFIFOSize of "+_unclaimed.size()+" for matched: "+matched);
+				if(logMINOR) Logger.minor(this, "checkFilters took "+(dT)+"ms with unclaimedFIFOSize of "+getUnclaimedFIFOSize()+" for matched: "+matched);
 		}
 	}
-	
+
+	/** Drop the oldest unclaimed messages, whichever stripes they are in, until there are no
+	 * more than MAX_UNMATCHED_FIFO_SIZE. Takes each stripe lock in turn, so the caller must not
+	 * hold any of them. */
+	private void dropOldestUnclaimed() {
+		while(_unclaimedCount.get() > MAX_UNMATCHED_FIFO_SIZE) {
+			MessageFilterIndex oldest = null;
+			long oldestSeq = Long.MAX_VALUE;
+			for(MessageFilterIndex stripe : _stripes) {
+				synchronized(stripe) {
+					long seq = stripe.oldestUnclaimedSeq();
+					if(seq < oldestSeq) {
+						oldest = stripe;
+						oldestSeq = seq;
+					}
+				}
+			}
+			if(oldest == null) return;
+			synchronized(oldest) {
+				// Another thread may have got there first.
+				if(_unclaimedCount.get() > MAX_UNMATCHED_FIFO_SIZE &&
+						oldest.oldestUnclaimedSeq() == oldestSeq)
+					oldest.dropOldestUnclaimed();
+			}
+		}
+	}
+
+	/** If a filter is in more than one stripe, move the stripe with the oldest unclaimed message
+	 * it matches to the front, so it is matched against the same message as it would be if all
+	 * the unclaimed messages were in one list. Takes each stripe lock in turn.
+	 * @param time The time to pass to MessageFilter.match().
+	 */
+	private MessageFilterIndex[] oldestUnclaimedFirst(MessageFilterIndex[] stripes, Entry e, long time, long messageDropTime, long now) {
+		if(stripes.length == 1) return stripes;
+		int best = -1;
+		long bestSeq = Long.MAX_VALUE;
+		for(int i=0;i<stripes.length;i++) {
+			synchronized(stripes[i]) {
+				stripes[i].dropUnclaimed(messageDropTime, now);
+				Unclaimed u = stripes[i].findUnclaimed(e, time);
+				if(u != null && u.seq < bestSeq) {
+					best = i;
+					bestSeq = u.seq;
+				}
+			}
+		}
+		if(best <= 0) return stripes;
+		// Don't change _stripes!
+		MessageFilterIndex[] ordered = stripes.clone();
+		ordered[0] = stripes[best];
+		ordered[best] = stripes[0];
+		return ordered;
+	}
+
+	/** Notify filters which were found to have timed out while matching a message in a stripe. */
+	private void onTimedOut(ArrayList<Entry> timedOut, MessageFilterIndex stripe) {
+		for(Entry e : timedOut) {
+			if(logMINOR) Logger.minor(this, "Timed out "+e.filter);
+			removeFromStripes(e, stripe);
+			e.filter.setMessage(null);
+			e.filter.onTimedOut(_executor);
+		}
+	}
+
 	/** IncomingPacketFilter should call this when a node is disconnected. */
 	public void onDisconnect(PeerContext ctx) {
-		ArrayList<MessageFilter> droppedFilters = null; // rare operation, we can waste objects for better locking
-	    synchronized(_filters) {
-			ListIterator<MessageFilter> i = _filters.listIterator();
-			while (i.hasNext()) {
-			    MessageFilter f = i.next();
-			    if(f.matchesDroppedConnection(ctx)) {
-			    	if(droppedFilters == null)
-			    		droppedFilters = new ArrayList<MessageFilter>();
-			    	droppedFilters.add(f);
-			    	i.remove();
-			    }
-			}
-	    }
-	    if(droppedFilters != null) {
-	    	for(MessageFilter mf : droppedFilters) {
-		        mf.onDroppedConnection(ctx, _executor);
-	    	}
+		ArrayList<Entry> droppedFilters = new ArrayList<Entry>(); // rare operation, we can waste objects for better locking
+		// Any filter depending on ctx is in its stripe.
+		MessageFilterIndex stripe = stripeFor(ctx);
+	    synchronized(stripe) {
+	    	stripe.removeDropped(ctx, false, droppedFilters);
 	    }
+    	for(Entry e : droppedFilters) {
+    		removeFromStripes(e, stripe);
+	        e.filter.onDroppedConnection(ctx, _executor);
+    	}
 	}
-	
+
 	/** IncomingPacketFilter should call this when a node connects with a new boot ID */
 	public void onRestart(PeerContext ctx) {
-		ArrayList<MessageFilter> droppedFilters = null; // rare operation, we can waste objects for better locking
-	    synchronized(_filters) {
-			ListIterator<MessageFilter> i = _filters.listIterator();
-			while (i.hasNext()) {
-			    MessageFilter f = i.next();
-			    if(f.matchesRestartedConnection(ctx)) {
-			    	if(droppedFilters == null)
-			    		droppedFilters = new ArrayList<MessageFilter>();
-			    	droppedFilters.add(f);
-			    	i.remove();
-			    }
-			}
-	    }
-	    if(droppedFilters != null) {
-	    	for(MessageFilter mf : droppedFilters) {
-		        mf.onRestartedConnection(ctx, _executor);
-	    	}
+		ArrayList<Entry> droppedFilters = new ArrayList<Entry>(); // rare operation, we can waste objects for better locking
+		MessageFilterIndex stripe = stripeFor(ctx);
+	    synchronized(stripe) {
+	    	stripe.removeDropped(ctx, true, droppedFilters);
 	    }
+    	for(Entry e : droppedFilters) {
+    		removeFromStripes(e, stripe);
+	        e.filter.onRestartedConnection(ctx, _executor);
+    	}
 	}
 
 	public void addAsyncFilter(MessageFilter filter, AsyncMessageFilterCallback callback, ByteCounter ctr) throws DisconnectedException {
@@ -378,65 +394,57 @@ public class MessageCore {
 			//or... filter.onDroppedConnection(filter.droppedConnection());
 		}
 		// Check to see whether the filter matches any of the recently _unclaimed messages
-		// Drop any _unclaimed messages that the filter doesn't match that are also older than MAX_UNCLAIMED_FIFO_ITEM_LIFETIME
+		// Drop any _unclaimed messages that are older than MAX_UNCLAIMED_FIFO_ITEM_LIFETIME
 		long now = System.currentTimeMillis();
 		long messageDropTime = now - MAX_UNCLAIMED_FIFO_ITEM_LIFETIME;
-		long messageLifeTime = 0;
 		long timeout = filter.getTimeout();
-		synchronized (_filters) {
-			//Once in the list, it is up to the callback system to trigger the disconnection, however, we may
-			//have disconnected between check above and locking, so we *must* check again.
-			if(filter.anyConnectionsDropped()) {
-				throw new DisconnectedException();
-				//or... filter.onDroppedConnection(filter.droppedConnection());
-				//but we are holding the _filters lock!
-			}
-			if(logMINOR) Logger.minor(this, "Checking _unclaimed");
-			for (ListIterator<Message> i = _unclaimed.listIterator(); i.hasNext();) {
-				Message m = i.next();
-				// These messages have already arrived, so we can match against them even if we are timed out.
-				MATCHED status = filter.match(m, true, now);
-				if (status == MATCHED.MATCHED) {
-					i.remove();
-					ret = m;
-					if(logMINOR) Logger.minor(this, "Matching from _unclaimed");
+		boolean add = timeout >= System.currentTimeMillis();
+		Entry e = new Entry(filter, _sequence.incrementAndGet());
+		boolean added = false;
+		boolean dropped = false;
+		// If the filter is in more than one stripe, it is added to each in turn, and may be
+		// matched by a new message in a stripe it has already been added to before we have
+		// finished. In that case whoever claims it first notifies it.
+		for(MessageFilterIndex stripe : oldestUnclaimedFirst(stripesFor(e), e, now, messageDropTime, now)) {
+			synchronized (stripe) {
+				//Once in the list, it is up to the callback system to trigger the disconnection, however, we may
+				//have disconnected between check above and locking, so we *must* check again.
+				if(filter.anyConnectionsDropped()) {
+					// Unless it was matched in another stripe in the meantime.
+					dropped = e.claim();
 					break;
-				} else if (m.localInstantiationTime < messageDropTime) {
-					i.remove();
-					messageLifeTime = now - m.localInstantiationTime;
-					if ((m.getSource()) instanceof PeerNode) {
-						Logger.normal(this, "Dropping unclaimed from "+m.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					} else {
-						Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					}
 				}
-			}
-			if (ret == null && timeout >= System.currentTimeMillis()) {
-				if(logMINOR) Logger.minor(this, "Not in _unclaimed");
-			    // Insert filter into filter list in order of timeout
-				ListIterator<MessageFilter> i = _filters.listIterator();
-				while (true) {
-					if (!i.hasNext()) {
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added at end");
-						return;
-					}
-					MessageFilter mf = i.next();
-					if (mf.getTimeout() > timeout) {
-						i.previous();
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added in middle - mf timeout="+mf.getTimeout()+" - my timeout="+filter.getTimeout());
-						return;
+				if(logMINOR) Logger.minor(this, "Checking _unclaimed");
+				stripe.dropUnclaimed(messageDropTime, now);
+				// These messages have already arrived, so we can match against them even if we are timed out.
+				Unclaimed u = stripe.findUnclaimed(e, now);
+				if(u != null) {
+					if(e.claim(u.message)) {
+						ret = stripe.takeUnclaimed(u);
+						if(logMINOR) Logger.minor(this, "Matching from _unclaimed");
 					}
+					break;
+				}
+				if(add) {
+				    // Insert filter into filter list in order of timeout
+					stripe.add(e);
+					added = true;
 				}
 			}
 		}
+		if(added && (dropped || e.isClaimed()))
+			removeFromStripes(e, null);
+		if(dropped) {
+			throw new DisconnectedException();
+			//or... filter.onDroppedConnection(filter.droppedConnection());
+		}
 		if(ret != null) {
-			filter.setMessage(ret);
 			filter.onMatched(_executor);
 			filter.clearMatched();
-		} else {
+		} else if(!add) {
 			filter.onTimedOut(_executor);
+		} else if(logMINOR) {
+			Logger.minor(this, "Added filter "+filter+" timeout="+timeout);
 		}
 	}
 
@@ -470,61 +478,38 @@ public class MessageCore {
 			throw new DisconnectedException();
 		}
 		// Check to see whether the filter matches any of the recently _unclaimed messages
-		// Drop any _unclaimed messages that the filter doesn't match that are also older than MAX_UNCLAIMED_FIFO_ITEM_LIFETIME
+		// Drop any _unclaimed messages that are older than MAX_UNCLAIMED_FIFO_ITEM_LIFETIME
 		long now = System.currentTimeMillis();
 		long messageDropTime = now - MAX_UNCLAIMED_FIFO_ITEM_LIFETIME;
-		long messageLifeTime = 0;
-		synchronized (_filters) {
-			if(logMINOR) Logger.minor(this, "Checking _unclaimed");
-			for (ListIterator<Message> i = _unclaimed.listIterator(); i.hasNext();) {
-				Message m = i.next();
-				MATCHED status = filter.match(m, true, startTime);
-				if(status == MATCHED.MATCHED) {
-					i.remove();
-					ret = m;
-					if(logMINOR) Logger.minor(this, "Matching from _unclaimed");
-					break;
-				} else if (m.localInstantiationTime < messageDropTime) {
-					i.remove();
-					messageLifeTime = now - m.localInstantiationTime;
-					if ((m.getSource()) instanceof PeerNode) {
-						Logger.normal(this, "Dropping unclaimed from "+m.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					} else {
-						Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
+		Entry e = new Entry(filter, _sequence.incrementAndGet());
+		for(MessageFilterIndex stripe : oldestUnclaimedFirst(stripesFor(e), e, startTime, messageDropTime, now)) {
+			synchronized (stripe) {
+				if(logMINOR) Logger.minor(this, "Checking _unclaimed");
+				stripe.dropUnclaimed(messageDropTime, now);
+				Unclaimed u = stripe.findUnclaimed(e, startTime);
+				if(u != null) {
+					// If we can't claim it, it was matched in a stripe we've already added it to.
+					if(e.claim(u.message)) {
+						ret = stripe.takeUnclaimed(u);
+						if(logMINOR) Logger.minor(this, "Matching from _unclaimed");
 					}
+					break;
 				}
-			}
-			if (ret == null) {
-				if(logMINOR) Logger.minor(this, "Not in _unclaimed");
 			    // Insert filter into filter list in order of timeout
-				ListIterator<MessageFilter> i = _filters.listIterator();
-				while (true) {
-					if (!i.hasNext()) {
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added at end "+filter);
-						break;
-					}
-					MessageFilter mf = i.next();
-					if (mf.getTimeout() > filter.getTimeout()) {
-						i.previous();
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added in middle - mf timeout="+mf.getTimeout()+" - my timeout="+filter.getTimeout()+" filter "+filter);
-						break;
-					}
-				}
+				stripe.add(e);
 			}
 		}
 		long tEnd = System.currentTimeMillis();
 		if(tEnd - now > 50) {
 			if(tEnd - now > 3000)
-				Logger.error(this, "waitFor _unclaimed iteration took "+(tEnd-now)+"ms with unclaimedFIFOSize of "+_unclaimed.size()+" for ret of "+ret);
+				Logger.error(this, "waitFor _unclaimed iteration took "+(tEnd-now)+"ms with unclaimedFIFOSize of "+getUnclaimedFIFOSize()+" for ret of "+ret);
 			else
-				if(logMINOR) Logger.minor(this, "waitFor _unclaimed iteration took "+(tEnd-now)+"ms with unclaimedFIFOSize of "+_unclaimed.size()+" for ret of "+ret);
+				if(logMINOR) Logger.minor(this, "waitFor _unclaimed iteration took "+(tEnd-now)+"ms with unclaimedFIFOSize of "+getUnclaimedFIFOSize()+" for ret of "+ret);
 		}
 		// Unlock to wait on filter
 		// Waiting on the filter won't release the outer lock
 		// So we have to release it here
-		if(ret == null) {	
+		if(ret == null) {
 			if(logMINOR) Logger.minor(this, "Waiting...");
 			synchronized (filter) {
 				try {
@@ -539,38 +524,32 @@ public class MessageCore {
 					}
 				    if(filter.droppedConnection() != null)
 				        throw new DisconnectedException();
-				} catch (InterruptedException e) {
+				} catch (InterruptedException ex) {
 				}
 				ret = filter.getMessage();
 			}
 			if(logMINOR) Logger.minor(this, "Returning "+ret+" from "+filter);
 		}
-		
+
 		// More tricky locking ...
-		
-		synchronized(_filters) {
-			// Some nasty race conditions can happen here.
-			// E.g. the filter can be matched and yet we timeout at the same time.
-			// Hence we need to be absolutely sure that when we remove it it hasn't been matched.
-			// Note also that the locking does work here - the filter lock is taken last, and
-			// _filters protects both the unwanted messages (above), the filter list, and 
-			// is taken when a match is found too.
-			if(ret == null) {
-				// Check again.
-				if(filter.matched()) {
-					ret = filter.getMessage();
-				}
+
+		// Some nasty race conditions can happen here.
+		// E.g. the filter can be matched and yet we timeout at the same time.
+		// Hence we need to be absolutely sure that when we remove it it hasn't been matched.
+		// We must remove it from all the stripes before we return, or when it is re-added,
+		// it will be in the list twice, and potentially many more times than twice!
+		// The message is set while holding the stripe lock when a match is found, so once
+		// we have removed it from every stripe, matched() is final.
+		removeFromStripes(e, null);
+		if(ret == null) {
+			// Check again.
+			if(filter.matched()) {
+				ret = filter.getMessage();
 			}
-			filter.clearMatched();
-			// We must remove it from _filters before we return, or when it is re-added,
-			// it will be in the list twice, and potentially many more times than twice!
-			// Fortunately, it will be close to the beginning of the filters list, having
-			// just timed out. That is assuming it hasn't already been removed; in that
-			// case, this will be slower.
-			_filters.remove(filter);
-			// A filter being waitFor()'ed cannot have any callbacks, so we don't need to call onMatched().
 		}
-		
+		filter.clearMatched();
+		// A filter being waitFor()'ed cannot have any callbacks, so we don't need to call onMatched().
+
 		// Probably get rid...
 //		if (Dijjer.getDijjer().getDumpMessageWaitTimes() != null) {
 //			Dijjer.getDijjer().getDumpMessageWaitTimes().println(filter.toString() + "\t" + filter.getInitialTimeout() + "\t"
@@ -604,24 +583,14 @@ public class MessageCore {
 	 * @return the number of received messages that are currently unclaimed
 	 */
 	public int getUnclaimedFIFOSize() {
-		synchronized (_filters){
-			return _unclaimed.size();
-		}
+		return _unclaimedCount.get();
 	}
-	
+
 	public Map<String, Integer> getUnclaimedFIFOMessageCounts() {
-		Map<String, Integer> messageCounts = new HashMap<String, Integer>();
-		synchronized(_filters) {
-			for (ListIterator<Message> i = _unclaimed.listIterator(); i.hasNext();) {
-				Message m = i.next();
-				String messageName = m.getSpec().getName();
-				Integer messageCount = messageCounts.get(messageName);
-				if (messageCount == null) {
-					messageCounts.put(messageName, Integer.valueOf(1) );
-				} else {
-					messageCount = Integer.valueOf(messageCount.intValue() + 1);
-					messageCounts.put(messageName, messageCount );
-				}
+		HashMap<String, Integer> messageCounts = new HashMap<String, Integer>();
+		for(MessageFilterIndex stripe : _stripes) {
+			synchronized(stripe) {
+				stripe.countUnclaimed(messageCounts);
 			}
 		}
 		return messageCounts;
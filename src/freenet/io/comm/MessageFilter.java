@@ -138,6 +138,24 @@ public final class MessageFilter {
 		return _source;
 	}
 
+	MessageType getType() {
+		return _type;
+	}
+
+	/** The next filter in the or() chain, or null */
+	MessageFilter getOr() {
+		return _or;
+	}
+
+	/** The value a field must have to match this filter (ignoring the or() chain), or null if
+	 * the filter doesn't check the field. */
+	Object getField(String fieldName) {
+		synchronized (_fields) {
+			final int i = _fieldNames.indexOf(fieldName);
+			return i < 0 ? null : _fields.get(i);
+		}
+	}
+
 	public MessageFilter setField(String fieldName, boolean value) {
 		return setField(fieldName, Boolean.valueOf(value));
 	}
@@ -224,12 +242,7 @@ public final class MessageFilter {
 		}
 		synchronized (_fields) {
 			for (int i = 0; i < _fieldNames.size(); i++) {
-				final String fieldName = _fieldNames.get(i);
-				if (!m.isSet(fieldName)) {
-					return resultNoMatch;
-				}
-				final Object fieldValue = _fields.get(i);
-				if (!fieldValue.equals(m.getFromPayload(fieldName))) {
+				if (!m.fieldEquals(_fieldNames.get(i), _fields.get(i))) {
 					return resultNoMatch;
 				}
 			}
@@ -0,0 +1,484 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import freenet.io.comm.MessageFilter.MATCHED;
+import freenet.node.PeerNode;
+import freenet.support.Logger;
+import freenet.support.TimeUtil;
+
+/**
+ * One stripe of MessageCore's filters and unclaimed messages. Each stripe holds the filters
+ * which might match messages from some of the peers, and the unclaimed messages from those
+ * peers, so that matching a message only needs the lock for the stripe of its source.
+ *
+ * Filters are indexed by (source, type, UID) for each filter in the or() chain, so a message is
+ * only compared against the filters which could match it. Filters without a source or a type
+ * can't be indexed; they are kept in a separate list which every message is compared against.
+ * All filters are also kept in order of timeout for expiry. Unclaimed messages are indexed by
+ * (source, type) so that a new filter doesn't need to look at every unclaimed message either.
+ *
+ * A filter can be in more than one stripe, e.g. if it has no source, so each filter is wrapped
+ * in an Entry which can only be claimed (matched, timed out, disconnected or removed) once.
+ *
+ * LOCKING: Not thread-safe, MessageCore synchronizes on the stripe. The Entry lock is taken
+ * after the stripe lock. Never take more than one stripe lock at once.
+ */
+final class MessageFilterIndex {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(MessageFilterIndex.class);
+	}
+
+	/** A message or a filter's (source, type, UID). UID is null if not known / not filtered. */
+	static final class FilterKey {
+		final PeerContext source;
+		final MessageType type;
+		final Long uid;
+		private final int hashCode;
+
+		FilterKey(PeerContext source, MessageType type, Long uid) {
+			this.source = source;
+			this.type = type;
+			this.uid = uid;
+			int h = type.hashCode();
+			if(source != null) h = h * 31 + source.hashCode();
+			if(uid != null) h = h * 31 + uid.hashCode();
+			hashCode = h;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(o == this) return true;
+			if(!(o instanceof FilterKey)) return false;
+			FilterKey k = (FilterKey) o;
+			if(hashCode != k.hashCode) return false;
+			if(!type.equals(k.type)) return false;
+			if(source == null ? k.source != null : !source.equals(k.source)) return false;
+			return uid == null ? k.uid == null : uid.equals(k.uid);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+	}
+
+	/**
+	 * A filter which has been added to one or more stripes. Ordered by timeout and then by the
+	 * order in which they were added, which is the order in which filters get priority.
+	 */
+	static final class Entry implements Comparable<Entry> {
+		final MessageFilter filter;
+		/** The filter's timeout when it was added */
+		final long timeout;
+		final long seq;
+		final boolean hasCallback;
+		/** The distinct keys of the filters in the or() chain, or null if any of them can't be
+		 * indexed because it has no source or no type. */
+		final FilterKey[] keys;
+		/** The sources of the filters in the or() chain, or null if any of them doesn't have
+		 * one, in which case the filter must be added to every stripe. */
+		final PeerContext[] sources;
+		private boolean claimed;
+
+		Entry(MessageFilter filter, long seq) {
+			this.filter = filter;
+			this.timeout = filter.getTimeout();
+			this.seq = seq;
+			this.hasCallback = filter.hasCallback();
+			ArrayList<FilterKey> keys = new ArrayList<FilterKey>();
+			ArrayList<PeerContext> sources = new ArrayList<PeerContext>();
+			for(MessageFilter f = filter; f != null; f = f.getOr()) {
+				PeerContext source = f.getSource();
+				MessageType type = f.getType();
+				if(sources != null) {
+					if(source == null) sources = null;
+					else if(!sources.contains(source)) sources.add(source);
+				}
+				if(keys != null) {
+					if(source == null || type == null) {
+						keys = null;
+					} else {
+						Object uid = f.getField(DMT.UID);
+						FilterKey key = new FilterKey(source, type, uid instanceof Long ? (Long) uid : null);
+						if(!keys.contains(key)) keys.add(key);
+					}
+				}
+			}
+			this.keys = keys == null ? null : keys.toArray(new FilterKey[keys.size()]);
+			this.sources = sources == null ? null : sources.toArray(new PeerContext[sources.size()]);
+		}
+
+		/** Claim the filter for a match, and set the message while we have the lock, so that
+		 * waitFor() sees it once it has removed the filter from the stripes.
+		 * @return False if the filter has already been claimed. */
+		synchronized boolean claim(Message m) {
+			if(claimed) return false;
+			claimed = true;
+			filter.setMessage(m);
+			return true;
+		}
+
+		/** Claim the filter e.g. because it has timed out.
+		 * @return False if the filter has already been claimed. */
+		synchronized boolean claim() {
+			if(claimed) return false;
+			claimed = true;
+			return true;
+		}
+
+		synchronized boolean isClaimed() {
+			return claimed;
+		}
+
+		@Override
+		public int compareTo(Entry e) {
+			if(timeout != e.timeout) return timeout < e.timeout ? -1 : 1;
+			if(seq != e.seq) return seq < e.seq ? -1 : 1;
+			return 0;
+		}
+
+		@Override
+		public String toString() {
+			return super.toString()+":"+filter;
+		}
+
+	}
+
+	/** An unclaimed message, with the order in which it was added to any stripe. */
+	static final class Unclaimed {
+		final Message message;
+		final FilterKey key;
+		final long seq;
+
+		Unclaimed(Message message, FilterKey key, long seq) {
+			this.message = message;
+			this.key = key;
+			this.seq = seq;
+		}
+	}
+
+	private final HashMap<FilterKey, ArrayList<Entry>> filtersByKey = new HashMap<FilterKey, ArrayList<Entry>>();
+	/** Filters which can't be indexed, in order of priority. */
+	private final ArrayList<Entry> unindexedFilters = new ArrayList<Entry>();
+	/** All the filters, in order of timeout */
+	private final TreeSet<Entry> filtersByTimeout = new TreeSet<Entry>();
+	/** Filters with a callback, which can time out at any time if the callback says so. */
+	private final LinkedHashSet<Entry> filtersWithCallback = new LinkedHashSet<Entry>();
+	private final HashMap<MessageFilter, Entry> entriesByFilter = new HashMap<MessageFilter, Entry>();
+
+	/** Unclaimed messages in the order they were received. */
+	private final LinkedHashSet<Unclaimed> unclaimed = new LinkedHashSet<Unclaimed>();
+	/** Unclaimed messages by (source, type) */
+	private final HashMap<FilterKey, ArrayList<Unclaimed>> unclaimedByKey = new HashMap<FilterKey, ArrayList<Unclaimed>>();
+	/** The number of unclaimed messages in all the stripes, which MessageCore limits. */
+	private final AtomicInteger totalUnclaimed;
+
+	MessageFilterIndex(AtomicInteger totalUnclaimed) {
+		this.totalUnclaimed = totalUnclaimed;
+	}
+
+	void add(Entry e) {
+		if(e.keys == null) {
+			insertSorted(unindexedFilters, e);
+		} else {
+			for(FilterKey key : e.keys) {
+				ArrayList<Entry> list = filtersByKey.get(key);
+				if(list == null) {
+					list = new ArrayList<Entry>(2);
+					filtersByKey.put(key, list);
+				}
+				insertSorted(list, e);
+			}
+		}
+		filtersByTimeout.add(e);
+		if(e.hasCallback)
+			filtersWithCallback.add(e);
+		Entry old = entriesByFilter.put(e.filter, e);
+		if(old != null && !old.isClaimed())
+			Logger.error(this, "Filter "+e.filter+" is in filter list twice!");
+	}
+
+	private static void insertSorted(ArrayList<Entry> list, Entry e) {
+		int i = list.size();
+		while(i > 0 && list.get(i-1).compareTo(e) > 0)
+			i--;
+		list.add(i, e);
+	}
+
+	/** Remove an entry from this stripe. It may have been removed already. */
+	void remove(Entry e) {
+		if(!filtersByTimeout.remove(e)) return;
+		if(e.keys == null) {
+			unindexedFilters.remove(e);
+		} else {
+			for(FilterKey key : e.keys) {
+				ArrayList<Entry> list = filtersByKey.get(key);
+				if(list == null) continue;
+				list.remove(e);
+				if(list.isEmpty()) filtersByKey.remove(key);
+			}
+		}
+		if(e.hasCallback)
+			filtersWithCallback.remove(e);
+		if(entriesByFilter.get(e.filter) == e)
+			entriesByFilter.remove(e.filter);
+	}
+
+	/** Get the unclaimed entry for a filter. */
+	Entry getEntry(MessageFilter filter) {
+		return entriesByFilter.get(filter);
+	}
+
+	/**
+	 * Find the filter with the earliest timeout which matches a message, claim it and remove
+	 * it from this stripe.
+	 * @param timedOut Filters which turn out to have timed out are claimed, removed and added
+	 * to this list.
+	 * @return The matched filter, with the message set, or null.
+	 */
+	Entry match(Message m, long now, List<Entry> timedOut) {
+		PeerContext source = m.getSource();
+		MessageType type = m.getSpec();
+		ArrayList<Entry> withUID = null;
+		if(source != null && m.isSet(DMT.UID)) {
+			Object uid = m.getFromPayload(DMT.UID);
+			if(uid instanceof Long)
+				withUID = filtersByKey.get(new FilterKey(source, type, (Long) uid));
+		}
+		ArrayList<Entry> withoutUID = source == null ? null : filtersByKey.get(new FilterKey(source, type, null));
+		while(true) {
+			ArrayList<Entry> remove = null;
+			Entry best = null;
+			for(int i=0;i<3;i++) {
+				ArrayList<Entry> list = i == 0 ? withUID : (i == 1 ? withoutUID : unindexedFilters);
+				if(list == null) continue;
+				for(Entry e : list) {
+					if(best != null && e.compareTo(best) > 0) break;
+					if(e.isClaimed()) {
+						// Already matched etc in another stripe.
+						if(remove == null) remove = new ArrayList<Entry>();
+						remove.add(e);
+						continue;
+					}
+					MessageFilter f = e.filter;
+					if(f.matched()) {
+						Logger.error(this, "removed pre-matched message filter found in _filters: "+f);
+						if(e.claim()) {
+							if(remove == null) remove = new ArrayList<Entry>();
+							remove.add(e);
+						}
+						continue;
+					}
+					MATCHED status = f.match(m, now);
+					if(status == MATCHED.TIMED_OUT || status == MATCHED.TIMED_OUT_AND_MATCHED) {
+						if(e.claim()) {
+							timedOut.add(e);
+							if(remove == null) remove = new ArrayList<Entry>();
+							remove.add(e);
+						}
+					} else if(status == MATCHED.MATCHED) {
+						best = e;
+						break; // The rest of the list has later timeouts.
+					}
+				}
+			}
+			if(remove != null) {
+				for(Entry e : remove)
+					remove(e);
+			}
+			if(best == null) return null;
+			if(best.claim(m)) {
+				remove(best);
+				return best;
+			}
+			// Claimed by another stripe since we checked, try again.
+			remove(best);
+		}
+	}
+
+	/**
+	 * Remove filters which have timed out, or whose callbacks say they should time out.
+	 * @param timedOut Filters which have timed out are claimed, removed and added to this list.
+	 * @return The earliest timeout of the filters with callbacks, or nextTimeout if that is
+	 * sooner.
+	 */
+	long removeTimedOut(long now, long nextTimeout, List<Entry> timedOut) {
+		ArrayList<Entry> remove = null;
+		// Filters which have passed their timeout. Only filters with callbacks can time out early.
+		for(Entry e : filtersByTimeout) {
+			if(e.timeout >= now) break;
+			if(remove == null) remove = new ArrayList<Entry>();
+			remove.add(e);
+		}
+		for(Entry e : filtersWithCallback) {
+			if(e.timeout < now) continue; // Already dealt with.
+			if(e.isClaimed() || e.filter.timedOut(now)) {
+				if(remove == null) remove = new ArrayList<Entry>();
+				remove.add(e);
+			} else if(nextTimeout > e.filter.getTimeout()) {
+				nextTimeout = e.filter.getTimeout();
+			}
+		}
+		if(remove != null) {
+			for(Entry e : remove) {
+				remove(e);
+				if(!e.claim()) continue;
+				if(logMINOR) {
+					Logger.minor(this, "Removing "+e.filter);
+					Unclaimed u = findUnclaimed(e, now);
+					if(u != null) {
+						// Don't match it, we timed out; two-level timeouts etc may want it for the next filter.
+						Logger.error(this, "Timed out but should have matched in _unclaimed: "+u.message+" for "+e.filter);
+					}
+				}
+				timedOut.add(e);
+			}
+		}
+		return nextTimeout;
+	}
+
+	/**
+	 * Claim and remove the filters which depend on a peer which has disconnected or restarted.
+	 * @param restarted If true, the peer has restarted, otherwise it has disconnected.
+	 * @param dropped Filters which are claimed are added to this list.
+	 */
+	void removeDropped(PeerContext ctx, boolean restarted, List<Entry> dropped) {
+		ArrayList<Entry> remove = null;
+		for(Entry e : filtersByTimeout) {
+			if(restarted ? e.filter.matchesRestartedConnection(ctx) : e.filter.matchesDroppedConnection(ctx)) {
+				if(remove == null) remove = new ArrayList<Entry>();
+				remove.add(e);
+			}
+		}
+		if(remove == null) return;
+		for(Entry e : remove) {
+			remove(e);
+			if(e.claim())
+				dropped.add(e);
+		}
+	}
+
+	/** Add an unclaimed message. MessageCore drops the oldest if there are too many in all the
+	 * stripes. */
+	void addUnclaimed(Message m, long seq) {
+		Unclaimed u = new Unclaimed(m, new FilterKey(m.getSource(), m.getSpec(), null), seq);
+		unclaimed.add(u);
+		totalUnclaimed.incrementAndGet();
+		ArrayList<Unclaimed> list = unclaimedByKey.get(u.key);
+		if(list == null) {
+			list = new ArrayList<Unclaimed>(2);
+			unclaimedByKey.put(u.key, list);
+		}
+		list.add(u);
+	}
+
+	private void removeUnclaimed(Unclaimed u) {
+		if(!unclaimed.remove(u)) return;
+		totalUnclaimed.decrementAndGet();
+		ArrayList<Unclaimed> list = unclaimedByKey.get(u.key);
+		if(list == null) return;
+		list.remove(u);
+		if(list.isEmpty()) unclaimedByKey.remove(u.key);
+	}
+
+	/** Drop unclaimed messages which were received before the given time. */
+	void dropUnclaimed(long messageDropTime, long now) {
+		for(Iterator<Unclaimed> i = unclaimed.iterator(); i.hasNext();) {
+			Unclaimed u = i.next();
+			if(u.message.localInstantiationTime >= messageDropTime) break;
+			i.remove();
+			totalUnclaimed.decrementAndGet();
+			ArrayList<Unclaimed> list = unclaimedByKey.get(u.key);
+			list.remove(u);
+			if(list.isEmpty()) unclaimedByKey.remove(u.key);
+			logDropped(u.message, now - u.message.localInstantiationTime, "age");
+		}
+	}
+
+	/** @return The order in which the oldest unclaimed message in this stripe was received, or
+	 * Long.MAX_VALUE if there are none. */
+	long oldestUnclaimedSeq() {
+		if(unclaimed.isEmpty()) return Long.MAX_VALUE;
+		return unclaimed.iterator().next().seq;
+	}
+
+	/** Drop the oldest unclaimed message in this stripe, because there are too many. */
+	void dropOldestUnclaimed() {
+		if(unclaimed.isEmpty()) return;
+		Unclaimed removed = unclaimed.iterator().next();
+		removeUnclaimed(removed);
+		long messageLifeTime = System.currentTimeMillis() - removed.message.localInstantiationTime;
+		logDropped(removed.message, messageLifeTime, "quantity");
+	}
+
+	private void logDropped(Message m, long messageLifeTime, String reason) {
+		if ((m.getSource()) instanceof PeerNode) {
+			Logger.normal(this, "Dropping unclaimed from "+m.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" ("+reason+")"+": "+m);
+		} else {
+			Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" ("+reason+")"+": "+m);
+		}
+	}
+
+	/**
+	 * Find the oldest unclaimed message in this stripe that matches a filter, ignoring timeouts
+	 * since the messages have already arrived.
+	 * @return The message, to be passed to takeUnclaimed(), or null.
+	 */
+	Unclaimed findUnclaimed(Entry e, long now) {
+		if(unclaimed.isEmpty()) return null;
+		if(e.keys == null) {
+			for(Unclaimed u : unclaimed) {
+				if(e.filter.match(u.message, true, now) == MATCHED.MATCHED)
+					return u;
+			}
+			return null;
+		}
+		Unclaimed best = null;
+		for(FilterKey key : e.keys) {
+			ArrayList<Unclaimed> list = unclaimedByKey.get(key.uid == null ? key : new FilterKey(key.source, key.type, null));
+			if(list == null) continue;
+			for(Unclaimed u : list) {
+				if(best != null && u.seq >= best.seq) break;
+				if(e.filter.match(u.message, true, now) == MATCHED.MATCHED) {
+					best = u;
+					break;
+				}
+			}
+		}
+		return best;
+	}
+
+	/** Remove an unclaimed message found by findUnclaimed() and return it. */
+	Message takeUnclaimed(Unclaimed u) {
+		removeUnclaimed(u);
+		return u.message;
+	}
+
+	/** Count the unclaimed messages by message type name. */
+	void countUnclaimed(HashMap<String, Integer> messageCounts) {
+		for(Unclaimed u : unclaimed) {
+			String messageName = u.message.getSpec().getName();
+			Integer messageCount = messageCounts.get(messageName);
+			if (messageCount == null) {
+				messageCounts.put(messageName, Integer.valueOf(1) );
+			} else {
+				messageCounts.put(messageName, Integer.valueOf(messageCount.intValue() + 1) );
+			}
+		}
+	}
+
+}
@@ -19,6 +19,7 @@
 
 package freenet.io.comm;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
@@ -41,6 +42,27 @@ public class MessageType {
 	private final short priority;
 	private final boolean isLossyPacketMessage;
 
+	/* The layout of a Message's fields: each field has an index, in the order they were added,
+	 * and a slot, which is either in Message's array of primitive values or in its array of
+	 * objects depending on the kind. */
+	static final byte KIND_OBJECT = 0;
+	static final byte KIND_BOOLEAN = 1;
+	static final byte KIND_BYTE = 2;
+	static final byte KIND_SHORT = 3;
+	static final byte KIND_INT = 4;
+	static final byte KIND_LONG = 5;
+	static final byte KIND_FLOAT = 6;
+	static final byte KIND_DOUBLE = 7;
+	/** Primitive fields are tracked with a bit mask in Message. */
+	static final int MAX_PRIMITIVE_FIELDS = 64;
+	private final HashMap<String, Integer> _fieldIndexes = new HashMap<String, Integer>();
+	private String[] _fieldNames = new String[0];
+	private Class<?>[] _fieldTypes = new Class<?>[0];
+	private byte[] _fieldKinds = new byte[0];
+	private int[] _fieldSlots = new int[0];
+	private int _primitiveCount;
+	private int _objectCount;
+
 	public MessageType(String name, short priority) {
 	    this(name, priority, false, false);
 	}
@@ -68,9 +90,77 @@ public class MessageType {
 	}
 
 	public void addField(String name, Class<?> type) {
+		if(_fieldIndexes.containsKey(name))
+			throw new IllegalStateException("Field \"" + name + "\" added twice to " + _name);
+		byte kind = kindOf(type);
+		int slot;
+		if(kind == KIND_OBJECT) {
+			slot = _objectCount++;
+		} else {
+			if(_primitiveCount == MAX_PRIMITIVE_FIELDS)
+				throw new IllegalStateException("Too many primitive fields in " + _name);
+			slot = _primitiveCount++;
+		}
+		int index = _fieldNames.length;
+		_fieldNames = Arrays.copyOf(_fieldNames, index + 1);
+		_fieldTypes = Arrays.copyOf(_fieldTypes, index + 1);
+		_fieldKinds = Arrays.copyOf(_fieldKinds, index + 1);
+		_fieldSlots = Arrays.copyOf(_fieldSlots, index + 1);
+		_fieldNames[index] = name;
+		_fieldTypes[index] = type;
+		_fieldKinds[index] = kind;
+		_fieldSlots[index] = slot;
+		_fieldIndexes.put(name, index);
 		_fields.put(name, type);
 		_orderedFields.addLast(name);
 	}
+
+	private static byte kindOf(Class<?> type) {
+		if(type == Boolean.class) return KIND_BOOLEAN;
+		if(type == Byte.class) return KIND_BYTE;
+		if(type == Short.class) return KIND_SHORT;
+		if(type == Integer.class) return KIND_INT;
+		if(type == Long.class) return KIND_LONG;
+		if(type == Float.class) return KIND_FLOAT;
+		if(type == Double.class) return KIND_DOUBLE;
+		return KIND_OBJECT;
+	}
+
+	/** @return The index of the field, in the order the fields were added, or -1 if there is
+	 * no such field. */
+	public int getFieldIndex(String name) {
+		Integer index = _fieldIndexes.get(name);
+		return index == null ? -1 : index;
+	}
+
+	/** @return The number of fields */
+	public int getFieldCount() {
+		return _fieldNames.length;
+	}
+
+	String fieldName(int index) {
+		return _fieldNames[index];
+	}
+
+	Class<?> fieldType(int index) {
+		return _fieldTypes[index];
+	}
+
+	byte fieldKind(int index) {
+		return _fieldKinds[index];
+	}
+
+	int fieldSlot(int index) {
+		return _fieldSlots[index];
+	}
+
+	int primitiveCount() {
+		return _primitiveCount;
+	}
+
+	int objectCount() {
+		return _objectCount;
+	}
 	
 	public void addRoutedToNodeMessageFields() {
         addField(DMT.UID, Long.class);
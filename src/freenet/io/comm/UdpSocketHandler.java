@@ -15,14 +15,22 @@ import java.net.DatagramSocket;
 import java.net.DatagramSocketImpl;
 import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.io.AddressTracker;
 import freenet.io.comm.Peer.LocalAddressException;
 import freenet.node.Node;
 import freenet.node.PrioRunnable;
+import freenet.support.LRUMap;
 import freenet.support.Logger;
 import freenet.support.io.NativeThread;
 import freenet.support.transport.ip.IPUtil;
@@ -30,6 +38,24 @@ import freenet.support.transport.ip.IPUtil;
 public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, PortForwardSensitiveSocketHandler {
 
 	private final DatagramSocket _sock;
+	/** If non-null, we use the NIO channel rather than the classic socket to receive
+	 * batches of packets and to send. _sock is then the channel's socket adaptor. */
+	private final DatagramChannel _channel;
+	private final Selector _selector;
+	/** OP_WRITE only, for senders to wait on when the socket send buffer is full. Lock it
+	 * before using it. */
+	private final Selector _writeSelector;
+	/** Packets given up on because the send buffer stayed full for SEND_BLOCKED_TIMEOUT. */
+	private final AtomicLong sendBufferDrops = new AtomicLong();
+	/** Pooled direct buffers, one per packet in a receive batch. Only used by the
+	 * receive thread. */
+	private final ByteBuffer[] receiveBuffers;
+	private final byte[][] receiveData;
+	private final int[] receiveLengths;
+	private final Peer[] receivePeers;
+	/** Peer objects by source address, so we don't create a new Peer for every packet.
+	 * Only used by the receive thread. */
+	private final LRUMap<InetSocketAddress, Peer> peerCache;
 	private final InetAddress _bindTo;
 	private final AddressTracker tracker;
 	private IncomingPacketFilter lowLevelFilter;
@@ -126,7 +152,11 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		}
 	}
 
-	public UdpSocketHandler(int listenPort, InetAddress bindto, Node node, long startupTime, String title, IOStatisticCollector collector) throws SocketException {
+	/**
+	 * @param useChannel If true, use a non-blocking DatagramChannel and receive packets in
+	 * batches. If false, use the classic blocking DatagramSocket, one packet at a time.
+	 */
+	public UdpSocketHandler(int listenPort, InetAddress bindto, Node node, long startupTime, String title, IOStatisticCollector collector, boolean useChannel) throws IOException {
 		this.node = node;
 		this.collector = collector;
 		this.title = title;
@@ -137,24 +167,62 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 //			_sock = (DatagramSocket) Updater.getResource();
 //		} else {
 		this.listenPort = listenPort;
-		_sock = new DatagramSocket(listenPort, bindto);
+		if(useChannel) {
+			_channel = DatagramChannel.open();
+			try {
+				// Exit reasonably quickly. Must be set before binding.
+				_channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+				_channel.bind(new InetSocketAddress(bindto, listenPort));
+				_channel.configureBlocking(false);
+				_selector = Selector.open();
+				_channel.register(_selector, SelectionKey.OP_READ);
+				_writeSelector = Selector.open();
+				_channel.register(_writeSelector, SelectionKey.OP_WRITE);
+			} catch (IOException e) {
+				_channel.close();
+				throw e;
+			}
+			_sock = _channel.socket();
+			receiveBuffers = new ByteBuffer[RECEIVE_BATCH_SIZE];
+			receiveData = new byte[RECEIVE_BATCH_SIZE][MAX_RECEIVE_SIZE];
+			receiveLengths = new int[RECEIVE_BATCH_SIZE];
+			receivePeers = new Peer[RECEIVE_BATCH_SIZE];
+			for(int i=0;i<RECEIVE_BATCH_SIZE;i++)
+				receiveBuffers[i] = ByteBuffer.allocateDirect(MAX_RECEIVE_SIZE);
+			peerCache = new LRUMap<InetSocketAddress, Peer>();
+		} else {
+			_channel = null;
+			_selector = null;
+			_writeSelector = null;
+			receiveBuffers = null;
+			receiveData = null;
+			receiveLengths = null;
+			receivePeers = null;
+			peerCache = null;
+			_sock = new DatagramSocket(listenPort, bindto);
+		}
 		int sz = _sock.getReceiveBufferSize();
 		if(sz < 65536) {
 			_sock.setReceiveBufferSize(65536);
 		}
-		try {
-			// Exit reasonably quickly
-			_sock.setReuseAddress(true);
-		} catch (SocketException e) {
-			throw new RuntimeException(e);
+		if(_channel == null) {
+			try {
+				// Exit reasonably quickly
+				_sock.setReuseAddress(true);
+			} catch (SocketException e) {
+				throw new RuntimeException(e);
+			}
 		}
 		try {
 			_sock.setTrafficClass(node.getTrafficClass().value);
 		} catch (SocketException e) {
 			Logger.error(this, "Failed to setTrafficClass with "+node.getTrafficClass().value,e);
 		}
-		boolean r = socketOptions.setAddressPreference(_sock, socketOptions.SOCKET_ADDR_PREFERENCE.IPV6_PREFER_SRC_PUBLIC);
-		if(logMINOR) Logger.minor(this, "Setting IPV6_PREFER_SRC_PUBLIC for port "+ listenPort + " is a "+(r ? "success" : "failure"));
+		if(_channel == null) {
+			// FIXME getFd() only knows about the classic socket implementation.
+			boolean r = socketOptions.setAddressPreference(_sock, socketOptions.SOCKET_ADDR_PREFERENCE.IPV6_PREFER_SRC_PUBLIC);
+			if(logMINOR) Logger.minor(this, "Setting IPV6_PREFER_SRC_PUBLIC for port "+ listenPort + " is a "+(r ? "success" : "failure"));
+		}
 //		}
 		// Only used for debugging, no need to seed from Yarrow
 		dropRandom = node.fastWeakRandom;
@@ -209,6 +277,22 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 				t.printStackTrace();
 			} catch (Throwable tt) {}
 		} finally {
+			if(_selector != null) {
+				try {
+					_selector.close();
+				} catch (IOException e) {
+					// Ignore
+				}
+			}
+			if(_writeSelector != null) {
+				synchronized(_writeSelector) {
+					try {
+						_writeSelector.close();
+					} catch (IOException e) {
+						// Ignore
+					}
+				}
+			}
 			System.err.println("run() exiting for UdpSocketHandler on port "+_sock.getLocalPort());
 			Logger.error(this, "run() exiting for UdpSocketHandler on port "+_sock.getLocalPort());
 			synchronized (this) {
@@ -219,6 +303,10 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	}
 
 	private void runLoop() {
+		if(_channel != null) {
+			runChannelLoop();
+			return;
+		}
 		byte[] buf = new byte[MAX_RECEIVE_SIZE];
 		DatagramPacket packet = new DatagramPacket(buf, buf.length);
 		while (_active) {
@@ -275,6 +363,114 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	}
 
 	private static final int MAX_RECEIVE_SIZE = 1500;
+	/** How long a sender waits for room in a full socket send buffer before dropping the
+	 * packet. The blocking socket would wait for as long as it takes. */
+	static final long SEND_BLOCKED_TIMEOUT = 100;
+	/** Maximum number of packets read from the channel before we process them */
+	private static final int RECEIVE_BATCH_SIZE = 64;
+	/** Maximum time to wait in select(), so we notice when we are closed */
+	private static final int SELECT_TIMEOUT = 1000;
+	private static final int MAX_CACHED_PEERS = 1024;
+
+	private void runChannelLoop() {
+		while (_active) {
+			try {
+				realRunBatch();
+			} catch (Throwable t) {
+				System.err.println("Caught "+t);
+				t.printStackTrace(System.err);
+				Logger.error(this, "Caught " + t, t);
+			}
+		}
+	}
+
+	private void realRunBatch() {
+		// Single receiving thread
+		int count = getPackets();
+		if(count == 0) {
+			if(logDEBUG) Logger.debug(this, "No packet received");
+			return;
+		}
+		// All packets in a batch arrived at (nearly) the same time.
+		long now = System.currentTimeMillis();
+		for(int i=0;i<count;i++) {
+			Peer peer = receivePeers[i];
+			receivePeers[i] = null;
+			tracker.receivedPacketFrom(peer);
+			int length = receiveLengths[i];
+			try {
+				if(logMINOR) Logger.minor(this, "Processing packet of length "+length+" from "+peer);
+				lowLevelFilter.process(receiveData[i], 0, length, peer, now);
+				if(logMINOR) Logger.minor(this,
+						"Successfully handled packet length " + length);
+			} catch (Throwable t) {
+				Logger.error(this, "Caught " + t + " from "
+						+ lowLevelFilter, t);
+			}
+		}
+		long endTime = System.currentTimeMillis();
+		if(endTime - now > 50) {
+			if(endTime-now > 3000) {
+				Logger.error(this, "processing "+count+" packets took "+(endTime-now)+"ms");
+			} else {
+				if(logMINOR) Logger.minor(this, "processing "+count+" packets took "+(endTime-now)+"ms");
+			}
+		}
+	}
+
+	/**
+	 * Read as many packets as are available, up to RECEIVE_BATCH_SIZE, waiting for at
+	 * least one if necessary.
+	 * @return The number of packets read into receiveData, receiveLengths and receivePeers.
+	 */
+	private int getPackets() {
+		try {
+			int count = drainChannel();
+			if(count > 0) return count;
+			_selector.select(SELECT_TIMEOUT);
+			_selector.selectedKeys().clear();
+			return drainChannel();
+		} catch (IOException e) {
+			if (!_active) { // closed, just return silently
+				return 0;
+			} else {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	private int drainChannel() throws IOException {
+		int count;
+		for(count = 0; count < RECEIVE_BATCH_SIZE; count++) {
+			ByteBuffer buf = receiveBuffers[count];
+			buf.clear();
+			InetSocketAddress from = (InetSocketAddress) _channel.receive(buf);
+			if(from == null) break;
+			buf.flip();
+			int length = buf.remaining();
+			buf.get(receiveData[count], 0, length);
+			receiveLengths[count] = length;
+			receivePeers[count] = getPeer(from);
+			InetAddress address = from.getAddress();
+			boolean isLocal = !IPUtil.isValidAddress(address, false);
+			collector.addInfo(address, from.getPort(),
+					getHeadersLength(address) + length, 0, isLocal);
+		}
+		if(logMINOR && count > 0) Logger.minor(this, "Received "+count+" packets");
+		return count;
+	}
+
+	private Peer getPeer(InetSocketAddress from) {
+		Peer peer = peerCache.get(from);
+		if(peer == null) {
+			peer = new Peer(from.getAddress(), from.getPort());
+			if(peerCache.size() >= MAX_CACHED_PEERS)
+				peerCache.popKey();
+		}
+		// Keep recently seen addresses at the top.
+		peerCache.push(from, peer);
+		return peer;
+	}
 
 	private boolean getPacket(DatagramPacket packet) {
 		try {
@@ -328,18 +524,28 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		InetAddress address = destination.getAddress(false, allowLocalAddresses);
 		assert(address != null);
 		int port = destination.getPort();
-		DatagramPacket packet = new DatagramPacket(blockToSend, blockToSend.length);
-		packet.setAddress(address);
-		packet.setPort(port);
 
 		try {
-			_sock.send(packet);
+			if(_channel != null) {
+				if(!sendChannel(ByteBuffer.wrap(blockToSend), new InetSocketAddress(address, port))) {
+					// The caller has already counted it as sent, so it is handled like a
+					// packet lost on the wire. Neither the tracker nor the collector saw it.
+					long drops = sendBufferDrops.incrementAndGet();
+					Logger.normal(this, "Socket send buffer full for "+SEND_BLOCKED_TIMEOUT+"ms, dropped packet length "+blockToSend.length+" to "+address+':'+port+" ("+drops+" dropped so far)");
+					return;
+				}
+			} else {
+				DatagramPacket packet = new DatagramPacket(blockToSend, blockToSend.length);
+				packet.setAddress(address);
+				packet.setPort(port);
+				_sock.send(packet);
+			}
 			tracker.sentPacketTo(destination);
 			boolean isLocal = (!IPUtil.isValidAddress(address, false)) && (IPUtil.isValidAddress(address, true));
 			collector.addInfo(address, port, 0, getHeadersLength(address) + blockToSend.length, isLocal);
 			if(logMINOR) Logger.minor(this, "Sent packet length "+blockToSend.length+" to "+address+':'+port);
 		} catch (IOException e) {
-			if(packet.getAddress() instanceof Inet6Address) {
+			if(address instanceof Inet6Address) {
 				Logger.normal(this, "Error while sending packet to IPv6 address: "+destination+": "+e);
 			} else {
 				Logger.error(this, "Error while sending packet to " + destination+": "+e, e);
@@ -347,6 +553,30 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		}
 	}
 
+	/** Send on the non-blocking channel, waiting up to SEND_BLOCKED_TIMEOUT for room if
+	 * the send buffer is full.
+	 * @return False if the packet was not sent. */
+	private boolean sendChannel(ByteBuffer buf, InetSocketAddress to) throws IOException {
+		if(_channel.send(buf, to) != 0) return true;
+		long deadline = System.currentTimeMillis() + SEND_BLOCKED_TIMEOUT;
+		synchronized(_writeSelector) {
+			while(_writeSelector.isOpen()) {
+				long wait = deadline - System.currentTimeMillis();
+				if(wait <= 0) return false;
+				_writeSelector.select(wait);
+				_writeSelector.selectedKeys().clear();
+				if(_channel.send(buf, to) != 0) return true;
+			}
+		}
+		return false;
+	}
+
+	/** @return The number of packets dropped because the send buffer was full. Always 0 for
+	 * the classic socket, which blocks instead. */
+	public long getSendBufferDrops() {
+		return sendBufferDrops.get();
+	}
+
 	// CompuServe use 1400 MTU; AOL claim 1450; DFN@home use 1448.
 	// http://info.aol.co.uk/broadband/faqHomeNetworking.adp
 	// http://www.compuserve.de/cso/hilfe/linux/hilfekategorien/installation/contentview.jsp?conid=385700
@@ -408,6 +638,8 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		synchronized (this) {
 			_active = false;
 			_sock.close();
+			if(_selector != null)
+				_selector.wakeup();
 
 			if(!_started) return;
 			while (!_isDone) {
@@ -38,6 +38,9 @@ public interface BasePeerNode extends PeerContext {
 
 	void wakeUpSender();
 
+	/** Make sure the packet sender looks at us no later than the given time. */
+	void wakeUpSender(long time);
+
 	int getMaxPacketSize();
 
 	PeerMessageQueue getMessageQueue();
@@ -52,6 +55,9 @@ public interface BasePeerNode extends PeerContext {
 
 	void sentThrottledBytes(int length);
 
+	/** Give back bytes charged with sentThrottledBytes() for a packet which was not sent. */
+	void refundThrottledBytes(int length);
+
 	void onNotificationOnlyPacketSent(int length);
 
 	void resentBytes(int bytesToResend);
@@ -4,11 +4,13 @@
 package freenet.node;
 
 import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 import freenet.io.comm.ByteCounter;
 import freenet.io.comm.DMT;
@@ -28,6 +30,7 @@ import freenet.support.ListUtils;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.SerialExecutor;
+import freenet.support.TimingWheel;
 import freenet.support.Logger.LogLevel;
 import freenet.support.io.NativeThread;
 
@@ -35,7 +38,7 @@ import freenet.support.io.NativeThread;
 // Otherwise it will be much too easy to trace a request if an attacker busts the node afterwards.
 // We can use an HMAC or something to authenticate offers.
 
-// LOCKING: Always take the FailureTable lock first if you need both. Take the FailureTableEntry 
+// LOCKING: Always take the Shard lock first if you need both. Take the FailureTableEntry 
 // lock only on cheap internal operations.
 
 /**
@@ -61,16 +64,49 @@ public class FailureTable {
 		});
 	}
 
-	/** FailureTableEntry's by key. Note that we push an entry only when sentTime changes. */
-	private final LRUMap<Key,FailureTableEntry> entriesByKey;
-	/** BlockOfferList by key. Synchronized on self, as it doesn't interact with the main FT. */
-	private final LRUMap<Key,BlockOfferList> blockOfferListByKey;
+	/** The table is split into shards by key, so that requests for different keys rarely 
+	 * contend for the same lock. Each shard is an independent failure table with its own LRU 
+	 * and share of the limits, and its own timing wheels for expiring entries and offers. */
+	private static final class Shard {
+		/** FailureTableEntry's by key. Note that we push an entry only when sentTime changes. 
+		 * Synchronized on the Shard. */
+		final LRUMap<Key,FailureTableEntry> entriesByKey;
+		/** When to clean up each entry. Synchronized on the Shard. */
+		final TimingWheel<FailureTableEntry> entryExpiry;
+		/** BlockOfferList by key. Synchronized on self, as it doesn't interact with the 
+		 * entries. */
+		final LRUMap<Key,BlockOfferList> blockOfferListByKey;
+		/** When each BlockOfferList expires. Synchronized on blockOfferListByKey. */
+		final TimingWheel<BlockOfferList> offerExpiry;
+		
+		Shard(long now) {
+			entriesByKey = LRUMap.createSafeMap();
+			entryExpiry = new TimingWheel<FailureTableEntry>(EXPIRY_TICK, 6, 2, now);
+			blockOfferListByKey = LRUMap.createSafeMap();
+			offerExpiry = new TimingWheel<BlockOfferList>(EXPIRY_TICK, 6, 2, now);
+		}
+	}
+	
+	/** Number of shards. Must be a power of 2. */
+	static final int SHARDS = 16;
+	private final Shard[] shards;
+	/** Random odd multiplier for choosing the shard, so an attacker can't easily choose keys 
+	 * which all go to the same shard. */
+	private final int shardMultiplier;
+	/** Null if we are testing. */
 	private final Node node;
+	private final boolean enableULPRDataPropagation;
+	private final boolean enablePerNodeFailureTables;
 	
 	/** Maximum number of keys to track */
 	static final int MAX_ENTRIES = 20*1000;
 	/** Maximum number of offers to track */
 	static final int MAX_OFFERS = 10*1000;
+	/** Maximum number of keys to track in each shard. Keys are spread evenly across the shards,
+	 * so this is close to a global LRU. */
+	static final int MAX_ENTRIES_PER_SHARD = MAX_ENTRIES / SHARDS;
+	/** Maximum number of offers to track in each shard */
+	static final int MAX_OFFERS_PER_SHARD = MAX_OFFERS / SHARDS;
 	/** Terminate a request if there was a DNF on the same key less than 10 minutes ago.
 	 * Maximum time for any FailureTable i.e. for this period after a DNF, we will avoid the node that 
 	 * DNFed. */
@@ -86,17 +122,39 @@ public class FailureTable {
 	static final long OFFER_EXPIRY_TIME = MINUTES.toMillis(10);
 	/** HMAC key for the offer authenticator */
 	final byte[] offerAuthenticatorKey;
-	/** Clean up old data every 10 minutes to save memory and improve privacy */
+	/** Clean up old data every 10 minutes to save memory and improve privacy. Each entry is
+	 * cleaned up this long after it was created or last cleaned up. */
 	static final long CLEANUP_PERIOD = MINUTES.toMillis(10);
+	/** How often we look for entries and offers to expire. */
+	static final long EXPIRY_TICK = SECONDS.toMillis(5);
 
 	FailureTable(Node node) {
-		entriesByKey = LRUMap.createSafeMap();
-		blockOfferListByKey = LRUMap.createSafeMap();
+		this(node, node.random, node.enableULPRDataPropagation, node.enablePerNodeFailureTables);
+		node.ticker.queueTimedJob(new FailureTableCleaner(), EXPIRY_TICK);
+	}
+	
+	/** For tests. There is no node, so we can't handle offers, and nothing expires unless the
+	 * caller calls expire(). */
+	FailureTable(Random random, boolean enableULPRDataPropagation, boolean enablePerNodeFailureTables) {
+		this(null, random, enableULPRDataPropagation, enablePerNodeFailureTables);
+	}
+	
+	private FailureTable(Node node, Random random, boolean enableULPRDataPropagation, boolean enablePerNodeFailureTables) {
 		this.node = node;
+		this.enableULPRDataPropagation = enableULPRDataPropagation;
+		this.enablePerNodeFailureTables = enablePerNodeFailureTables;
+		long now = System.currentTimeMillis();
+		shards = new Shard[SHARDS];
+		for(int i=0;i<SHARDS;i++)
+			shards[i] = new Shard(now);
+		shardMultiplier = random.nextInt() | 1;
 		offerAuthenticatorKey = new byte[32];
-		node.random.nextBytes(offerAuthenticatorKey);
+		random.nextBytes(offerAuthenticatorKey);
 		offerExecutor = new SerialExecutor(NativeThread.HIGH_PRIORITY);
-		node.ticker.queueTimedJob(new FailureTableCleaner(), CLEANUP_PERIOD);
+	}
+	
+	private Shard shard(Key key) {
+		return shards[(key.hashCode() * shardMultiplier) >>> 28];
 	}
 	
 	public void start() {
@@ -114,6 +172,10 @@ public class FailureTable {
 	 * @param ftTimeout
 	 */
 	public void onFailed(Key key, PeerNode routedTo, short htl, long rfTimeout, long ftTimeout) {
+		onFailed(key, (PeerNodeUnlocked)routedTo, htl, rfTimeout, ftTimeout);
+	}
+
+	void onFailed(Key key, PeerNodeUnlocked routedTo, short htl, long rfTimeout, long ftTimeout) {
 		if(ftTimeout < 0 || ftTimeout > REJECT_TIME) {
 			Logger.error(this, "Bogus timeout "+ftTimeout, new Exception("error"));
 			ftTimeout = Math.max(Math.min(REJECT_TIME, ftTimeout), 0);
@@ -123,20 +185,17 @@ public class FailureTable {
 				Logger.error(this, "Bogus timeout "+rfTimeout, new Exception("error"));
 			rfTimeout = Math.max(Math.min(RECENTLY_FAILED_TIME, rfTimeout), 0);
 		}
-		if(!(node.enableULPRDataPropagation || node.enablePerNodeFailureTables)) return;
+		if(!(enableULPRDataPropagation || enablePerNodeFailureTables)) return;
 		long now = System.currentTimeMillis();
-		FailureTableEntry entry;
-		synchronized(this) {
-			entry = entriesByKey.get(key);
-			if(entry == null)
-				entry = new FailureTableEntry(key);
-			entriesByKey.push(key, entry);
+		Shard shard = shard(key);
+		synchronized(shard) {
+			FailureTableEntry entry = pushEntry(shard, key, now);
 			// LOCKING: Taking PeerNode then FT/FTE will deadlock.
 			// However this should not happen.
 			// We have to do this inside the lock to prevent race condition with the cleaner causing us to get dropped because isEmpty() before updating.
 			entry.failedTo(routedTo, rfTimeout, ftTimeout, now, htl);
 
-			trimEntries(now);
+			trimEntries(shard);
 		}
 	}
 	
@@ -148,6 +207,10 @@ public class FailureTable {
 	 * LOCKING: NEVER synchronize on PeerNode before calling any FailureTable method.
 	 */
 	public void onFinalFailure(Key key, PeerNode routedTo, short htl, short origHTL, long rfTimeout, long ftTimeout, PeerNode requestor) {
+		onFinalFailure(key, (PeerNodeUnlocked)routedTo, htl, origHTL, rfTimeout, ftTimeout, (PeerNodeUnlocked)requestor);
+	}
+
+	void onFinalFailure(Key key, PeerNodeUnlocked routedTo, short htl, short origHTL, long rfTimeout, long ftTimeout, PeerNodeUnlocked requestor) {
 		if(ftTimeout < -1 || ftTimeout > REJECT_TIME) {
 			// -1 is a valid no-op.
 			Logger.error(this, "Bogus timeout "+ftTimeout, new Exception("error"));
@@ -158,14 +221,11 @@ public class FailureTable {
 				Logger.error(this, "Bogus timeout "+rfTimeout, new Exception("error"));
 			rfTimeout = Math.max(Math.min(RECENTLY_FAILED_TIME, rfTimeout), 0);
 		}
-		if(!(node.enableULPRDataPropagation || node.enablePerNodeFailureTables)) return;
+		if(!(enableULPRDataPropagation || enablePerNodeFailureTables)) return;
 		long now = System.currentTimeMillis();
-		FailureTableEntry entry;
-		synchronized(this) {
-			entry = entriesByKey.get(key);
-			if(entry == null)
-				entry = new FailureTableEntry(key);
-			entriesByKey.push(key, entry);
+		Shard shard = shard(key);
+		synchronized(shard) {
+			FailureTableEntry entry = pushEntry(shard, key, now);
 
 			// LOCKING: Taking PeerNode then FT/FTE will deadlock.
 			// However this should not happen.
@@ -176,22 +236,50 @@ public class FailureTable {
 			if(requestor != null)
 				entry.addRequestor(requestor, now, origHTL);
 			
-			trimEntries(now);
+			trimEntries(shard);
 		}
 	}
 	
-	private synchronized void trimEntries(long now) {
-		while(entriesByKey.size() > MAX_ENTRIES) {
-			entriesByKey.popKey();
+	/** Get the entry for a key, creating it if necessary, and move it to the top of the LRU.
+	 * Caller must hold the lock on the shard. */
+	private FailureTableEntry pushEntry(Shard shard, Key key, long now) {
+		FailureTableEntry entry = shard.entriesByKey.get(key);
+		if(entry == null) {
+			entry = new FailureTableEntry(key);
+			entry.expiryTimer = shard.entryExpiry.schedule(entry, now + CLEANUP_PERIOD);
+		}
+		shard.entriesByKey.push(key, entry);
+		return entry;
+	}
+	
+	/** Caller must hold the lock on the shard. */
+	private void removeEntry(Shard shard, Key key) {
+		FailureTableEntry entry = shard.entriesByKey.get(key);
+		if(entry == null) return;
+		shard.entriesByKey.removeKey(key);
+		shard.entryExpiry.cancel(entry.expiryTimer);
+	}
+	
+	/** Caller must hold the lock on the shard. */
+	private void trimEntries(Shard shard) {
+		while(shard.entriesByKey.size() > MAX_ENTRIES_PER_SHARD) {
+			FailureTableEntry entry = shard.entriesByKey.popValue();
+			shard.entryExpiry.cancel(entry.expiryTimer);
 		}
 	}
 
-	// LOCKING: Synchronized on FailureTable because we need to remove self in deleteOffer(). 
+	// LOCKING: Synchronized on the shard's blockOfferListByKey because we need to remove self in deleteOffer(). 
 	private final class BlockOfferList {
 		private BlockOffer[] offers;
 		final FailureTableEntry entry;
+		private final Shard shard;
+		private final LRUMap<Key,BlockOfferList> blockOfferListByKey;
+		/** When the list expires. Synchronized on blockOfferListByKey. */
+		TimingWheel.Timer<BlockOfferList> expiryTimer;
 		
-		BlockOfferList(FailureTableEntry entry, BlockOffer offer) {
+		BlockOfferList(Shard shard, FailureTableEntry entry, BlockOffer offer) {
+			this.shard = shard;
+			this.blockOfferListByKey = shard.blockOfferListByKey;
 			this.entry = entry;
 			this.offers = new BlockOffer[] { offer };
 		}
@@ -231,7 +319,7 @@ public class FailureTable {
 					System.arraycopy(offers, idx + 1, newOffers, idx, offers.length - idx - 1);
 				offers = newOffers;
 				if(offers.length > 1) return;
-				blockOfferListByKey.removeKey(entry.key);
+				removeOffers(shard, entry.key);
 			}
 			node.clientCore.dequeueOfferedKey(entry.key);
 		}
@@ -287,26 +375,27 @@ public class FailureTable {
 	 */
 	public void onFound(KeyBlock block) {
 		if(logMINOR) Logger.minor(this, "Found "+block.getKey());
-		if(!(node.enableULPRDataPropagation || node.enablePerNodeFailureTables)) {
-			if(logMINOR) Logger.minor(this, "Ignoring onFound because enable ULPR = "+node.enableULPRDataPropagation+" and enable failure tables = "+node.enablePerNodeFailureTables);
+		if(!(enableULPRDataPropagation || enablePerNodeFailureTables)) {
+			if(logMINOR) Logger.minor(this, "Ignoring onFound because enable ULPR = "+enableULPRDataPropagation+" and enable failure tables = "+enablePerNodeFailureTables);
 			return;
 		}
 		Key key = block.getKey();
 		if(key == null) throw new NullPointerException();
 		FailureTableEntry entry;
-		synchronized(blockOfferListByKey) {
-			blockOfferListByKey.removeKey(key);
+		Shard shard = shard(key);
+		synchronized(shard.blockOfferListByKey) {
+			removeOffers(shard, key);
 		}
-		synchronized(this) {
-			entry = entriesByKey.get(key);
+		synchronized(shard) {
+			entry = shard.entriesByKey.get(key);
 			if(entry == null) {
 				if(logMINOR) Logger.minor(this, "Key not found in entriesByKey");
 				return; // Nobody cares
 			}
-			entriesByKey.removeKey(key);
+			removeEntry(shard, key);
 		}
 		if(logMINOR) Logger.minor(this, "Offering key");
-		if(!node.enableULPRDataPropagation) return;
+		if(!enableULPRDataPropagation) return;
 		entry.offer();
 	}
 	
@@ -322,13 +411,12 @@ public class FailureTable {
 	 * @param authenticator 
 	 */
 	void onOffer(final Key key, final PeerNode peer, final byte[] authenticator) {
-		if(!node.enableULPRDataPropagation) return;
+		if(!enableULPRDataPropagation) return;
 		if(logMINOR)
 			Logger.minor(this, "Offered key "+key+" by peer "+peer);
-		FailureTableEntry entry;
-		synchronized(this) {
-			entry = entriesByKey.get(key);
-			if(entry == null) {
+		Shard shard = shard(key);
+		synchronized(shard) {
+			if(shard.entriesByKey.get(key) == null) {
 				if(logMINOR) Logger.minor(this, "We didn't ask for the key");
 				return; // we haven't asked for it
 			}
@@ -361,8 +449,9 @@ public class FailureTable {
 		// Re-check after potentially long disk I/O.
 		FailureTableEntry entry;
 		long now = System.currentTimeMillis();
-		synchronized(this) {
-			entry = entriesByKey.get(key);
+		Shard shard = shard(key);
+		synchronized(shard) {
+			entry = shard.entriesByKey.get(key);
 			if(entry == null) {
 				if(logMINOR) Logger.minor(this, "We didn't ask for the key");
 				return; // we haven't asked for it
@@ -403,15 +492,15 @@ public class FailureTable {
 		if(!(weAsked || heAsked)) {
 			if(logMINOR) Logger.minor(this, "Not propagating key: weAsked="+weAsked+" heAsked="+heAsked);
 			if(entry.isEmpty(now)) {
-				synchronized(this) {
-					entriesByKey.removeKey(key);
+				synchronized(shard) {
+					removeEntry(shard, key);
 				}
 			}
 			return;
 		}
 		if(entry.isEmpty(now)) {
-			synchronized(this) {
-				entriesByKey.removeKey(key);
+			synchronized(shard) {
+				removeEntry(shard, key);
 			}
 		}
 		
@@ -419,17 +508,19 @@ public class FailureTable {
 		
 		// Add to offers list
 		
-		synchronized(blockOfferListByKey) {			
+		synchronized(shard.blockOfferListByKey) {			
 			if(logMINOR) Logger.minor(this, "Valid offer");
-			BlockOfferList bl = blockOfferListByKey.get(key);
+			BlockOfferList bl = shard.blockOfferListByKey.get(key);
 			BlockOffer offer = new BlockOffer(peer, now, authenticator, peer.getBootID());
 			if(bl == null) {
-				bl = new BlockOfferList(entry, offer);
+				bl = new BlockOfferList(shard, entry, offer);
+				bl.expiryTimer = shard.offerExpiry.schedule(bl, bl.expires());
 			} else {
 				bl.addOffer(offer);
+				shard.offerExpiry.reschedule(bl.expiryTimer, bl.expires());
 			}
-			blockOfferListByKey.push(key, bl);
-			trimOffersList(now);
+			shard.blockOfferListByKey.push(key, bl);
+			trimOffersList(shard);
 		}
 		
 		// Accept the offer.
@@ -443,20 +534,23 @@ public class FailureTable {
 		node.clientCore.queueOfferedKey(key, false);
 	}
 
-	private void trimOffersList(long now) {
-		synchronized(blockOfferListByKey) {
-			while(true) {
-				if(blockOfferListByKey.isEmpty()) return;
-				BlockOfferList bl = blockOfferListByKey.peekValue();
-				if(bl.isEmpty(now) || bl.expires() < now || blockOfferListByKey.size() > MAX_OFFERS) {
-					if(logMINOR) Logger.minor(this, "Removing block offer list "+bl+" list size now "+blockOfferListByKey.size());
-					blockOfferListByKey.popKey();
-				} else {
-					return;
-				}
-			}
+	/** Expired offers are removed by expire(), so we only need to enforce the size limit here.
+	 * Caller must hold the lock on the shard's blockOfferListByKey. */
+	private void trimOffersList(Shard shard) {
+		while(shard.blockOfferListByKey.size() > MAX_OFFERS_PER_SHARD) {
+			BlockOfferList bl = shard.blockOfferListByKey.popValue();
+			if(logMINOR) Logger.minor(this, "Removing block offer list "+bl+" list size now "+shard.blockOfferListByKey.size());
+			shard.offerExpiry.cancel(bl.expiryTimer);
 		}
 	}
+	
+	/** Caller must hold the lock on the shard's blockOfferListByKey. */
+	private void removeOffers(Shard shard, Key key) {
+		BlockOfferList bl = shard.blockOfferListByKey.get(key);
+		if(bl == null) return;
+		shard.blockOfferListByKey.removeKey(key);
+		shard.offerExpiry.cancel(bl.expiryTimer);
+	}
 
 	/**
 	 * We offered a key, a node has responded to the offer. Note that this runs on the incoming
@@ -655,16 +749,18 @@ public class FailureTable {
 	 * @return True if there are any offers, false otherwise.
 	 */
 	public boolean hadAnyOffers(Key key) {
-		synchronized(blockOfferListByKey) {
-			return blockOfferListByKey.get(key) != null;
+		Shard shard = shard(key);
+		synchronized(shard.blockOfferListByKey) {
+			return shard.blockOfferListByKey.get(key) != null;
 		}
 	}
 
 	public OfferList getOffers(Key key) {
-		if(!node.enableULPRDataPropagation) return null;
+		if(!enableULPRDataPropagation) return null;
 		BlockOfferList bl;
-		synchronized(blockOfferListByKey) {
-			bl = blockOfferListByKey.get(key);
+		Shard shard = shard(key);
+		synchronized(shard.blockOfferListByKey) {
+			bl = shard.blockOfferListByKey.get(key);
 			if(bl == null) return null;
 		}
 		return new OfferList(bl);
@@ -672,14 +768,15 @@ public class FailureTable {
 
 	/** Called when a node disconnects */
 	public void onDisconnect(final PeerNode pn) {
-		if(!(node.enableULPRDataPropagation || node.enablePerNodeFailureTables)) return;
+		if(!(enableULPRDataPropagation || enablePerNodeFailureTables)) return;
 		// FIXME do something (off thread if expensive)
 	}
 
 	public TimedOutNodesList getTimedOutNodesList(Key key) {
-		if(!node.enablePerNodeFailureTables) return null;
-		synchronized(this) {
-			return entriesByKey.get(key);
+		if(!enablePerNodeFailureTables) return null;
+		Shard shard = shard(key);
+		synchronized(shard) {
+			return shard.entriesByKey.get(key);
 		}
 	}
 	
@@ -692,39 +789,92 @@ public class FailureTable {
 			} catch (Throwable t) {
 				Logger.error(this, "FailureTableCleaner caught "+t, t);
 			} finally {
-				node.ticker.queueTimedJob(this, CLEANUP_PERIOD);
+				node.ticker.queueTimedJob(this, EXPIRY_TICK);
 			}
 		}
 
 		private void realRun() {
 			if(logMINOR) Logger.minor(this, "Starting FailureTable cleanup");
 			long startTime = System.currentTimeMillis();
-			FailureTableEntry[] entries;
-			synchronized(FailureTable.this) {
-				entries = new FailureTableEntry[entriesByKey.size()];
-				entriesByKey.valuesToArray(entries);
+			expire(startTime);
+			long endTime = System.currentTimeMillis();
+			if(logMINOR) Logger.minor(this, "Finished FailureTable cleanup took "+(endTime-startTime)+"ms");
+		}
+	}
+	
+	/** Clean up the entries and remove the offer lists which are due. Called every 
+	 * EXPIRY_TICK, so the work is spread out rather than done for the whole table at once. */
+	void expire(long now) {
+		ArrayList<FailureTableEntry> entries = new ArrayList<FailureTableEntry>();
+		ArrayList<BlockOfferList> offerLists = new ArrayList<BlockOfferList>();
+		for(Shard shard : shards) {
+			entries.clear();
+			synchronized(shard) {
+				shard.entryExpiry.advance(now, entries);
 			}
 			for(FailureTableEntry entry: entries) {
-				if(entry.cleanup()) {
-					synchronized(FailureTable.this) {
-						synchronized(entry) {
-						if(entry.isEmpty()) {
+				// Don't hold the shard lock while cleaning up.
+				boolean empty = entry.cleanup();
+				synchronized(shard) {
+					// May have been removed while we weren't holding the lock.
+					if(shard.entriesByKey.get(entry.key) != entry) continue;
+					synchronized(entry) {
+						if(empty && entry.isEmpty()) {
 							if(logMINOR) Logger.minor(this, "Removing entry for "+entry.key);
-							entriesByKey.removeKey(entry.key);
-						}
+							removeEntry(shard, entry.key);
+							continue;
 						}
 					}
+					shard.entryExpiry.reschedule(entry.expiryTimer, now + CLEANUP_PERIOD);
 				}
 			}
-			long endTime = System.currentTimeMillis();
-			if(logMINOR) Logger.minor(this, "Finished FailureTable cleanup took "+(endTime-startTime)+"ms");
+			offerLists.clear();
+			synchronized(shard.blockOfferListByKey) {
+				shard.offerExpiry.advance(now, offerLists);
+				for(BlockOfferList bl : offerLists) {
+					if(shard.blockOfferListByKey.get(bl.entry.key) != bl) continue;
+					if(bl.isEmpty(now) || bl.expires() < now) {
+						if(logMINOR) Logger.minor(this, "Removing block offer list "+bl+" list size now "+shard.blockOfferListByKey.size());
+						removeOffers(shard, bl.entry.key);
+					} else {
+						shard.offerExpiry.reschedule(bl.expiryTimer, bl.expires());
+					}
+				}
+			}
+		}
+	}
+	
+	/** @return The number of keys we are tracking. At most MAX_ENTRIES. */
+	public int countEntries() {
+		int total = 0;
+		for(Shard shard : shards) {
+			synchronized(shard) {
+				total += shard.entriesByKey.size();
+			}
 		}
+		return total;
+	}
+	
+	/** @return The number of keys we have offers for. At most MAX_OFFERS. */
+	public int countOfferLists() {
+		int total = 0;
+		for(Shard shard : shards) {
+			synchronized(shard.blockOfferListByKey) {
+				total += shard.blockOfferListByKey.size();
+			}
+		}
+		return total;
 	}
 
 	public boolean peersWantKey(Key key, PeerNode apartFrom) {
+		return peersWantKey(key, (PeerNodeUnlocked)apartFrom);
+	}
+
+	boolean peersWantKey(Key key, PeerNodeUnlocked apartFrom) {
 		FailureTableEntry entry;
-		synchronized(this) {
-			entry = entriesByKey.get(key);
+		Shard shard = shard(key);
+		synchronized(shard) {
+			entry = shard.entriesByKey.get(key);
 			if(entry == null) return false; // Nobody cares
 		}
 		return entry.othersWant(apartFrom);
@@ -733,8 +883,9 @@ public class FailureTable {
         /** @return The lowest HTL at which any peer has requested this key recently */
 	public short minOfferedHTL(Key key, short htl) {
 		FailureTableEntry entry;
-		synchronized(this) {
-			entry = entriesByKey.get(key);
+		Shard shard = shard(key);
+		synchronized(shard) {
+			entry = shard.entriesByKey.get(key);
 			if(entry == null) return htl;
 		}
 		return entry.minRequestorHTL(htl);
@@ -9,6 +9,7 @@ import java.util.HashSet;
 import freenet.keys.Key;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
+import freenet.support.TimingWheel;
 import freenet.support.Logger.LogLevel;
 
 /** Tracks recent requests for a specific key. If we have recently routed to a specific 
@@ -67,6 +68,10 @@ class FailureTableEntry implements TimedOutNodesList {
 	
 	short[] requestedTimeoutHTLs;
 	
+	/** When the FailureTable will next clean up this entry. Protected by the lock on the 
+	 * FailureTable shard. */
+	TimingWheel.Timer<FailureTableEntry> expiryTimer;
+	
 	private static volatile boolean logMINOR;
 	
 	static {
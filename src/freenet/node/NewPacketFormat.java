@@ -21,7 +21,6 @@ import freenet.io.comm.Peer;
 import freenet.io.comm.Peer.LocalAddressException;
 import freenet.io.xfer.PacketThrottle;
 import freenet.node.NewPacketFormatKeyContext.AddedAcks;
-import freenet.support.Fields;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
@@ -31,8 +30,7 @@ import static java.util.concurrent.TimeUnit.MINUTES;
 
 public class NewPacketFormat implements PacketFormat {
 
-	private static final int HMAC_LENGTH = 10;
-	// FIXME Use a more efficient structure - int[] or maybe just a big byte[].
+	static final int HMAC_LENGTH = 10;
 	// FIXME increase this significantly to let it ride over network interruptions.
 	private static final int NUM_SEQNUMS_TO_WATCH_FOR = 1024;
 	// FIXME This should be globally allocated according to available memory etc. For links with
@@ -101,8 +99,16 @@ public class NewPacketFormat implements PacketFormat {
 	private long timeLastSentPacket;
 	private long timeLastSentPayload;
 
+	/** Where packets are encrypted and written, or null to do it inline. */
+	private final PacketSendPipeline sendPipeline;
+
 	NewPacketFormat(BasePeerNode pn, int ourInitialMsgID, int theirInitialMsgID) {
+		this(pn, ourInitialMsgID, theirInitialMsgID, null);
+	}
+
+	NewPacketFormat(BasePeerNode pn, int ourInitialMsgID, int theirInitialMsgID, PacketSendPipeline sendPipeline) {
 		this.pn = pn;
+		this.sendPipeline = sendPipeline;
 
 		startedByPrio = new ArrayList<>(DMT.NUM_PRIORITIES);
 		for(int i = 0; i < DMT.NUM_PRIORITIES; i++) {
@@ -163,9 +169,14 @@ public class NewPacketFormat implements PacketFormat {
 		List<byte[]> fullyReceived = new LinkedList<>();
 
 		NewPacketFormatKeyContext keyContext = sessionKey.packetContext;
+		// Acks may make room for more packets in flight, in which case the sender must look at
+		// us again: it won't until something else is due otherwise.
+		boolean couldSend = packet.getAcks().isEmpty() || pn == null || canSend(sessionKey);
 		for(int ack : packet.getAcks()) {
 			keyContext.ack(ack, pn, sessionKey);
 		}
+		if(!couldSend && canSend(sessionKey))
+			pn.wakeUpSender();
 		
 		boolean dontAck = false;
 		boolean wakeUp = false;
@@ -306,6 +317,9 @@ public class NewPacketFormat implements PacketFormat {
 				}
 				if(wakeUp)
 					pn.wakeUpSender();
+				else if(acksQueued == 1)
+					// The oldest ack decides when we must send them.
+					pn.wakeUpSender(System.currentTimeMillis() + NewPacketFormatKeyContext.MAX_ACK_DELAY);
 			}
 		}
 
@@ -315,26 +329,19 @@ public class NewPacketFormat implements PacketFormat {
 
 	private NPFPacket tryDecipherPacket(byte[] buf, int offset, int length, SessionKey sessionKey) {
 		NewPacketFormatKeyContext keyContext = sessionKey.packetContext;
+		SequenceNumberWatchList watchList = keyContext.getWatchList();
 		// Create the watchlist if the key has changed
-		if(keyContext.seqNumWatchList == null) {
-			if(logMINOR) Logger.minor(this, "Creating watchlist starting at " + keyContext.watchListOffset);
-			
-			keyContext.seqNumWatchList = new byte[NUM_SEQNUMS_TO_WATCH_FOR][4];
-
-			int seqNum = keyContext.watchListOffset;
-			for(int i = 0; i < keyContext.seqNumWatchList.length; i++) {
-				keyContext.seqNumWatchList[i] = NewPacketFormat.encryptSequenceNumber(seqNum++, sessionKey);
-				if(seqNum < 0) seqNum = 0;
-			}
+		if(watchList == null) {
+			if(logMINOR) Logger.minor(this, "Creating watchlist for " + sessionKey);
+			watchList = keyContext.createWatchList(NUM_SEQNUMS_TO_WATCH_FOR, sessionKey);
 		}
-
 		// Move the watchlist if needed
 		int highestReceivedSeqNum;
 		synchronized(this) {
 			highestReceivedSeqNum = keyContext.highestReceivedSeqNum;
 		}
 		// The entry for the highest received sequence number is kept in the middle of the list
-		int oldHighestReceived = (int) ((0l + keyContext.watchListOffset + (keyContext.seqNumWatchList.length / 2)) % NUM_SEQNUMS);
+		int oldHighestReceived = (int) ((0l + watchList.getOffset() + (watchList.size() / 2)) % NUM_SEQNUMS);
 		if(seqNumGreaterThan(highestReceivedSeqNum, oldHighestReceived, 31)) {
 			int moveBy;
 			if(highestReceivedSeqNum > oldHighestReceived) {
@@ -343,7 +350,7 @@ public class NewPacketFormat implements PacketFormat {
 				moveBy = ((int) (NUM_SEQNUMS - oldHighestReceived)) + highestReceivedSeqNum;
 			}
 
-			if(moveBy > keyContext.seqNumWatchList.length) {
+			if(moveBy > watchList.size()) {
 				Logger.warning(this, "Moving watchlist pointer by " + moveBy);
 			} else if(moveBy < 0) {
 				Logger.warning(this, "Tried moving watchlist pointer by " + moveBy);
@@ -352,29 +359,21 @@ public class NewPacketFormat implements PacketFormat {
 				if(logDEBUG) Logger.debug(this, "Moving watchlist pointer by " + moveBy);
 			}
 
-			int seqNum = (int) ((0l + keyContext.watchListOffset + keyContext.seqNumWatchList.length) % NUM_SEQNUMS);
-			for(int i = keyContext.watchListPointer; i < (keyContext.watchListPointer + moveBy); i++) {
-				keyContext.seqNumWatchList[i % keyContext.seqNumWatchList.length] = encryptSequenceNumber(seqNum++, sessionKey);
-				if(seqNum < 0) seqNum = 0;
-			}
-
-			keyContext.watchListPointer = (keyContext.watchListPointer + moveBy) % keyContext.seqNumWatchList.length;
-			keyContext.watchListOffset = (int) ((0l + keyContext.watchListOffset + moveBy) % NUM_SEQNUMS);
+			watchList.moveBy(moveBy, sessionKey);
 		}
 
-		for(int i = 0; i < keyContext.seqNumWatchList.length; i++) {
-			int index = (keyContext.watchListPointer + i) % keyContext.seqNumWatchList.length;
-			if (!Fields.byteArrayEqual(
-						buf, keyContext.seqNumWatchList[index],
-						offset + HMAC_LENGTH, 0,
-						keyContext.seqNumWatchList[index].length))
-				continue;
-			
-			int sequenceNumber = (int) ((0l + keyContext.watchListOffset + i) % NUM_SEQNUMS);
+		if(length < HMAC_LENGTH + 4) return null;
+		for(int slot = watchList.find(buf, offset + HMAC_LENGTH, -1); slot != -1;
+				slot = watchList.find(buf, offset + HMAC_LENGTH, slot)) {
+			int sequenceNumber = watchList.sequenceNumber(slot);
 			if(logDEBUG) Logger.debug(this, "Received packet matches sequence number " + sequenceNumber);
 			NPFPacket p = decipherFromSeqnum(buf, offset, length, sessionKey, sequenceNumber);
 			if(p != null) {
 				if(logMINOR) Logger.minor(this, "Received packet " + p.getSequenceNumber()+" on "+sessionKey);
+				// The key is in use, so index the watchlist, so packets from unknown addresses
+				// can be matched to us. Not before the HMAC has been checked: junk packets are
+				// tried against every unindexed key.
+				keyContext.indexWatchList(sessionKey.pn);
 				return p;
 			}
 		}
@@ -470,12 +469,13 @@ public class NewPacketFormat implements PacketFormat {
 		return maybeSendPacket(ackOnly, sessionKey);
 	}
 	
-	boolean maybeSendPacket(boolean ackOnly, SessionKey sessionKey)
+	boolean maybeSendPacket(boolean ackOnly, final SessionKey sessionKey)
 	throws BlockedTooLongException {
+		long startTime = System.nanoTime();
 		int maxPacketSize = pn.getMaxPacketSize();
 		NewPacketFormatKeyContext keyContext = sessionKey.packetContext;
 
-		NPFPacket packet = createPacket(maxPacketSize - HMAC_LENGTH, pn.getMessageQueue(), sessionKey, ackOnly);
+		final NPFPacket packet = createPacket(maxPacketSize - HMAC_LENGTH, pn.getMessageQueue(), sessionKey, ackOnly);
 		if(packet == null) return false;
 
 		int paddedLen = packet.getLength() + HMAC_LENGTH;
@@ -495,9 +495,56 @@ public class NewPacketFormat implements PacketFormat {
 			}
 		}
 
-		byte[] data = new byte[paddedLen];
+		final byte[] data = new byte[paddedLen];
 		packet.toBytes(data, HMAC_LENGTH, pn.paddingGen());
+		if(sendPipeline != null)
+			sendPipeline.assembly.report(System.nanoTime() - startTime);
+
+		if(sendPipeline != null && sendPipeline.isThreaded()) {
+			// Charge the output throttle now, so the PacketSender doesn't see bandwidth for
+			// packets which are queued but not yet sent. The rest of the accounting is done by
+			// the worker once the packet has actually been written, as we do below when
+			// sending inline.
+			final boolean throttled = pn.shouldThrottle();
+			if(throttled) pn.sentThrottledBytes(data.length);
+			final NewPacketFormatKeyContext context = keyContext;
+			sendPipeline.submit(pn, new Runnable() {
+
+				@Override
+				public void run() {
+					if(!encryptSendAndAccount(packet, data, sessionKey, context, throttled) && throttled)
+						pn.refundThrottledBytes(data.length);
+				}
+
+			});
+			return true;
+		}
 
+		return encryptSendAndAccount(packet, data, sessionKey, keyContext, false);
+	}
+
+	/** @param throttleCharged True if the output throttle has already been charged for the
+	 * packet. */
+	private boolean encryptSendAndAccount(NPFPacket packet, byte[] data, SessionKey sessionKey, NewPacketFormatKeyContext keyContext, boolean throttleCharged) {
+		if(!encryptAndSend(packet, data, sessionKey))
+			return false;
+		
+		packet.onSent(data.length, pn);
+
+		if(packet.getFragments().size() > 0) {
+			keyContext.sent(packet.getSequenceNumber(), packet.getLength());
+		}
+
+		onPacketSent(packet, data.length, throttleCharged);
+
+		return true;
+	}
+
+	/** Encrypt and MAC an assembled packet, and write it to the socket.
+	 * @return False if the packet could not be sent. */
+	private boolean encryptAndSend(NPFPacket packet, byte[] data, SessionKey sessionKey) {
+		long startTime = System.nanoTime();
+		int paddedLen = data.length;
 		BlockCipher ivCipher = sessionKey.ivCipher;
 
 		byte[] IV = new byte[ivCipher.getBlockSize() / 8];
@@ -516,6 +563,9 @@ public class NewPacketFormat implements PacketFormat {
 		byte[] hash = HMAC.macWithSHA256(sessionKey.hmacKey, text);
 
 		System.arraycopy(hash, 0, data, 0, HMAC_LENGTH);
+		long encryptedTime = System.nanoTime();
+		if(sendPipeline != null)
+			sendPipeline.encryption.report(encryptedTime - startTime);
 
 		try {
 			if(logMINOR) {
@@ -535,21 +585,20 @@ public class NewPacketFormat implements PacketFormat {
 			Logger.error(this, "Caught exception while sending packet", e);
 			return false;
 		}
-		
-		packet.onSent(data.length, pn);
-
-		if(packet.getFragments().size() > 0) {
-			keyContext.sent(packet.getSequenceNumber(), packet.getLength());
-		}
+		if(sendPipeline != null)
+			sendPipeline.write.report(System.nanoTime() - encryptedTime);
+		return true;
+	}
 
+	private void onPacketSent(NPFPacket packet, int length, boolean throttleCharged) {
 		long now = System.currentTimeMillis();
 		pn.sentPacket();
-		pn.reportOutgoingBytes(data.length);
-		if(pn.shouldThrottle()) {
-			pn.sentThrottledBytes(data.length);
+		pn.reportOutgoingBytes(length);
+		if(!throttleCharged && pn.shouldThrottle()) {
+			pn.sentThrottledBytes(length);
 		}
 		if(packet.getFragments().size() == 0) {
-			pn.onNotificationOnlyPacketSent(data.length);
+			pn.onNotificationOnlyPacketSent(length);
 		}
 		
 		synchronized(this) {
@@ -558,8 +607,6 @@ public class NewPacketFormat implements PacketFormat {
 				if(timeLastSentPayload < now) timeLastSentPayload = now;
 			}
 		}
-
-		return true;
 	}
 
 	NPFPacket createPacket(int maxPacketSize, PeerMessageQueue messageQueue, SessionKey sessionKey, boolean ackOnly) throws BlockedTooLongException {
@@ -983,9 +1030,11 @@ addOldLoop:			for(Map<Integer, MessageWrapper> started : startedByPrio) {
 	}
 	
 	/** When do we need to send a packet?
-	 * @return 0 if there is anything already in flight. The time that the oldest ack was
-	 * queued at plus the lesser of half the RTT or 100ms if there are acks queued. 
-	 * Otherwise Long.MAX_VALUE to indicate that we need to get messages from the queue. */
+	 * @return The deadline of the oldest message we have started sending but not sent all of, 
+	 * the time the oldest ack was queued at plus MAX_ACK_DELAY, or when we need to send a 
+	 * keepalive, whichever is first. Otherwise Long.MAX_VALUE to indicate that we need to get 
+	 * messages from the queue. Lost packets are checked for separately, see 
+	 * timeCheckForLostPackets(). */
 	@Override
 	public long timeNextUrgent(boolean canSend, long now) {
 		long ret = Long.MAX_VALUE;
@@ -1010,14 +1059,9 @@ addOldLoop:			for(Map<Integer, MessageWrapper> started : startedByPrio) {
 		// Check for acks.
 		ret = Math.min(ret, timeCheckForAcks());
 		
-		if(ret > now) {
-		    // Always wake up after half an RTT, check whether stuff is lost or needs ack'ing.
-		    ret = Math.min(ret, now + Math.min(100, (long)averageRTT()/2));
-		    
-		    if(canSend && DO_KEEPALIVES) {
-		        synchronized(this) {
-		            ret = Math.min(ret, timeLastSentPayload + Node.KEEPALIVE_INTERVAL);
-		        }
+		if(ret > now && canSend && DO_KEEPALIVES) {
+		    synchronized(this) {
+		        ret = Math.min(ret, timeLastSentPayload + Node.KEEPALIVE_INTERVAL);
 		    }
 		}
 
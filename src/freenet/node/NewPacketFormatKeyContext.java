@@ -24,10 +24,16 @@ public class NewPacketFormatKeyContext {
 	public int nextSeqNum;
 	public int highestReceivedSeqNum;
 
-	public byte[][] seqNumWatchList = null;
-	/** Index of the packet with the lowest sequence number */
-	public int watchListPointer = 0;
-	public int watchListOffset = 0;
+	/** The encrypted sequence numbers we are watching for. Created when we first try to
+	 * decrypt a packet with this key. */
+	private volatile SequenceNumberWatchList watchList;
+	/** Set by unindexWatchList(), possibly before the watch list has been created. */
+	private volatile boolean watchListDropped;
+	/** The first sequence number we will watch for */
+	private final int theirFirstSeqNum;
+	/** If non-null, the watch list is added to this index, so we can find the peer for a
+	 * packet from an unknown address. */
+	private final SequenceNumberIndex seqNumIndex;
 	
 	private final TreeMap<Integer, Long> acks = new TreeMap<Integer, Long>();
 	private final HashMap<Integer, SentPacket> sentPackets = new HashMap<Integer, SentPacket>();
@@ -61,11 +67,16 @@ public class NewPacketFormatKeyContext {
 	}
 
 	NewPacketFormatKeyContext(int ourFirstSeqNum, int theirFirstSeqNum) {
+		this(ourFirstSeqNum, theirFirstSeqNum, null);
+	}
+
+	NewPacketFormatKeyContext(int ourFirstSeqNum, int theirFirstSeqNum, SequenceNumberIndex seqNumIndex) {
+		this.seqNumIndex = seqNumIndex;
 		ourFirstSeqNum &= 0x7FFFFFFF;
 		theirFirstSeqNum &= 0x7FFFFFFF;
 		
 		this.nextSeqNum = ourFirstSeqNum;
-		this.watchListOffset = theirFirstSeqNum;
+		this.theirFirstSeqNum = theirFirstSeqNum;
 		
 		this.highestReceivedSeqNum = theirFirstSeqNum - 1;
 		if(this.highestReceivedSeqNum == -1) this.highestReceivedSeqNum = Integer.MAX_VALUE;
@@ -315,6 +326,47 @@ public class NewPacketFormatKeyContext {
 			}
 			sentPackets.clear();
 		}
+		unindexWatchList();
+	}
+
+	/** Get the watch list, or null if it hasn't been created yet. Only called on the receive
+	 * thread. */
+	SequenceNumberWatchList getWatchList() {
+		return watchList;
+	}
+
+	/** Create the watch list, starting at the other side's first sequence number. Only called
+	 * on the receive thread. */
+	SequenceNumberWatchList createWatchList(int size, SessionKey sessionKey) {
+		SequenceNumberWatchList list = new SequenceNumberWatchList(size, theirFirstSeqNum, sessionKey, seqNumIndex);
+		watchList = list;
+		// The key may have been dropped while we were creating it.
+		if(watchListDropped) list.unindex();
+		return list;
+	}
+
+	/** Is the watch list in the SequenceNumberIndex? Will be true only after we have received
+	 * at least one packet on this key. */
+	boolean isWatchListIndexed() {
+		SequenceNumberWatchList list = watchList;
+		return list != null && list.isIndexed();
+	}
+
+	/** Add the watch list to the SequenceNumberIndex, if there is one and it's not already
+	 * there.
+	 * @param pn The peer this key belongs to. */
+	void indexWatchList(PeerNode pn) {
+		SequenceNumberWatchList list = watchList;
+		if(list != null) list.indexFor(pn);
+	}
+
+	/** Remove the watch list from the SequenceNumberIndex for good. Must be called when the
+	 * key is dropped, otherwise the index will leak. After this the watch list is never
+	 * indexed again, even if a packet is still received on the key. */
+	void unindexWatchList() {
+		watchListDropped = true;
+		SequenceNumberWatchList list = watchList;
+		if(list != null) list.unindex();
 	}
 }
 
@@ -108,6 +108,7 @@ import freenet.node.useralerts.UserAlert;
 import freenet.pluginmanager.ForwardPort;
 import freenet.pluginmanager.PluginDownLoaderOfficialHTTPS;
 import freenet.pluginmanager.PluginManager;
+import freenet.store.BatchFetchCallback;
 import freenet.store.BlockMetadata;
 import freenet.store.CHKStore;
 import freenet.store.FreenetStore;
@@ -146,6 +147,7 @@ import freenet.support.io.ArrayBucketFactory;
 import freenet.support.io.Closer;
 import freenet.support.io.FileUtil;
 import freenet.support.io.NativeThread;
+import freenet.support.math.DecayingKeyspaceAverage;
 import freenet.support.math.MersenneTwister;
 import freenet.support.transport.ip.HostnameSyntaxException;
 
@@ -652,6 +654,8 @@ public class Node implements TimeSkewDetectorCallback {
 
 	public final Executor executor;
 	public final PacketSender ps;
+	/** Encrypts and writes packets assembled by the PacketSender, possibly on other threads. */
+	public final PacketSendPipeline packetSendPipeline;
 	public final PrioritizedTicker ticker;
 	final DNSRequester dnsr;
 	final NodeDispatcher dispatcher;
@@ -753,6 +757,8 @@ public class Node implements TimeSkewDetectorCallback {
 	private volatile boolean isPRNGReady = false;
 
 	private boolean storePreallocate;
+	/** Should salted hash stores memory map their metadata files? */
+	private boolean storeMmapMetadata;
 	
 	private boolean enableRoutedPing;
 
@@ -1479,6 +1485,27 @@ public class Node implements TimeSkewDetectorCallback {
 		});
 		enablePacketCoalescing = nodeConfig.getBoolean("enablePacketCoalescing");
 
+		nodeConfig.register("packetSendThreads", 0, sortOrder++, true, false, "Node.packetSendThreads", "Node.packetSendThreadsLong", new IntCallback() {
+			@Override
+			public Integer get() {
+				return packetSendPipeline.getThreads();
+			}
+
+			@Override
+			public void set(Integer val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if(val.intValue() == get().intValue()) return;
+				if(val < 0 || val > PacketSendPipeline.MAX_THREADS)
+					throw new InvalidConfigValueException(l10n("packetSendThreadsInvalid", "max", Integer.toString(PacketSendPipeline.MAX_THREADS)));
+				throw new NodeNeedRestartException("Packet send threads cannot be changed on the fly");
+			}
+		}, false);
+		int packetSendThreads = nodeConfig.getInt("packetSendThreads");
+		if(packetSendThreads < 0 || packetSendThreads > PacketSendPipeline.MAX_THREADS) {
+			Logger.error(this, "Invalid packetSendThreads "+packetSendThreads+", sending packets on the PacketSender thread");
+			packetSendThreads = 0;
+		}
+		packetSendPipeline = new PacketSendPipeline(packetSendThreads);
+
 		// Determine the port number
 		// @see #191
 		if(oldConfig != null && "-1".equals(oldConfig.get("node.listenPort")))
@@ -2048,6 +2075,37 @@ public class Node implements TimeSkewDetectorCallback {
 		);
 		storePreallocate = nodeConfig.getBoolean("storePreallocate");
 
+		nodeConfig.register("storeMmapMetadata", false, sortOrder++, true, false, "Node.storeMmapMetadata", "Node.storeMmapMetadataLong",
+				new BooleanCallback() {
+					@Override
+					public Boolean get() {
+						return storeMmapMetadata;
+					}
+
+					@Override
+					public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+						storeMmapMetadata = val;
+						if (storeType.equals("salt-hash")) {
+							setMmapMetadata(chkDatastore, val);
+							setMmapMetadata(chkDatacache, val);
+							setMmapMetadata(pubKeyDatastore, val);
+							setMmapMetadata(pubKeyDatacache, val);
+							setMmapMetadata(sskDatastore, val);
+							setMmapMetadata(sskDatacache, val);
+						}
+					}
+
+					private void setMmapMetadata(StoreCallback<?> datastore, boolean val) {
+						// Avoid race conditions by checking first.
+						FreenetStore<?> store = datastore.getStore();
+						if(store != null)
+							store = store.getUnderlyingStore();
+						if(store instanceof SaltedHashFreenetStore)
+							((SaltedHashFreenetStore<?>)store).setMmapMetadata(val);
+					}}
+		);
+		storeMmapMetadata = nodeConfig.getBoolean("storeMmapMetadata");
+
 		if(File.separatorChar == '/' && System.getProperty("os.name").toLowerCase().indexOf("mac os") < 0) {
 			securityLevels.addPhysicalThreatLevelListener(new SecurityLevelListener<SecurityLevels.PHYSICAL_THREAT_LEVEL>() {
 
@@ -2797,6 +2855,12 @@ public class Node implements TimeSkewDetectorCallback {
 	private long cachingFreenetStorePeriod;
 	private CachingFreenetStoreTracker cachingFreenetStoreTracker;
 
+	/** @return The tracker for the write-back caches in front of the datastore, or null if
+	 * they are disabled or the store is not a salted hash store. */
+	public CachingFreenetStoreTracker getCachingFreenetStoreTracker() {
+		return cachingFreenetStoreTracker;
+	}
+
 	private void initSaltHashFS(final String suffix, boolean dontResizeOnStart, byte[] masterKey) throws NodeInitException {
 		try {
 			final CHKStore chkDatastore = new CHKStore();
@@ -2980,6 +3044,8 @@ public class Node implements TimeSkewDetectorCallback {
 		SaltedHashFreenetStore<T> fs = SaltedHashFreenetStore.<T>construct(getStoreDir(), type+"-"+store, cb,
 		        random, maxKeys, storeUseSlotFilters, shutdownHook, storePreallocate, storeSaltHashResizeOnStart && !lateStart, lateStart ? ticker : null, clientCacheMasterKey);
 		cb.setStore(fs);
+		if(storeMmapMetadata)
+			fs.setMmapMetadata(true);
 		if(cachingFreenetStoreMaxSize > 0)
 			return new CachingFreenetStore<T>(cb, fs, cachingFreenetStoreTracker);
 		else
@@ -3003,6 +3069,7 @@ public class Node implements TimeSkewDetectorCallback {
 		darknetCrypto.start();
 		if(opennet != null)
 			opennet.start();
+		packetSendPipeline.start(getDarknetPortNumber());
 		ps.start(nodeStats);
 		ticker.start();
 		scheduleVersionTransition();
@@ -3506,6 +3573,117 @@ public class Node implements TimeSkewDetectorCallback {
 		}
 	}
 
+	/**
+	 * Fetch several keys, looking in the same stores in the same order as fetch(Key, ...), but
+	 * asking each store for all the CHKs not found so far in one batch, so that it can combine
+	 * the disk reads. SSKs are fetched one at a time.
+	 * @return The blocks, with null for each key which wasn't found.
+	 */
+	public KeyBlock[] fetch(Key[] keys, boolean canReadClientCache, boolean canWriteClientCache, boolean canWriteDatastore) {
+		KeyBlock[] blocks = new KeyBlock[keys.length];
+		int chkCount = 0;
+		for(Key key : keys)
+			if(key instanceof NodeCHK) chkCount++;
+		NodeCHK[] chks = new NodeCHK[chkCount];
+		int[] chkIndex = new int[chkCount];
+		chkCount = 0;
+		for(int i=0;i<keys.length;i++) {
+			if(keys[i] instanceof NodeCHK) {
+				chkIndex[chkCount] = i;
+				chks[chkCount++] = (NodeCHK) keys[i];
+			} else {
+				blocks[i] = fetch(keys[i], canReadClientCache, canWriteClientCache, canWriteDatastore, false, null);
+			}
+		}
+		if(chkCount == 0) return blocks;
+		CHKBlock[] found = new CHKBlock[chkCount];
+		double furthest;
+		if(canReadClientCache) {
+			try {
+				furthest = fetchCHKs(chkClientcache, chks, found, !canWriteClientCache, false, nodeStats.avgClientCacheCHKSuccess);
+				if(furthest > nodeStats.furthestClientCacheCHKSuccess)
+					nodeStats.furthestClientCacheCHKSuccess = furthest;
+			} catch (IOException e) {
+				Logger.error(this, "Could not read from client cache: "+e, e);
+			}
+		}
+		if(useSlashdotCache || canReadClientCache) {
+			try {
+				furthest = fetchCHKs(chkSlashdotcache, chks, found, false, false, nodeStats.avgSlashdotCacheCHKSucess);
+				if(furthest > nodeStats.furthestSlashdotCacheCHKSuccess)
+					nodeStats.furthestSlashdotCacheCHKSuccess = furthest;
+			} catch (IOException e) {
+				Logger.error(this, "Could not read from slashdot/ULPR cache: "+e, e);
+			}
+		}
+		boolean ignoreOldBlocks = !writeLocalToDatastore;
+		if(canReadClientCache) ignoreOldBlocks = false;
+		if(logMINOR) dumpStoreHits();
+		try {
+			for(int i=0;i<chkCount;i++)
+				if(found[i] == null) nodeStats.avgRequestLocation.report(chks[i].toNormalizedDouble());
+			furthest = fetchCHKs(chkDatastore, chks, found, !canWriteDatastore, ignoreOldBlocks, nodeStats.avgStoreCHKSuccess);
+			furthest = Math.max(furthest, fetchCHKs(oldCHK, chks, found, !canWriteDatastore, ignoreOldBlocks, nodeStats.avgStoreCHKSuccess));
+			if(furthest > nodeStats.furthestStoreCHKSuccess)
+				nodeStats.furthestStoreCHKSuccess = furthest;
+			furthest = fetchCHKs(chkDatacache, chks, found, !canWriteDatastore, ignoreOldBlocks, nodeStats.avgCacheCHKSuccess);
+			furthest = Math.max(furthest, fetchCHKs(oldCHKCache, chks, found, !canWriteDatastore, ignoreOldBlocks, nodeStats.avgCacheCHKSuccess));
+			if(furthest > nodeStats.furthestCacheCHKSuccess)
+				nodeStats.furthestCacheCHKSuccess = furthest;
+		} catch (IOException e) {
+			Logger.error(this, "Cannot fetch data: "+e, e);
+		}
+		for(int i=0;i<chkCount;i++)
+			blocks[chkIndex[i]] = found[i];
+		return blocks;
+	}
+
+	/**
+	 * Fetch the keys which haven't been found yet from one store, as a single batch.
+	 * @param found The blocks found so far, filled in as more are found.
+	 * @return The greatest distance from our location of a key found, or -1 if none were.
+	 */
+	private double fetchCHKs(CHKStore store, NodeCHK[] keys, CHKBlock[] found, boolean dontPromote, boolean ignoreOldBlocks, DecayingKeyspaceAverage avgSuccess) throws IOException {
+		if(store == null) return -1;
+		int missingCount = 0;
+		for(CHKBlock block : found)
+			if(block == null) missingCount++;
+		if(missingCount == 0) return -1;
+		int[] missing = new int[missingCount];
+		NodeCHK[] missingKeys = new NodeCHK[missingCount];
+		missingCount = 0;
+		for(int i=0;i<found.length;i++) {
+			if(found[i] == null) {
+				missing[missingCount] = i;
+				missingKeys[missingCount++] = keys[i];
+			}
+		}
+		final CHKBlock[] results = new CHKBlock[missingCount];
+		store.fetch(missingKeys, dontPromote, ignoreOldBlocks, new BatchFetchCallback<CHKBlock>() {
+
+			@Override
+			public void onFetched(int index, CHKBlock block) {
+				results[index] = block;
+			}
+
+			@Override
+			public void onFinished() {
+				// Ignore.
+			}
+
+		});
+		double myLoc = lm.getLocation();
+		double furthest = -1;
+		for(int i=0;i<missingCount;i++) {
+			if(results[i] == null) continue;
+			found[missing[i]] = results[i];
+			double loc = missingKeys[i].toNormalizedDouble();
+			avgSuccess.report(loc);
+			furthest = Math.max(furthest, Location.distance(myLoc, loc));
+		}
+		return furthest;
+	}
+
 	CHKStore getChkDatacache() {
 		return chkDatacache;
 	}
@@ -12,9 +12,11 @@ import freenet.client.FetchContext;
 import freenet.client.HighLevelSimpleClient;
 import freenet.client.HighLevelSimpleClientImpl;
 import freenet.client.InsertContext;
+import freenet.client.OnionFECCodec;
 import freenet.client.async.ClientContext;
 import freenet.client.async.ClientLayerPersister;
 import freenet.client.async.ClientRequestScheduler;
+import freenet.client.async.ContentFilterStage;
 import freenet.client.async.DatastoreChecker;
 import freenet.client.async.HealingQueue;
 import freenet.client.async.PersistentStatsPutter;
@@ -104,6 +106,8 @@ public class NodeClientCore implements Persistable {
 	public final RequestStarterGroup requestStarters;
 	private final HealingQueue healingQueue;
 	public final MemoryLimitedJobRunner memoryLimitedJobRunner;
+	/** Limits how many completed downloads are filtered at once. */
+	public final ContentFilterStage contentFilterStage;
 	/**
 	 * <p>Must be included as a hidden field in order for any dangerous HTTP operation to complete successfully.</p>
 	 * <p>The name of the variable is badly chosen: formPassword is an <a href="https://www.owasp.org/index.php/Cross-Site_Request_Forgery_%28CSRF%29">
@@ -437,6 +441,76 @@ public class NodeClientCore implements Persistable {
 								tempBucketFactory,
 								bandwidthStatsPutter);
 
+		// Deserializing and resuming requests is mostly CPU bound.
+		nodeConfig.register("persistentRequestLoadThreads",
+				    Math.max(1, Runtime.getRuntime().availableProcessors()),
+				    sortOrder++, true, false,
+				    "NodeClientCore.persistentRequestLoadThreads",
+				    "NodeClientCore.persistentRequestLoadThreadsLong",
+				    new IntCallback() {
+
+					    @Override
+					    public Integer get() {
+						    return clientLayerPersister.getLoadThreads();
+					    }
+
+					    @Override
+					    public void set(Integer val)
+							    throws InvalidConfigValueException,
+								   NodeNeedRestartException {
+						    if (val < 1)
+							    throw new InvalidConfigValueException(
+									    l10n("persistentRequestLoadThreadsMustBe1Plus"));
+						    clientLayerPersister.setLoadThreads(val);
+					    }
+
+				    }, false);
+		clientLayerPersister.setLoadThreads(nodeConfig.getInt("persistentRequestLoadThreads"));
+
+		nodeConfig.register("lazyResumePersistentRequests", true, sortOrder++, true, false,
+				    "NodeClientCore.lazyResumePersistentRequests",
+				    "NodeClientCore.lazyResumePersistentRequestsLong",
+				    new BooleanCallback() {
+
+					    @Override
+					    public Boolean get() {
+						    return clientLayerPersister.getResumeInBackground();
+					    }
+
+					    @Override
+					    public void set(Boolean val)
+							    throws InvalidConfigValueException,
+								   NodeNeedRestartException {
+						    if (val != clientLayerPersister.getResumeInBackground()) {
+							    clientLayerPersister.setResumeInBackground(val);
+							    throw new NodeNeedRestartException(
+									    l10n("lazyResumePersistentRequestsMustRestartNode"));
+						    }
+					    }
+
+				    });
+		clientLayerPersister.setResumeInBackground(nodeConfig.getBoolean("lazyResumePersistentRequests"));
+
+		nodeConfig.register("compressionSamplingPrePass", false, sortOrder++, true, false,
+				    "NodeClientCore.compressionSamplingPrePass",
+				    "NodeClientCore.compressionSamplingPrePassLong",
+				    new BooleanCallback() {
+
+					    @Override
+					    public Boolean get() {
+						    return compressor.isSamplingPrePass();
+					    }
+
+					    @Override
+					    public void set(Boolean val)
+							    throws InvalidConfigValueException,
+								   NodeNeedRestartException {
+						    compressor.setSamplingPrePass(val);
+					    }
+
+				    });
+		compressor.setSamplingPrePass(nodeConfig.getBoolean("compressionSamplingPrePass"));
+
 		SemiOrderedShutdownHook shutdownHook = SemiOrderedShutdownHook.get();
 
 		shutdownHook.addEarlyJob(new NativeThread("Shutdown RealCompressor",
@@ -576,6 +650,58 @@ public class NodeClientCore implements Persistable {
 						nodeConfig.getInt("memoryLimitedJobThreadLimit"),
 						node.executor,
 						RequestStarter.NUMBER_OF_PRIORITY_CLASSES);
+		// A single FEC job can use the other cores if it is the only one running.
+		nodeConfig.register("fecHelperThreads",
+				    Math.max(0, Runtime.getRuntime().availableProcessors() - 1),
+				    sortOrder++, true, false,
+				    "NodeClientCore.fecHelperThreads",
+				    "NodeClientCore.fecHelperThreadsLong",
+				    new IntCallback() {
+
+					    @Override
+					    public Integer get() {
+						    return OnionFECCodec.getMaxHelperThreads();
+					    }
+
+					    @Override
+					    public void set(Integer val)
+							    throws InvalidConfigValueException,
+								   NodeNeedRestartException {
+						    if (val < 0)
+							    throw new InvalidConfigValueException(
+									    l10n("fecHelperThreadsMustBe0Plus"));
+						    OnionFECCodec.setMaxHelperThreads(val);
+					    }
+
+				    }, false);
+		OnionFECCodec.setMaxHelperThreads(nodeConfig.getInt("fecHelperThreads"));
+		OnionFECCodec.setExecutor(node.executor);
+		// Filtering is mostly CPU bound, so default to one thread per core.
+		nodeConfig.register("contentFilterThreads",
+				    Math.max(1, Runtime.getRuntime().availableProcessors()),
+				    sortOrder++, true, false,
+				    "NodeClientCore.contentFilterThreads",
+				    "NodeClientCore.contentFilterThreadsLong",
+				    new IntCallback() {
+
+					    @Override
+					    public Integer get() {
+						    return contentFilterStage.getMaxThreads();
+					    }
+
+					    @Override
+					    public void set(Integer val)
+							    throws InvalidConfigValueException,
+								   NodeNeedRestartException {
+						    if (val < 1)
+							    throw new InvalidConfigValueException(
+									    l10n("contentFilterThreadsMustBe1Plus"));
+						    contentFilterStage.setMaxThreads(val);
+					    }
+
+				    }, false);
+		contentFilterStage =
+				new ContentFilterStage(nodeConfig.getInt("contentFilterThreads"));
 		shutdownHook.addEarlyJob(
 				new NativeThread("Shutdown FEC", NativeThread.HIGH_PRIORITY, true) {
 
@@ -610,6 +736,7 @@ public class NodeClientCore implements Persistable {
 						  compressor, storeChecker, fcpPersistentRoot,
 						  cryptoSecretTransient, toadlets,
 						  defaultFetchContext, defaultInsertContext);
+		clientContext.setContentFilterStage(contentFilterStage);
 		compressor.setClientContext(clientContext);
 		storeChecker.setContext(clientContext);
 		clientLayerPersister.start(clientContext);
@@ -1053,6 +1180,8 @@ public class NodeClientCore implements Persistable {
 			@Override
 			public void run() {
 				Logger.normal(this, "Resuming persistent requests");
+				// Don't delete unclaimed temp files until everything has resumed.
+				clientLayerPersister.waitForResume(false);
 				if(node.getDatabaseKey() != null) {
 				    try {
 				        finishInitStorage();
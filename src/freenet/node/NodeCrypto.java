@@ -47,6 +47,8 @@ public class NodeCrypto {
 	/** The object which handles our specific UDP port, pulls messages from it, feeds them to the packet mangler for decryption etc */
 	final UdpSocketHandler socket;
 	public FNPPacketMangler packetMangler;
+	/** Finds the peer for a packet from an unknown address by its encrypted sequence number */
+	final SequenceNumberIndex seqNumIndex = new SequenceNumberIndex();
 	// FIXME: abstract out address stuff? Possibly to something like NodeReference?
 	final int portNumber;
 	/** @see PeerNode.identity */
@@ -104,7 +106,7 @@ public class NodeCrypto {
 			for(int i=0;i<200000;i++) {
 				int portNo = 1024 + random.nextInt(65535-1024);
 				try {
-					u = new UdpSocketHandler(portNo, bindto.getAddress(), node, startupTime, getTitle(portNo), node.collector);
+					u = new UdpSocketHandler(portNo, bindto.getAddress(), node, startupTime, getTitle(portNo), node.collector, config.useDatagramChannel());
 					port = u.getPortNumber();
 					break;
 				} catch (Exception e) {
@@ -118,7 +120,7 @@ public class NodeCrypto {
 				throw new NodeInitException(NodeInitException.EXIT_NO_AVAILABLE_UDP_PORTS, "Could not find an available UDP port number for FNP (none specified)");
 		} else {
 			try {
-				u = new UdpSocketHandler(port, bindto.getAddress(), node, startupTime, getTitle(port), node.collector);
+				u = new UdpSocketHandler(port, bindto.getAddress(), node, startupTime, getTitle(port), node.collector, config.useDatagramChannel());
 			} catch (Exception e) {
 				Logger.error(this, "Caught "+e, e);
 				System.err.println(e);
@@ -462,6 +464,10 @@ public class NodeCrypto {
 		socket.close();
 	}
 
+	public SequenceNumberIndex getSequenceNumberIndex() {
+		return seqNumIndex;
+	}
+
 	public PeerNode[] getPeerNodes() {
 		if(node.peers == null) return null;
 		if(isOpennet)
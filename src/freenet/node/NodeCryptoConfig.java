@@ -54,6 +54,10 @@ public class NodeCryptoConfig {
 	/** If false we won't make any effort do disguise the length of packets */
 	private boolean paddDataPackets;
 	
+	/** If true, use a non-blocking DatagramChannel and receive packets in batches; if false,
+	 * use the old blocking DatagramSocket. Only takes effect on restart. */
+	private boolean useDatagramChannel;
+	
 	NodeCryptoConfig(SubConfig config, int sortOrder, boolean isOpennet, SecurityLevels securityLevels) throws NodeInitException {
 		config.register("listenPort", -1 /* means random */, sortOrder++, true, true,
 				isOpennet ? "Node.opennetPort" : "Node.port", 
@@ -252,6 +256,27 @@ public class NodeCryptoConfig {
 					paddDataPackets = true;
 			}
 		});
+		
+		config.register("useDatagramChannel", false, sortOrder++, true, false, "Node.useDatagramChannel", "Node.useDatagramChannelLong", new BooleanCallback() {
+
+			@Override
+			public Boolean get() {
+				synchronized(NodeCryptoConfig.this) {
+					return useDatagramChannel;
+				}
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+				synchronized(NodeCryptoConfig.this) {
+					if(val == useDatagramChannel) return;
+					useDatagramChannel = val;
+				}
+				throw new NodeNeedRestartException("useDatagramChannel cannot be changed on the fly");
+			}
+		});
+		
+		useDatagramChannel = config.getBoolean("useDatagramChannel");
 	}
 
 	/** The number of config options i.e. the amount to increment sortOrder by */
@@ -328,4 +353,8 @@ public class NodeCryptoConfig {
 	public boolean paddDataPackets() {
 		return paddDataPackets;
 	}
+	
+	public synchronized boolean useDatagramChannel() {
+		return useDatagramChannel;
+	}
 }
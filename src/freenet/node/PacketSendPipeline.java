@@ -0,0 +1,223 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.NativeThread;
+
+/**
+ * The back end of sending a packet. NewPacketFormat assembles packets on the PacketSender thread,
+ * which allocates sequence numbers and so must stay ordered. If there are worker threads, the
+ * encryption, MAC and socket write are then handed off to them, so that on a node with many fast
+ * peers the crypto isn't serialized on one core. All the packets for a peer go to the same
+ * worker, so they are still written in the order they were assembled. With no workers
+ * everything runs on the PacketSender thread. Either way we keep per-stage timings.
+ * 
+ * The PacketSender never waits for a worker: it asks isBacklogged() before assembling a packet
+ * for a peer, and leaves the peer alone until the worker has caught up and wakes it.
+ */
+public class PacketSendPipeline {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/** Maximum number of packets waiting for each worker. If a worker falls this far behind,
+	 * the PacketSender doesn't send to its peers until it has caught up, rather than queueing
+	 * unbounded data. Ack-only packets may still be queued beyond this. */
+	static final int MAX_QUEUED_PER_WORKER = 64;
+	/** Maximum number of worker threads. */
+	public static final int MAX_THREADS = 64;
+
+	/** Count and total time for one stage of sending a packet. */
+	public static class StageStats {
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+
+		void report(long nanos) {
+			count.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		/** @return The average time for this stage in microseconds, or 0 if nothing has been
+		 * through it yet. */
+		public double getAverageMicros() {
+			long c = count.get();
+			if(c == 0) return 0.0;
+			return totalNanos.get() / 1000.0 / c;
+		}
+	}
+
+	/** Building the packet: createPacket(), padding and serialization. */
+	public final StageStats assembly = new StageStats();
+	/** Waiting in a worker's queue. */
+	public final StageStats queueWait = new StageStats();
+	/** Encryption and MAC. */
+	public final StageStats encryption = new StageStats();
+	/** Writing the packet to the socket. */
+	public final StageStats write = new StageStats();
+
+	private final Worker[] workers;
+	private final AtomicInteger queueDepth = new AtomicInteger();
+	private volatile int maxQueueDepth;
+	private final AtomicLong stalls = new AtomicLong();
+
+	private static class Job {
+		final Runnable job;
+		final long queuedTime;
+
+		Job(Runnable job, long queuedTime) {
+			this.job = job;
+			this.queuedTime = queuedTime;
+		}
+	}
+
+	private class Worker implements Runnable {
+		private final LinkedBlockingQueue<Job> jobs = new LinkedBlockingQueue<Job>();
+		/** Peers we told the PacketSender to leave alone. Woken when we have caught up. */
+		private final Set<BasePeerNode> waiting = new LinkedHashSet<BasePeerNode>();
+
+		@Override
+		public void run() {
+			freenet.support.Logger.OSThread.logPID(this);
+			while(true) {
+				Job job;
+				try {
+					job = jobs.take();
+				} catch (InterruptedException e) {
+					continue;
+				}
+				queueDepth.decrementAndGet();
+				queueWait.report(System.nanoTime() - job.queuedTime);
+				try {
+					job.job.run();
+				} catch (Throwable t) {
+					Logger.error(this, "Caught "+t+" sending packet", t);
+				}
+				if(jobs.size() <= MAX_QUEUED_PER_WORKER / 2)
+					wakeWaiting();
+			}
+		}
+
+		private void wakeWaiting() {
+			List<BasePeerNode> wake;
+			synchronized(waiting) {
+				if(waiting.isEmpty()) return;
+				wake = new ArrayList<BasePeerNode>(waiting);
+				waiting.clear();
+			}
+			for(BasePeerNode pn : wake) {
+				try {
+					pn.wakeUpSender();
+				} catch (Throwable t) {
+					Logger.error(this, "Caught "+t+" waking "+pn, t);
+				}
+			}
+		}
+	}
+
+	/** @param threads The number of worker threads. 0 means do everything on the calling
+	 * thread. */
+	public PacketSendPipeline(int threads) {
+		if(threads < 0 || threads > MAX_THREADS) throw new IllegalArgumentException();
+		workers = new Worker[threads];
+		for(int i = 0; i < threads; i++)
+			workers[i] = new Worker();
+	}
+
+	void start(int portNumber) {
+		for(int i = 0; i < workers.length; i++) {
+			NativeThread thread = new NativeThread(workers[i], "Packet send worker "+i+" for "+portNumber, NativeThread.MAX_PRIORITY, false);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		if(workers.length > 0)
+			Logger.normal(this, "Started "+workers.length+" packet send workers");
+	}
+
+	/** @return True if encryption and sending are done on worker threads. */
+	public boolean isThreaded() {
+		return workers.length > 0;
+	}
+
+	public int getThreads() {
+		return workers.length;
+	}
+
+	private Worker workerFor(Object peer) {
+		return workers[(System.identityHashCode(peer) & Integer.MAX_VALUE) % workers.length];
+	}
+
+	/** Is the worker for this peer too far behind to take another packet? If so, the peer is
+	 * woken up with wakeUpSender() when the worker has caught up. Never true if there are no
+	 * workers. */
+	boolean isBacklogged(BasePeerNode peer) {
+		if(workers.length == 0) return false;
+		Worker worker = workerFor(peer);
+		if(worker.jobs.size() < MAX_QUEUED_PER_WORKER) return false;
+		synchronized(worker.waiting) {
+			worker.waiting.add(peer);
+		}
+		// It may have caught up while we were adding the peer.
+		if(worker.jobs.size() < MAX_QUEUED_PER_WORKER) {
+			worker.wakeWaiting();
+			return false;
+		}
+		stalls.incrementAndGet();
+		if(logMINOR) Logger.minor(this, "Send worker queue full, holding back "+peer);
+		return true;
+	}
+
+	/** Run the job, on the worker for this peer if there are workers. Jobs for the same peer
+	 * run in the order they are submitted. Never blocks: callers should check isBacklogged()
+	 * first to keep the queues short. */
+	void submit(Object peer, Runnable job) {
+		if(workers.length == 0) {
+			job.run();
+			return;
+		}
+		Job j = new Job(job, System.nanoTime());
+		int depth = queueDepth.incrementAndGet();
+		if(depth > maxQueueDepth) maxQueueDepth = depth;
+		workerFor(peer).jobs.add(j);
+	}
+
+	/** @return The number of packets waiting for a worker. */
+	public int getQueueDepth() {
+		return queueDepth.get();
+	}
+
+	/** @return The largest number of packets that have been waiting for workers at once. */
+	public int getMaxQueueDepth() {
+		return maxQueueDepth;
+	}
+
+	/** @return The number of times the PacketSender held back a peer because its worker was
+	 * too far behind. */
+	public long getStalls() {
+		return stalls.get();
+	}
+
+}
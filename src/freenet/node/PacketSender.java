@@ -11,6 +11,7 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 import java.util.ArrayList;
 
 import freenet.l10n.NodeL10n;
+import freenet.support.DeadlineQueue;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
@@ -65,6 +66,29 @@ public class PacketSender implements Runnable {
 	long lastReportedNoPackets;
 	long lastReceivedPacketFromAnyNode;
 	private MersenneTwister localRandom;
+	/** We look at every peer at least this often, even if it has nothing to do, in case 
+	 * something which doesn't call wakeUp() has changed, e.g. it has become incompatible. 
+	 * Everything time critical is tracked in its deadline. */
+	static final long MAX_PEER_CHECK_INTERVAL = SECONDS.toMillis(5);
+	/** We look at the old opennet peers this often. Handshakes to them are at least 10 seconds
+	 * apart. */
+	static final long OLD_OPENNET_CHECK_INTERVAL = SECONDS.toMillis(1);
+	/** Peers sorted by the time at which realRun() next needs to look at them. 
+	 * LOCKING: Synchronized on this. */
+	private final DeadlineQueue<PeerNode> schedule = new DeadlineQueue<PeerNode>();
+	/** The PeerManager.myPeers() array that schedule was last synced with. */
+	private PeerNode[] scheduledPeers;
+	/** Peers which are due on this iteration of realRun(), and their next times. */
+	private final ArrayList<PeerNode> duePeers = new ArrayList<PeerNode>();
+	private long[] dueTimes = new long[16];
+	/** When we next need to look at old opennet peers. */
+	private long nextOldOpennetCheck;
+	/** When the sender thread will wake up by itself if it is sleeping. Long.MIN_VALUE if it
+	 * is running. LOCKING: Synchronized on this. */
+	private long sleepingUntil = Long.MIN_VALUE;
+	private volatile long loopIterations;
+	private volatile long wastedWakeups;
+	private volatile long peersExamined;
 
 	PacketSender(Node node) {
 		this.node = node;
@@ -120,7 +144,6 @@ public class PacketSender implements Runnable {
 		 * ran out of bandwidth. We start the loop from here next time.
 		 */
 		while(true) {
-			lastReceivedPacketFromAnyNode = lastReportedNoPackets;
 			try {
 				realRun();
 			} catch(Throwable t) {
@@ -141,22 +164,36 @@ public class PacketSender implements Runnable {
 	 * peer with the oldest data.
 	 * - If there are peers with overdue ack's, send to the peer whose acks are oldest.
 	 * 
+	 * Peers are kept in a queue sorted by the time at which we next need to look at them (urgent
+	 * send, ack deadline, keepalive, lost packet check, handshake, disconnecting a peer we 
+	 * haven't heard from, or MAX_PEER_CHECK_INTERVAL for basic maintenance), so we only 
+	 * consider peers whose time has come rather than every peer on every wakeup. An idle 
+	 * connected peer is only looked at when it needs a keepalive. PeerNode reschedules itself 
+	 * via wakeUp(PeerNode, long) when something is queued, an ack is due, it can send again, 
+	 * or it is connected or disconnected.
+	 * 
 	 * It does not attempt to ensure fairness, it attempts to minimise latency. Fairness is best
 	 * dealt with at a higher level e.g. requests, although some transfers are not part of requests,
 	 * e.g. bulk f2f transfers, so we may need to reconsider this eventually...
 	 */
 	private void realRun() {
 		long now = System.currentTimeMillis();
-                PeerManager pm;
-		PeerNode[] nodes;
-
-        pm = node.peers;
-        nodes = pm.myPeers();
+		loopIterations++;
+		PeerManager pm = node.peers;
+		PeerNode[] nodes = pm.myPeers();
+		if(nodes != scheduledPeers) {
+			// Peers added or removed. New peers are looked at immediately.
+			synchronized(this) {
+				schedule.setItems(nodes, now);
+			}
+			scheduledPeers = nodes;
+		}
 
-		long nextActionTime = Long.MAX_VALUE;
 		long oldTempNow = now;
 
 		final boolean canSendThrottled;
+		/** When we can next send a full throttled packet. */
+		long throttledSendTime = now;
 
 		int MAX_PACKET_SIZE = node.darknetCrypto.socket.getMaxPacketSize();
 		long count = node.outputThrottle.getCount();
@@ -167,10 +204,27 @@ public class PacketSender implements Runnable {
 			canSendAt = MILLISECONDS.convert(canSendAt + MILLISECONDS.toNanos(1) - 1, NANOSECONDS);
 			if(logMINOR)
 				Logger.minor(this, "Can send throttled packets in "+canSendAt+"ms");
-			nextActionTime = Math.min(nextActionTime, now + canSendAt);
+			throttledSendTime = now + canSendAt;
 			canSendThrottled = false;
 		}
 		
+		// Take the peers which are due. They stay in the queue at the latest time we would look 
+		// at them, so that wakeUp() can still bring them forward while we work on them.
+		duePeers.clear();
+		synchronized(this) {
+			PeerNode pn;
+			while((pn = schedule.pollDue(now)) != null)
+				duePeers.add(pn);
+			for(PeerNode due : duePeers)
+				schedule.schedule(due, now + MAX_PEER_CHECK_INTERVAL);
+		}
+		int dueCount = duePeers.size();
+		if(dueCount == 0)
+			wastedWakeups++;
+		peersExamined += dueCount;
+		if(dueTimes.length < dueCount)
+			dueTimes = new long[Math.max(dueCount, dueTimes.length * 2)];
+		
 		/** The earliest time at which a peer needs to send a packet, which is before
 		 * now. Throttled if canSendThrottled, otherwise not throttled. 
 		 * Note: we only use it to sort the full-packed peers by priority, don't rely on it when setting nextActionTime!*/
@@ -192,8 +246,11 @@ public class PacketSender implements Runnable {
 		/** The peer(s) which lowestHandshakeTime is referring to */
 		ArrayList<PeerNode> handshakePeers = null;
 
-		for(PeerNode pn: nodes) {
+		for(int i = 0; i < dueCount; i++) {
+			PeerNode pn = duePeers.get(i);
 			now = System.currentTimeMillis();
+			// Basic maintenance, and the timeouts below, which are much longer.
+			long peerTime = now + MAX_PEER_CHECK_INTERVAL;
 			
 			// Basic peer maintenance.
 			
@@ -220,6 +277,7 @@ public class PacketSender implements Runnable {
 					Logger.normal(this, "Disconnecting from " + pn + " - haven't received packets recently");
 					// Hopefully this is a transient network glitch, but stuff will have already started to timeout, so lets dump the pending messages.
 					pn.disconnected(true, false);
+					dueTimes[i] = now;
 					continue;
 				} else if(now - pn.lastReceivedAckTime() > pn.maxTimeBetweenReceivedAcks() && !pn.isDisconnecting()) {
 					// FIXME better to disconnect immediately??? Or check canSend()???
@@ -228,6 +286,7 @@ public class PacketSender implements Runnable {
 					// There appears to be connectivity from them to us but not from us to them.
 					// So it is helpful for them to know that we are disconnecting.
 					node.peers.disconnect(pn, true, true, false, true, false, SECONDS.toMillis(5));
+					dueTimes[i] = now;
 					continue;
 				} else if(pn.isRoutable() && pn.noLongerRoutable()) {
 					/*
@@ -238,14 +297,22 @@ public class PacketSender implements Runnable {
 					 */
 					pn.invalidate(now);
 					Logger.normal(this, "shouldDisconnectNow has returned true : marking the peer as incompatible: "+pn);
+					dueTimes[i] = now;
 					continue;
 				}
 
 				// The peer is connected.
+				peerTime = Math.min(peerTime, timeCheckConnected(pn, now));
 				
-				if(canSendThrottled || !shouldThrottle) {
+				if(node.packetSendPipeline.isBacklogged(pn)) {
+					// Its send worker is behind, and will wake it up when it has caught up.
+				} else if(canSendThrottled || !shouldThrottle) {
 					// We can send to this peer.
 					long sendTime = pn.getNextUrgentTime(now);
+					// Should spam the logs, unless there is a deadlock
+					if(sendTime < Long.MAX_VALUE && logMINOR)
+						Logger.minor(this, "Next urgent time: " + sendTime + "(in "+(sendTime - now)+") for " + pn);
+					peerTime = Math.min(peerTime, sendTime);
 					if(sendTime != Long.MAX_VALUE) {
 						if(sendTime <= now) {
 							// Message is urgent.
@@ -259,6 +326,8 @@ public class PacketSender implements Runnable {
 							if(sendTime <= lowestUrgentSendTime)
 								urgentSendPeers.add(pn);
 						} else if(pn.fullPacketQueued()) {
+							// Can send now, so look at it again next time if we don't.
+							peerTime = now;
 							if(sendTime < lowestFullPacketSendTime) {
 								lowestFullPacketSendTime = sendTime;
 								if(urgentFullPacketPeers != null)
@@ -270,8 +339,13 @@ public class PacketSender implements Runnable {
 								urgentFullPacketPeers.add(pn);
 						}
 					}
-				} else if(shouldThrottle && !canSendThrottled) {
+				} else {
+					// Look again when there is bandwidth for a full packet, if we have anything 
+					// to send by then.
+					long sendTime = pn.fullPacketQueued() ? now : pn.getNextUrgentTime(now);
+					peerTime = Math.min(peerTime, Math.max(sendTime, throttledSendTime));
 					long ackTime = pn.timeSendAcks();
+					peerTime = Math.min(peerTime, ackTime);
 					if(ackTime != Long.MAX_VALUE) {
 						if(ackTime <= now) {
 							if(ackTime < lowestAckTime) {
@@ -286,16 +360,6 @@ public class PacketSender implements Runnable {
 						}
 					}
 				}
-				
-				if(canSendThrottled || !shouldThrottle) {
-					long urgentTime = pn.getNextUrgentTime(now);
-					// Should spam the logs, unless there is a deadlock
-					if(urgentTime < Long.MAX_VALUE && logMINOR)
-						Logger.minor(this, "Next urgent time: " + urgentTime + "(in "+(urgentTime - now)+") for " + pn);
-					nextActionTime = Math.min(nextActionTime, urgentTime);
-				} else {
-					nextActionTime = Math.min(nextActionTime, pn.timeCheckForLostPackets());
-				}
 			} else
 				// Not connected
 
@@ -304,6 +368,7 @@ public class PacketSender implements Runnable {
 
 			long handshakeTime = pn.timeSendHandshake(now);
 			if(handshakeTime != Long.MAX_VALUE) {
+				peerTime = Math.min(peerTime, handshakeTime);
 				if(handshakeTime < lowestHandshakeTime) {
 					lowestHandshakeTime = handshakeTime;
 					if(handshakePeers != null)
@@ -314,6 +379,7 @@ public class PacketSender implements Runnable {
 				if(handshakeTime <= lowestHandshakeTime)
 					handshakePeers.add(pn);
 			}
+			dueTimes[i] = peerTime;
 			
 			long tempNow = System.currentTimeMillis();
 			if((tempNow - oldTempNow) > SECONDS.toMillis(5))
@@ -348,11 +414,14 @@ public class PacketSender implements Runnable {
 			toSendAckOnly = null;
 		}
 		
+		/** The peer we sent a packet to, if it may have more to send. */
+		PeerNode sentTo = null;
+		
 		if(toSendPacket != null) {
 			try {
 				if(toSendPacket.maybeSendPacket(now, false)) {
-					// Round-robin over the loop to update nextActionTime appropriately
-					nextActionTime = now;
+					// It may have more to send, look at it again straight away
+					sentTo = toSendPacket;
 				}
 			} catch (BlockedTooLongException e) {
 				Logger.error(this, "Waited too long: "+TimeUtil.formatTime(e.delta)+" to allocate a packet number to send to "+toSendPacket+" : "+("(new packet format)")+" (version "+toSendPacket.getVersionNumber()+") - DISCONNECTING!");
@@ -361,8 +430,8 @@ public class PacketSender implements Runnable {
 		} else if(toSendAckOnly != null) {
 			try {
 				if(toSendAckOnly.maybeSendPacket(now, true)) {
-                    // Round-robin over the loop to update nextActionTime appropriately
-                    nextActionTime = now;
+                    // It may have more to send, look at it again straight away
+                    sentTo = toSendAckOnly;
 				}
 			} catch (BlockedTooLongException e) {
 				Logger.error(this, "Waited too long: "+TimeUtil.formatTime(e.delta)+" to allocate a packet number to send to "+toSendAckOnly+" : "+("(new packet format)")+" (version "+toSendAckOnly.getVersionNumber()+") - DISCONNECTING!");
@@ -370,7 +439,7 @@ public class PacketSender implements Runnable {
 			}
 		}
 		
-		/* Estimating of nextActionTime logic:
+		/* Estimating of each peer's next time logic:
 		* FullPackets:
 		*  - A full packet available, bandwidth available  -->> now
 		*  - A full packet available for non-throttled peer -->> now
@@ -394,12 +463,13 @@ public class PacketSender implements Runnable {
 				Logger.error(this, "afterHandshakeTime is more than 2 seconds past beforeHandshakeTime (" + (afterHandshakeTime - beforeHandshakeTime) + ") in PacketSender working with " + toSendHandshake.userToString());
 		}
 		
-		// All of these take into account whether the data can be sent already.
-		// So we can include them in nextActionTime.
-		nextActionTime = Math.min(nextActionTime, lowestUrgentSendTime);
-		nextActionTime = Math.min(nextActionTime, lowestFullPacketSendTime);
-		nextActionTime = Math.min(nextActionTime, lowestAckTime);
-		nextActionTime = Math.min(nextActionTime, lowestHandshakeTime);
+		synchronized(this) {
+			for(int i = 0; i < dueCount; i++)
+				schedule.scheduleBefore(duePeers.get(i), dueTimes[i]);
+			if(sentTo != null)
+				schedule.scheduleBefore(sentTo, now);
+		}
+		duePeers.clear();
 
 		// FIXME: If we send something we will have to go around the loop again.
 		// OPTIMISATION: We could track the second best, and check how many are in the array.
@@ -407,10 +477,13 @@ public class PacketSender implements Runnable {
 		/* Attempt to connect to old-opennet-peers.
 		 * Constantly send handshake packets, in order to get through a NAT.
 		 * Most JFK(1)'s are less than 300 bytes. 25*300/15 = avg 500B/sec bandwidth cost.
-		 * Well worth it to allow us to reconnect more quickly. */
+		 * Well worth it to allow us to reconnect more quickly. 
+		 * Handshakes to old opennet peers are at least 10 seconds apart, so there is no need to
+		 * look at them more often than OLD_OPENNET_CHECK_INTERVAL. */
 
 		OpennetManager om = node.getOpennet();
-		if(om != null && node.getUptime() > SECONDS.toMillis(30)) {
+		if(om != null && node.getUptime() > SECONDS.toMillis(30) && now >= nextOldOpennetCheck) {
+			nextOldOpennetCheck = now + OLD_OPENNET_CHECK_INTERVAL;
 			OpennetPeerNode[] peers = om.getOldPeers();
 
 			for(OpennetPeerNode pn : peers) {
@@ -448,35 +521,52 @@ public class PacketSender implements Runnable {
 		if((now - oldNow) > SECONDS.toMillis(10))
 			Logger.error(this, "now is more than 10 seconds past oldNow (" + (now - oldNow) + ") in PacketSender");
 
-		long sleepTime = nextActionTime - now;
-		
-		// MAX_COALESCING_DELAYms maximum sleep time - same as the maximum coalescing delay
-		sleepTime = Math.min(sleepTime, MAX_COALESCING_DELAY);
-
 		if(now - node.startupTime > MINUTES.toMillis(5))
 			if(now - lastReceivedPacketFromAnyNode > Node.ALARM_TIME) {
 				Logger.error(this, "Have not received any packets from any node in last " + SECONDS.convert(Node.ALARM_TIME, MILLISECONDS) + " seconds");
 				lastReportedNoPackets = now;
+				// Don't complain again for another ALARM_TIME.
+				lastReceivedPacketFromAnyNode = now;
 			}
 
-		if(sleepTime > 0) {
-			// Update logging only when have time to do so
-			try {
-				if(logMINOR)
-					Logger.minor(this, "Sleeping for " + sleepTime);
-				synchronized(this) {
+		synchronized(this) {
+			long nextActionTime = schedule.peekTime();
+			long sleepTime = nextActionTime - now;
+			// Even with no peers due, wake up now and then for the old opennet peers and the 
+			// no-packets alarm. This doesn't look at any peer which isn't due.
+			sleepTime = Math.min(sleepTime, OLD_OPENNET_CHECK_INTERVAL);
+			if(sleepTime > 0) {
+				// Update logging only when have time to do so
+				try {
+					if(logMINOR)
+						Logger.minor(this, "Sleeping for " + sleepTime);
+					sleepingUntil = now + sleepTime;
 					wait(sleepTime);
+				} catch(InterruptedException e) {
+					// Ignore, just wake up. Probably we got interrupt()ed
+					// because a new packet came in.
+				} finally {
+					sleepingUntil = Long.MIN_VALUE;
 				}
-			} catch(InterruptedException e) {
-			// Ignore, just wake up. Probably we got interrupt()ed
-			// because a new packet came in.
+			} else {
+				if(logDEBUG)
+					Logger.debug(this, "Next urgent time is "+(now - nextActionTime)+"ms in the past");
 			}
-		} else {
-			if(logDEBUG)
-				Logger.debug(this, "Next urgent time is "+(now - nextActionTime)+"ms in the past");
 		}
 	}
 
+	/** @return The latest time at which we need to look at a connected peer, whether or not it
+	 * has anything to send: when it needs to check for lost packets, when we would disconnect
+	 * it for not sending us any packets or acks, or MAX_PEER_CHECK_INTERVAL after now. */
+	static long timeCheckConnected(PeerNode pn, long now) {
+		long t = now + MAX_PEER_CHECK_INTERVAL;
+		t = Math.min(t, pn.timeCheckForLostPackets());
+		// See the checks in realRun().
+		t = Math.min(t, pn.lastReceivedDataPacketTime() + pn.maxTimeBetweenReceivedPackets() + 1);
+		t = Math.min(t, pn.lastReceivedAckTime() + pn.maxTimeBetweenReceivedAcks() + 1);
+		return t;
+	}
+
 	/** Wake up, and send any queued packets. */
 	void wakeUp() {
 		// Wake up if needed
@@ -485,6 +575,47 @@ public class PacketSender implements Runnable {
 		}
 	}
 
+	/** Wake up, and look at this peer, e.g. because it has a full packet queued. */
+	void wakeUp(PeerNode pn) {
+		wakeUp(pn, System.currentTimeMillis());
+	}
+
+	/** Look at this peer no later than the given time, e.g. because it has queued a message 
+	 * which must be sent by then. Only wakes up the sender thread if it would otherwise sleep 
+	 * past that time. */
+	void wakeUp(PeerNode pn, long time) {
+		synchronized(this) {
+			if(!schedule.contains(pn)) {
+				// Not yet picked up from PeerManager (or already removed).
+				notifyAll();
+				return;
+			}
+			if(schedule.scheduleBefore(pn, time) && time < sleepingUntil)
+				notifyAll();
+		}
+	}
+
+	/** @return The number of times the send loop has run. */
+	public long getLoopIterations() {
+		return loopIterations;
+	}
+
+	/** @return The number of times the send loop has run without any peer being due, e.g.
+	 * because of a wakeUp() which didn't bring any peer forward. */
+	public long getWastedWakeups() {
+		return wastedWakeups;
+	}
+
+	/** @return The total number of peers looked at by the send loop. */
+	public long getPeersExamined() {
+		return peersExamined;
+	}
+
+	/** @return The number of peers in the schedule. */
+	public synchronized int getScheduledPeers() {
+		return schedule.size();
+	}
+
 	protected String l10n(String key, String[] patterns, String[] values) {
 		return NodeL10n.getBase().getString("PacketSender."+key, patterns, values);
 	}
@@ -1092,17 +1092,23 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		if(x > maxSize || !node.enablePacketCoalescing) {
 			// If there is a packet's worth to send, wake up the packetsender.
 			wakeUpSender();
+		} else {
+			// Otherwise we do not need to wake up the PacketSender, but it must look at us
+			// before the maximum coalescing delay (100ms).
+			wakeUpSender(now + PacketSender.MAX_COALESCING_DELAY);
 		}
-		// Otherwise we do not need to wake up the PacketSender
-		// It will wake up before the maximum coalescing delay (100ms) because
-		// it wakes up every 100ms *anyway*.
 		return item;
 	}
 	
 	@Override
 	public void wakeUpSender() {
 		if(logMINOR) Logger.minor(this, "Waking up PacketSender");
-		node.ps.wakeUp();
+		node.ps.wakeUp(this);
+	}
+
+	@Override
+	public void wakeUpSender(long time) {
+		node.ps.wakeUp(this, time);
 	}
 
 	@Override
@@ -1190,6 +1196,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 			ctx = null;
 		}
 		Logger.normal(this, "We are asking for the key to be renewed (" + this.detectedPeer + ')');
+		wakeUpSender();
 	}
 
 	/**
@@ -1248,6 +1255,8 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 			disconnecting = false;
 			// Force renegotiation.
 			ret = isConnected.set(false, now);
+			// In case we reconnect before the packet sender next looks at us.
+			wasDisconnected = true;
 			isRoutable = false;
 			isRekeying = false;
 			// Prevent sending packets to the node until that happens.
@@ -1343,6 +1352,8 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		outputLoadTrackerBulk.failSlotWaiters(true);
 		loadSenderRealTime.onDisconnect();
 		loadSenderBulk.onDisconnect();
+		// We need to handshake now.
+		wakeUpSender();
 		return ret;
 	}
 
@@ -1435,13 +1446,19 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 	}
 	
 	public long timeSendHandshake(long now) {
-		if(hasLiveHandshake(now)) return Long.MAX_VALUE;
+		KeyAgreementSchemeContext c;
+		long t;
 		synchronized(this) {
 			if(disconnecting) return Long.MAX_VALUE;
 			if(handshakeIPs == null) return Long.MAX_VALUE;
 			if(!(isRekeying || !isConnected())) return Long.MAX_VALUE;
-			return sendHandshakeTime;
+			c = ctx;
+			t = sendHandshakeTime;
 		}
+		// Not until the handshake in progress has timed out, see hasLiveHandshake().
+		if(c != null)
+			t = Math.max(t, c.lastUsedTime() + Node.HANDSHAKE_TIMEOUT + 1);
+		return t;
 	}
 
 	/**
@@ -2016,6 +2033,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		boolean wasARekey = false;
 		SessionKey oldPrev = null;
 		SessionKey oldCur = null;
+		SessionKey oldUnv = null;
 		SessionKey newTracker;
 		MessageItem[] messagesTellDisconnected = null;
 		PacketFormat oldPacketFormat = null;
@@ -2092,17 +2110,20 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 			} else {
 				// else it's a rekey
 			}
-			newTracker = new SessionKey(this, outgoingCipher, outgoingKey, incommingCipher, incommingKey, ivCipher, ivNonce, hmacKey, new NewPacketFormatKeyContext(ourInitialSeqNum, theirInitialSeqNum), trackerID);
+			newTracker = new SessionKey(this, outgoingCipher, outgoingKey, incommingCipher, incommingKey, ivCipher, ivNonce, hmacKey, new NewPacketFormatKeyContext(ourInitialSeqNum, theirInitialSeqNum, crypto.seqNumIndex), trackerID);
 			if(logMINOR) Logger.minor(this, "New key tracker in completedHandshake: "+newTracker+" for "+shortToString()+" neg type "+negType);
 			if(unverified) {
 				if(unverifiedTracker != null) {
 					// Keep the old unverified tracker if possible.
 					if(previousTracker == null)
 						previousTracker = unverifiedTracker;
+					else
+						oldUnv = unverifiedTracker;
 				}
 				unverifiedTracker = newTracker;
 			} else {
-				oldPrev = previousTracker;
+				// Don't lose the old previous tracker if the boot ID changed.
+				if(previousTracker != null) oldPrev = previousTracker;
 				previousTracker = currentTracker;
 				currentTracker = newTracker;
 				// Keep the old unverified tracker.
@@ -2127,7 +2148,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 				Logger.error(this, "previousTracker key equals unverifiedTracker key: prev "+previousTracker+" unv "+unverifiedTracker);
 			timeLastSentPacket = now;
 			if(packetFormat == null) {
-				packetFormat = new NewPacketFormat(this, ourInitialMsgID, theirInitialMsgID);
+				packetFormat = new NewPacketFormat(this, ourInitialMsgID, theirInitialMsgID, node.packetSendPipeline);
 			}
 			// Completed setup counts as received data packet, for purposes of avoiding spurious disconnections.
 			timeLastReceivedPacket = now;
@@ -2147,6 +2168,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		}
 		if(oldPrev != null) oldPrev.disconnected();
 		if(oldCur != null) oldCur.disconnected();
+		if(oldUnv != null) oldUnv.packetContext.unindexWatchList();
 		if(oldPacketFormat != null) {
 			List<MessageItem> tellDisconnect = oldPacketFormat.onDisconnect();
 			if(tellDisconnect != null)
@@ -2173,6 +2195,9 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		
 		crypto.maybeBootConnection(this, replyTo.getFreenetAddress());
 
+		// Handshake and send times have changed.
+		wakeUpSender();
+
 		return trackerID;
 	}
 
@@ -5352,6 +5377,23 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		return pf.handleReceivedPacket(buf, offset, length, now, replyTo);
 	}
 
+	/** @return True if the watch lists of all our session keys are in the crypto's
+	 * SequenceNumberIndex. If so, a packet from an unknown address that isn't found in the
+	 * index can't be from us, so there is no need to try to decrypt it. */
+	public boolean isWatchListIndexed() {
+		SessionKey cur, prev, unv;
+		synchronized(this) {
+			cur = currentTracker;
+			prev = previousTracker;
+			unv = unverifiedTracker;
+		}
+		return isWatchListIndexed(cur) && isWatchListIndexed(prev) && isWatchListIndexed(unv);
+	}
+
+	private static boolean isWatchListIndexed(SessionKey key) {
+		return key == null || key.packetContext.isWatchListIndexed();
+	}
+
 	public void checkForLostPackets() {
 		PacketFormat pf;
 		synchronized(this) {
@@ -5382,6 +5424,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 			else if(unverifiedTracker == brokenKey)
 				unverifiedTracker = null;
 		}
+		brokenKey.packetContext.unindexWatchList();
 		// Update connected vs not connected status.
 		isConnected();
 		setPeerNodeStatus(System.currentTimeMillis());
@@ -5411,6 +5454,11 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 	public void sentThrottledBytes(int count) {
 		node.outputThrottle.forceGrab(count);
 	}
+
+	@Override
+	public void refundThrottledBytes(int count) {
+		node.outputThrottle.recycle(count);
+	}
 	
 	@Override
 	public void onNotificationOnlyPacketSent(int length) {
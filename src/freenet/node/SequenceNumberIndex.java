@@ -0,0 +1,123 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.HashMap;
+
+import freenet.io.comm.Peer;
+
+/**
+ * Index from the encrypted sequence numbers that each peer's NewPacketFormatKeyContext is
+ * currently watching for, to the peer. Lets us find the sender of a packet coming from an
+ * address we don't know (NAT rebinding, roaming etc) without trying to decrypt it with every
+ * peer's keys. There is one per NodeCrypto, i.e. per UDP port.
+ *
+ * The key is the first 4 bytes after the HMAC, which is the encrypted sequence number. Collisions
+ * between peers are possible, so each key maps to one or more peers; the caller still has to
+ * decrypt the packet to be sure.
+ *
+ * LOCKING: Synchronized on (this). Don't call out while holding the lock.
+ */
+public class SequenceNumberIndex {
+
+	/** Value is either a PeerNode or, rarely, a PeerNode[] if more than one peer watches
+	 * for the same encrypted sequence number. The same peer may be present more than once
+	 * e.g. if two of its keys watch for the same value. */
+	private final HashMap<Integer, Object> peersBySeqNum = new HashMap<Integer, Object>();
+
+	/** Convert the 4 byte encrypted sequence number to a key */
+	static int toKey(byte[] buf, int offset) {
+		return ((buf[offset] & 0xFF) << 24) | ((buf[offset+1] & 0xFF) << 16) |
+			((buf[offset+2] & 0xFF) << 8) | (buf[offset+3] & 0xFF);
+	}
+
+	synchronized void add(int key, PeerNode pn) {
+		Object o = peersBySeqNum.get(key);
+		if(o == null) {
+			peersBySeqNum.put(key, pn);
+		} else if(o instanceof PeerNode) {
+			peersBySeqNum.put(key, new PeerNode[] { (PeerNode) o, pn });
+		} else {
+			PeerNode[] old = (PeerNode[]) o;
+			PeerNode[] peers = new PeerNode[old.length+1];
+			System.arraycopy(old, 0, peers, 0, old.length);
+			peers[old.length] = pn;
+			peersBySeqNum.put(key, peers);
+		}
+	}
+
+	/** Remove one occurrence of the given peer for the given key. */
+	synchronized void remove(int key, PeerNode pn) {
+		Object o = peersBySeqNum.get(key);
+		if(o == null) return;
+		if(o == pn) {
+			peersBySeqNum.remove(key);
+		} else if(o instanceof PeerNode[]) {
+			PeerNode[] old = (PeerNode[]) o;
+			for(int i=0;i<old.length;i++) {
+				if(old[i] != pn) continue;
+				if(old.length == 2) {
+					peersBySeqNum.put(key, old[1-i]);
+				} else {
+					PeerNode[] peers = new PeerNode[old.length-1];
+					System.arraycopy(old, 0, peers, 0, i);
+					System.arraycopy(old, i+1, peers, i, peers.length-i);
+					peersBySeqNum.put(key, peers);
+				}
+				return;
+			}
+		}
+	}
+
+	/** Find the peers which might have sent the packet.
+	 * @param buf The buffer containing the packet.
+	 * @param offset The offset of the packet.
+	 * @param length The length of the packet.
+	 * @return Null if no peer is watching for this sequence number, otherwise the peers which
+	 * are. */
+	public PeerNode[] get(byte[] buf, int offset, int length) {
+		if(length < NewPacketFormat.HMAC_LENGTH + 4) return null;
+		int key = toKey(buf, offset + NewPacketFormat.HMAC_LENGTH);
+		Object o;
+		synchronized(this) {
+			o = peersBySeqNum.get(key);
+		}
+		if(o == null) return null;
+		if(o instanceof PeerNode) return new PeerNode[] { (PeerNode) o };
+		// Never modified after being put in the map, so no need to copy.
+		return (PeerNode[]) o;
+	}
+
+	/** Find the peer which sent a packet from an address we don't know, e.g. because its
+	 * address has changed, and have it handle the packet. Looks the packet up by its encrypted
+	 * sequence number rather than trying to decrypt it with every peer's keys; only peers with
+	 * a key which isn't indexed yet are tried one by one.
+	 * @param peers All the peers on this port. May be null.
+	 * @param skip A peer which has already tried the packet, or null.
+	 * @return The peer which decoded the packet, or null if none of them could. */
+	public PeerNode handleFromUnknownAddress(byte[] buf, int offset, int length, Peer peer, long now, PeerNode[] peers, PeerNode skip) {
+		PeerNode[] candidates = get(buf, offset, length);
+		if(candidates != null) {
+			for(PeerNode pn : candidates) {
+				if(pn == skip) continue;
+				if(pn.handleReceivedPacket(buf, offset, length, now, peer))
+					return pn;
+			}
+		}
+		if(peers == null) return null;
+		// Only peers whose keys aren't indexed yet could still have sent it.
+		for(PeerNode pn : peers) {
+			if(pn == skip) continue;
+			if(pn.isWatchListIndexed()) continue;
+			if(pn.handleReceivedPacket(buf, offset, length, now, peer))
+				return pn;
+		}
+		return null;
+	}
+
+	public synchronized int size() {
+		return peersBySeqNum.size();
+	}
+
+}
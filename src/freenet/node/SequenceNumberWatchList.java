@@ -0,0 +1,224 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.Arrays;
+
+/**
+ * The encrypted sequence numbers we are watching for on a single SessionKey: a window of
+ * consecutive sequence numbers, starting at getOffset(). An incoming packet is matched by the
+ * 4 bytes after the HMAC, which are the encrypted sequence number.
+ *
+ * The encrypted values are kept in a ring buffer in sequence number order, so the window can be
+ * moved forward by re-encrypting only the sequence numbers that are added. They are also kept in
+ * an open addressing hash table (linear probing, no tombstones) mapping the encrypted value to
+ * its position in the ring, so a lookup doesn't have to compare against every entry.
+ *
+ * Two sequence numbers may encrypt to the same value, so a lookup may return more than one
+ * match; see find().
+ *
+ * LOCKING: Only the receive thread looks up or moves the window. The methods that change the
+ * window, and the SequenceNumberIndex maintenance, are synchronized so that the key can be
+ * unindexed from other threads.
+ */
+final class SequenceNumberWatchList {
+
+	/** Encrypted sequence numbers. The one at ring[pointer] is for sequence number offset. */
+	private final int[] ring;
+	/** Position in ring of the lowest sequence number */
+	private int pointer;
+	/** Lowest sequence number in the window */
+	private int offset;
+
+	/** Hash table: encrypted value for each used slot */
+	private final int[] tableKeys;
+	/** Hash table: position in the ring for each used slot, or -1 if the slot is empty */
+	private final int[] tableSlots;
+	private final int mask;
+	private final int shift;
+
+	/** If non-null, the ring is added to this index, see indexFor(). */
+	private final SequenceNumberIndex seqNumIndex;
+	/** The peer the ring is currently indexed for, or null if it isn't indexed. Only changed
+	 * while holding the lock. */
+	private volatile PeerNode indexedFor;
+	/** Set when the key is dropped. After that the ring is never indexed again, so that a
+	 * packet being handled as the key is dropped can't leak index entries. */
+	private boolean dropped;
+
+	/**
+	 * Create a watch list and encrypt all the sequence numbers in it.
+	 * @param size The number of sequence numbers to watch for.
+	 * @param firstSeqNum The lowest sequence number to watch for.
+	 * @param sessionKey The key to encrypt the sequence numbers with.
+	 * @param seqNumIndex The index to add the values to when we call indexFor(). May be null.
+	 */
+	SequenceNumberWatchList(int size, int firstSeqNum, SessionKey sessionKey, SequenceNumberIndex seqNumIndex) {
+		ring = new int[size];
+		// At most half full.
+		int bits = 32 - Integer.numberOfLeadingZeros(size * 2 - 1);
+		tableKeys = new int[1 << bits];
+		tableSlots = new int[1 << bits];
+		mask = tableSlots.length - 1;
+		shift = 32 - bits;
+		this.seqNumIndex = seqNumIndex;
+		fill(firstSeqNum, sessionKey);
+	}
+
+	/** Re-encrypt the whole window, starting at the given sequence number. */
+	private void fill(int firstSeqNum, SessionKey sessionKey) {
+		Arrays.fill(tableSlots, -1);
+		pointer = 0;
+		offset = firstSeqNum;
+		int seqNum = firstSeqNum;
+		for(int i = 0; i < ring.length; i++) {
+			ring[i] = encrypt(seqNum++, sessionKey);
+			if(seqNum < 0) seqNum = 0;
+			tableAdd(ring[i], i);
+		}
+	}
+
+	private static int encrypt(int seqNum, SessionKey sessionKey) {
+		return SequenceNumberIndex.toKey(NewPacketFormat.encryptSequenceNumber(seqNum, sessionKey), 0);
+	}
+
+	/** The number of sequence numbers in the window */
+	int size() {
+		return ring.length;
+	}
+
+	/** The lowest sequence number in the window */
+	int getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Move the window forward, encrypting only the sequence numbers that are added to it.
+	 * @param moveBy The number of sequence numbers to move the window by. If this is more
+	 * than the size of the window, the whole window is re-encrypted.
+	 */
+	synchronized void moveBy(int moveBy, SessionKey sessionKey) {
+		if(moveBy <= 0) return;
+		PeerNode pn = indexedFor;
+		if(moveBy >= ring.length) {
+			if(pn != null) unindex(pn);
+			fill((int) ((0l + offset + moveBy) % NewPacketFormat.NUM_SEQNUMS), sessionKey);
+			if(pn != null) index(pn);
+			return;
+		}
+		int seqNum = (int) ((0l + offset + ring.length) % NewPacketFormat.NUM_SEQNUMS);
+		for(int i = 0; i < moveBy; i++) {
+			int slot = pointer;
+			int old = ring[slot];
+			int value = encrypt(seqNum++, sessionKey);
+			if(seqNum < 0) seqNum = 0;
+			tableRemove(old, slot);
+			ring[slot] = value;
+			tableAdd(value, slot);
+			if(pn != null) {
+				seqNumIndex.remove(old, pn);
+				seqNumIndex.add(value, pn);
+			}
+			pointer++;
+			if(pointer == ring.length) pointer = 0;
+		}
+		offset = (int) ((0l + offset + moveBy) % NewPacketFormat.NUM_SEQNUMS);
+	}
+
+	/**
+	 * Find a slot in the hash table matching an encrypted sequence number.
+	 * @param buf The buffer containing the encrypted sequence number.
+	 * @param bufOffset The offset of the encrypted sequence number.
+	 * @param prev -1 to find the first match, otherwise the previous return value to find
+	 * the next match.
+	 * @return The slot, which can be converted with sequenceNumber(), or -1 if there are no
+	 * (more) matches.
+	 */
+	int find(byte[] buf, int bufOffset, int prev) {
+		int value = SequenceNumberIndex.toKey(buf, bufOffset);
+		int pos = prev == -1 ? hash(value) : ((prev + 1) & mask);
+		while(tableSlots[pos] != -1) {
+			if(tableKeys[pos] == value) return pos;
+			pos = (pos + 1) & mask;
+		}
+		return -1;
+	}
+
+	/** Get the sequence number for a slot returned by find(). */
+	int sequenceNumber(int slot) {
+		int distance = tableSlots[slot] - pointer;
+		if(distance < 0) distance += ring.length;
+		return (int) ((0l + offset + distance) % NewPacketFormat.NUM_SEQNUMS);
+	}
+
+	private int hash(int value) {
+		// Fibonacci hashing. The values are ciphertext so should be well distributed anyway.
+		return (value * 0x9E3779B9) >>> shift;
+	}
+
+	private void tableAdd(int value, int slot) {
+		int pos = hash(value);
+		while(tableSlots[pos] != -1)
+			pos = (pos + 1) & mask;
+		tableKeys[pos] = value;
+		tableSlots[pos] = slot;
+	}
+
+	private void tableRemove(int value, int slot) {
+		int pos = hash(value);
+		while(tableSlots[pos] != slot) {
+			if(tableSlots[pos] == -1) return; // Not found, can't happen.
+			pos = (pos + 1) & mask;
+		}
+		// Shift back any following entries that would no longer be reachable.
+		int hole = pos;
+		int next = (hole + 1) & mask;
+		while(tableSlots[next] != -1) {
+			int home = hash(tableKeys[next]);
+			if(((next - home) & mask) >= ((next - hole) & mask)) {
+				tableKeys[hole] = tableKeys[next];
+				tableSlots[hole] = tableSlots[next];
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+		tableSlots[hole] = -1;
+	}
+
+	/** Is the window in the SequenceNumberIndex? */
+	boolean isIndexed() {
+		return indexedFor != null;
+	}
+
+	/** Add the window to the SequenceNumberIndex, if there is one and it isn't already there.
+	 * @param pn The peer this key belongs to. */
+	void indexFor(PeerNode pn) {
+		if(seqNumIndex == null || pn == null || indexedFor != null) return;
+		synchronized(this) {
+			if(indexedFor != null || dropped) return;
+			index(pn);
+		}
+	}
+
+	/** Remove the window from the SequenceNumberIndex, if it is there, and never add it
+	 * again. Called when the key is dropped. */
+	synchronized void unindex() {
+		dropped = true;
+		if(indexedFor == null) return;
+		unindex(indexedFor);
+	}
+
+	private void index(PeerNode pn) {
+		for(int value : ring)
+			seqNumIndex.add(value, pn);
+		indexedFor = pn;
+	}
+
+	private void unindex(PeerNode pn) {
+		for(int value : ring)
+			seqNumIndex.remove(value, pn);
+		indexedFor = null;
+	}
+
+}
@@ -0,0 +1,209 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Running request UIDs for RequestTracker, by category (CHK/SSK, request/insert/offer reply,
+ * realtime/bulk). Keys are primitive longs, so there is no boxing on accept and completion, and
+ * each category is split into independently locked stripes, so different requests rarely
+ * contend. The number of entries and local entries in each category is kept up to date as they
+ * are added and removed, so counting them doesn't need to look at the entries at all.
+ *
+ * Each stripe is an open addressing hash table with linear probing. Removal shifts later
+ * entries back rather than leaving tombstones, so the tables never need cleaning.
+ */
+final class UIDRegistry<T> {
+
+	/** Number of categories, see category(). */
+	static final int CATEGORIES = 12;
+	/** Stripes per category. Must be a power of 2. */
+	static final int STRIPES = 16;
+	private static final int INITIAL_CAPACITY = 8;
+
+	private static final class Stripe {
+		long[] uids = new long[INITIAL_CAPACITY];
+		/** Null if the slot is empty. */
+		Object[] values = new Object[INITIAL_CAPACITY];
+		boolean[] local = new boolean[INITIAL_CAPACITY];
+		int size;
+	}
+
+	private final Stripe[] stripes = new Stripe[CATEGORIES * STRIPES];
+	private final AtomicIntegerArray counts = new AtomicIntegerArray(CATEGORIES);
+	private final AtomicIntegerArray localCounts = new AtomicIntegerArray(CATEGORIES);
+
+	UIDRegistry() {
+		for(int i=0;i<stripes.length;i++)
+			stripes[i] = new Stripe();
+	}
+
+	/** @return The category for a request of the given type. Offer replies are neither inserts
+	 * nor requests. */
+	static int category(boolean ssk, boolean insert, boolean offerReply, boolean realTimeFlag) {
+		int type = offerReply ? 2 : (insert ? 1 : 0);
+		return (realTimeFlag ? 6 : 0) + (ssk ? 3 : 0) + type;
+	}
+
+	private static int hash(long uid) {
+		long h = uid * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private Stripe stripe(int category, int hash) {
+		return stripes[category * STRIPES + (hash >>> 28 & (STRIPES - 1))];
+	}
+
+	/** @return The index of the uid in the stripe, or of the empty slot where it would go. */
+	private static int find(Stripe stripe, long uid, int hash) {
+		int mask = stripe.values.length - 1;
+		int i = hash & mask;
+		while(stripe.values[i] != null && stripe.uids[i] != uid)
+			i = (i + 1) & mask;
+		return i;
+	}
+
+	/** @return The value registered for the UID in the category, or null. */
+	@SuppressWarnings("unchecked")
+	T get(int category, long uid) {
+		int hash = hash(uid);
+		Stripe stripe = stripe(category, hash);
+		synchronized(stripe) {
+			return (T) stripe.values[find(stripe, uid, hash)];
+		}
+	}
+
+	/** Register a UID unless it is already registered in the category.
+	 * @param local Whether to count this as a local request.
+	 * @return Null if we registered it, or the value already registered. */
+	@SuppressWarnings("unchecked")
+	T putIfAbsent(int category, long uid, T value, boolean local) {
+		if(value == null) throw new NullPointerException();
+		int hash = hash(uid);
+		Stripe stripe = stripe(category, hash);
+		synchronized(stripe) {
+			int i = find(stripe, uid, hash);
+			if(stripe.values[i] != null)
+				return (T) stripe.values[i];
+			stripe.uids[i] = uid;
+			stripe.values[i] = value;
+			stripe.local[i] = local;
+			stripe.size++;
+			counts.incrementAndGet(category);
+			if(local) localCounts.incrementAndGet(category);
+			// Keep the load factor at most 1/2.
+			if(stripe.size * 2 > stripe.values.length)
+				resize(stripe, stripe.values.length * 2);
+			return null;
+		}
+	}
+
+	/** Unregister a UID, but only if it is registered to the given value.
+	 * @return The value which was registered, which may be a different value (in which case we
+	 * didn't remove it) or null. */
+	@SuppressWarnings("unchecked")
+	T remove(int category, long uid, T value) {
+		int hash = hash(uid);
+		Stripe stripe = stripe(category, hash);
+		synchronized(stripe) {
+			int i = find(stripe, uid, hash);
+			Object old = stripe.values[i];
+			if(old == null || old != value) return (T) old;
+			if(stripe.local[i]) localCounts.decrementAndGet(category);
+			counts.decrementAndGet(category);
+			stripe.size--;
+			// Shift back any following entries which would no longer be found.
+			int mask = stripe.values.length - 1;
+			int gap = i;
+			int j = i;
+			while(true) {
+				j = (j + 1) & mask;
+				if(stripe.values[j] == null) break;
+				int home = hash(stripe.uids[j]) & mask;
+				// Move it if its home slot is not between the gap and j, cyclically.
+				if(((j - home) & mask) >= ((j - gap) & mask)) {
+					stripe.uids[gap] = stripe.uids[j];
+					stripe.values[gap] = stripe.values[j];
+					stripe.local[gap] = stripe.local[j];
+					gap = j;
+				}
+			}
+			stripe.values[gap] = null;
+			stripe.local[gap] = false;
+			if(stripe.values.length > INITIAL_CAPACITY && stripe.size * 8 < stripe.values.length)
+				resize(stripe, stripe.values.length / 2);
+			return (T) old;
+		}
+	}
+
+	/** Caller must hold the lock on the stripe. */
+	private static void resize(Stripe stripe, int capacity) {
+		long[] oldUIDs = stripe.uids;
+		Object[] oldValues = stripe.values;
+		boolean[] oldLocal = stripe.local;
+		stripe.uids = new long[capacity];
+		stripe.values = new Object[capacity];
+		stripe.local = new boolean[capacity];
+		for(int i=0;i<oldValues.length;i++) {
+			if(oldValues[i] == null) continue;
+			int j = find(stripe, oldUIDs[i], hash(oldUIDs[i]));
+			stripe.uids[j] = oldUIDs[i];
+			stripe.values[j] = oldValues[i];
+			stripe.local[j] = oldLocal[i];
+		}
+	}
+
+	/** @return The number of UIDs registered in the category. */
+	int count(int category) {
+		return counts.get(category);
+	}
+
+	/** @return The number of UIDs registered in the category as local. */
+	int countLocal(int category) {
+		return localCounts.get(category);
+	}
+
+	/** @return The number of UIDs registered in all categories. */
+	int size() {
+		int total = 0;
+		for(int i=0;i<CATEGORIES;i++)
+			total += counts.get(i);
+		return total;
+	}
+
+	/** Add the values registered in a category to a list. Each stripe is copied under its own
+	 * lock, so this is not an atomic snapshot of the whole category.
+	 * @param localOnly If true, only add values registered as local. */
+	@SuppressWarnings("unchecked")
+	void addValues(int category, boolean localOnly, List<T> list) {
+		for(int s=0;s<STRIPES;s++) {
+			Stripe stripe = stripes[category * STRIPES + s];
+			synchronized(stripe) {
+				if(stripe.size == 0) continue;
+				for(int i=0;i<stripe.values.length;i++) {
+					if(stripe.values[i] == null) continue;
+					if(localOnly && !stripe.local[i]) continue;
+					list.add((T) stripe.values[i]);
+				}
+			}
+		}
+	}
+
+	/** Add the UIDs registered in a category to a list. */
+	void addUIDs(int category, List<Long> list) {
+		for(int s=0;s<STRIPES;s++) {
+			Stripe stripe = stripes[category * STRIPES + s];
+			synchronized(stripe) {
+				if(stripe.size == 0) continue;
+				for(int i=0;i<stripe.values.length;i++) {
+					if(stripe.values[i] != null)
+						list.add(stripe.uids[i]);
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,21 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store;
+
+/**
+ * Receives the results of a batch fetch from a FreenetStore.
+ * @see FreenetStore#fetch(byte[][], byte[][], boolean, boolean, boolean, boolean, BatchFetchCallback)
+ */
+public interface BatchFetchCallback<T extends StorableBlock> {
+
+	/** Called exactly once for each key, not necessarily in order.
+	 * @param index The index of the key in the arrays passed to fetch().
+	 * @param block The block, or null if it is not in the store. */
+	void onFetched(int index, T block);
+
+	/** Called once after every key has been passed to onFetched(). Not called if the fetch
+	 * throws. */
+	void onFinished();
+
+}
@@ -28,6 +28,17 @@ public class CHKStore extends StoreCallback<CHKBlock> {
 		return store.fetch(chk.getRoutingKey(), chk.getFullKey(), dontPromote, false, false, ignoreOldBlocks, meta);
 	}
 	
+	/** Fetch several keys at once. The callback is given the index into the keys array. */
+	public void fetch(NodeCHK[] chks, boolean dontPromote, boolean ignoreOldBlocks, BatchFetchCallback<CHKBlock> callback) throws IOException {
+		byte[][] routingKeys = new byte[chks.length][];
+		byte[][] fullKeys = new byte[chks.length][];
+		for(int i=0;i<chks.length;i++) {
+			routingKeys[i] = chks[i].getRoutingKey();
+			fullKeys[i] = chks[i].getFullKey();
+		}
+		store.fetch(routingKeys, fullKeys, dontPromote, false, false, ignoreOldBlocks, callback);
+	}
+	
 	public void put(CHKBlock b, boolean isOldBlock) throws IOException {
 		try {
 			store.put(b, b.getRawData(), b.getRawHeaders(), false, isOldBlock);
@@ -28,7 +28,18 @@ public interface FreenetStore<T extends StorableBlock> {
 	 * @throws IOException If a disk I/O error occurs.
 	 */
 	T fetch(byte[] routingKey, byte[] fullKey, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) throws IOException;
-	
+
+	/**
+	 * Retrieve several blocks at once, e.g. all the blocks of a splitfile segment. Same as
+	 * calling fetch() for each key with no BlockMetadata, but the store may reorder and combine
+	 * the disk reads. Results are passed to the callback, possibly before this method returns.
+	 * @param routingKeys The routing keys to look up.
+	 * @param fullKeys The corresponding full keys. Null if there are none, as for fetch().
+	 * @throws IOException If a disk I/O error occurs. Some keys may already have been passed
+	 * to the callback.
+	 */
+	void fetch(byte[][] routingKeys, byte[][] fullKeys, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BatchFetchCallback<T> callback) throws IOException;
+
 	/**
 	 * Store a block.
 	 * 
@@ -20,6 +20,15 @@ public class NullFreenetStore<T extends StorableBlock> implements FreenetStore<T
 		return null;
 	}
 
+	@Override
+	public void fetch(byte[][] routingKeys, byte[][] fullKeys,
+			boolean dontPromote, boolean canReadClientCache,
+			boolean canReadSlashdotCache, boolean ignoreOldBlocks, BatchFetchCallback<T> callback) throws IOException {
+		for(int i=0;i<routingKeys.length;i++)
+			callback.onFetched(i, null);
+		callback.onFinished();
+	}
+
 	@Override
 	public long getBloomFalsePositive() {
 		return 0;
@@ -77,6 +77,13 @@ public class ProxyFreenetStore<T extends StorableBlock> implements FreenetStore<
 		return backDatastore.fetch(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta);
 	}
 
+	@Override
+	public void fetch(byte[][] routingKeys, byte[][] fullKeys, boolean dontPromote,
+			boolean canReadClientCache, boolean canReadSlashdotCache,
+			boolean ignoreOldBlocks, BatchFetchCallback<T> callback) throws IOException {
+		backDatastore.fetch(routingKeys, fullKeys, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, callback);
+	}
+
 	@Override
 	public void put(T block, byte[] data, byte[] header, boolean overwrite,
 			boolean oldBlock) throws IOException, KeyCollisionException {
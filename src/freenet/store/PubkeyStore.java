@@ -30,6 +30,11 @@ public class PubkeyStore extends StoreCallback<DSAPublicKey> {
 		return store.fetch(hash, null, dontPromote, false, false, ignoreOldBlocks, meta);
 	}
 	
+	/** Fetch several pubkeys at once. The callback is given the index into the hashes array. */
+	public void fetch(byte[][] hashes, boolean dontPromote, boolean ignoreOldBlocks, BatchFetchCallback<DSAPublicKey> callback) throws IOException {
+		store.fetch(hashes, null, dontPromote, false, false, ignoreOldBlocks, callback);
+	}
+	
 	final private static byte[] empty = new byte[0];
 	
 	public void put(byte[] hash, DSAPublicKey key, boolean isOldBlock) throws IOException {
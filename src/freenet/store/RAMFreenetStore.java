@@ -1,8 +1,11 @@
 package freenet.store;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.keys.KeyVerifyException;
 import freenet.node.stats.StoreAccessStats;
@@ -16,142 +19,235 @@ import freenet.support.Ticker;
  * LRU in memory store.
  * 
  * For debugging / simulation only
+ * 
+ * The blocks are split by routing key between several stripes, each with its own lock and its
+ * own LRU list, so that requests on different threads don't all wait for one lock. Eviction is
+ * still global LRU: every block records when it was last used, each stripe publishes the time
+ * for its least recently used block, and we evict from the stripe with the oldest one.
  */
 public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T> {
 
+	/** Number of lock stripes. Must be a power of 2. */
+	static final int STRIPES = 16;
+
 	private final static class Block {
 		byte[] header;
 		byte[] data;
 		byte[] fullKey;
 		boolean oldBlock;
+		/** Value of the store's clock when the block was last used. */
+		long lastUsed;
+	}
+	
+	private final static class Stripe {
+		final LRUMap<ByteArrayWrapper, Block> blocksByRoutingKey = LRUMap.createSafeMap(ByteArrayWrapper.FAST_COMPARATOR);
+		/** lastUsed of the least recently used block, or Long.MAX_VALUE if there are none. Read
+		 * without the lock, only changed with it. */
+		volatile long oldest = Long.MAX_VALUE;
+
+		/** Caller must hold the lock on the stripe. */
+		void updateOldest() {
+			Block block = blocksByRoutingKey.peekValue();
+			oldest = block == null ? Long.MAX_VALUE : block.lastUsed;
+		}
 	}
 	
-	private final LRUMap<ByteArrayWrapper, Block> blocksByRoutingKey;
+	private final Stripe[] stripes;
 	
 	private final StoreCallback<T> callback;
 	
-	private int maxKeys;
+	private volatile int maxKeys;
 	
-	private long hits;
-	private long misses;
-	private long writes;
+	/** Logical clock for the LRU. Incremented on every put or promotion. */
+	private final AtomicLong clock = new AtomicLong();
+	private final AtomicInteger keyCount = new AtomicInteger();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong writes = new AtomicLong();
 	
 	public RAMFreenetStore(StoreCallback<T> callback, int maxKeys) {
 		this.callback = callback;
-		this.blocksByRoutingKey = LRUMap.createSafeMap(ByteArrayWrapper.FAST_COMPARATOR);
+		this.stripes = new Stripe[STRIPES];
+		for(int i=0;i<STRIPES;i++)
+			stripes[i] = new Stripe();
 		this.maxKeys = maxKeys;
 		callback.setStore(this);
 	}
 	
+	private Stripe stripe(ByteArrayWrapper key) {
+		int hash = key.hashCode();
+		return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+	}
+	
 	@Override
-	public synchronized T fetch(byte[] routingKey, byte[] fullKey,
+	public T fetch(byte[] routingKey, byte[] fullKey,
 			boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) throws IOException {
 		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
-		Block block = blocksByRoutingKey.get(key);
-		if(block == null) {
-			misses++;
-			return null;
+		Stripe stripe = stripe(key);
+		Block block;
+		byte[] data;
+		byte[] header;
+		byte[] blockFullKey;
+		boolean oldBlock;
+		synchronized(stripe) {
+			block = stripe.blocksByRoutingKey.get(key);
+			if(block == null) {
+				misses.incrementAndGet();
+				return null;
+			}
+			// put() may overwrite the block, so copy the fields while we have the lock.
+			data = block.data;
+			header = block.header;
+			blockFullKey = block.fullKey;
+			oldBlock = block.oldBlock;
 		}
-		if(ignoreOldBlocks && block.oldBlock) {
+		if(ignoreOldBlocks && oldBlock) {
 			Logger.normal(this, "Ignoring old block");
 			return null;
 		}
+		// Verifying the block is the expensive part, so do it without the lock.
+		T ret;
 		try {
-			T ret =
-				callback.construct(block.data, block.header, routingKey, block.fullKey, canReadClientCache, canReadSlashdotCache, meta, null);
-			hits++;
-			if(!dontPromote)
-				blocksByRoutingKey.push(key, block);
-			if(meta != null && block.oldBlock)
-				meta.setOldBlock();
-			return ret;
+			ret = callback.construct(data, header, routingKey, blockFullKey, canReadClientCache, canReadSlashdotCache, meta, null);
 		} catch (KeyVerifyException e) {
-			blocksByRoutingKey.removeKey(key);
-			misses++;
+			synchronized(stripe) {
+				if(stripe.blocksByRoutingKey.get(key) == block) {
+					stripe.blocksByRoutingKey.removeKey(key);
+					keyCount.decrementAndGet();
+					stripe.updateOldest();
+				}
+			}
+			misses.incrementAndGet();
 			return null;
 		}
+		hits.incrementAndGet();
+		if(!dontPromote) {
+			synchronized(stripe) {
+				if(stripe.blocksByRoutingKey.get(key) == block) {
+					block.lastUsed = clock.incrementAndGet();
+					stripe.blocksByRoutingKey.push(key, block);
+					stripe.updateOldest();
+				}
+			}
+		}
+		if(meta != null && oldBlock)
+			meta.setOldBlock();
+		return ret;
+	}
+
+	@Override
+	public void fetch(byte[][] routingKeys, byte[][] fullKeys,
+			boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BatchFetchCallback<T> callback) throws IOException {
+		// No disk reads to combine.
+		for(int i=0;i<routingKeys.length;i++)
+			callback.onFetched(i, fetch(routingKeys[i], fullKeys == null ? null : fullKeys[i], dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, null));
+		callback.onFinished();
 	}
 
 	@Override
-	public synchronized long getMaxKeys() {
+	public long getMaxKeys() {
 		return maxKeys;
 	}
 
 	@Override
-	public synchronized long hits() {
-		return hits;
+	public long hits() {
+		return hits.get();
 	}
 
 	@Override
-	public synchronized long keyCount() {
-		return blocksByRoutingKey.size();
+	public long keyCount() {
+		return keyCount.get();
 	}
 
 	@Override
-	public synchronized long misses() {
-		return misses;
+	public long misses() {
+		return misses.get();
 	}
 
 	@Override
-	public synchronized void put(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock) throws KeyCollisionException {
+	public void put(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock) throws KeyCollisionException {
 		byte[] routingkey = block.getRoutingKey();
 		byte[] fullKey = block.getFullKey();
 		
-		writes++;
+		writes.incrementAndGet();
 		ByteArrayWrapper key = new ByteArrayWrapper(routingkey);
-		Block oldBlock = blocksByRoutingKey.get(key);
 		boolean storeFullKeys = callback.storeFullKeys();
-		if(oldBlock != null) {
-			if(callback.collisionPossible()) {
-				boolean equals = Arrays.equals(oldBlock.data, data) &&
-					Arrays.equals(oldBlock.header, header) &&
-					(storeFullKeys ? Arrays.equals(oldBlock.fullKey, fullKey) : true);
-				if(equals) {
+		Stripe stripe = stripe(key);
+		synchronized(stripe) {
+			Block oldBlock = stripe.blocksByRoutingKey.get(key);
+			if(oldBlock != null) {
+				if(callback.collisionPossible()) {
+					boolean equals = Arrays.equals(oldBlock.data, data) &&
+						Arrays.equals(oldBlock.header, header) &&
+						(storeFullKeys ? Arrays.equals(oldBlock.fullKey, fullKey) : true);
+					if(equals) {
+						if(!isOldBlock)
+							oldBlock.oldBlock = false;
+						return;
+					}
+					if(overwrite) {
+						oldBlock.data = data;
+						oldBlock.header = header;
+						if(storeFullKeys)
+							oldBlock.fullKey = fullKey;
+						oldBlock.oldBlock = isOldBlock;
+					} else {
+						throw new KeyCollisionException();
+					}
+					return;
+				} else {
 					if(!isOldBlock)
 						oldBlock.oldBlock = false;
 					return;
 				}
-				if(overwrite) {
-					oldBlock.data = data;
-					oldBlock.header = header;
-					if(storeFullKeys)
-						oldBlock.fullKey = fullKey;
-					oldBlock.oldBlock = isOldBlock;
-				} else {
-					throw new KeyCollisionException();
-				}
-				return;
-			} else {
-				if(!isOldBlock)
-					oldBlock.oldBlock = false;
-				return;
 			}
+			Block storeBlock = new Block();
+			storeBlock.data = data;
+			storeBlock.header = header;
+			if(storeFullKeys)
+				storeBlock.fullKey = fullKey;
+			storeBlock.oldBlock = isOldBlock;
+			storeBlock.lastUsed = clock.incrementAndGet();
+			stripe.blocksByRoutingKey.push(key, storeBlock);
+			keyCount.incrementAndGet();
+			stripe.updateOldest();
 		}
-		Block storeBlock = new Block();
-		storeBlock.data = data;
-		storeBlock.header = header;
-		if(storeFullKeys)
-			storeBlock.fullKey = fullKey;
-		storeBlock.oldBlock = isOldBlock;
-		blocksByRoutingKey.push(key, storeBlock);
-		while(blocksByRoutingKey.size() > maxKeys) {
-			blocksByRoutingKey.popKey();
+		shrink();
+	}
+
+	/** Evict least recently used blocks until we are within maxKeys. */
+	private void shrink() {
+		while(keyCount.get() > maxKeys) {
+			Stripe victim = null;
+			long oldest = Long.MAX_VALUE;
+			for(Stripe stripe : stripes) {
+				long t = stripe.oldest;
+				if(t < oldest) {
+					oldest = t;
+					victim = stripe;
+				}
+			}
+			if(victim == null) return;
+			synchronized(victim) {
+				// Another thread may have got here first, in which case look again.
+				if(victim.blocksByRoutingKey.popKey() != null)
+					keyCount.decrementAndGet();
+				victim.updateOldest();
+			}
 		}
 	}
 
 	@Override
-	public synchronized void setMaxKeys(long maxStoreKeys, boolean shrinkNow)
+	public void setMaxKeys(long maxStoreKeys, boolean shrinkNow)
 			throws IOException {
 		this.maxKeys = (int)Math.min(Integer.MAX_VALUE, maxStoreKeys);
 		// Always shrink now regardless of parameter as we will shrink on the next put() anyway.
-		while(blocksByRoutingKey.size() > maxKeys) {
-			blocksByRoutingKey.popKey();
-		}
+		shrink();
 	}
 
 	@Override
 	public long writes() {
-		return writes;
+		return writes.get();
 	}
 
 	@Override
@@ -162,31 +258,50 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 	@Override
 	public boolean probablyInStore(byte[] routingKey) {
 		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
-		return blocksByRoutingKey.get(key) != null;
+		Stripe stripe = stripe(key);
+		synchronized(stripe) {
+			return stripe.blocksByRoutingKey.containsKey(key);
+		}
 	}
 
 	public void clear() {
-		blocksByRoutingKey.clear();
+		for(Stripe stripe : stripes) {
+			synchronized(stripe) {
+				keyCount.addAndGet(-stripe.blocksByRoutingKey.size());
+				stripe.blocksByRoutingKey.clear();
+				stripe.updateOldest();
+			}
+		}
 	}
 
 	public void migrateTo(StoreCallback<T> target, boolean canReadClientCache) throws IOException {
-		Enumeration<ByteArrayWrapper> keys = blocksByRoutingKey.keys();
-		while(keys.hasMoreElements()) {
-			ByteArrayWrapper routingKeyWrapped = keys.nextElement();
-			byte[] routingKey = routingKeyWrapped.get();
-			Block block = blocksByRoutingKey.get(routingKeyWrapped);
-			
-			T ret;
-			try {
-				ret = callback.construct(block.data, block.header, routingKey, block.fullKey, canReadClientCache, false, null, null);
-			} catch (KeyVerifyException e) {
-				Logger.error(this, "Caught while migrating: "+e, e);
-				continue;
+		for(Stripe stripe : stripes) {
+			ArrayList<ByteArrayWrapper> routingKeys = new ArrayList<ByteArrayWrapper>();
+			ArrayList<Block> blocks = new ArrayList<Block>();
+			synchronized(stripe) {
+				Enumeration<ByteArrayWrapper> keys = stripe.blocksByRoutingKey.keys();
+				while(keys.hasMoreElements()) {
+					ByteArrayWrapper routingKeyWrapped = keys.nextElement();
+					routingKeys.add(routingKeyWrapped);
+					blocks.add(stripe.blocksByRoutingKey.get(routingKeyWrapped));
+				}
 			}
-			try {
-				target.getStore().put(ret, block.data, block.header, false, block.oldBlock);
-			} catch (KeyCollisionException e) {
-				// Ignore
+			for(int i=0;i<routingKeys.size();i++) {
+				byte[] routingKey = routingKeys.get(i).get();
+				Block block = blocks.get(i);
+				
+				T ret;
+				try {
+					ret = callback.construct(block.data, block.header, routingKey, block.fullKey, canReadClientCache, false, null, null);
+				} catch (KeyVerifyException e) {
+					Logger.error(this, "Caught while migrating: "+e, e);
+					continue;
+				}
+				try {
+					target.getStore().put(ret, block.data, block.header, false, block.oldBlock);
+				} catch (KeyCollisionException e) {
+					// Ignore
+				}
 			}
 		}
 	}
@@ -197,12 +312,12 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 
 			@Override
 			public long hits() {
-				return hits;
+				return hits.get();
 			}
 
 			@Override
 			public long misses() {
-				return misses;
+				return misses.get();
 			}
 
 			@Override
@@ -212,7 +327,7 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 
 			@Override
 			public long writes() {
-				return writes;
+				return writes.get();
 			}
 			
 		};
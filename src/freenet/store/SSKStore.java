@@ -36,6 +36,17 @@ public class SSKStore extends StoreCallback<SSKBlock> {
 		return store.fetch(chk.getRoutingKey(), chk.getFullKey(), dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta);
 	}
 
+	/** Fetch several keys at once. The callback is given the index into the keys array. */
+	public void fetch(NodeSSK[] keys, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BatchFetchCallback<SSKBlock> callback) throws IOException {
+		byte[][] routingKeys = new byte[keys.length][];
+		byte[][] fullKeys = new byte[keys.length][];
+		for(int i=0;i<keys.length;i++) {
+			routingKeys[i] = keys[i].getRoutingKey();
+			fullKeys[i] = keys[i].getFullKey();
+		}
+		store.fetch(routingKeys, fullKeys, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, callback);
+	}
+
 	public void put(SSKBlock b, boolean overwrite, boolean isOldBlock) throws IOException, KeyCollisionException {
 		store.put(b, b.getRawData(), b.getRawHeaders(), overwrite, isOldBlock);
 	}
@@ -148,6 +148,15 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 		}
 	}
 
+	@Override
+	public void fetch(byte[][] routingKeys, byte[][] fullKeys,
+			boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BatchFetchCallback<T> callback) throws IOException {
+		// Blocks are in separate temp buckets, nothing to combine.
+		for(int i=0;i<routingKeys.length;i++)
+			callback.onFetched(i, fetch(routingKeys[i], fullKeys == null ? null : fullKeys[i], dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, null));
+		callback.onFinished();
+	}
+
 	@Override
 	public long getBloomFalsePositive() {
 		return -1;
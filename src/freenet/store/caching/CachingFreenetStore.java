@@ -1,17 +1,26 @@
 package freenet.store.caching;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import freenet.keys.KeyVerifyException;
 import freenet.node.SemiOrderedShutdownHook;
+import freenet.store.BatchFetchCallback;
 import freenet.store.BlockMetadata;
 import freenet.store.FreenetStore;
 import freenet.store.KeyCollisionException;
 import freenet.store.ProxyFreenetStore;
 import freenet.store.StorableBlock;
 import freenet.store.StoreCallback;
+import freenet.store.saltedhash.SaltedHashFreenetStore;
 import freenet.support.ByteArrayWrapper;
 import freenet.support.LRUMap;
 import freenet.support.Logger;
@@ -21,19 +30,29 @@ import freenet.support.io.NativeThread;
 /**
  * CachingFreenetStore
  * 
+ * Write-back cache in front of a slow store. Blocks are kept in SHARDS independent LRU maps, 
+ * chosen by routing key, each with its own lock, so that request threads inserting different 
+ * keys don't wait for each other. CachingFreenetStoreTracker writes them out in batches.
+ * 
  * @author Simon Vocella <voxsim@gmail.com>
  * 
  */
 public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetStore<T> {
     private static volatile boolean logMINOR;
  
-	private boolean shuttingDown; /* If this flag is true, we don't accept puts anymore */
-	private final LRUMap<ByteArrayWrapper, Block<T>> blocksByRoutingKey;
+    /** Number of shards. Must be a power of 2. */
+    static final int SHARDS = 16;
+    
+	private volatile boolean shuttingDown; /* If this flag is true, we don't accept puts anymore */
+	private final Shard<T>[] shards;
 	private final StoreCallback<T> callback;
 	private final boolean collisionPossible;
-	private final ReadWriteLock configLock = new ReentrantReadWriteLock();
 	private final CachingFreenetStoreTracker tracker;
 	private final int sizeBlock;
+	/** Orders blocks across shards, so we can still write the least recently cached first. */
+	private final AtomicLong sequence = new AtomicLong();
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong cacheMisses = new AtomicLong();
 	
     static { Logger.registerClass(CachingFreenetStore.class); }
     
@@ -43,13 +62,48 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 		byte[] header;
 		boolean overwrite;
 		boolean isOldBlock;
+		ByteArrayWrapper key;
+		long sequence;
+		/** Only used while writing a batch. */
+		long slot;
+	}
+	
+	private final static class Shard<T> {
+		final LRUMap<ByteArrayWrapper, Block<T>> blocksByRoutingKey = 
+			LRUMap.createSafeMap(ByteArrayWrapper.FAST_COMPARATOR);
+		final ReadWriteLock configLock = new ReentrantReadWriteLock();
+	}
+	
+	private static final Comparator<Block<?>> BY_SEQUENCE = new Comparator<Block<?>>() {
+
+		@Override
+		public int compare(Block<?> o1, Block<?> o2) {
+			return o1.sequence < o2.sequence ? -1 : (o1.sequence == o2.sequence ? 0 : 1);
+		}
+		
+	};
+	
+	private static final Comparator<Block<?>> BY_SLOT = new Comparator<Block<?>>() {
+
+		@Override
+		public int compare(Block<?> o1, Block<?> o2) {
+			return o1.slot < o2.slot ? -1 : (o1.slot == o2.slot ? 0 : 1);
+		}
+		
+	};
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static <T> Shard<T>[] newShards(int count) {
+		return new Shard[count];
 	}
 
 	public CachingFreenetStore(StoreCallback<T> callback, FreenetStore<T> backDatastore, CachingFreenetStoreTracker tracker) {
 		super(backDatastore);
 		this.callback = callback;
 		SemiOrderedShutdownHook shutdownHook = SemiOrderedShutdownHook.get();
-		this.blocksByRoutingKey = LRUMap.createSafeMap(ByteArrayWrapper.FAST_COMPARATOR);
+		this.shards = newShards(SHARDS);
+		for(int i=0;i<SHARDS;i++)
+			shards[i] = new Shard<T>();
 		this.collisionPossible = callback.collisionPossible();
 		this.shuttingDown = false;
 		this.tracker = tracker;
@@ -63,22 +117,33 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 			}
 		});
 	}
+	
+	private Shard<T> shardFor(ByteArrayWrapper key) {
+		return shards[key.hashCode() & (SHARDS - 1)];
+	}
+	
+	private Block<T> getBlock(ByteArrayWrapper key) {
+		Shard<T> shard = shardFor(key);
+		Block<T> block;
+		shard.configLock.readLock().lock();
+		try {
+			block = shard.blocksByRoutingKey.get(key);
+		} finally {
+			shard.configLock.readLock().unlock();
+		}
+		if(block != null)
+			cacheHits.incrementAndGet();
+		else
+			cacheMisses.incrementAndGet();
+		return block;
+	}
 
 	@Override
 	public T fetch(byte[] routingKey, byte[] fullKey,
 			boolean dontPromote, boolean canReadClientCache,
 			boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) 
 			throws IOException {
-		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
-		
-		Block<T> block = null;
-		
-		configLock.readLock().lock();
-		try {
-			block = blocksByRoutingKey.get(key);
-		} finally {
-			configLock.readLock().unlock();
-		}
+		Block<T> block = getBlock(new ByteArrayWrapper(routingKey));
 		
 		if(block != null) {
 			try {
@@ -91,16 +156,65 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 		return backDatastore.fetch(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta);	
 	}
 
+	@Override
+	public void fetch(byte[][] routingKeys, byte[][] fullKeys, boolean dontPromote,
+			boolean canReadClientCache, boolean canReadSlashdotCache,
+			boolean ignoreOldBlocks, final BatchFetchCallback<T> callback) throws IOException {
+		// Answer what we can from the cache, and pass the rest to the underlying store in one go.
+		int[] missing = new int[routingKeys.length];
+		int missingCount = 0;
+		for(int i=0;i<routingKeys.length;i++) {
+			Block<T> block = getBlock(new ByteArrayWrapper(routingKeys[i]));
+			T ret = null;
+			if(block != null) {
+				try {
+					ret = this.callback.construct(block.data, block.header, routingKeys[i], block.block.getFullKey(), canReadClientCache, canReadSlashdotCache, null, null);
+				} catch (KeyVerifyException e) {
+					Logger.error(this, "Error in fetching for CachingFreenetStore: "+e, e);
+				}
+			}
+			if(ret != null)
+				callback.onFetched(i, ret);
+			else
+				missing[missingCount++] = i;
+		}
+		if(missingCount == 0) {
+			callback.onFinished();
+			return;
+		}
+		final int[] backIndex = Arrays.copyOf(missing, missingCount);
+		byte[][] backRoutingKeys = new byte[missingCount][];
+		byte[][] backFullKeys = fullKeys == null ? null : new byte[missingCount][];
+		for(int i=0;i<missingCount;i++) {
+			backRoutingKeys[i] = routingKeys[backIndex[i]];
+			if(fullKeys != null) backFullKeys[i] = fullKeys[backIndex[i]];
+		}
+		backDatastore.fetch(backRoutingKeys, backFullKeys, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, new BatchFetchCallback<T>() {
+
+			@Override
+			public void onFetched(int index, T block) {
+				callback.onFetched(backIndex[index], block);
+			}
+
+			@Override
+			public void onFinished() {
+				callback.onFinished();
+			}
+
+		});
+	}
+
 	@Override
 	public boolean probablyInStore(byte[] routingKey) {
 		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
+		Shard<T> shard = shardFor(key);
 		Block<T> block = null;
 		
-		configLock.readLock().lock();
+		shard.configLock.readLock().lock();
 		try {
-			block = blocksByRoutingKey.get(key);
+			block = shard.blocksByRoutingKey.get(key);
 		} finally {
-			configLock.readLock().unlock();
+			shard.configLock.readLock().unlock();
 		}
 		
 		return block != null || backDatastore.probablyInStore(routingKey);
@@ -111,6 +225,7 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 			boolean overwrite, boolean isOldBlock) throws IOException, KeyCollisionException {
 		byte[] routingKey = block.getRoutingKey();
 		final ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
+		Shard<T> shard = shardFor(key);
 		
 		Block<T> storeBlock = new Block<T>();
 		storeBlock.block = block;
@@ -118,15 +233,16 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 		storeBlock.header = header;
 		storeBlock.overwrite = overwrite;
 		storeBlock.isOldBlock = isOldBlock;
+		storeBlock.key = key;
 		
 		boolean cacheIt = true;
 		
 		//Case cache it
-		configLock.writeLock().lock();
+		shard.configLock.writeLock().lock();
 		
 		try {
 			if(!shuttingDown) {
-				Block<T> previousBlock = blocksByRoutingKey.get(key);
+				Block<T> previousBlock = shard.blocksByRoutingKey.get(key);
 			
 				if(!collisionPossible || overwrite) {
 					if(previousBlock == null) {
@@ -134,7 +250,8 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 					}
 					
 					if(cacheIt) {
-						blocksByRoutingKey.push(key, storeBlock);
+						storeBlock.sequence = sequence.incrementAndGet();
+						shard.blocksByRoutingKey.push(key, storeBlock);
 					}
 				} else {
 					//Case cache it but is it in blocksByRoutingKey? If so, throw a KCE
@@ -151,7 +268,8 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 						cacheIt = tracker.add(sizeBlock);
 						
 						if(cacheIt) {
-							blocksByRoutingKey.push(key, storeBlock);
+							storeBlock.sequence = sequence.incrementAndGet();
+							shard.blocksByRoutingKey.push(key, storeBlock);
 						}
 					}
 				}
@@ -159,7 +277,7 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 				cacheIt = false;
 			}
 		} finally {
-			configLock.writeLock().unlock();
+			shard.configLock.writeLock().unlock();
 		}
 		
 		//Case don't cache it
@@ -176,17 +294,73 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 	 */
 	long pushLeastRecentlyBlock() {
 		Block<T> block = null;
-		ByteArrayWrapper key = null;
 		
-		configLock.writeLock().lock();
-		try {
-			block = blocksByRoutingKey.peekValue();
-			if(block == null) return -1;
-			key = blocksByRoutingKey.peekKey();
-		} finally {
-			configLock.writeLock().unlock();
+		// Least recently cached across all the shards.
+		for(Shard<T> shard : shards) {
+			Block<T> b = shard.blocksByRoutingKey.peekValue();
+			if(b != null && (block == null || b.sequence < block.sequence))
+				block = b;
 		}
+		if(block == null) return -1;
 			
+		write(block);
+		
+		return removeIfUnchanged(block) ? sizeBlock : 0;
+	}
+	
+	/** Write the least recently cached blocks to disk, up to roughly maxBytes, sorted by the slot
+	 * they will go to if the underlying store is a SaltedHashFreenetStore, so the writes are
+	 * closer to sequential.
+	 * @return The number of bytes removed from the cache, which is less than the number written
+	 * if blocks changed while we were writing them, or -1 if the cache is empty.
+	 */
+	long pushBlocks(long maxBytes) {
+		int maxBlocks = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxBytes / sizeBlock));
+		List<Block<T>> blocks = new ArrayList<Block<T>>();
+		for(Shard<T> shard : shards) {
+			// Each shard is in LRU order, so we need at most maxBlocks from any of them.
+			shard.configLock.readLock().lock();
+			try {
+				Enumeration<Block<T>> e = shard.blocksByRoutingKey.values();
+				for(int i=0;i<maxBlocks && e.hasMoreElements();i++)
+					blocks.add(e.nextElement());
+			} finally {
+				shard.configLock.readLock().unlock();
+			}
+		}
+		if(blocks.isEmpty()) return -1;
+		if(blocks.size() > maxBlocks) {
+			Collections.sort(blocks, BY_SEQUENCE);
+			blocks = blocks.subList(0, maxBlocks);
+		}
+		SaltedHashFreenetStore<T> saltStore = getSaltedHashStore();
+		if(saltStore != null) {
+			for(Block<T> block : blocks)
+				block.slot = saltStore.getFirstSlot(block.key.get());
+			Collections.sort(blocks, BY_SLOT);
+		}
+		long removed = 0;
+		for(Block<T> block : blocks) {
+			write(block);
+			if(removeIfUnchanged(block))
+				removed += sizeBlock;
+		}
+		return removed;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private SaltedHashFreenetStore<T> getSaltedHashStore() {
+		FreenetStore<T> store = backDatastore;
+		while(true) {
+			if(store instanceof SaltedHashFreenetStore)
+				return (SaltedHashFreenetStore<T>) store;
+			FreenetStore<T> underlying = store.getUnderlyingStore();
+			if(underlying == store || underlying == null) return null;
+			store = underlying;
+		}
+	}
+	
+	private void write(Block<T> block) {
 		try {
 			backDatastore.put(block.block, block.data, block.header, block.overwrite, block.isOldBlock);
 		} catch (IOException e) {
@@ -194,21 +368,25 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 		} catch (KeyCollisionException e) {
 			if(logMINOR) Logger.minor(this, "KeyCollisionException in pushAll for CachingFreenetStore: "+e, e);
 		}
-		
-		configLock.writeLock().lock();
+	}
+	
+	/** Remove a block we have just written.
+	 * @return False if it was replaced while we were writing it, so it must stay. */
+	private boolean removeIfUnchanged(Block<T> block) {
+		Shard<T> shard = shardFor(block.key);
+		shard.configLock.writeLock().lock();
 		try {
-			Block<T> currentVersionOfBlock = blocksByRoutingKey.get(key);
+			Block<T> currentVersionOfBlock = shard.blocksByRoutingKey.get(block.key);
 			
 			/** it might have changed if there was a put() with overwrite=true. 
-			 *  If it has changed, return 0 , i.e. don't remove it*/
+			 *  If it has changed, don't remove it*/
 			if(currentVersionOfBlock != null && currentVersionOfBlock.block.equals(block.block)) {
-				if(blocksByRoutingKey.removeKey(key))
-					return sizeBlock;
+				return shard.blocksByRoutingKey.removeKey(block.key);
 			}
 		} finally {
-			configLock.writeLock().unlock();
+			shard.configLock.writeLock().unlock();
 		}
-		return 0;
+		return false;
 	}
 
 	@Override
@@ -225,24 +403,36 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 
 	/** Close this store but not the underlying store. */
 	private void innerClose() {
-		configLock.writeLock().lock();
-		try {
-			shuttingDown = true;
-			tracker.unregisterCachingFS(this);
-		} finally {
-			configLock.writeLock().unlock();
+		shuttingDown = true;
+		// Wait for any put() which didn't see the flag.
+		for(Shard<T> shard : shards) {
+			shard.configLock.writeLock().lock();
+			shard.configLock.writeLock().unlock();
 		}
+		tracker.unregisterCachingFS(this);
+	}
+	
+	/** @return The number of fetches answered from the cache. */
+	public long getCacheHits() {
+		return cacheHits.get();
+	}
+	
+	/** @return The number of fetches which were not in the cache and went to the underlying 
+	 * store. */
+	public long getCacheMisses() {
+		return cacheMisses.get();
 	}
 	
 	/** Only for unit tests */
 	boolean isEmpty() {
-		boolean isEmpty;
-		configLock.readLock().lock();
-		try {
-			isEmpty = this.blocksByRoutingKey.isEmpty();
-		} finally {
-			configLock.readLock().unlock();
+		for(Shard<T> shard : shards) {
+			shard.configLock.readLock().lock();
+			try {
+				if(!shard.blocksByRoutingKey.isEmpty()) return false;
+			} finally {
+				shard.configLock.readLock().unlock();
+			}
 		}
-		return isEmpty;
+		return true;
 	}
 }
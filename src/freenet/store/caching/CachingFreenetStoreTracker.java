@@ -1,6 +1,8 @@
 package freenet.store.caching;
 
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.support.Logger;
 import freenet.support.Ticker;
@@ -8,7 +10,8 @@ import freenet.support.Ticker;
 /**
  * Tracks the memory used by a bunch of CachingFreenetStore's, and writes blocks to disk when full or 
  * after 5 minutes. One major objective here is we should not do disk I/O inside a lock, all methods 
- * should be non-blocking, even if it means the caller needs to do a blocking disk write.
+ * should be non-blocking, even if it means the caller needs to do a blocking disk write. add() is
+ * called on every put, so it doesn't take a lock at all.
  * 
  * @author Simon Vocella <voxsim@gmail.com>
  * 
@@ -16,9 +19,10 @@ import freenet.support.Ticker;
 public class CachingFreenetStoreTracker {
     private static volatile boolean logMINOR;
     
-    /** Number of keys that it's pushed to the *underlying* store in the add function.
+    /** Number of bytes that are pushed to the *underlying* store from each cache in one batch.
+     * Each batch is sorted by where the blocks will go on disk.
      * FIXME make this configurable??? */
-    private static int numberOfKeysToWrite = 20;
+    static long flushBatchBytes = 1024 * 1024;
     
     /** Lower threshold, when it will start a write job, but still accept the data. */
     private static double lowerThreshold = 0.9;
@@ -30,22 +34,27 @@ public class CachingFreenetStoreTracker {
 	
 	/** Is a write job queued for some point in the next period? There should only be one such job 
 	 * queued. However if we then run out of memory we will run a job immediately. */
-	private boolean queuedJob;
+	private final AtomicBoolean queuedJob = new AtomicBoolean();
 	/** Is a write job running right now? This prevents us from running multiple pushAllCachingStores() 
 	 * in parallel and thus wasting memory, even if we run out of memory and so have to run a job
 	 * straight away. */
-	private boolean runningJob;
-	private long size;
+	private final AtomicBoolean runningJob = new AtomicBoolean();
+	/** Bytes cached and not yet written to disk. */
+	private final AtomicLong size = new AtomicLong();
+	
+	// Statistics
+	private final AtomicLong flushes = new AtomicLong();
+	private final AtomicLong flushTime = new AtomicLong();
+	private final AtomicLong maxFlushTime = new AtomicLong();
+	private final AtomicLong bytesFlushed = new AtomicLong();
 	
     static { Logger.registerClass(CachingFreenetStore.class); }
     
 	public CachingFreenetStoreTracker(long maxSize, long period, Ticker ticker) {
 		if(ticker == null)
 			throw new IllegalArgumentException();
-		this.size = 0;
 		this.maxSize = maxSize;
 		this.period = period;
-		this.queuedJob = false;
 		this.cachingStores = new ArrayList<CachingFreenetStore<?>>();
 		this.ticker = ticker;
 	}
@@ -58,15 +67,9 @@ public class CachingFreenetStoreTracker {
 	}
 	
 	public void unregisterCachingFS(CachingFreenetStore<?> fs) {
-		long sizeBlock = 0;
 		while(true) {
-			sizeBlock = fs.pushLeastRecentlyBlock();
-			synchronized(this) {
-				if(sizeBlock == -1)
-					break;
-				else
-					size -= sizeBlock;
-			}
+			if(pushBlocks(fs) == -1)
+				break;
 		}
 		
 		synchronized (cachingStores) {			
@@ -77,63 +80,58 @@ public class CachingFreenetStoreTracker {
 	/** If we are close to the limit, we will schedule an off-thread job to flush ALL the caches. 
 	 *  Even if we are not, we schedule one after period. If we are at the limit, we will return 
 	 *  false, and the caller should write directly to the underlying store.  */
-	public synchronized boolean add(long sizeBlock) {
-		/**  Here have a lower threshold, say 90% of maxSize, when it will start a write job, but 
-		 * still accept the data. */
-	    boolean justStartedPush = false;
-		if(this.size + sizeBlock > this.maxSize*lowerThreshold) {
-		    pushOffThreadNow();
-		    justStartedPush = true;
-		}
-		//Check max size
-		if(this.size + sizeBlock > this.maxSize) {
-			// Over the limit, caller must write directly.
-			// A delayed write is probably scheduled already. This is not a problem.
-			// FIXME maybe we should remove it?
-			return false;
-		} else {
-			this.size += sizeBlock;
-			if(!justStartedPush) {
-			    // Write everything to disk after the maximum delay (period), unless there is already
-			    // a job scheduled to write to disk before that.
-			    pushOffThreadDelayed();
-			} // Else will be written anyway.
+	public boolean add(long sizeBlock) {
+		while(true) {
+			long oldSize = size.get();
+			long newSize = oldSize + sizeBlock;
+			//Check max size
+			if(newSize > this.maxSize) {
+				// Over the limit, caller must write directly.
+				// A delayed write is probably scheduled already. This is not a problem.
+				// FIXME maybe we should remove it?
+				pushOffThreadNow();
+				return false;
+			}
+			if(!size.compareAndSet(oldSize, newSize)) continue;
+			/**  Here have a lower threshold, say 90% of maxSize, when it will start a write job, but 
+			 * still accept the data. */
+			if(newSize > this.maxSize*lowerThreshold) {
+				pushOffThreadNow();
+			} else {
+				// Write everything to disk after the maximum delay (period), unless there is already
+				// a job scheduled to write to disk before that.
+				pushOffThreadDelayed();
+			}
 			return true;
 		}
 	}
 
-    private synchronized void pushOffThreadNow() {
-        if(runningJob) return;
-        runningJob = true;
+    private void pushOffThreadNow() {
+        if(!runningJob.compareAndSet(false, true)) return;
         this.ticker.queueTimedJob(new Runnable() {
             @Override
             public void run() {
                 try {
                     pushAllCachingStores();
                 } finally {
-                    runningJob = false;
+                    runningJob.set(false);
                 }
             }
         }, 0);
     }
 
 	private void pushOffThreadDelayed() {
-	    if(queuedJob) return;
-	    queuedJob = true;
+	    if(!queuedJob.compareAndSet(false, true)) return;
 	    this.ticker.queueTimedJob(new Runnable() {
 	        @Override
 	        public void run() {
-	            synchronized(this) {
-	                if(runningJob) return;
-	                runningJob = true;
-	            }
+	            // Clear it first so a put after this point schedules another one.
+	            queuedJob.set(false);
+	            if(!runningJob.compareAndSet(false, true)) return;
 	            try {
 	                pushAllCachingStores();
 	            } finally {
-	                synchronized(this) {
-	                    queuedJob = false;
-	                    runningJob = false;
-	                }
+	                runningJob.set(false);
 	            }
 	        }
 	    }, period);
@@ -147,31 +145,90 @@ public class CachingFreenetStoreTracker {
 	        synchronized (cachingStores) {
 	            cachingStoresSnapshot = this.cachingStores.toArray(new CachingFreenetStore<?>[cachingStores.size()]);
 	        }
+			boolean wroteAny = false;
 			for(CachingFreenetStore<?> cfs : cachingStoresSnapshot) {
-				int k=0;
-				while(k < numberOfKeysToWrite) {
-					long sizeBlock = cfs.pushLeastRecentlyBlock();
-					if(sizeBlock == -1) break;
-					synchronized(this) {
-						size -= sizeBlock;
-						assert(size >= 0); // Break immediately if in unit testing.
-						if(size < 0) {
-							Logger.error(this, "Cache broken: Size = "+size);
-							size = 0;
-						}
-						if(size == 0) return;
-					}
-					k++;
-				}
+				if(pushBlocks(cfs) != -1) wroteAny = true;
+				if(size.get() == 0) return;
+			}
+			if(!wroteAny) {
+				// Nothing left to write. The next add() will schedule another job.
+				if(logMINOR) Logger.minor(this, "All caches empty but size is "+size.get());
+				return;
 			}
 		}
 	}
 	
+	/** Write one batch from a store and update the size and statistics.
+	 * @return The number of bytes removed from the cache, or -1 if it was empty. */
+	private long pushBlocks(CachingFreenetStore<?> cfs) {
+		long start = System.currentTimeMillis();
+		long written = cfs.pushBlocks(flushBatchBytes);
+		if(written == -1) return -1;
+		long time = System.currentTimeMillis() - start;
+		flushes.incrementAndGet();
+		flushTime.addAndGet(time);
+		while(true) {
+			long max = maxFlushTime.get();
+			if(time <= max || maxFlushTime.compareAndSet(max, time)) break;
+		}
+		bytesFlushed.addAndGet(written);
+		long newSize = size.addAndGet(-written);
+		assert(newSize >= 0); // Break immediately if in unit testing.
+		if(newSize < 0) {
+			Logger.error(this, "Cache broken: Size = "+newSize);
+			size.compareAndSet(newSize, 0);
+		}
+		if(logMINOR) Logger.minor(this, "Wrote "+written+" bytes in "+time+"ms from "+cfs);
+		return written;
+	}
+	
+	/** @return The number of bytes cached and not yet written to disk. */
 	public long getSizeOfCache() {
-		long sizeReturned;
-		synchronized(this) {
-			sizeReturned = size;
+		return size.get();
+	}
+	
+	public long getMaxSize() {
+		return maxSize;
+	}
+	
+	/** @return The number of batches written to disk. */
+	public long getFlushes() {
+		return flushes.get();
+	}
+	
+	/** @return The total number of bytes written to disk. */
+	public long getBytesFlushed() {
+		return bytesFlushed.get();
+	}
+	
+	/** @return The average time taken to write one batch, in milliseconds. */
+	public double getAverageFlushTime() {
+		long count = flushes.get();
+		return count == 0 ? 0.0 : ((double) flushTime.get()) / count;
+	}
+	
+	/** @return The longest time taken to write one batch, in milliseconds. */
+	public long getMaxFlushTime() {
+		return maxFlushTime.get();
+	}
+	
+	/** @return The number of fetches answered from the caches. */
+	public long getCacheHits() {
+		long hits = 0;
+		synchronized (cachingStores) {
+			for(CachingFreenetStore<?> cfs : cachingStores)
+				hits += cfs.getCacheHits();
+		}
+		return hits;
+	}
+	
+	/** @return The number of fetches which were not in the caches. */
+	public long getCacheMisses() {
+		long misses = 0;
+		synchronized (cachingStores) {
+			for(CachingFreenetStore<?> cfs : cachingStores)
+				misses += cfs.getCacheMisses();
 		}
-		return sizeReturned;
+		return misses;
 	}
 }
@@ -0,0 +1,145 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import freenet.support.Logger;
+
+/**
+ * Memory-mapped view of a store file, in segments of up to SEGMENT_SIZE bytes because a
+ * MappedByteBuffer is limited to 2GB. Reads and writes go straight to the mapping, avoiding a
+ * system call per access. Anything outside the mapped region is left to the caller, who uses
+ * the FileChannel as before.
+ *
+ * The mapping must never extend past the end of the file: touching a page past EOF crashes the
+ * JVM. So the file must be remapped (under the write lock, see map()) <b>before</b> it is
+ * truncated, and should be remapped after it is extended.
+ */
+class MappedStoreFile {
+
+	/** Size of each mapped segment. Must be a multiple of the entry size so an entry never
+	 * spans two segments. */
+	static final int SEGMENT_SIZE = 1 << 28;
+
+	private final FileChannel fc;
+	/** Taken for reading to access the mapping, and for writing to replace it. */
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private MappedByteBuffer[] segments = new MappedByteBuffer[0];
+	private long mappedLength;
+
+	MappedStoreFile(FileChannel fc) {
+		this.fc = fc;
+	}
+
+	/** Map the first length bytes of the file, or the whole file if it is shorter. Replaces
+	 * any existing mapping. The old mapping is released when it is garbage collected.
+	 * @throws IOException If the mapping fails, in which case nothing is mapped. */
+	void map(long length) throws IOException {
+		lock.writeLock().lock();
+		try {
+			segments = new MappedByteBuffer[0];
+			mappedLength = 0;
+			length = Math.min(length, fc.size());
+			int count = (int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+			MappedByteBuffer[] newSegments = new MappedByteBuffer[count];
+			for(int i = 0; i < count; i++) {
+				long start = (long) i * SEGMENT_SIZE;
+				newSegments[i] = fc.map(FileChannel.MapMode.READ_WRITE, start, Math.min(SEGMENT_SIZE, length - start));
+			}
+			segments = newSegments;
+			mappedLength = length;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/** Drop the mapping. */
+	void unmap() {
+		lock.writeLock().lock();
+		try {
+			segments = new MappedByteBuffer[0];
+			mappedLength = 0;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	long getMappedLength() {
+		lock.readLock().lock();
+		try {
+			return mappedLength;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/** Read buf.remaining() bytes at the given position in the file.
+	 * @return False, having read nothing, if the range isn't entirely mapped. */
+	boolean read(ByteBuffer buf, long position) {
+		lock.readLock().lock();
+		try {
+			if(position < 0 || position + buf.remaining() > mappedLength) return false;
+			while(buf.hasRemaining()) {
+				ByteBuffer segment = segment(position);
+				int len = Math.min(buf.remaining(), segment.remaining());
+				segment.limit(segment.position() + len);
+				buf.put(segment);
+				position += len;
+			}
+			return true;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/** Write buf.remaining() bytes at the given position in the file.
+	 * @return False, having written nothing, if the range isn't entirely mapped. */
+	boolean write(ByteBuffer buf, long position) {
+		lock.readLock().lock();
+		try {
+			if(position < 0 || position + buf.remaining() > mappedLength) return false;
+			while(buf.hasRemaining()) {
+				ByteBuffer segment = segment(position);
+				int len = Math.min(buf.remaining(), segment.remaining());
+				ByteBuffer src = buf.duplicate();
+				src.limit(src.position() + len);
+				segment.put(src);
+				buf.position(buf.position() + len);
+				position += len;
+			}
+			return true;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/** Write any changes to the mapping to disk. */
+	void force() {
+		lock.readLock().lock();
+		try {
+			for(MappedByteBuffer segment : segments)
+				segment.force();
+		} catch (Throwable t) {
+			// Can be an IOError if the underlying write fails.
+			Logger.error(this, "Failed to flush mapped store file: "+t, t);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/** @return A view of the segment containing the position, positioned there. Caller must
+	 * hold the read lock. */
+	private ByteBuffer segment(long position) {
+		ByteBuffer segment = segments[(int) (position / SEGMENT_SIZE)].duplicate();
+		segment.position((int) (position % SEGMENT_SIZE));
+		return segment;
+	}
+
+}
@@ -12,10 +12,12 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Deque;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.SortedSet;
@@ -44,6 +46,7 @@ import freenet.node.stats.StoreAccessStats;
 import freenet.node.useralerts.AbstractUserAlert;
 import freenet.node.useralerts.UserAlert;
 import freenet.node.useralerts.UserAlertManager;
+import freenet.store.BatchFetchCallback;
 import freenet.store.BlockMetadata;
 import freenet.store.FreenetStore;
 import freenet.store.KeyCollisionException;
@@ -321,49 +324,199 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		} catch(InterruptedException e) {
 			throw new IOException("interrupted: " +e);
 		}
-		byte[] digestedKey = cipherManager.getDigestedKey(routingKey);
 		try {
-			Map<Long, Condition> lockMap = lockDigestedKey(digestedKey, true);
-			if (lockMap == null) {
-				if (logDEBUG)
-					Logger.debug(this, "cannot lock key: " + HexUtil.bytesToHex(routingKey) + ", shutting down?");
+			return fetchLocked(routingKey, cipherManager.getDigestedKey(routingKey), fullKey, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta);
+		} finally {
+			configLock.readLock().unlock();
+		}
+	}
+
+	/** Fetch a single key. Caller must hold the configLock read lock. */
+	private T fetchLocked(byte[] routingKey, byte[] digestedKey, byte[] fullKey, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) throws IOException {
+		Map<Long, Condition> lockMap = lockDigestedKey(digestedKey, true);
+		if (lockMap == null) {
+			if (logDEBUG)
+				Logger.debug(this, "cannot lock key: " + HexUtil.bytesToHex(routingKey) + ", shutting down?");
+			return null;
+		}
+		try {
+			Entry entry = probeEntry(digestedKey, routingKey, true);
+			if (entry == null) {
+				misses.incrementAndGet();
 				return null;
 			}
+
+			if((entry.flag & Entry.ENTRY_NEW_BLOCK) == 0) {
+				if(ignoreOldBlocks) {
+					Logger.normal(this, "Ignoring old block");
+					return null;
+				}
+				if(meta != null)
+					meta.setOldBlock();
+			}
+
 			try {
-				Entry entry = probeEntry(digestedKey, routingKey, true);
-				if (entry == null) {
+				T block = entry.getStorableBlock(routingKey, fullKey, canReadClientCache, canReadSlashdotCache, meta, null);
+				if (block == null) {
 					misses.incrementAndGet();
 					return null;
 				}
+				hits.incrementAndGet();
+				return block;
+			} catch (KeyVerifyException e) {
+				Logger.minor(this, "key verification exception", e);
+				misses.incrementAndGet();
+				return null;
+			}
+		} finally {
+			unlockDigestedKey(digestedKey, true, lockMap);
+		}
+	}
 
-				if((entry.flag & Entry.ENTRY_NEW_BLOCK) == 0) {
-					if(ignoreOldBlocks) {
-						Logger.normal(this, "Ignoring old block");
-						return null;
-					}
-					if(meta != null)
-						meta.setOldBlock();
-				}
+	/** Probe slots for a batch fetch which are at most this many slots apart are read together,
+	 * along with the slots in between: a few more kilobytes cost less than another seek. */
+	static final int BATCH_MAX_GAP = 32;
+	/** Maximum number of slots read at once by a batch fetch. */
+	static final int BATCH_MAX_SLOTS = 512;
 
-				try {
-					T block = entry.getStorableBlock(routingKey, fullKey, canReadClientCache, canReadSlashdotCache, meta, null);
-					if (block == null) {
+	/**
+	 * Fetch several keys. We read the metadata for all their probe slots in offset order,
+	 * combining nearby slots into one read, so a whole segment costs a few reads rather than
+	 * up to five per key. Only the keys whose digested routing key turns up in a slot are then
+	 * fetched individually, under the entry locks.
+	 */
+	@Override
+	public void fetch(byte[][] routingKeys, byte[][] fullKeys, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BatchFetchCallback<T> callback) throws IOException {
+		if (logMINOR)
+			Logger.minor(this, "Batch fetch of " + routingKeys.length + " keys for " + callback);
+
+		List<T> blocks = new ArrayList<T>(routingKeys.length);
+		try {
+			int retry = 0;
+			while (!configLock.readLock().tryLock(2, TimeUnit.SECONDS)) {
+				if (shutdown) {
+					blocks = null;
+					break;
+				}
+				if (retry++ > 10)
+					throw new IOException("lock timeout (20s)");
+			}
+		} catch(InterruptedException e) {
+			throw new IOException("interrupted: " +e);
+		}
+		if (blocks != null) {
+			try {
+				byte[][] digestedKeys = new byte[routingKeys.length][];
+				for (int i = 0; i < routingKeys.length; i++)
+					digestedKeys[i] = cipherManager.getDigestedKey(routingKeys[i]);
+				boolean[] candidates = findBatchCandidates(digestedKeys);
+				for (int i = 0; i < routingKeys.length; i++) {
+					if (candidates[i]) {
+						blocks.add(fetchLocked(routingKeys[i], digestedKeys[i], fullKeys == null ? null : fullKeys[i], canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, null));
+					} else {
 						misses.incrementAndGet();
-						return null;
+						blocks.add(null);
 					}
-					hits.incrementAndGet();
-					return block;
-				} catch (KeyVerifyException e) {
-					Logger.minor(this, "key verification exception", e);
-					misses.incrementAndGet();
-					return null;
 				}
 			} finally {
-				unlockDigestedKey(digestedKey, true, lockMap);
+				configLock.readLock().unlock();
 			}
-		} finally {
-			configLock.readLock().unlock();
 		}
+		for (int i = 0; i < routingKeys.length; i++)
+			callback.onFetched(i, blocks == null ? null : blocks.get(i));
+		callback.onFinished();
+	}
+
+	/**
+	 * Read the metadata of every probe slot for each of the keys, and see which of the keys
+	 * might be in the store. We don't take the entry locks, so this is only a hint: the caller
+	 * must check the candidates again under the lock.
+	 * @return For each key, true if a slot contains its digested routing key.
+	 */
+	private boolean[] findBatchCandidates(byte[][] digestedKeys) throws IOException {
+		boolean[] candidates = new boolean[digestedKeys.length];
+		long prevSize = prevStoreSize;
+		// Slot number in the top half, key index in the bottom half, so they sort by slot.
+		long[] probes = new long[digestedKeys.length * OPTION_MAX_PROBE * (prevSize == 0 ? 1 : 2)];
+		int count = 0;
+		for (int i = 0; i < digestedKeys.length; i++) {
+			count = addBatchProbes(probes, count, i, digestedKeys[i], storeSize);
+			if (prevSize != 0)
+				count = addBatchProbes(probes, count, i, digestedKeys[i], prevSize);
+		}
+		Arrays.sort(probes, 0, count);
+
+		ByteBuffer buf = ByteBuffer.allocate(BATCH_MAX_SLOTS * Entry.METADATA_LENGTH);
+		int start = 0;
+		while (start < count) {
+			long first = probes[start] >>> 32;
+			long last = first;
+			int end = start + 1;
+			while (end < count) {
+				long offset = probes[end] >>> 32;
+				if (offset - last > BATCH_MAX_GAP || offset - first >= BATCH_MAX_SLOTS)
+					break;
+				last = offset;
+				end++;
+			}
+			buf.clear();
+			buf.limit((int) (last - first + 1) * Entry.METADATA_LENGTH);
+			int read = readMetadata(buf, first * Entry.METADATA_LENGTH);
+			batchReads.incrementAndGet();
+			for (int j = start; j < end; j++) {
+				int key = (int) probes[j];
+				if (candidates[key])
+					continue;
+				int pos = (int) ((probes[j] >>> 32) - first) * Entry.METADATA_LENGTH;
+				if (pos + Entry.METADATA_LENGTH > read)
+					continue; // Past the end of the file, may occur on store shrinking.
+				if ((buf.getLong(pos + 0x30) & Entry.ENTRY_FLAG_OCCUPIED) == 0)
+					continue;
+				boolean match = true;
+				for (int k = 0; k < 0x20 && match; k++)
+					match = buf.get(pos + k) == digestedKeys[key][k];
+				candidates[key] = match;
+			}
+			start = end;
+		}
+		return candidates;
+	}
+
+	private int addBatchProbes(long[] probes, int count, int key, byte[] digestedKey, long probeStoreSize) {
+		long[] offsets = getOffsetFromDigestedKey(digestedKey, probeStoreSize);
+		for (long offset : offsets) {
+			if (storeFileOffsetReady != -1 && offset >= storeFileOffsetReady)
+				continue;
+			if (USE_SLOT_FILTER && !slotFilterDisabled) {
+				int cache = slotFilter.get((int) offset);
+				if ((cache & SLOT_CHECKED) != 0 && !slotCacheLikelyMatch(cache, digestedKey))
+					continue;
+			}
+			probes[count++] = (offset << 32) | key;
+		}
+		return count;
+	}
+
+	/**
+	 * Read buf.remaining() bytes of metadata starting at the given position, or up to the end
+	 * of the file if that comes first.
+	 * @return The number of bytes read.
+	 */
+	private int readMetadata(ByteBuffer buf, long position) throws IOException {
+		int start = buf.position();
+		MappedStoreFile map = metaMap;
+		if (map != null && map.read(buf, position))
+			return buf.position() - start;
+		while (buf.hasRemaining()) {
+			if (metaFC.read(buf, position + buf.position() - start) == -1)
+				break;
+		}
+		return buf.position() - start;
+	}
+
+	/** @return The number of reads done by batch fetches. */
+	long getBatchReads() {
+		return batchReads.get();
 	}
 
 	/**
@@ -571,6 +724,11 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private RandomAccessFile hdRAF;
 	private FileChannel hdFC;
 	private final int hdPadding;
+	/** Memory-mapped view of the metadata file, or null to use metaFC. */
+	private volatile MappedStoreFile metaMap;
+	/** Serializes changes to metaMap with changes to the metadata file size, so the mapping
+	 * never extends past the end of the file. */
+	private final Object metaMapLock = new Object();
 
 	/**
 	 * Data entry
@@ -869,13 +1027,16 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 		ByteBuffer mbf = ByteBuffer.allocate(Entry.METADATA_LENGTH);
 
-		do {
-			int status = metaFC.read(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
-			if (status == -1) {
-				Logger.error(this, "Failed to access offset "+offset, new Exception("error"));
-				throw new EOFException();
-			}
-		} while (mbf.hasRemaining());
+		MappedStoreFile map = metaMap;
+		if (map == null || !map.read(mbf, Entry.METADATA_LENGTH * offset)) {
+			do {
+				int status = metaFC.read(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
+				if (status == -1) {
+					Logger.error(this, "Failed to access offset "+offset, new Exception("error"));
+					throw new EOFException();
+				}
+			} while (mbf.hasRemaining());
+		}
 		mbf.flip();
 
 		Entry entry = new Entry(mbf, null);
@@ -1003,11 +1164,14 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		cipherManager.encrypt(entry, random);
 
 		ByteBuffer bf = entry.toMetaDataBuffer();
-		do {
-			int status = metaFC.write(bf, Entry.METADATA_LENGTH * offset + bf.position());
-			if (status == -1)
-				throw new EOFException();
-		} while (bf.hasRemaining());
+		MappedStoreFile map = metaMap;
+		if (map == null || !map.write(bf, Entry.METADATA_LENGTH * offset)) {
+			do {
+				int status = metaFC.write(bf, Entry.METADATA_LENGTH * offset + bf.position());
+				if (status == -1)
+					throw new EOFException();
+			} while (bf.hasRemaining());
+		}
 
 		bf = entry.toHDBuffer();
 		if (bf != null) {
@@ -1024,6 +1188,14 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 	private void flushAndClose(boolean abort) {
 		Logger.normal(this, "Flush and closing this store: " + name);
+		synchronized(metaMapLock) {
+			MappedStoreFile map = metaMap;
+			if(map != null) {
+				map.force();
+				map.unmap();
+				metaMap = null;
+			}
+		}
 		try {
 			metaFC.force(true);
 			metaFC.close();
@@ -1052,6 +1224,48 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		this.preallocate = preallocate;
 	}
 
+	/**
+	 * Access the metadata file through a memory mapping rather than a system call per slot.
+	 * Worthwhile if the metadata file fits in RAM; the header and data are always read through
+	 * the file channel. Not supported on Windows, where a mapped file cannot be resized.
+	 * @return True if the metadata file is now mapped.
+	 */
+	public boolean setMmapMetadata(boolean mmap) {
+		synchronized(metaMapLock) {
+			if(!mmap) {
+				MappedStoreFile map = metaMap;
+				if(map != null) {
+					metaMap = null;
+					map.force();
+					map.unmap();
+				}
+				return false;
+			}
+			if(metaMap != null) return true;
+			if(FileUtil.detectedOS == FileUtil.OperatingSystem.Windows) {
+				Logger.normal(this, "Not memory mapping metadata for "+name+" on Windows");
+				return false;
+			}
+			if(shutdown) return false;
+			MappedStoreFile map = new MappedStoreFile(metaFC);
+			try {
+				map.map(metaRAF.length());
+			} catch (IOException e) {
+				Logger.error(this, "Unable to memory map metadata for "+name+": "+e, e);
+				System.err.println("Unable to memory map metadata for datastore "+name+": "+e);
+				return false;
+			}
+			metaMap = map;
+			Logger.normal(this, "Memory mapped "+map.getMappedLength()+" bytes of metadata for "+name);
+			return true;
+		}
+	}
+
+	/** @return True if the metadata file is memory mapped. */
+	public boolean isMmapMetadata() {
+		return metaMap != null;
+	}
+
 	/**
 	 * Change on disk store file size
 	 *
@@ -1075,7 +1289,15 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			}
 			storeFileOffsetReady = 1 + storeMaxEntries;
 
-			metaRAF.setLength(newMetaLen);
+			synchronized(metaMapLock) {
+				MappedStoreFile map = metaMap;
+				// The mapping must not extend past the end of the file.
+				if(map != null && newMetaLen < map.getMappedLength())
+					map.map(newMetaLen);
+				metaRAF.setLength(newMetaLen);
+				if(map != null && newMetaLen > map.getMappedLength())
+					map.map(newMetaLen);
+			}
 			hdRAF.setLength(newHdLen);
 		} catch (IOException e) {
 			Logger.error(this, "error resizing store file", e);
@@ -1650,10 +1872,13 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				ByteBuffer buf = ByteBuffer.allocate((int) bufLen);
 				boolean dirty = false;
 				try {
-					while (buf.hasRemaining()) {
-						int status = metaFC.read(buf, startFileOffset + buf.position());
-						if (status == -1)
-							break;
+					MappedStoreFile map = metaMap;
+					if (map == null || !map.read(buf, startFileOffset)) {
+						while (buf.hasRemaining()) {
+							int status = metaFC.read(buf, startFileOffset + buf.position());
+							if (status == -1)
+								break;
+						}
 					}
 				} catch (IOException ioe) {
 					if (shutdown)
@@ -1719,8 +1944,11 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 						buf.flip();
 
 						try {
-							while (buf.hasRemaining()) {
-								metaFC.write(buf, startFileOffset + buf.position());
+							MappedStoreFile map = metaMap;
+							if (map == null || !map.write(buf, startFileOffset)) {
+								while (buf.hasRemaining()) {
+									metaFC.write(buf, startFileOffset + buf.position());
+								}
 							}
 						} catch (IOException ioe) {
 							Logger.error(this, "unexpected IOException", ioe);
@@ -2012,6 +2240,15 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		return getOffsetFromDigestedKey(cipherManager.getDigestedKey(plainKey), storeSize);
 	}
 
+	/**
+	 * Get the first slot a key would be written to. Callers writing many blocks at once can sort
+	 * them by this so the writes are closer to sequential. Doesn't take the lock, so may be out of
+	 * date during a resize, which doesn't matter for this.
+	 */
+	public long getFirstSlot(byte[] routingKey) {
+		return getOffsetFromPlainKey(routingKey, storeSize)[0];
+	}
+
 	public void close() {
 		close(false);
 	}
@@ -2077,6 +2314,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private AtomicLong writes = new AtomicLong();
 	private AtomicLong keyCount = new AtomicLong();
 	private AtomicLong bloomFalsePos = new AtomicLong();
+	private AtomicLong batchReads = new AtomicLong();
 	
 	private long initialHits;
 	private long initialMisses;
@@ -3,15 +3,10 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.support;
 
-import freenet.support.io.Closer;
-
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.channels.FileChannel.MapMode;
 
 /**
  * @author sdiz
@@ -24,7 +19,11 @@ public class BinaryBloomFilter extends BloomFilter {
 	 *            length in bits
 	 */
 	protected BinaryBloomFilter(int length, int k) {
-		super(length, k);
+		this(length, k, HashFunction.MERSENNE_TWISTER);
+	}
+
+	protected BinaryBloomFilter(int length, int k, HashFunction hashFunction) {
+		super(length, k, hashFunction);
 		filter = ByteBuffer.allocate(this.length / 8);
 	}
 
@@ -38,24 +37,20 @@ public class BinaryBloomFilter extends BloomFilter {
 	 * @throws IOException
 	 */
 	protected BinaryBloomFilter(File file, int length, int k) throws IOException {
-		super(length, k);
-		if (!file.exists() || file.length() != length / 8)
-			needRebuild = true;
+		this(file, length, k, HashFunction.MERSENNE_TWISTER);
+	}
 
-		RandomAccessFile raf = new RandomAccessFile(file, "rw");
-		FileChannel channel = null;
-		try {
-			raf.setLength(length / 8);
-			channel = raf.getChannel();
-			filter = channel.map(MapMode.READ_WRITE, 0, length / 8).load();
-		} finally {
-			Closer.close(raf);
-			Closer.close(channel);
-		}
+	protected BinaryBloomFilter(File file, int length, int k, HashFunction hashFunction) throws IOException {
+		super(length, k, hashFunction);
+		filter = mapFile(file, length / 8);
 	}
 
 	public BinaryBloomFilter(ByteBuffer slice, int length, int k) {
-		super(length, k);
+		this(slice, length, k, HashFunction.MERSENNE_TWISTER);
+	}
+
+	public BinaryBloomFilter(ByteBuffer slice, int length, int k, HashFunction hashFunction) {
+		super(length, k, hashFunction);
 		filter = slice;
 	}
 
@@ -87,9 +82,9 @@ public class BinaryBloomFilter extends BloomFilter {
 		try {
 			File tempFile = File.createTempFile("bloom-", ".tmp");
 			tempFile.deleteOnExit();
-			forkedFilter = new BinaryBloomFilter(tempFile, length, k);
+			forkedFilter = new BinaryBloomFilter(tempFile, length, k, hashFunction);
 		} catch (IOException e) {
-			forkedFilter = new BinaryBloomFilter(length, k);
+			forkedFilter = new BinaryBloomFilter(length, k, hashFunction);
 		} finally {
 			lock.writeLock().unlock();
 		}
@@ -3,8 +3,10 @@ package freenet.support;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
 import java.util.Random;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
@@ -13,11 +15,32 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 import freenet.support.math.MersenneTwister;
 
 public abstract class BloomFilter {
+	/** How the k bit positions for a key are derived from the key. Filters written to disk must
+	 * be read back with the same hash function. */
+	public enum HashFunction {
+		/** Draw k ints from a MersenneTwister seeded with the key. This allocates and
+		 * initialises a 2.5KB generator on every add, check and remove. The original format. */
+		MERSENNE_TWISTER(0),
+		/** Kirsch-Mitzenmacher double hashing: bit i is h1 + i * h2 modulo the length, with h1
+		 * and h2 taken from the first 16 bytes of the key. No allocation, but the key must
+		 * already be a cryptographic hash, e.g. a salted routing key. */
+		DOUBLE_HASHING(1);
+
+		/** Recorded after the bits of a file-backed filter. 0 means no trailer at all, as
+		 * MERSENNE_TWISTER filters have always been written. Never change these. */
+		final byte fileFormat;
+
+		private HashFunction(int fileFormat) {
+			this.fileFormat = (byte) fileFormat;
+		}
+	}
+
 	protected ByteBuffer filter;
 
 	/** Number of hash functions */
 	protected final int k;
 	protected final int length;
+	protected final HashFunction hashFunction;
 
 	protected transient ReadWriteLock lock = new ReentrantReadWriteLock();
 	
@@ -26,24 +49,39 @@ public abstract class BloomFilter {
 	}
 
 	public static BloomFilter createFilter(int length, int k, boolean counting) {
+		return createFilter(length, k, counting, HashFunction.MERSENNE_TWISTER);
+	}
+	
+	public static BloomFilter createFilter(int length, int k, boolean counting, HashFunction hashFunction) {
 		if (length == 0)
 			return new NullBloomFilter(length, k);
 		if (counting)
-			return new CountingBloomFilter(length, k);
+			return new CountingBloomFilter(length, k, hashFunction);
 		else
-			return new BinaryBloomFilter(length, k);
+			return new BinaryBloomFilter(length, k, hashFunction);
 	}
 	
 	public static BloomFilter createFilter(File file, int length, int k, boolean counting) throws IOException {
+		return createFilter(file, length, k, counting, HashFunction.MERSENNE_TWISTER);
+	}
+	
+	/** Create a filter backed by a memory mapped file. If the file was written with a different
+	 * length or hash function, e.g. MERSENNE_TWISTER before a caller switched to DOUBLE_HASHING,
+	 * it is cleared and needRebuild() returns true, so the caller must add all its keys again. */
+	public static BloomFilter createFilter(File file, int length, int k, boolean counting, HashFunction hashFunction) throws IOException {
 		if (length == 0)
 			return new NullBloomFilter(length, k);
 		if (counting)
-			return new CountingBloomFilter(file, length, k);
+			return new CountingBloomFilter(file, length, k, hashFunction);
 		else
-			return new BinaryBloomFilter(file, length, k);
+			return new BinaryBloomFilter(file, length, k, hashFunction);
 	}
 	
 	protected BloomFilter(int length, int k) {
+		this(length, k, HashFunction.MERSENNE_TWISTER);
+	}
+	
+	protected BloomFilter(int length, int k, HashFunction hashFunction) {
 		if (length < 0) {
 			throw new IllegalArgumentException("Filter must have postitive or zero length");
 		}
@@ -63,15 +101,18 @@ public abstract class BloomFilter {
 
 		this.length = length;
 		this.k = k;
+		this.hashFunction = hashFunction;
 	}
 
 	//-- Core
 	public void addKey(byte[] key) {
-		Random hashes = getHashes(key);
+		Random hashes = hashFunction == HashFunction.MERSENNE_TWISTER ? getHashes(key) : null;
+		long h1 = hashes == null ? hash1(key) : 0;
+		long h2 = hashes == null ? hash2(key) : 0;
 		lock.writeLock().lock();
 		try {
 			for (int i = 0; i < k; i++)
-				setBit(hashes.nextInt(length));
+				setBit(hashes != null ? hashes.nextInt(length) : doubleHash(h1, h2, i));
 		} finally {
 			lock.writeLock().unlock();
 		}
@@ -87,11 +128,13 @@ public abstract class BloomFilter {
 	}
 
 	public boolean checkFilter(byte[] key) {
-		Random hashes = getHashes(key);
+		Random hashes = hashFunction == HashFunction.MERSENNE_TWISTER ? getHashes(key) : null;
+		long h1 = hashes == null ? hash1(key) : 0;
+		long h2 = hashes == null ? hash2(key) : 0;
 		lock.readLock().lock();
 		try {
 			for (int i = 0; i < k; i++)
-				if (!getBit(hashes.nextInt(length)))
+				if (!getBit(hashes != null ? hashes.nextInt(length) : doubleHash(h1, h2, i)))
 					return false;
 		} finally {
 			lock.readLock().unlock();
@@ -100,11 +143,13 @@ public abstract class BloomFilter {
 	}
 
 	public void removeKey(byte[] key) {
-		Random hashes = getHashes(key);
+		Random hashes = hashFunction == HashFunction.MERSENNE_TWISTER ? getHashes(key) : null;
+		long h1 = hashes == null ? hash1(key) : 0;
+		long h2 = hashes == null ? hash2(key) : 0;
 		lock.writeLock().lock();
 		try {
 			for (int i = 0; i < k; i++)
-				unsetBit(hashes.nextInt(length));
+				unsetBit(hashes != null ? hashes.nextInt(length) : doubleHash(h1, h2, i));
 		} finally {
 			lock.writeLock().unlock();
 		}
@@ -131,6 +176,23 @@ public abstract class BloomFilter {
 		return new MersenneTwister(key);
 	}
 
+	/** First hash for DOUBLE_HASHING, already reduced modulo the length. */
+	private long hash1(byte[] key) {
+		if (key.length < 16)
+			throw new IllegalArgumentException("Key too short for double hashing: " + key.length);
+		return (Fields.bytesToLong(key, 0) & Long.MAX_VALUE) % length;
+	}
+
+	/** Second hash for DOUBLE_HASHING, reduced modulo the length and never 0. */
+	private long hash2(byte[] key) {
+		long h2 = (Fields.bytesToLong(key, 8) & Long.MAX_VALUE) % length;
+		return h2 == 0 ? 1 : h2;
+	}
+
+	private int doubleHash(long h1, long h2, int i) {
+		return (int) ((h1 + i * h2) % length);
+	}
+
 	//-- Fork & Merge
 	protected BloomFilter forkedFilter;
 
@@ -202,10 +264,51 @@ public abstract class BloomFilter {
 		return (int) k;
 	}
 
+	/**
+	 * Map the bits of a file-backed filter. The file is the bits followed, unless the hash
+	 * function is MERSENNE_TWISTER, by one byte giving the hash function. If the file doesn't
+	 * match, it is cleared and needRebuild is set.
+	 * @param bytes The size of the filter itself.
+	 */
+	protected ByteBuffer mapFile(File file, int bytes) throws IOException {
+		boolean trailer = hashFunction.fileFormat != 0;
+		int fileLength = trailer ? bytes + 1 : bytes;
+		boolean existed = file.exists();
+		if (!existed || file.length() != fileLength)
+			needRebuild = true;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (!needRebuild && trailer) {
+				raf.seek(bytes);
+				if (raf.readByte() != hashFunction.fileFormat)
+					needRebuild = true;
+			}
+			raf.setLength(fileLength);
+			if (trailer) {
+				raf.seek(bytes);
+				raf.writeByte(hashFunction.fileFormat);
+			}
+			MappedByteBuffer buf = raf.getChannel().map(MapMode.READ_WRITE, 0, bytes);
+			if (needRebuild && existed) {
+				// Bits set by another length or hash function are meaningless here.
+				for (int i = 0; i < bytes; i++)
+					buf.put(i, (byte) 0);
+			}
+			return buf.load();
+		} finally {
+			raf.close();
+		}
+	}
+
 	public int getK() {
 		return k;
 	}
 
+	public HashFunction getHashFunction() {
+		return hashFunction;
+	}
+
 	protected boolean needRebuild;
 
 	public boolean needRebuild() {
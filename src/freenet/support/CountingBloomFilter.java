@@ -3,14 +3,9 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.support;
 
-import freenet.support.io.Closer;
-
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.channels.FileChannel.MapMode;
 
 /**
  * @author sdiz
@@ -30,7 +25,11 @@ public class CountingBloomFilter extends BloomFilter {
 	 *            length in bits
 	 */
 	public CountingBloomFilter(int length, int k) {
-		super(length, k);
+		this(length, k, HashFunction.MERSENNE_TWISTER);
+	}
+
+	public CountingBloomFilter(int length, int k, HashFunction hashFunction) {
+		super(length, k, hashFunction);
 		filter = ByteBuffer.allocate(this.length / 4);
 	}
 
@@ -44,25 +43,20 @@ public class CountingBloomFilter extends BloomFilter {
 	 * @throws IOException
 	 */
 	protected CountingBloomFilter(File file, int length, int k) throws IOException {
-		super(length, k);
-		int fileLength = length / 4;
-		if (!file.exists() || file.length() != fileLength)
-			needRebuild = true;
+		this(file, length, k, HashFunction.MERSENNE_TWISTER);
+	}
 
-		RandomAccessFile raf = new RandomAccessFile(file, "rw");
-		FileChannel channel = null;
-		try {
-			raf.setLength(fileLength);
-			channel = raf.getChannel();
-			filter = channel.map(MapMode.READ_WRITE, 0, fileLength).load();
-		} finally {
-			Closer.close(raf);
-			Closer.close(channel);
-		}
+	protected CountingBloomFilter(File file, int length, int k, HashFunction hashFunction) throws IOException {
+		super(length, k, hashFunction);
+		filter = mapFile(file, length / 4);
 	}
 
 	public CountingBloomFilter(int length, int k, byte[] buffer) {
-		super(length, k);
+		this(length, k, buffer, HashFunction.MERSENNE_TWISTER);
+	}
+
+	public CountingBloomFilter(int length, int k, byte[] buffer, HashFunction hashFunction) {
+		super(length, k, hashFunction);
 		assert(buffer.length == length / 4);
 		filter = ByteBuffer.wrap(buffer);
 	}
@@ -112,9 +106,9 @@ public class CountingBloomFilter extends BloomFilter {
 		try {
 			File tempFile = File.createTempFile("bloom-", ".tmp");
 			tempFile.deleteOnExit();
-			forkedFilter = new CountingBloomFilter(tempFile, length, k);
+			forkedFilter = new CountingBloomFilter(tempFile, length, k, hashFunction);
 		} catch (IOException e) {
-			forkedFilter = new CountingBloomFilter(length, k);
+			forkedFilter = new CountingBloomFilter(length, k, hashFunction);
 		} finally {
 			lock.writeLock().unlock();
 		}
@@ -0,0 +1,195 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+ * Binary heap of items keyed by the time at which they next need attention. Each item is in
+ * the queue at most once (by identity), and its deadline can be moved in O(log n). Not
+ * thread-safe: callers must synchronize.
+ */
+public class DeadlineQueue<T> {
+
+	private static class Slot<T> {
+		final T item;
+		long time;
+		int index;
+
+		Slot(T item, long time) {
+			this.item = item;
+			this.time = time;
+		}
+	}
+
+	private Slot<T>[] heap;
+	private int size;
+	private final IdentityHashMap<T, Slot<T>> slots;
+
+	public DeadlineQueue() {
+		heap = newHeap(16);
+		slots = new IdentityHashMap<T, Slot<T>>();
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static <T> Slot<T>[] newHeap(int length) {
+		return new Slot[length];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean contains(T item) {
+		return slots.containsKey(item);
+	}
+
+	/** @return The deadline of the item, or Long.MAX_VALUE if it is not queued. */
+	public long getTime(T item) {
+		Slot<T> s = slots.get(item);
+		return s == null ? Long.MAX_VALUE : s.time;
+	}
+
+	/** @return The earliest deadline in the queue, or Long.MAX_VALUE if it is empty. */
+	public long peekTime() {
+		return size == 0 ? Long.MAX_VALUE : heap[0].time;
+	}
+
+	/** Add the item, or change its deadline if it is already queued. */
+	public void schedule(T item, long time) {
+		if(item == null) throw new NullPointerException();
+		Slot<T> s = slots.get(item);
+		if(s == null) {
+			add(item, time);
+		} else if(time < s.time) {
+			s.time = time;
+			siftUp(s.index);
+		} else if(time > s.time) {
+			s.time = time;
+			siftDown(s.index);
+		}
+	}
+
+	/** Add the item, or bring its deadline forward if it is already queued and the new
+	 * deadline is earlier.
+	 * @return True if the item was added or its deadline changed. */
+	public boolean scheduleBefore(T item, long time) {
+		if(item == null) throw new NullPointerException();
+		Slot<T> s = slots.get(item);
+		if(s == null) {
+			add(item, time);
+			return true;
+		}
+		if(time >= s.time) return false;
+		s.time = time;
+		siftUp(s.index);
+		return true;
+	}
+
+	/** Remove and return the item with the earliest deadline, if that deadline is no later
+	 * than now. Ties are returned in no particular order.
+	 * @return The item, or null if nothing is due. */
+	public T pollDue(long now) {
+		if(size == 0 || heap[0].time > now) return null;
+		Slot<T> s = heap[0];
+		removeAt(0);
+		return s.item;
+	}
+
+	public boolean remove(T item) {
+		Slot<T> s = slots.get(item);
+		if(s == null) return false;
+		removeAt(s.index);
+		return true;
+	}
+
+	/** Make the queue contain exactly the given items. Items that are already queued keep
+	 * their deadline, new items are scheduled at the given time.
+	 * @return The number of items added or removed. */
+	public int setItems(T[] items, long time) {
+		int changed = 0;
+		IdentityHashSet<T> keep = new IdentityHashSet<T>();
+		for(T item : items) {
+			keep.add(item);
+			if(!slots.containsKey(item)) {
+				add(item, time);
+				changed++;
+			}
+		}
+		if(size == keep.size()) return changed;
+		ArrayList<Slot<T>> remove = new ArrayList<Slot<T>>();
+		for(int i = 0; i < size; i++) {
+			if(!keep.contains(heap[i].item))
+				remove.add(heap[i]);
+		}
+		for(Slot<T> s : remove)
+			removeAt(s.index);
+		return changed + remove.size();
+	}
+
+	private void add(T item, long time) {
+		Slot<T> s = new Slot<T>(item, time);
+		if(size == heap.length) {
+			Slot<T>[] newHeap = newHeap(heap.length * 2);
+			System.arraycopy(heap, 0, newHeap, 0, size);
+			heap = newHeap;
+		}
+		s.index = size;
+		heap[size++] = s;
+		slots.put(item, s);
+		siftUp(s.index);
+	}
+
+	private void removeAt(int index) {
+		Slot<T> s = heap[index];
+		slots.remove(s.item);
+		size--;
+		if(index != size) {
+			Slot<T> last = heap[size];
+			heap[size] = null;
+			last.index = index;
+			heap[index] = last;
+			if(index > 0 && heap[(index - 1) >>> 1].time > last.time)
+				siftUp(index);
+			else
+				siftDown(index);
+		} else {
+			heap[size] = null;
+		}
+	}
+
+	private void siftUp(int index) {
+		Slot<T> s = heap[index];
+		while(index > 0) {
+			int parent = (index - 1) >>> 1;
+			Slot<T> p = heap[parent];
+			if(p.time <= s.time) break;
+			p.index = index;
+			heap[index] = p;
+			index = parent;
+		}
+		s.index = index;
+		heap[index] = s;
+	}
+
+	private void siftDown(int index) {
+		Slot<T> s = heap[index];
+		int half = size >>> 1;
+		while(index < half) {
+			int child = 2 * index + 1;
+			int right = child + 1;
+			if(right < size && heap[right].time < heap[child].time)
+				child = right;
+			Slot<T> c = heap[child];
+			if(s.time <= c.time) break;
+			c.index = index;
+			heap[index] = c;
+			index = child;
+		}
+		s.index = index;
+		heap[index] = s;
+	}
+
+}
@@ -0,0 +1,224 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel: schedules a large number of items to expire at roughly known
+ * times, with constant cost to schedule, reschedule and cancel, and cost proportional to the
+ * number of expired items (plus one slot per tick) to find out what has expired. Time is
+ * divided into ticks; an item never expires before its deadline, but may expire up to one tick
+ * after it, depending on how often advance() is called.
+ *
+ * Each level has 2^slotBits slots. Level 0 covers the next 2^slotBits ticks, one tick per slot;
+ * each slot of level n covers 2^(slotBits*n) ticks, and its items are moved down to a lower
+ * level when the time comes. Deadlines further ahead than the highest level covers are
+ * rescheduled when they reach the top.
+ *
+ * LOCKING: Not thread-safe. The caller must synchronize.
+ * @param <T> The type of the items.
+ */
+public final class TimingWheel<T> {
+
+	/** A scheduled item. Keep it to cancel or reschedule the item. */
+	public static final class Timer<T> {
+		private final T item;
+		private long deadlineTick;
+		private Timer<T> prev;
+		private Timer<T> next;
+
+		private Timer(T item) {
+			this.item = item;
+		}
+
+		public T getItem() {
+			return item;
+		}
+
+		/** @return True if the item is waiting to expire, false if it has expired or been
+		 * cancelled. */
+		public boolean isScheduled() {
+			return prev != null;
+		}
+	}
+
+	private final long tickLength;
+	private final int slotBits;
+	private final int mask;
+	private final int levels;
+	/** Sentinels for the circular list in each slot, by level then slot. */
+	private final Timer<T>[][] slots;
+	/** The last tick we have expired. */
+	private long currentTick;
+	private int size;
+
+	/**
+	 * @param tickLength The length of a tick in milliseconds.
+	 * @param slotBits Log2 of the number of slots on each level.
+	 * @param levels The number of levels.
+	 * @param now The current time.
+	 */
+	public TimingWheel(long tickLength, int slotBits, int levels, long now) {
+		if(tickLength <= 0) throw new IllegalArgumentException();
+		if(slotBits <= 0 || levels <= 0 || slotBits * levels > 62) throw new IllegalArgumentException();
+		this.tickLength = tickLength;
+		this.slotBits = slotBits;
+		this.mask = (1 << slotBits) - 1;
+		this.levels = levels;
+		slots = newSlots(levels, 1 << slotBits);
+		for(Timer<T>[] level : slots) {
+			for(int i=0;i<level.length;i++) {
+				Timer<T> sentinel = new Timer<T>(null);
+				sentinel.prev = sentinel.next = sentinel;
+				level[i] = sentinel;
+			}
+		}
+		currentTick = now / tickLength;
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static <T> Timer<T>[][] newSlots(int levels, int slots) {
+		return new Timer[levels][slots];
+	}
+
+	/** Schedule an item.
+	 * @param deadline The time after which the item expires.
+	 * @return A Timer which can be used to cancel or reschedule the item. */
+	public Timer<T> schedule(T item, long deadline) {
+		Timer<T> timer = new Timer<T>(item);
+		reschedule(timer, deadline);
+		return timer;
+	}
+
+	/** Change the deadline for an item, scheduling it again if it has already expired or been
+	 * cancelled. */
+	public void reschedule(Timer<T> timer, long deadline) {
+		cancel(timer);
+		// Round up, so we never expire early.
+		timer.deadlineTick = deadline / tickLength + (deadline % tickLength > 0 ? 1 : 0);
+		// The current tick has already been expired.
+		insert(timer, currentTick + 1);
+		size++;
+	}
+
+	/** Stop an item from expiring.
+	 * @return True if it was scheduled. */
+	public boolean cancel(Timer<T> timer) {
+		if(timer.prev == null) return false;
+		unlink(timer);
+		size--;
+		return true;
+	}
+
+	/** Move the time forward and collect the items which have expired. Each item expires only
+	 * once, unless it is rescheduled.
+	 * @param now The current time.
+	 * @param expired Expired items are added to this list. */
+	public void advance(long now, List<T> expired) {
+		long targetTick = now / tickLength;
+		if(targetTick <= currentTick) return;
+		if(targetTick - currentTick > (1L << (slotBits * levels))) {
+			// Time has jumped further than the wheel covers, just sort out everything.
+			Timer<T> all = detachAll();
+			currentTick = targetTick;
+			while(all != null) {
+				Timer<T> timer = all;
+				all = all.next;
+				if(timer.deadlineTick <= currentTick) {
+					size--;
+					expired.add(timer.item);
+				} else {
+					insert(timer, currentTick + 1);
+				}
+			}
+			return;
+		}
+		while(currentTick < targetTick) {
+			currentTick++;
+			// Move items down from any higher level slots which start at this tick.
+			for(int level=1;level<levels;level++) {
+				if((currentTick & ((1L << (slotBits * level)) - 1)) != 0) break;
+				Timer<T> list = detach(slots[level][slotIndex(currentTick, level)]);
+				while(list != null) {
+					Timer<T> timer = list;
+					list = list.next;
+					insert(timer, currentTick);
+				}
+			}
+			Timer<T> list = detach(slots[0][(int) (currentTick & mask)]);
+			while(list != null) {
+				Timer<T> timer = list;
+				list = list.next;
+				size--;
+				expired.add(timer.item);
+			}
+		}
+	}
+
+	/** @return The number of items waiting to expire. */
+	public int size() {
+		return size;
+	}
+
+	private int slotIndex(long tick, int level) {
+		return (int) ((tick >>> (slotBits * level)) & mask);
+	}
+
+	/** Add a timer to the right slot for its deadline.
+	 * @param minTick The earliest tick which hasn't been expired yet. */
+	private void insert(Timer<T> timer, long minTick) {
+		long tick = Math.max(timer.deadlineTick, minTick);
+		long delta = tick - currentTick;
+		int level = 0;
+		while(level < levels - 1 && delta >= (1L << (slotBits * (level + 1))))
+			level++;
+		long range = 1L << (slotBits * levels);
+		if(delta >= range) {
+			// Too far ahead. Park it in the furthest slot, it will be moved down when that comes.
+			tick = currentTick + range - 1;
+		}
+		Timer<T> sentinel = slots[level][slotIndex(tick, level)];
+		timer.prev = sentinel.prev;
+		timer.next = sentinel;
+		sentinel.prev.next = timer;
+		sentinel.prev = timer;
+	}
+
+	private void unlink(Timer<T> timer) {
+		timer.prev.next = timer.next;
+		timer.next.prev = timer.prev;
+		timer.prev = timer.next = null;
+	}
+
+	/** Empty a slot.
+	 * @return The timers it contained, linked by next, or null. The timers are no longer
+	 * scheduled. */
+	private Timer<T> detach(Timer<T> sentinel) {
+		if(sentinel.next == sentinel) return null;
+		Timer<T> first = sentinel.next;
+		sentinel.prev.next = null;
+		sentinel.prev = sentinel.next = sentinel;
+		for(Timer<T> timer = first; timer != null; timer = timer.next)
+			timer.prev = null;
+		return first;
+	}
+
+	private Timer<T> detachAll() {
+		Timer<T> all = null;
+		for(Timer<T>[] level : slots) {
+			for(Timer<T> sentinel : level) {
+				Timer<T> list = detach(sentinel);
+				while(list != null) {
+					Timer<T> timer = list;
+					list = list.next;
+					timer.next = all;
+					all = timer;
+				}
+			}
+		}
+		return all;
+	}
+
+}
@@ -19,6 +19,7 @@ import freenet.support.io.NativeThread;
 public class RealCompressor {
     private final ExecutorService executorService;
     private ClientContext context;
+    private volatile boolean samplingPrePass;
 
     private static volatile boolean logMINOR;
     static {
@@ -80,6 +81,45 @@ public class RealCompressor {
         }
     }
 
+    /**
+     * Run part of a compression job on another compressor thread, if one is free. It may not run
+     * until long after the job has finished, or at all, so the job must not wait for it to start.
+     */
+    public void offerJob(final Runnable r, String name) {
+        try {
+            executorService.submit(new PrioRunnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        r.run();
+                    } catch (Throwable t) {
+                        Logger.error(this, "Caught " + t + " in " + this, t);
+                    }
+                }
+
+                @Override
+                public int getPriority() {
+                    return NativeThread.MIN_PRIORITY;
+                }
+
+            }, name);
+        } catch (RejectedExecutionException e) {
+            // Shutting down. The job will do it itself.
+        }
+    }
+
+    /** Whether to compress a sample of large files first, and not bother with codecs which
+     * can't compress the sample. Off by default, because it can pick a different codec, and so
+     * produce a different key, for the same file. */
+    public boolean isSamplingPrePass() {
+        return samplingPrePass;
+    }
+
+    public void setSamplingPrePass(boolean samplingPrePass) {
+        this.samplingPrePass = samplingPrePass;
+    }
+
     private static int getMaxRunningCompressionThreads() {
         int maxRunningThreads = 1;
 
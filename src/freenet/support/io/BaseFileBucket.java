@@ -7,6 +7,7 @@ import java.io.BufferedOutputStream;
 import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -14,6 +15,10 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.FileSystemException;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
@@ -28,7 +33,7 @@ import freenet.support.api.Bucket;
 import freenet.support.api.LockableRandomAccessBuffer;
 import freenet.support.api.RandomAccessBucket;
 
-public abstract class BaseFileBucket implements RandomAccessBucket {
+public abstract class BaseFileBucket implements RandomAccessBucket, FileChannelBucket {
     private static volatile boolean logMINOR;
     private static volatile boolean logDEBUG;
 
@@ -53,6 +58,9 @@ public abstract class BaseFileBucket implements RandomAccessBucket {
 
 	protected static String tempDir = null;
 
+	/** Size of the buffer used when writing from a channel. */
+	static final int TRANSFER_BUFFER = 64*1024;
+
 	/**
 	 * Constructor.
 	 * @param file
@@ -91,6 +99,10 @@ public abstract class BaseFileBucket implements RandomAccessBucket {
 
 	@Override
 	public OutputStream getOutputStreamUnbuffered() throws IOException {
+		return openFileOutputStream();
+	}
+
+	private FileBucketOutputStream openFileOutputStream() throws IOException {
 		synchronized (this) {
 			File file = getFile();
 			if(freed)
@@ -231,6 +243,28 @@ public abstract class BaseFileBucket implements RandomAccessBucket {
 			}
 		}
 		
+		/** Write straight from a channel to the file. FileChannel.transferFrom() only avoids
+		 * copying from another FileChannel, and reads anything else a few KB at a time, so we
+		 * read through a bigger direct buffer instead. */
+		void transferFrom(ReadableByteChannel source, long length) throws IOException {
+			FileChannel fc = getChannel();
+			ByteBuffer buf = ByteBuffer.allocateDirect((int) Math.min(length, TRANSFER_BUFFER));
+			long written = 0;
+			while(written < length) {
+				buf.clear();
+				if(length - written < buf.capacity())
+					buf.limit((int) (length - written));
+				if(source.read(buf) < 0)
+					throw new EOFException("Channel ended after "+written+" of "+length+" bytes");
+				buf.flip();
+				synchronized (BaseFileBucket.this) {
+					confirmWriteSynchronized();
+				}
+				while(buf.hasRemaining())
+					written += fc.write(buf);
+			}
+		}
+
 		@Override
 		public void close() throws IOException {
 			File file;
@@ -314,6 +348,38 @@ public abstract class BaseFileBucket implements RandomAccessBucket {
 	    return new BufferedInputStream(getInputStreamUnbuffered());
 	}
 
+	@Override
+	public Transfer openTransfer() throws IOException {
+		final InputStream is = getInputStreamUnbuffered();
+		final FileChannel fc = is instanceof FileInputStream ? ((FileInputStream) is).getChannel() : null;
+		return new Transfer() {
+
+			@Override
+			public long transferTo(long offset, long length, WritableByteChannel target) throws IOException {
+				// No file, so nothing to send, as with the stream.
+				if(fc == null) return 0;
+				return fc.transferTo(offset, length, target);
+			}
+
+			@Override
+			public void close() throws IOException {
+				is.close();
+			}
+
+		};
+	}
+
+	@Override
+	public boolean transferFrom(ReadableByteChannel source, long length) throws IOException {
+		FileBucketOutputStream os = openFileOutputStream();
+		try {
+			os.transferFrom(source, length);
+		} finally {
+			os.close();
+		}
+		return true;
+	}
+
 	/**
 	 * @return the name of the file.
 	 */
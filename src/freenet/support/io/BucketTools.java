@@ -304,9 +304,15 @@ public class BucketTools {
 	}
 
 	/** Copy the given quantity of data from the given bucket to the given OutputStream. 
+	 * If the stream is a FileTransferTarget and the bucket's data is in a plain file, the data 
+	 * goes straight from the file, see FileChannelBucket.
 	 * @throws IOException If there was an error reading from the bucket or writing to the stream. */
 	public static long copyTo(Bucket decodedData, OutputStream os, long truncateLength) throws IOException {
 		if(truncateLength == 0) return 0;
+		if(truncateLength > 0 && os instanceof FileTransferTarget && decodedData instanceof FileChannelBucket) {
+			if(((FileTransferTarget) os).transferFrom((FileChannelBucket) decodedData, truncateLength))
+				return truncateLength;
+		}
 		if(truncateLength < 0) truncateLength = Long.MAX_VALUE;
 		InputStream is = decodedData.getInputStreamUnbuffered();
 		try {
@@ -337,8 +343,13 @@ public class BucketTools {
 		}
 	}
 
-	/** Copy data from an InputStream into a Bucket. */
+	/** Copy data from an InputStream into a Bucket. If the stream is also a ReadableByteChannel
+	 * and the bucket is a plain file, the data goes straight to the file, see FileChannelBucket. */
 	public static void copyFrom(Bucket bucket, InputStream is, long truncateLength) throws IOException {
+		if(truncateLength >= 0 && is instanceof ReadableByteChannel && bucket instanceof FileChannelBucket) {
+			if(((FileChannelBucket) bucket).transferFrom((ReadableByteChannel) is, truncateLength))
+				return;
+		}
 		OutputStream os = bucket.getOutputStreamUnbuffered();
 		byte[] buf = new byte[BUFFER_SIZE];
 		if(truncateLength < 0) truncateLength = Long.MAX_VALUE;
@@ -11,6 +11,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.channels.ReadableByteChannel;
 
 import freenet.client.async.ClientContext;
 import freenet.crypt.MasterSecret;
@@ -21,7 +22,7 @@ import freenet.support.api.Bucket;
 import freenet.support.api.LockableRandomAccessBuffer;
 import freenet.support.api.RandomAccessBucket;
 
-public class DelayedFreeRandomAccessBucket implements Bucket, Serializable, RandomAccessBucket, DelayedFree {
+public class DelayedFreeRandomAccessBucket implements Bucket, Serializable, RandomAccessBucket, DelayedFree, FileChannelBucket {
 
     private static final long serialVersionUID = 1L;
     // Only set on construction and on onResume() on startup. So shouldn't need locking.
@@ -84,6 +85,24 @@ public class DelayedFreeRandomAccessBucket implements Bucket, Serializable, Rand
         return bucket.getInputStreamUnbuffered();
     }
 
+    @Override
+    public Transfer openTransfer() throws IOException {
+        synchronized(this) {
+            if(freed) throw new IOException("Already freed");
+        }
+        if(!(bucket instanceof FileChannelBucket)) return null;
+        return ((FileChannelBucket) bucket).openTransfer();
+    }
+
+    @Override
+    public boolean transferFrom(ReadableByteChannel source, long length) throws IOException {
+        synchronized(this) {
+            if(freed) throw new IOException("Already freed");
+        }
+        if(!(bucket instanceof FileChannelBucket)) return false;
+        return ((FileChannelBucket) bucket).transferFrom(source, length);
+    }
+
 	@Override
 	public String getName() {
 		return bucket.getName();
@@ -0,0 +1,53 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A bucket which may keep its data unencrypted in a file, so it can be sent to a socket with
+ * {@link java.nio.channels.FileChannel#transferTo(long, long, WritableByteChannel)}, and written
+ * from one through a direct buffer, rather than through byte arrays in the JVM. Wrappers implement
+ * it by asking the bucket they wrap, so whether it works depends on where the data is at the time,
+ * e.g. a TempBucket in RAM can't. Encrypted buckets don't implement it at all. See
+ * {@link BucketTools#copyTo(freenet.support.api.Bucket, java.io.OutputStream, long)} and
+ * {@link FileTransferTarget}.
+ */
+public interface FileChannelBucket {
+
+	/**
+	 * Open the data for copying to channels, a part at a time if the channel is non-blocking. The
+	 * file stays open until the Transfer is closed.
+	 * @return Null if the data isn't in a plain file, in which case the caller should use the
+	 * bucket's InputStream.
+	 */
+	Transfer openTransfer() throws IOException;
+
+	/** The data of a FileChannelBucket, open for copying to channels. */
+	interface Transfer extends Closeable {
+
+		/**
+		 * Copy part of the data to a channel. If the channel is non-blocking this may copy less
+		 * than was asked for, possibly nothing.
+		 * @param offset Where to start in the bucket.
+		 * @param length The most bytes to copy.
+		 * @return The number of bytes copied.
+		 */
+		long transferTo(long offset, long length, WritableByteChannel target) throws IOException;
+
+	}
+
+	/**
+	 * Replace the bucket's contents with data read from a channel, written straight to the file.
+	 * @param source A blocking channel to read from.
+	 * @param length The number of bytes to read. We throw if the channel ends before that.
+	 * @return False if the data would not be written to a plain file, in which case nothing has
+	 * been read and the caller should use the bucket's OutputStream.
+	 */
+	boolean transferFrom(ReadableByteChannel source, long length) throws IOException;
+
+}
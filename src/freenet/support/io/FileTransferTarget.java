@@ -0,0 +1,23 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.IOException;
+
+/**
+ * An OutputStream, usually over a socket, which can send data straight from the file behind a
+ * {@link FileChannelBucket}. Used by {@link BucketTools#copyTo(freenet.support.api.Bucket,
+ * java.io.OutputStream, long)}.
+ */
+public interface FileTransferTarget {
+
+	/**
+	 * Send the start of the bucket, after anything already written to the stream.
+	 * @param length The number of bytes to send. We throw if the bucket is shorter.
+	 * @return False if the bucket's data isn't in a plain file, in which case nothing has been
+	 * sent and the caller should copy it through the stream.
+	 */
+	boolean transferFrom(FileChannelBucket bucket, long length) throws IOException;
+
+}
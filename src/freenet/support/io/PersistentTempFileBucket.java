@@ -5,6 +5,7 @@ import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.channels.ReadableByteChannel;
 
 import freenet.client.async.ClientContext;
 import freenet.support.Logger;
@@ -53,6 +54,13 @@ public class PersistentTempFileBucket extends TempFileBucket implements Serializ
 	public OutputStream getOutputStream() throws IOException {
 	    return new BufferedOutputStream(getOutputStreamUnbuffered(), BUFFER_SIZE);
 	}
+
+	@Override
+	public boolean transferFrom(ReadableByteChannel source, long length) throws IOException {
+	    if(!tracker.checkDiskSpace(getFile(), (int) Math.min(length, Integer.MAX_VALUE), BUFFER_SIZE))
+	        throw new InsufficientDiskSpaceException();
+	    return super.transferFrom(source, length);
+	}
 	
 	/** Must override createShadow() so it creates a persistent bucket, which will have
 	 * deleteOnExit() = deleteOnFinalize() = false.
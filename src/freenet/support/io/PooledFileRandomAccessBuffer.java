@@ -6,6 +6,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.nio.channels.WritableByteChannel;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.Random;
@@ -169,6 +170,22 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
         }
     }
 
+    /** Copy part of the file to a channel with FileChannel.transferTo(). Positional, so it
+     * doesn't need to exclude pread() and pwrite().
+     * @return The number of bytes copied, which may be less than length if the channel is 
+     * non-blocking. */
+    public long transferTo(long fileOffset, long length, WritableByteChannel target) throws IOException {
+        if(fileOffset < 0) throw new IllegalArgumentException();
+        length = Math.min(length, this.length - fileOffset);
+        if(length <= 0) return 0;
+        RAFLock lock = lockOpen();
+        try {
+            return raf.getChannel().transferTo(fileOffset, length, target);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     public void pwrite(long fileOffset, byte[] buf, int bufOffset, int length) throws IOException {
         if(fileOffset < 0) throw new IllegalArgumentException();
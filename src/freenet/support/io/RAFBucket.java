@@ -6,14 +6,17 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 import freenet.client.async.ClientContext;
 import freenet.crypt.MasterSecret;
 import freenet.support.api.Bucket;
 import freenet.support.api.LockableRandomAccessBuffer;
+import freenet.support.api.LockableRandomAccessBuffer.RAFLock;
 import freenet.support.api.RandomAccessBucket;
 
-public class RAFBucket implements Bucket, RandomAccessBucket {
+public class RAFBucket implements Bucket, RandomAccessBucket, FileChannelBucket {
     
     private final LockableRandomAccessBuffer underlying;
     final long size;
@@ -43,6 +46,33 @@ public class RAFBucket implements Bucket, RandomAccessBucket {
         return new RAFInputStream(underlying, 0, underlying.size());
     }
 
+    @Override
+    public Transfer openTransfer() throws IOException {
+        if(!(underlying instanceof PooledFileRandomAccessBuffer)) return null;
+        final PooledFileRandomAccessBuffer raf = (PooledFileRandomAccessBuffer) underlying;
+        // Keep the file open, rather than going back to the pool for each part.
+        final RAFLock lock = raf.lockOpen();
+        return new Transfer() {
+
+            @Override
+            public long transferTo(long offset, long length, WritableByteChannel target) throws IOException {
+                return raf.transferTo(offset, length, target);
+            }
+
+            @Override
+            public void close() {
+                lock.unlock();
+            }
+
+        };
+    }
+
+    /** Read only, so the caller can try the OutputStream, and get the usual error. */
+    @Override
+    public boolean transferFrom(ReadableByteChannel source, long length) throws IOException {
+        return false;
+    }
+
     @Override
     public String getName() {
         return null;
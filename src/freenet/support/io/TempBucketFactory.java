@@ -12,6 +12,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.ref.WeakReference;
+import java.nio.channels.ReadableByteChannel;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.LinkedList;
@@ -98,7 +99,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	    
 	};
 	
-	public class TempBucket implements Bucket, Migratable, RandomAccessBucket {
+	public class TempBucket implements Bucket, Migratable, RandomAccessBucket, FileChannelBucket {
 		/** The underlying bucket itself */
 		private RandomAccessBucket currentBucket;
 		/** We have to account the size of the underlying bucket ourself in order to be able to access it fast */
@@ -422,6 +423,35 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 			}
 		}
 
+		@Override
+		public Transfer openTransfer() throws IOException {
+			RandomAccessBucket cur;
+			synchronized(this) {
+				if(hasBeenFreed) throw new IOException("Already freed");
+				if(!(currentBucket instanceof FileChannelBucket)) return null;
+				// Once on disk it stays there, so we don't need to hold the lock.
+				cur = currentBucket;
+			}
+			return ((FileChannelBucket) cur).openTransfer();
+		}
+
+		/** Only works if the bucket is already on disk, i.e. makeBucket() was told the size and
+		 * it was too big for RAM. Holds the lock while reading, like TempBucketOutputStream. */
+		@Override
+		public synchronized boolean transferFrom(ReadableByteChannel source, long length) throws IOException {
+			if(os != null)
+				throw new IOException("Only one OutputStream per bucket on "+this+" !");
+			if(hasBeenFreed) throw new IOException("Already freed");
+			if(!(currentBucket instanceof FileChannelBucket)) return false;
+			if(filenameGenerator.getDir().getUsableSpace() - (length - currentSize) < minDiskSpace)
+				throw new InsufficientDiskSpaceException();
+			hasWritten = true;
+			osIndex++;
+			if(!((FileChannelBucket) currentBucket).transferFrom(source, length)) return false;
+			currentSize = length;
+			return true;
+		}
+
 		@Override
 		public synchronized String getName() {
 			return currentBucket.getName();
@@ -3,6 +3,10 @@ package freenet.client;
 import java.util.Arrays;
 import java.util.Random;
 
+import com.onionnetworks.fec.PureCode;
+import com.onionnetworks.util.Buffer;
+
+import freenet.support.PooledExecutor;
 import freenet.support.TestProperty;
 
 import junit.framework.Assert;
@@ -107,6 +111,116 @@ public class OnionFECCodecTest extends TestCase {
         }
     }
     
+    public void testMatchesPureCode() {
+        Random r = new Random(21612106);
+        int[][] sizes = new int[][] { { 128, 128 }, { 2, 3 }, { 200, 55 }, { 100, 156 } };
+        for(int[] size : sizes) {
+            int k = size[0];
+            int n = size[0] + size[1];
+            assertTrue(OnionFECCodec.usesKernel(k, n));
+            setup(k, n - k, r);
+            PureCode pure = new PureCode(k, n);
+            Buffer[] data = new Buffer[k];
+            for(int i=0;i<k;i++)
+                data[i] = new Buffer(originalDataBlocks[i]);
+            byte[][] expected = setupCheckBlocks(n - k);
+            Buffer[] check = new Buffer[n - k];
+            int[] index = new int[n - k];
+            for(int i=0;i<check.length;i++) {
+                check[i] = new Buffer(expected[i]);
+                index[i] = k + i;
+            }
+            pure.encode(data, check, index);
+            assertEquals(expected, originalCheckBlocks);
+        }
+    }
+    
+    public void testHelperThreads() {
+        OnionFECCodec.setExecutor(new PooledExecutor());
+        OnionFECCodec.setMaxHelperThreads(3);
+        try {
+            Random r = new Random(21622106);
+            int iterations = TestProperty.EXTENSIVE ? 100 : 10;
+            for(int i=0;i<iterations;i++)
+                inner(128, 128, r);
+            inner(2, 3, r);
+        } finally {
+            OnionFECCodec.setMaxHelperThreads(0);
+            OnionFECCodec.setExecutor(null);
+        }
+    }
+    
+    public void testBenchmark() {
+        if(!TestProperty.BENCHMARK) return;
+        final int blockSize = 32768;
+        Random r = new Random(21632106);
+        byte[][] data = new byte[128][blockSize];
+        for(byte[] block : data) r.nextBytes(block);
+        byte[][] check = new byte[128][blockSize];
+        boolean[] dataPresent = new boolean[128];
+        boolean[] checkPresent = new boolean[128];
+        PureCode pure = new PureCode(128, 256);
+        Buffer[] dataBuffers = new Buffer[128];
+        Buffer[] checkBuffers = new Buffer[128];
+        int[] index = new int[128];
+        for(int i=0;i<128;i++) {
+            dataBuffers[i] = new Buffer(data[i]);
+            checkBuffers[i] = new Buffer(check[i]);
+            index[i] = 128 + i;
+        }
+        // Warm up.
+        for(int i=0;i<3;i++) {
+            pure.encode(dataBuffers, checkBuffers, index);
+            codec.encode(data, check, checkPresent, blockSize);
+        }
+        long start = System.currentTimeMillis();
+        for(int i=0;i<5;i++)
+            pure.encode(dataBuffers, checkBuffers, index);
+        long pureTime = (System.currentTimeMillis() - start) / 5;
+        start = System.currentTimeMillis();
+        for(int i=0;i<5;i++)
+            codec.encode(data, check, checkPresent, blockSize);
+        long kernelTime = (System.currentTimeMillis() - start) / 5;
+        System.out.println("Encoding a 128/128 segment: PureCode "+pureTime+"ms, kernel "+kernelTime+"ms");
+        // Decode from the check blocks alone, the worst case.
+        for(int i=0;i<128;i++) checkPresent[i] = true;
+        byte[][] decoded = new byte[128][blockSize];
+        start = System.currentTimeMillis();
+        for(int i=0;i<5;i++)
+            codec.decode(decoded, check, dataPresent, checkPresent, blockSize);
+        kernelTime = (System.currentTimeMillis() - start) / 5;
+        assertEquals(data, decoded);
+        start = System.currentTimeMillis();
+        for(int i=0;i<5;i++) {
+            Buffer[] buffers = new Buffer[128];
+            int[] blockNumbers = new int[128];
+            for(int j=0;j<128;j++) {
+                System.arraycopy(check[j], 0, decoded[j], 0, blockSize);
+                buffers[j] = new Buffer(decoded[j]);
+                blockNumbers[j] = 128 + j;
+            }
+            pure.decode(buffers, blockNumbers);
+        }
+        pureTime = (System.currentTimeMillis() - start) / 5;
+        assertEquals(data, decoded);
+        System.out.println("Decoding a 128/128 segment from check blocks: PureCode "+pureTime+"ms, kernel "+kernelTime+"ms");
+        int threads = Runtime.getRuntime().availableProcessors();
+        if(threads > 1) {
+            OnionFECCodec.setExecutor(new PooledExecutor());
+            OnionFECCodec.setMaxHelperThreads(threads - 1);
+            try {
+                start = System.currentTimeMillis();
+                for(int i=0;i<5;i++)
+                    codec.decode(decoded, check, dataPresent, checkPresent, blockSize);
+                kernelTime = (System.currentTimeMillis() - start) / 5;
+                System.out.println("Decoding with "+(threads-1)+" helper threads: "+kernelTime+"ms");
+            } finally {
+                OnionFECCodec.setMaxHelperThreads(0);
+                OnionFECCodec.setExecutor(null);
+            }
+        }
+    }
+    
     protected void inner(int data, int check, Random r) {
         setup(data, check, r);
         // Now delete a random selection of blocks
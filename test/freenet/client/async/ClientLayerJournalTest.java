@@ -0,0 +1,171 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import freenet.clients.fcp.RequestIdentifier;
+import freenet.crypt.CRCChecksumChecker;
+import freenet.crypt.ChecksumChecker;
+import freenet.support.io.FileUtil;
+
+public class ClientLayerJournalTest extends TestCase {
+
+	private final ChecksumChecker checker = new CRCChecksumChecker();
+	private File tempDir;
+
+	@Override
+	protected void setUp() {
+		tempDir = new File("tmp-clientlayerjournaltest");
+		tempDir.mkdir();
+	}
+
+	@Override
+	protected void tearDown() {
+		FileUtil.removeAll(tempDir);
+	}
+
+	/** A global queue download, as written by RequestIdentifier.writeTo(). */
+	private static RequestIdentifier id(String identifier) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(0x25ebd38d);
+		dos.writeShort(1);
+		dos.writeBoolean(true);
+		dos.writeUTF(identifier);
+		dos.writeShort(0);
+		return new RequestIdentifier(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+	}
+
+	private static byte[] hash(int value) {
+		byte[] hash = new byte[32];
+		Arrays.fill(hash, (byte) value);
+		return hash;
+	}
+
+	public void testList() throws IOException {
+		assertEquals(0, ClientLayerJournal.list(tempDir, "client.dat", false).length);
+		for(long sequence : new long[] { 12, 3, 100 })
+			ClientLayerJournal.makeFilename(tempDir, "client.dat", sequence, false).createNewFile();
+		ClientLayerJournal.makeFilename(tempDir, "client.dat", 7, true).createNewFile();
+		new File(tempDir, "client.dat").createNewFile();
+		new File(tempDir, "client.dat.journal.5.tmp").createNewFile();
+		new File(tempDir, "client.dat.journal.6.crypt.tmp").createNewFile();
+		new File(tempDir, "client.dat.journal.bogus").createNewFile();
+		assertTrue(Arrays.equals(new long[] { 3, 12, 100 }, ClientLayerJournal.list(tempDir, "client.dat", false)));
+		assertTrue(Arrays.equals(new long[] { 7 }, ClientLayerJournal.list(tempDir, "client.dat", true)));
+		assertEquals("client.dat.journal.7.crypt", ClientLayerJournal.makeFilename(tempDir, "client.dat", 7, true).getName());
+	}
+
+	public void testChangedAndRemoved() throws IOException {
+		ClientLayerJournal journal = new ClientLayerJournal();
+		RequestIdentifier a = id("a");
+		RequestIdentifier b = id("b");
+		assertTrue(journal.changed(a, hash(1)));
+		Map<RequestIdentifier, byte[]> hashes = new HashMap<RequestIdentifier, byte[]>();
+		hashes.put(a, hash(1));
+		hashes.put(b, hash(2));
+		journal.onSnapshot(hashes, 1000, 5);
+		assertFalse(journal.changed(a, hash(1)));
+		assertTrue(journal.changed(a, hash(3)));
+		assertTrue(journal.changed(id("c"), hash(1)));
+		Set<RequestIdentifier> current = new HashSet<RequestIdentifier>();
+		current.add(a);
+		current.add(id("c"));
+		List<RequestIdentifier> removed = journal.removed(current);
+		assertEquals(1, removed.size());
+		assertEquals(b, removed.get(0));
+		assertEquals(1, journal.getSnapshots());
+		assertEquals(2, journal.getLastCheckpointRequests());
+		assertTrue(journal.wasLastCheckpointSnapshot());
+	}
+
+	public void testRecord() throws Exception {
+		RequestIdentifier a = id("a");
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(baos);
+		ClientLayerJournal.writeRequestIdentifier(oos, a, checker);
+		// Two length-prefixed, checksummed objects.
+		for(int i=0;i<2;i++) {
+			byte[] data = new byte[10 + i];
+			Arrays.fill(data, (byte) i);
+			oos.writeLong(data.length);
+			checker.writeAndChecksum(oos, data, 0, data.length);
+		}
+		oos.writeInt(42);
+		oos.close();
+		byte[] written = baos.toByteArray();
+
+		ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(written));
+		ClientLayerJournal.Record record = ClientLayerJournal.readRecord(ois, checker, written.length);
+		assertEquals(a, record.id);
+		assertEquals(42, ois.readInt());
+		ois.close();
+
+		// Copying the record gives the same stream.
+		baos = new ByteArrayOutputStream();
+		oos = new ObjectOutputStream(baos);
+		oos.write(record.data);
+		oos.writeInt(42);
+		oos.close();
+		ois = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()));
+		assertEquals(a, ClientLayerJournal.readRequestIdentifier(ois, checker));
+		ois.close();
+
+		// Too long.
+		ois = new ObjectInputStream(new ByteArrayInputStream(written));
+		try {
+			ClientLayerJournal.readRecord(ois, checker, 5);
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	public void testCompaction() {
+		ClientLayerJournal journal = new ClientLayerJournal();
+		Map<RequestIdentifier, byte[]> hashes = new HashMap<RequestIdentifier, byte[]>();
+		journal.onSnapshot(hashes, 10*ClientLayerJournal.MIN_COMPACT_BYTES, 5);
+		long sequence = journal.nextSequence();
+		journal.onJournal(sequence, hashes, ClientLayerJournal.MIN_COMPACT_BYTES, 1, 1, 2);
+		assertFalse(journal.shouldCompact());
+		for(int i=0;i<4;i++)
+			journal.onJournal(journal.nextSequence(), hashes, ClientLayerJournal.MIN_COMPACT_BYTES, 1, 1, 2);
+		assertEquals(5, journal.getJournalFiles());
+		assertFalse(journal.shouldCompact());
+		journal.onJournal(journal.nextSequence(), hashes, 1, 1, 1, 2);
+		assertTrue(journal.shouldCompact());
+		long last = journal.nextSequence();
+		journal.onJournal(last, hashes, 100, 1, 1, 2);
+		// Everything but the last.
+		journal.onCompacted(last - 1, 12*ClientLayerJournal.MIN_COMPACT_BYTES, 50);
+		assertEquals(1, journal.getJournalFiles());
+		assertEquals(100, journal.getJournalBytes());
+		assertFalse(journal.shouldCompact());
+		assertEquals(1, journal.getCompactions());
+		// Written before the compaction finished, but already compacted.
+		journal.onJournal(sequence, hashes, 100, 1, 1, 2);
+		assertEquals(1, journal.getJournalFiles());
+		// Lots of small files.
+		for(int i=1;i<ClientLayerJournal.MAX_FILES;i++)
+			journal.onJournal(journal.nextSequence(), hashes, 1, 1, 1, 2);
+		assertTrue(journal.shouldCompact());
+		assertEquals(8 + ClientLayerJournal.MAX_FILES, journal.getCheckpoints());
+	}
+
+}
@@ -0,0 +1,365 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+import freenet.client.FetchContext;
+import freenet.keys.FreenetURI;
+import freenet.clients.fcp.ClientRequest;
+import freenet.clients.fcp.IdentifierCollisionException;
+import freenet.clients.fcp.NullClientRequest;
+import freenet.clients.fcp.PersistentRequestClient;
+import freenet.clients.fcp.PersistentRequestRoot;
+import freenet.crypt.DummyRandomSource;
+import freenet.crypt.MasterSecret;
+import freenet.node.MasterKeysWrongPasswordException;
+import freenet.node.Node;
+import freenet.node.RequestClient;
+import freenet.node.RequestStarter;
+import freenet.node.RequestStarterGroup;
+import freenet.support.CheatingTicker;
+import freenet.support.PooledExecutor;
+import freenet.support.Ticker;
+import freenet.support.WaitableExecutor;
+import freenet.support.io.FileUtil;
+import freenet.support.io.FilenameGenerator;
+import freenet.support.io.PersistentTempBucketFactory;
+import freenet.support.io.TempBucketFactory;
+
+public class ClientLayerPersisterTest extends TestCase {
+
+    private static final String BASE_NAME = "client.dat";
+    private static final int REQUESTS = 32;
+
+    private final File dir = new File("tmp-clientlayerpersistertest");
+    private final WaitableExecutor exec = new WaitableExecutor(new PooledExecutor());
+    private final Ticker ticker = new CheatingTicker(exec);
+    private final Random random = new Random(1234);
+    private PersistentTempBucketFactory persistentTempFactory;
+    private TempBucketFactory tempBucketFactory;
+    private final CountDownLatch resumeGate = new CountDownLatch(1);
+
+    /** Bandwidth statistics without a node. */
+    private static class StatsPutter extends PersistentStatsPutter {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void updateData(Node n) {
+            // Nothing to update.
+        }
+
+    }
+
+    /** Saves the requests on the FCP layer's queue, as the node does, but without a node. */
+    private class Persister extends ClientLayerPersister {
+
+        final ClientContext context;
+
+        Persister() {
+            super(exec, ClientLayerPersisterTest.this.ticker, null, null, persistentTempFactory,
+                    tempBucketFactory, new StatsPutter());
+            context = new ClientContext(0, this, exec, null, persistentTempFactory, tempBucketFactory,
+                    null, null, null, null, random, ClientLayerPersisterTest.this.ticker, null, null, null, null, null, null, null,
+                    null, null, new PersistentRequestRoot(), null, null, null, null);
+            start(context);
+        }
+
+        @Override
+        protected ClientRequest[] getRequests() {
+            return context.persistentRoot.getPersistentRequests();
+        }
+
+        void load() throws MasterKeysWrongPasswordException {
+            setFilesAndLoad(dir, BASE_NAME, false, false, null, context,
+                    mock(RequestStarterGroup.class), random);
+            waitForResume(false);
+            // The first checkpoint after loading.
+            waitForNotWriting();
+        }
+
+        /** Load, only waiting for the urgent requests to be resumed. */
+        void loadLazily() throws MasterKeysWrongPasswordException {
+            setResumeInBackground(true);
+            setFilesAndLoad(dir, BASE_NAME, false, false, null, context,
+                    mock(RequestStarterGroup.class), random);
+        }
+
+        void saveNow() {
+            synchronized(serializeCheckpoints) {
+                save(false);
+            }
+        }
+
+        PersistentRequestClient getClient() {
+            return context.persistentRoot.getGlobalForeverClient();
+        }
+
+        NullClientRequest add(String identifier) throws IdentifierCollisionException {
+            return add(identifier, (short) 0, false);
+        }
+
+        NullClientRequest add(String identifier, short priority, boolean gated) 
+                throws IdentifierCollisionException {
+            NullClientRequest req = new NullClientRequest(getClient(), identifier, priority, gated);
+            getClient().register(req);
+            return req;
+        }
+
+        NullClientRequest get(String identifier) {
+            return (NullClientRequest) getClient().getRequest(identifier);
+        }
+
+        void remove(String identifier) {
+            assertTrue(getClient().removeByIdentifier(identifier, false, null, context));
+        }
+
+    }
+
+    @Override
+    protected void setUp() throws IOException {
+        FileUtil.removeAll(dir);
+        dir.mkdir();
+        persistentTempFactory = new PersistentTempBucketFactory(new File(dir, "persistent-temp"),
+                "freenet-temp-", new DummyRandomSource(1234), random, false);
+        FilenameGenerator fg = new FilenameGenerator(random, false, new File(dir, "temp"), "temp-");
+        tempBucketFactory = new TempBucketFactory(exec, fg, 4096, 65536, random, false, 0,
+                new MasterSecret());
+    }
+
+    @Override
+    protected void tearDown() {
+        resumeGate.countDown();
+        NullClientRequest.setResumeGate(null);
+        FileUtil.removeAll(dir);
+    }
+
+    private int journalFiles() {
+        return ClientLayerJournal.list(dir, BASE_NAME, false).length;
+    }
+
+    /** Add REQUESTS requests, and write them to the journal. */
+    private Persister addRequests() throws Exception {
+        Persister persister = new Persister();
+        persister.load();
+        // Jobs left over from loading may still trigger a checkpoint, which mustn't write some
+        // of the requests before we do.
+        synchronized(persister.serializeCheckpoints) {
+            for(int i=0;i<REQUESTS;i++)
+                persister.add("req"+i);
+            persister.saveNow();
+        }
+        ClientLayerJournal journal = persister.getJournal();
+        assertFalse(journal.wasLastCheckpointSnapshot());
+        assertEquals(REQUESTS, journal.getLastCheckpointChanged());
+        assertEquals(1, journalFiles());
+        return persister;
+    }
+
+    /** Load the requests written by addRequests(), after changing req1 and req3, and removing
+     * req2. */
+    private void checkReloaded() throws Exception {
+        Persister persister = new Persister();
+        persister.load();
+        assertEquals(REQUESTS - 1, persister.getRequests().length);
+        for(int i=0;i<REQUESTS;i++) {
+            NullClientRequest req = persister.get("req"+i);
+            if(i == 2) {
+                assertNull(req);
+                continue;
+            }
+            assertTrue(req.isResumed());
+            assertEquals(i == 1 || i == 3 ? i : 0, req.getValue());
+        }
+        // Loading wrote a full snapshot.
+        assertTrue(persister.getJournal().wasLastCheckpointSnapshot());
+        assertEquals(0, journalFiles());
+        persister.shutdown();
+    }
+
+    public void testJournalRoundTrip() throws Exception {
+        Persister persister = addRequests();
+        ClientLayerJournal journal = persister.getJournal();
+        // Nothing has changed, so we only check a few of them.
+        persister.saveNow();
+        assertEquals(0, journal.getLastCheckpointChanged());
+        assertTrue(journal.getLastCheckpointSerialized() < REQUESTS / 4);
+        assertEquals(1, journalFiles());
+        // One request says it has changed, and one is removed.
+        NullClientRequest changed = persister.get("req1");
+        changed.setValue(1);
+        changed.setChanged();
+        persister.remove("req2");
+        persister.saveNow();
+        assertEquals(1, journal.getLastCheckpointChanged());
+        assertEquals(REQUESTS - 1, journal.getLastCheckpointRequests());
+        assertEquals(2, journalFiles());
+        // A change we weren't told about is written once its group is checked.
+        persister.get("req3").setValue(3);
+        for(int i=0;i<ClientLayerPersister.UNCHANGED_GROUPS;i++)
+            persister.saveNow();
+        assertEquals(3, journalFiles());
+        persister.shutdown();
+        // Left behind by a crash while writing the journal.
+        File tmp = new File(ClientLayerJournal.makeFilename(dir, BASE_NAME, 4, false).getPath()+".tmp");
+        assertTrue(tmp.createNewFile());
+        checkReloaded();
+        assertFalse(tmp.exists());
+    }
+
+    public void testCompaction() throws Exception {
+        Persister persister = addRequests();
+        NullClientRequest req = persister.get("req1");
+        req.setValue(1);
+        req.setChanged();
+        persister.saveNow();
+        persister.remove("req2");
+        persister.saveNow();
+        assertEquals(3, journalFiles());
+        long snapshotBytes = new File(dir, BASE_NAME).length();
+        persister.compact();
+        assertEquals(0, journalFiles());
+        assertEquals(1, persister.getJournal().getCompactions());
+        assertTrue(new File(dir, BASE_NAME).length() > snapshotBytes);
+        // Later changes go to a new journal file.
+        req = persister.get("req3");
+        req.setValue(3);
+        req.setChanged();
+        persister.saveNow();
+        assertEquals(1, journalFiles());
+        persister.shutdown();
+        checkReloaded();
+    }
+
+    /** A state transition is written by the next checkpoint, although the FCP layer isn't told 
+     * about it. */
+    public void testTransitionWithoutEvent() throws Exception {
+        Persister persister = addRequests();
+        ClientLayerJournal journal = persister.getJournal();
+        NullClientRequest req = persister.get("req1");
+        ClientGetCallback callback = mock(ClientGetCallback.class);
+        RequestClient client = mock(RequestClient.class);
+        when(client.persistent()).thenReturn(true);
+        when(callback.getRequestClient()).thenReturn(client);
+        ClientGetter getter = new ClientGetter(callback, new FreenetURI("CHK@"), 
+                mock(FetchContext.class), RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS);
+        req.setClientRequest(getter);
+        persister.saveNow();
+        assertEquals(0, journal.getLastCheckpointChanged());
+        req.setValue(1);
+        getter.onTransition(null, mock(ClientGetState.class), persister.context);
+        persister.waitForNotWriting();
+        persister.saveNow();
+        // Crash, so nothing more is written.
+        persister.killAndWaitForNotRunning();
+        Persister reloaded = new Persister();
+        reloaded.load();
+        assertEquals(1, reloaded.get("req1").getValue());
+        reloaded.shutdown();
+    }
+
+    public void testParallelLoad() throws Exception {
+        Persister persister = new Persister();
+        persister.load();
+        for(int i=0;i<REQUESTS;i++)
+            persister.add("req"+i).setValue(i);
+        persister.saveNow();
+        persister.shutdown();
+        persister = new Persister();
+        persister.setLoadThreads(4);
+        persister.load();
+        assertEquals(REQUESTS, persister.getResumeTotal());
+        assertEquals(0, persister.getResumeRemaining());
+        assertEquals(REQUESTS, persister.getRequests().length);
+        for(int i=0;i<REQUESTS;i++) {
+            NullClientRequest req = persister.get("req"+i);
+            assertTrue(req.isResumed());
+            assertEquals(i, req.getValue());
+        }
+        persister.shutdown();
+    }
+
+    /** Write an urgent request, a gated one which blocks resuming the rest until the gate is
+     * opened, and some bulk requests, and load them lazily. */
+    private Persister loadLazily() throws Exception {
+        Persister persister = new Persister();
+        persister.load();
+        persister.add("urgent", RequestStarter.MAXIMUM_PRIORITY_CLASS, false);
+        persister.add("gated", RequestStarter.UPDATE_PRIORITY_CLASS, true);
+        for(int i=0;i<4;i++)
+            persister.add("bulk"+i, RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, false).setValue(i);
+        persister.saveNow();
+        persister.shutdown();
+        NullClientRequest.setResumeGate(resumeGate);
+        persister = new Persister();
+        persister.loadLazily();
+        assertTrue(persister.get("urgent").isResumed());
+        assertNull(persister.get("bulk0"));
+        assertEquals(5, persister.getResumeRemaining());
+        assertTrue(persister.getClient().hasPersistentRequests());
+        return persister;
+    }
+
+    public void testLazyResume() throws Exception {
+        Persister persister = loadLazily();
+        // Listing or removing them resumes them first.
+        persister.resumeEarly(true, null, "bulk1", persister.context);
+        assertTrue(persister.get("bulk1").isResumed());
+        assertNull(persister.get("bulk2"));
+        persister.remove("bulk1");
+        assertEquals(4, persister.getResumeRemaining());
+        resumeGate.countDown();
+        // Waits for the gated request, which is resuming already.
+        persister.resumeEarly(true, null, "gated", persister.context);
+        assertTrue(persister.get("gated").isResumed());
+        persister.resumeEarly(true, null, null, persister.context);
+        for(int i : new int[] { 0, 2, 3 })
+            assertEquals(i, persister.get("bulk"+i).getValue());
+        persister.waitForResume(false);
+        assertEquals(0, persister.getResumeRemaining());
+        persister.saveNow();
+        persister.shutdown();
+        persister = new Persister();
+        persister.load();
+        assertEquals(5, persister.getRequests().length);
+        assertNull(persister.get("bulk1"));
+        persister.shutdown();
+    }
+
+    /** A new request can't take the identifier of one which hasn't been resumed yet. */
+    public void testIdentifierCollisionDuringLazyResume() throws Exception {
+        Persister persister = loadLazily();
+        try {
+            persister.add("bulk0");
+            fail("Took the identifier of a request waiting to be resumed");
+        } catch (IdentifierCollisionException e) {
+            // Expected.
+        }
+        // Checkpoints while they wait keep them.
+        persister.saveNow();
+        persister.add("new");
+        resumeGate.countDown();
+        persister.waitForResume(false);
+        assertEquals(0, persister.getResumeRemaining());
+        assertEquals(7, persister.getRequests().length);
+        assertEquals(0, persister.get("bulk0").getValue());
+        assertEquals(3, persister.get("bulk3").getValue());
+        persister.saveNow();
+        persister.shutdown();
+        persister = new Persister();
+        persister.load();
+        assertEquals(7, persister.getRequests().length);
+        assertEquals(2, persister.get("bulk2").getValue());
+        persister.shutdown();
+    }
+
+}
@@ -0,0 +1,93 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class CompressionRaceTest extends TestCase {
+
+	private static final int BLOCK = 32768;
+	private static final int MIN_SIZE = 32768 - 4;
+
+	/** What trying the codecs one at a time, in order, would have picked. */
+	private static int sequentialWinner(long[] sizes, long origSize) {
+		int winner = -1;
+		long bestBlocks = origSize / BLOCK;
+		for(int i=0;i<sizes.length;i++) {
+			if(sizes[i] <= MIN_SIZE) return i;
+			if(sizes[i] / BLOCK < bestBlocks) {
+				winner = i;
+				bestBlocks = sizes[i] / BLOCK;
+			}
+		}
+		return winner;
+	}
+
+	public void testFitsInOneBlock() {
+		CompressionRace race = new CompressionRace(3, 10*BLOCK, MIN_SIZE, BLOCK);
+		race.onCompressed(2, 1000);
+		// Anything earlier only has to fit too.
+		assertEquals(MIN_SIZE + 1, race.getLimit(0));
+		race.onCompressed(1, 2000);
+		assertEquals(1, race.getWinner());
+		race.onCompressed(0, 5*BLOCK);
+		assertEquals(1, race.getWinner());
+		race = new CompressionRace(3, 10*BLOCK, MIN_SIZE, BLOCK);
+		race.onCompressed(0, 1000);
+		// No point starting the others.
+		assertEquals(0, race.getLimit(1));
+		assertEquals(0, race.getLimit(2));
+	}
+
+	public void testLimits() {
+		CompressionRace race = new CompressionRace(3, 10*BLOCK + 5, MIN_SIZE, BLOCK);
+		assertEquals(10*BLOCK, race.getLimit(1));
+		race.onCompressed(1, 4*BLOCK + 100);
+		// An earlier codec wins a tie, a later one doesn't.
+		assertEquals(5*BLOCK, race.getLimit(0));
+		assertEquals(4*BLOCK, race.getLimit(2));
+		assertEquals(1, race.getWinner());
+		race.abort();
+		assertEquals(0, race.getLimit(0));
+		race.onCompressed(2, 100);
+		assertEquals(0, race.getLimit(0));
+	}
+
+	public void testNoSavings() {
+		CompressionRace race = new CompressionRace(2, 3*BLOCK + 100, MIN_SIZE, BLOCK);
+		race.onCompressed(0, 3*BLOCK + 50);
+		race.onCompressed(1, 3*BLOCK);
+		assertEquals(-1, race.getWinner());
+		// Too small to be split.
+		race = new CompressionRace(1, 100, MIN_SIZE, BLOCK);
+		assertEquals(MIN_SIZE + 1, race.getLimit(0));
+	}
+
+	/** Giving up at the limit never changes which codec we pick, whatever order they finish in. */
+	public void testSameAsSequential() {
+		Random random = new Random(1234);
+		for(int test=0;test<10000;test++) {
+			int codecs = 1 + random.nextInt(4);
+			long origSize = random.nextInt(20*BLOCK) + 1;
+			long[] sizes = new long[codecs];
+			for(int i=0;i<codecs;i++)
+				sizes[i] = random.nextInt(random.nextBoolean() ? 2*BLOCK : 25*BLOCK) + 1;
+			int[] order = new int[codecs];
+			for(int i=0;i<codecs;i++) order[i] = i;
+			for(int i=codecs-1;i>0;i--) {
+				int j = random.nextInt(i+1);
+				int t = order[i]; order[i] = order[j]; order[j] = t;
+			}
+			CompressionRace race = new CompressionRace(codecs, origSize, MIN_SIZE, BLOCK);
+			for(int i : order) {
+				if(sizes[i] >= race.getLimit(i)) continue;
+				race.onCompressed(i, sizes[i]);
+			}
+			assertEquals(sequentialWinner(sizes, origSize), race.getWinner());
+		}
+	}
+
+}
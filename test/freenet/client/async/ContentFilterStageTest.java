@@ -0,0 +1,130 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class ContentFilterStageTest extends TestCase {
+
+	private static class Filter extends Thread {
+		private final ContentFilterStage stage;
+		private boolean started;
+		private boolean done;
+
+		Filter(ContentFilterStage stage) {
+			this.stage = stage;
+		}
+
+		@Override
+		public void run() {
+			stage.acquire();
+			synchronized(this) {
+				started = true;
+				notifyAll();
+				while(!done) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// Ignore.
+					}
+				}
+			}
+			stage.release();
+		}
+
+		synchronized boolean started() {
+			return started;
+		}
+
+		synchronized void waitStarted() throws InterruptedException {
+			while(!started) wait();
+		}
+
+		synchronized void finish() {
+			done = true;
+			notifyAll();
+		}
+	}
+
+	/** Wait until exactly this many threads are waiting, whether more are still to arrive or some
+	 * are still to be handed a free thread. */
+	private static void waitFor(ContentFilterStage stage, int waiting) throws InterruptedException {
+		for(int i=0;i<1000 && stage.getWaiting() != waiting;i++)
+			Thread.sleep(10);
+		assertEquals(waiting, stage.getWaiting());
+	}
+
+	public void testLimit() throws Exception {
+		ContentFilterStage stage = new ContentFilterStage(2);
+		Filter[] filters = new Filter[4];
+		for(int i=0;i<filters.length;i++)
+			filters[i] = new Filter(stage);
+		filters[0].start();
+		filters[1].start();
+		filters[0].waitStarted();
+		filters[1].waitStarted();
+		assertEquals(2, stage.getRunning());
+		filters[2].start();
+		filters[3].start();
+		waitFor(stage, 2);
+		assertFalse(filters[2].started());
+		assertFalse(filters[3].started());
+		// One finishes, one waiting starts.
+		filters[0].finish();
+		filters[0].join();
+		waitFor(stage, 1);
+		assertEquals(2, stage.getRunning());
+		// More threads, the other starts.
+		stage.setMaxThreads(3);
+		filters[2].waitStarted();
+		filters[3].waitStarted();
+		assertEquals(3, stage.getRunning());
+		assertEquals(0, stage.getWaiting());
+		for(int i=1;i<filters.length;i++) {
+			filters[i].finish();
+			filters[i].join();
+		}
+		assertEquals(0, stage.getRunning());
+	}
+
+	public void testBuckets() {
+		assertEquals(0, ContentFilterStage.FilterTimes.bucket(0));
+		assertEquals(1, ContentFilterStage.FilterTimes.bucket(1));
+		assertEquals(2, ContentFilterStage.FilterTimes.bucket(2));
+		assertEquals(2, ContentFilterStage.FilterTimes.bucket(3));
+		assertEquals(3, ContentFilterStage.FilterTimes.bucket(4));
+		assertEquals(10, ContentFilterStage.FilterTimes.bucket(1023));
+		assertEquals(ContentFilterStage.FilterTimes.BUCKETS - 1, ContentFilterStage.FilterTimes.bucket(Long.MAX_VALUE));
+	}
+
+	public void testTimes() {
+		ContentFilterStage stage = new ContentFilterStage(1);
+		for(int i=0;i<90;i++)
+			stage.report("text/html", 3, 1000);
+		for(int i=0;i<10;i++)
+			stage.report("text/html", 100, 1000);
+		stage.report("text/css", 0, 10);
+		List<ContentFilterStage.FilterTimes> times = stage.getTimes();
+		assertEquals(2, times.size());
+		ContentFilterStage.FilterTimes css = times.get(0);
+		assertEquals("text/css", css.mimeType);
+		assertEquals(1, css.getCount());
+		assertEquals(0, css.getPercentile(0.5));
+		ContentFilterStage.FilterTimes html = times.get(1);
+		assertEquals("text/html", html.mimeType);
+		assertEquals(100, html.getCount());
+		assertEquals(100000, html.getTotalBytes());
+		assertEquals(12.7, html.getAverageTime(), 0.001);
+		assertEquals(100, html.getMaxTime());
+		assertEquals(4, html.getPercentile(0.5));
+		assertEquals(4, html.getPercentile(0.9));
+		assertEquals(100, html.getPercentile(0.99));
+		// A copy.
+		stage.report("text/html", 3, 1000);
+		assertEquals(100, html.getCount());
+	}
+
+}
@@ -0,0 +1,37 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import junit.framework.TestCase;
+
+public class SegmentDecodeTimesTest extends TestCase {
+
+    private static long[] times(long base) {
+        long[] times = new long[SegmentDecodeTimes.STAGES];
+        for(int i=0;i<times.length;i++)
+            times[i] = base + i;
+        return times;
+    }
+
+    public void testAdd() {
+        SegmentDecodeTimes download = new SegmentDecodeTimes();
+        assertEquals(0.0, download.getAverageTime(SegmentDecodeTimes.DECODE));
+        download.add(times(10));
+        download.add(times(30));
+        assertEquals(2, download.getSegments());
+        assertEquals(10 + 30 + 2*SegmentDecodeTimes.DECODE, download.getTotalTime(SegmentDecodeTimes.DECODE));
+        assertEquals(30 + SegmentDecodeTimes.READ, download.getMaxTime(SegmentDecodeTimes.READ));
+        assertEquals(20.0 + SegmentDecodeTimes.TOTAL, download.getAverageTime(SegmentDecodeTimes.TOTAL));
+
+        SegmentDecodeTimes global = new SegmentDecodeTimes();
+        global.add(times(100));
+        global.add(download);
+        assertEquals(3, global.getSegments());
+        assertEquals(140 + 3*SegmentDecodeTimes.WRITE, global.getTotalTime(SegmentDecodeTimes.WRITE));
+        assertEquals(100 + SegmentDecodeTimes.WRITE, global.getMaxTime(SegmentDecodeTimes.WRITE));
+        // The download's own times are unchanged.
+        assertEquals(2, download.getSegments());
+    }
+
+}
@@ -523,6 +523,10 @@ public class SplitFileFetcherStorageTest extends TestCase {
             return null;
         }
 
+        synchronized boolean hasRestartedOnCorruption() {
+            return hasRestartedOnCorruption;
+        }
+
         @Override
         public void restartedAfterDataCorruption() {
             // Will be used in a different test.
@@ -817,6 +821,7 @@ public class SplitFileFetcherStorageTest extends TestCase {
         for(SplitFileFetcherSegmentStorage segment : storage.segments)
             waitForFinished(segment);
         cb.checkFailed();
+        assertEquals(storage.segments.length, storage.decodeTimes.getSegments());
         cb.waitForFree(storage);
         cb.checkFailed();
     }
@@ -1006,6 +1011,35 @@ public class SplitFileFetcherStorageTest extends TestCase {
         storage.close();
     }
     
+    /** Test that a download from before double hashing has its filters regenerated, and the
+     * version updated, when it is reloaded. */
+    public void testPersistenceReloadOldVersion() throws CHKEncodeException, IOException, MetadataUnresolvedException, MetadataParseException, FetchException, StorageFormatException {
+        int dataBlocks = 2;
+        int checkBlocks = 3;
+        long size = 32768*2-1;
+        assertTrue(dataBlocks * (long)BLOCK_SIZE >= size);
+        TestSplitfile test = TestSplitfile.constructSingleSegment(size, checkBlocks, null, true);
+        StorageCallback cb = test.createStorageCallback();
+        SplitFileFetcherStorage storage = test.createStorage(cb);
+        storage = test.createStorage(cb, test.makeFetchContext(), cb.getRAF());
+        assertFalse(storage.keyListener.needsKeys());
+        // Pretend it was written by the previous version.
+        storage.writeFooter(storage.basicSettingsLength, 1);
+        storage = test.createStorage(cb, test.makeFetchContext(), cb.getRAF());
+        assertTrue(storage.keyListener.needsKeys());
+        assertFalse(storage.start(false));
+        exec.waitForIdle();
+        assertTrue(cb.hasRestartedOnCorruption());
+        assertFalse(storage.keyListener.needsKeys());
+        storage = test.createStorage(cb, test.makeFetchContext(), cb.getRAF());
+        assertFalse(storage.keyListener.needsKeys());
+        for(int i=0;i<dataBlocks+checkBlocks;i++) {
+            NodeCHK key = test.getCHK(i);
+            assertTrue(storage.keyListener.probablyWantKey(key, salt.saltKey(key)));
+        }
+        storage.close();
+    }
+    
     public void testPersistenceReloadThenFetch() throws IOException, StorageFormatException, CHKEncodeException, MetadataUnresolvedException, MetadataParseException, FetchException {
         int dataBlocks = 2;
         int checkBlocks = 3;
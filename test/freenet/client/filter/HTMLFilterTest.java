@@ -0,0 +1,113 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.filter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URI;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.support.TestProperty;
+
+/**
+ * Checks that sanitizing tags from their tokens gives the same output as going through
+ * ParsedTag, and compares the two.
+ */
+public class HTMLFilterTest extends TestCase {
+
+	private static final String BASE_URI = "http://localhost:8888/";
+
+	private static final String[] PAGES = {
+		"<html><head><title>Index</title><style>body { color: red; }</style></head><body bgcolor=\"white\">"
+			+ "<div class=\"a\" id=b style=\"color: blue; background: url(http://evil.com/x.png)\" onclick=\"alert(1)\">text</div>"
+			+ "<img src=\"/CHK@abc/x.png\" alt='x' width=10 usemap=\"#m\" longdesc><IMG SRC=\"http://evil.com/\" Alt=\"y\" />"
+			+ "<p ALIGN=center dir=RTL lang=en xml:lang=\"en\" title=\"t\" bogus>para<br/><br clear=all />"
+			+ "<span id class=\"\" style>s</span><td align = \"left\" width= \"3\">x</td>"
+			+ "<a href=\"/KSK@gpl.txt\" name=top>link</a></p></body></html>",
+		"<html xmlns=\"http://www.w3.org/1999/xhtml\"><body><p class=\"\" id=\"x\">a<br>b<hr class=x/><img src=\"a.png\" alt=\"\"></p>"
+			+ "<div title=\"a\" id=\"b\" title=\"c\">dup</div><h1>unclosed",
+		"<html><body><div/><p/ class=x><table border=1><tr><td class=x>1</td><td>2</td></tr></table>"
+			+ "<!-- comment --><foo bar=baz>x</foo><span style='font-family: \"verdana\"'>q</span></body></html>",
+	};
+
+	private static String filter(String page, boolean sanitizeTokens) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FilterCallback cb = new GenericReadFilterCallback(new URI(BASE_URI), null, null, null);
+		new HTMLFilter(sanitizeTokens).readFilter(new ByteArrayInputStream(page.getBytes("UTF-8")), out, "UTF-8", null, cb);
+		return new String(out.toByteArray(), "UTF-8");
+	}
+
+	public void testSameOutput() throws Exception {
+		for(String page : PAGES)
+			assertEquals(filter(page, false), filter(page, true));
+		String index = makeIndex(new Random(1010), 200);
+		assertEquals(filter(index, false), filter(index, true));
+	}
+
+	public void testRewritesAttributes() throws Exception {
+		String out = filter(PAGES[0], true);
+		assertTrue(out.contains("<div class=\"a\" id=\"b\" style=\"color: blue;\">"));
+		assertTrue(out.contains("<IMG src=\"/external-link/?_CHECKED_HTTP_=http://evil.com/\" alt=\"y\" />"));
+		assertTrue(out.contains("<img alt=\"x\" width=\"10\" usemap=\"#m\" longdesc>"));
+		assertTrue(out.contains("<p align=\"center\" dir=\"RTL\" lang=\"en\" xml:lang=\"en\" title=\"t\">"));
+		assertTrue(out.contains("<span class=\"\">s</span>"));
+		assertFalse(out.contains("onclick"));
+		assertFalse(out.contains("bogus"));
+	}
+
+	/** Something like a big freesite index: tables of links, thumbnails and styled text. */
+	private static String makeIndex(Random random, int rows) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("<!DOCTYPE html PUBLIC \"-//W3C//DTD HTML 4.01//EN\">\n<html><head>\n");
+		sb.append("<meta http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\">\n");
+		sb.append("<title>Index</title>\n<link rel=\"stylesheet\" href=\"style.css\" type=\"text/css\">\n");
+		sb.append("<style type=\"text/css\">td.key { font-family: monospace; } .new { color: #c00; }</style>\n");
+		sb.append("</head><body>\n<h1 class=\"title\">Freesite index</h1>\n<div id=\"main\">\n");
+		sb.append("<table class=\"sites\" width=\"100%\" border=\"0\" cellpadding=\"2\">\n");
+		for(int i=0;i<rows;i++) {
+			String key = "USK@" + Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong()) + ",AQACAAE/site" + i + "/" + random.nextInt(100) + "/";
+			sb.append("<tr class=\"").append(i % 2 == 0 ? "even" : "odd").append("\">\n");
+			sb.append("<td class=\"thumb\"><img src=\"/").append(key).append("activelink.png\" alt=\"Site ").append(i).append("\" width=\"108\" height=\"36\"></td>\n");
+			sb.append("<td class=\"key\"><a href=\"/").append(key).append("\" title=\"Site ").append(i).append("\">Site number ").append(i).append("</a><br>\n");
+			sb.append("<span class=\"desc\">A freesite about things &amp; stuff, updated ").append(random.nextInt(28) + 1).append(" days ago. ");
+			sb.append("Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor incididunt ut labore.</span>");
+			if(i % 7 == 0)
+				sb.append(" <span class=\"new\" style=\"font-weight: bold\">New!</span>");
+			sb.append("</td>\n<td align=\"right\"><b>").append(random.nextInt(1000)).append("</b> <i>KiB</i></td>\n</tr>\n");
+		}
+		sb.append("</table>\n</div>\n<p align=\"center\"><small>Generated index</small></p>\n</body></html>\n");
+		return sb.toString();
+	}
+
+	/* Filtering a big index page, through ParsedTag and straight from the tokens. Reports the
+	 * throughput and, where the JVM can tell us, the bytes allocated per byte filtered. */
+	public void testBenchmark() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+
+		byte[] page = makeIndex(new Random(2020), 10000).getBytes("UTF-8");
+		URI base = new URI(BASE_URI);
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		com.sun.management.ThreadMXBean allocations = null;
+		if(threads instanceof com.sun.management.ThreadMXBean)
+			allocations = (com.sun.management.ThreadMXBean) threads;
+		long thread = Thread.currentThread().getId();
+		for(int i=0;i<6;i++) {
+			boolean sanitizeTokens = i % 2 == 1;
+			HTMLFilter filter = new HTMLFilter(sanitizeTokens);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(page.length);
+			long allocated = allocations == null ? 0 : allocations.getThreadAllocatedBytes(thread);
+			long start = System.nanoTime();
+			filter.readFilter(new ByteArrayInputStream(page), out, "UTF-8", null, new GenericReadFilterCallback(base, null, null, null));
+			long time = System.nanoTime() - start;
+			if(allocations != null)
+				allocated = allocations.getThreadAllocatedBytes(thread) - allocated;
+			System.out.println((sanitizeTokens ? "Tokens:    " : "ParsedTag: ") + (page.length * 1000L / time) + " MB/s"
+					+ (allocations == null ? "" : ", " + (allocated / page.length) + " bytes allocated per byte"));
+		}
+	}
+
+}
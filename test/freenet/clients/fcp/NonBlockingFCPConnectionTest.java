@@ -0,0 +1,289 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import freenet.support.PooledExecutor;
+import freenet.support.SimpleFieldSet;
+
+public class NonBlockingFCPConnectionTest extends TestCase {
+
+	private FCPSelectorPool pool;
+	private ServerSocketChannel listener;
+	private final List<Socket> sockets = new ArrayList<Socket>();
+
+	/** Records the messages it is sent, and any data attached to them. */
+	private static class TestHandler implements NonBlockingFCPConnection.MessageHandler {
+
+		NonBlockingFCPConnection conn;
+		final List<String> names = new ArrayList<String>();
+		final List<SimpleFieldSet> fields = new ArrayList<SimpleFieldSet>();
+		final List<byte[]> data = new ArrayList<byte[]>();
+		volatile boolean queueFull;
+		/** Sleep this long after each read of attached data. */
+		long dataReadDelay;
+		final AtomicInteger closedInput = new AtomicInteger();
+		final CountDownLatch closed = new CountDownLatch(1);
+
+		@Override
+		public boolean isOutputQueueFull() {
+			return queueFull;
+		}
+
+		@Override
+		public boolean handleMessage(String messageName, SimpleFieldSet fs, InputStream is) throws IOException {
+			byte[] buf = null;
+			String length = fs.get("DataLength");
+			if(length != null) {
+				buf = new byte[Integer.parseInt(length)];
+				int offset = 0;
+				while(offset < buf.length) {
+					int read = is.read(buf, offset, Math.min(1000, buf.length - offset));
+					if(read < 0) throw new IOException("Data truncated");
+					offset += read;
+					if(dataReadDelay > 0) {
+						try {
+							Thread.sleep(dataReadDelay);
+						} catch (InterruptedException e) {
+							// Ignore.
+						}
+					}
+				}
+			}
+			synchronized(this) {
+				names.add(messageName);
+				fields.add(fs);
+				data.add(buf);
+				notifyAll();
+			}
+			if(!messageName.equals("Disconnect")) return true;
+			// A last reply, sent before the connection is closed.
+			conn.getOutputStream().write("Bye\n".getBytes("UTF-8"));
+			return false;
+		}
+
+		@Override
+		public void closedInput() {
+			closedInput.incrementAndGet();
+			// As FCPConnectionHandler does, once the output has been closed too.
+			conn.closeAfterWrite();
+			closed.countDown();
+		}
+
+		synchronized void waitFor(int messages) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 10000;
+			while(names.size() < messages) {
+				long wait = deadline - System.currentTimeMillis();
+				assertTrue("Timed out waiting for message "+messages, wait > 0);
+				wait(wait);
+			}
+		}
+
+		synchronized int count() {
+			return names.size();
+		}
+
+	}
+
+	@Override
+	protected void setUp() throws IOException {
+		PooledExecutor executor = new PooledExecutor();
+		executor.start();
+		pool = new FCPSelectorPool(2, executor);
+		pool.start();
+		listener = ServerSocketChannel.open();
+		listener.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		for(Socket sock : sockets)
+			sock.close();
+		listener.close();
+	}
+
+	private Socket connect(TestHandler handler) throws IOException {
+		Socket sock = new Socket(InetAddress.getLoopbackAddress(), listener.socket().getLocalPort());
+		sock.setSoTimeout(10000);
+		sockets.add(sock);
+		SocketChannel channel = listener.accept();
+		handler.conn = new NonBlockingFCPConnection(handler, channel, pool.nextLoop());
+		handler.conn.start();
+		return sock;
+	}
+
+	private static void send(Socket sock, String s) throws IOException {
+		OutputStream os = sock.getOutputStream();
+		os.write(s.getBytes("UTF-8"));
+		os.flush();
+	}
+
+	public void testMessageSplitAcrossReads() throws Exception {
+		TestHandler handler = new TestHandler();
+		Socket sock = connect(handler);
+		send(sock, "\nClientHel");
+		Thread.sleep(100);
+		send(sock, "lo\r\nName=fo");
+		Thread.sleep(100);
+		send(sock, "o\nExpectedVersion=2.0\nEnd");
+		Thread.sleep(100);
+		assertEquals(0, handler.count());
+		send(sock, "Message\nGetNode\nEndMessage\n");
+		handler.waitFor(2);
+		assertEquals("ClientHello", handler.names.get(0));
+		assertEquals("foo", handler.fields.get(0).get("Name"));
+		assertEquals("2.0", handler.fields.get(0).get("ExpectedVersion"));
+		assertEquals("GetNode", handler.names.get(1));
+	}
+
+	/** Data much bigger than the input buffer, read slowly, arrives intact, and the next message
+	 * is parsed after it. */
+	public void testDataPayload() throws Exception {
+		TestHandler handler = new TestHandler();
+		handler.dataReadDelay = 1;
+		Socket sock = connect(handler);
+		byte[] payload = new byte[NonBlockingFCPConnection.MAX_INPUT_BUFFER * 3 + 123];
+		new Random(1).nextBytes(payload);
+		send(sock, "ClientPut\nIdentifier=put\nDataLength="+payload.length+"\nData\n");
+		OutputStream os = sock.getOutputStream();
+		for(int i=0;i<payload.length;i+=10000)
+			os.write(payload, i, Math.min(10000, payload.length - i));
+		send(sock, "ClientHello\nName=after\nEndMessage\n");
+		handler.waitFor(2);
+		assertEquals("ClientPut", handler.names.get(0));
+		assertEquals("Data", handler.fields.get(0).getEndMarker());
+		assertTrue(Arrays.equals(payload, handler.data.get(0)));
+		assertEquals("ClientHello", handler.names.get(1));
+		assertEquals("after", handler.fields.get(1).get("Name"));
+	}
+
+	/** We don't start on another message while the output queue is full. */
+	public void testFullOutputQueue() throws Exception {
+		TestHandler handler = new TestHandler();
+		handler.queueFull = true;
+		Socket sock = connect(handler);
+		send(sock, "ClientHello\nName=blocked\nEndMessage\n");
+		Thread.sleep(200);
+		assertEquals(0, handler.count());
+		handler.queueFull = false;
+		handler.conn.outputQueueDrained();
+		handler.waitFor(1);
+		assertEquals("blocked", handler.fields.get(0).get("Name"));
+	}
+
+	/** The writer blocks while the client isn't reading, and everything arrives in order. */
+	public void testOutputBackpressure() throws Exception {
+		TestHandler handler = new TestHandler();
+		Socket sock = connect(handler);
+		// Much more than the socket buffers can hold.
+		final int total = 32*1024*1024;
+		final OutputStream os = handler.conn.getOutputStream();
+		final CountDownLatch written = new CountDownLatch(1);
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					byte[] buf = new byte[65536];
+					for(int i=0;i<total;i+=buf.length) {
+						for(int j=0;j<buf.length;j++)
+							buf[j] = (byte) ((i + j) / 1000);
+						os.write(buf);
+					}
+					written.countDown();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+		assertFalse(written.await(1, TimeUnit.SECONDS));
+		DataInputStream is = new DataInputStream(sock.getInputStream());
+		byte[] buf = new byte[65536];
+		for(int i=0;i<total;i+=buf.length) {
+			is.readFully(buf);
+			for(int j=0;j<buf.length;j++)
+				assertEquals((byte) ((i + j) / 1000), buf[j]);
+		}
+		assertTrue(written.await(10, TimeUnit.SECONDS));
+	}
+
+	/** Connections on both selector threads are closed once each, when the client goes away or
+	 * we stop reading, after what has been written has been sent. */
+	public void testClose() throws Exception {
+		TestHandler[] handlers = new TestHandler[4];
+		Socket[] socks = new Socket[handlers.length];
+		for(int i=0;i<handlers.length;i++) {
+			handlers[i] = new TestHandler();
+			socks[i] = connect(handlers[i]);
+		}
+		// The client closes.
+		socks[0].close();
+		socks[1].shutdownOutput();
+		// We stop reading, and the reply is still sent.
+		send(socks[2], "Disconnect\nEndMessage\n");
+		// Something we can't parse.
+		char[] tooLong = new char[NonBlockingFCPConnection.MAX_MESSAGE_NAME_LENGTH + 10];
+		Arrays.fill(tooLong, 'x');
+		send(socks[3], new String(tooLong) + "\n");
+		for(int i=0;i<handlers.length;i++)
+			assertTrue(handlers[i].closed.await(10, TimeUnit.SECONDS));
+		for(int i=1;i<socks.length;i++) {
+			InputStream is = socks[i].getInputStream();
+			if(i == 2) {
+				byte[] buf = new byte[4];
+				new DataInputStream(is).readFully(buf);
+				assertEquals("Bye\n", new String(buf, "UTF-8"));
+			}
+			assertEquals(-1, is.read());
+		}
+		Thread.sleep(100);
+		for(TestHandler handler : handlers)
+			assertEquals(1, handler.closedInput.get());
+	}
+
+	/** A writer blocked on a client which isn't reading is released when the client goes away. */
+	public void testCloseWhileWriting() throws Exception {
+		TestHandler handler = new TestHandler();
+		Socket sock = connect(handler);
+		final OutputStream os = handler.conn.getOutputStream();
+		final CountDownLatch failed = new CountDownLatch(1);
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					byte[] buf = new byte[65536];
+					while(true)
+						os.write(buf);
+				} catch (IOException e) {
+					failed.countDown();
+				}
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+		Thread.sleep(500);
+		sock.close();
+		assertTrue(failed.await(10, TimeUnit.SECONDS));
+		assertTrue(handler.closed.await(10, TimeUnit.SECONDS));
+	}
+
+}
@@ -0,0 +1,176 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.util.concurrent.CountDownLatch;
+
+import freenet.client.async.ClientContext;
+import freenet.client.async.ClientRequester;
+import freenet.support.io.ResumeFailedException;
+
+/** A persistent request on the global queue which doesn't fetch or insert anything, for testing
+ * the persistence layer. */
+public class NullClientRequest extends ClientRequest {
+
+	private static final long serialVersionUID = 1L;
+
+	/** If set, gated requests don't finish resuming until it is opened. */
+	private static volatile CountDownLatch resumeGate;
+
+	private int value;
+	private final boolean gated;
+	private transient boolean resumed;
+	/** Not persisted. */
+	private transient ClientRequester requester;
+
+	public NullClientRequest(PersistentRequestClient globalClient, String identifier) {
+		this(globalClient, identifier, (short) 0, false);
+	}
+
+	public NullClientRequest(PersistentRequestClient globalClient, String identifier, short priority, boolean gated) {
+		super(null, identifier, 0, null, null, globalClient, priority, Persistence.FOREVER, false, null, true);
+		this.gated = gated;
+	}
+
+	public static void setResumeGate(CountDownLatch gate) {
+		resumeGate = gate;
+	}
+
+	public synchronized int getValue() {
+		return value;
+	}
+
+	/** Change something we persist, without telling the persistence layer. */
+	public synchronized void setValue(int value) {
+		this.value = value;
+	}
+
+	public synchronized boolean isResumed() {
+		return resumed;
+	}
+
+	/** Set the request which does the work, so that its changes are noticed. */
+	public synchronized void setClientRequest(ClientRequester requester) {
+		this.requester = requester;
+	}
+
+	@Override
+	public void onLostConnection(ClientContext context) {
+		// Persistent.
+	}
+
+	@Override
+	public void sendPendingMessages(FCPConnectionOutputHandler handler, String listRequestIdentifier, boolean includeData, boolean onlyData) {
+		// Nothing to send.
+	}
+
+	@Override
+	void register(boolean noTags) throws IdentifierCollisionException {
+		client.register(this);
+	}
+
+	@Override
+	protected synchronized ClientRequester getClientRequest() {
+		return requester;
+	}
+
+	@Override
+	protected void freeData() {
+		// No data.
+	}
+
+	@Override
+	public double getSuccessFraction() {
+		return 0;
+	}
+
+	@Override
+	public double getTotalBlocks() {
+		return 0;
+	}
+
+	@Override
+	public double getMinBlocks() {
+		return 0;
+	}
+
+	@Override
+	public double getFetchedBlocks() {
+		return 0;
+	}
+
+	@Override
+	public double getFailedBlocks() {
+		return 0;
+	}
+
+	@Override
+	public double getFatalyFailedBlocks() {
+		return 0;
+	}
+
+	@Override
+	public String getFailureReason(boolean longDescription) {
+		return null;
+	}
+
+	@Override
+	public boolean isTotalFinalized() {
+		return false;
+	}
+
+	@Override
+	public void start(ClientContext context) {
+		synchronized(this) {
+			started = true;
+		}
+		setChanged();
+	}
+
+	@Override
+	public boolean hasSucceeded() {
+		return false;
+	}
+
+	@Override
+	public boolean canRestart() {
+		return false;
+	}
+
+	@Override
+	public boolean restart(ClientContext context, boolean disableFilterData) {
+		return false;
+	}
+
+	@Override
+	RequestStatus getStatus() {
+		return null;
+	}
+
+	@Override
+	protected void innerResume(ClientContext context) throws ResumeFailedException {
+		CountDownLatch gate = resumeGate;
+		if(gated && gate != null) {
+			try {
+				gate.await();
+			} catch (InterruptedException e) {
+				// Ignore.
+			}
+		}
+		synchronized(this) {
+			resumed = true;
+		}
+	}
+
+	@Override
+	RequestIdentifier.RequestType getType() {
+		return RequestIdentifier.RequestType.GET;
+	}
+
+	@Override
+	public boolean fullyResumed() {
+		return false;
+	}
+
+}
@@ -0,0 +1,126 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.net.MalformedURLException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import freenet.client.filter.HTMLFilter;
+import freenet.keys.FreenetURI;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+
+public class FProxyFilterCacheTest extends TestCase {
+
+	private static final String CHK = "CHK@DTCDUmnkKFlrJi9UlDDVqXlRrZ3D8k8aJsJMlGjGMj0,Sgi0mRmk6uB4CNL6W7JTwbXtR5DY1NHqDX5eb~MEtyA,AAMC--8/site/index.html";
+	private static final String USK = "USK@DTCDUmnkKFlrJi9UlDDVqXlRrZ3D8k8aJsJMlGjGMj0,Sgi0mRmk6uB4CNL6W7JTwbXtR5DY1NHqDX5eb~MEtyA,AQACAAE/site/1/";
+
+	private final ArrayBucketFactory bf = new ArrayBucketFactory();
+
+	private static FProxyFilterCache.CacheKey key(String uri, String mime, String charset) throws MalformedURLException {
+		return FProxyFilterCache.makeKey(new FreenetURI(uri), mime, charset);
+	}
+
+	private static byte[] page(int length, int seed) {
+		byte[] data = new byte[length];
+		Arrays.fill(data, (byte) seed);
+		return data;
+	}
+
+	public void testOnlyImmutableKeys() throws MalformedURLException {
+		assertNotNull(key(CHK, null, null));
+		assertNull(key(USK, null, null));
+	}
+
+	public void testHitAndMiss() throws Exception {
+		FProxyFilterCache cache = new FProxyFilterCache(1000);
+		FProxyFilterCache.CacheKey key = key(CHK, null, null);
+		assertNull(cache.get(key, 1000));
+		byte[] data = page(100, 1);
+		Bucket orig = new ArrayBucket(data);
+		cache.put(key, "text/html; charset=UTF-8", orig, bf);
+		// The caller still owns the original.
+		assertTrue(Arrays.equals(data, BucketTools.toByteArray(orig)));
+		FProxyFilterCache.CachedPage page = cache.get(key, 1000);
+		assertNotNull(page);
+		assertEquals("text/html; charset=UTF-8", page.mimeType);
+		assertTrue(Arrays.equals(data, BucketTools.toByteArray(page.data)));
+		page.data.free();
+		// Different filter settings.
+		assertNull(cache.get(key(CHK, "text/plain", null), 1000));
+		assertNull(cache.get(key(CHK, null, "ISO-8859-1"), 1000));
+		assertNotNull(cache.get(key(CHK, null, null), 1000));
+		// Too big for this request.
+		assertNull(cache.get(key, 99));
+		assertEquals(2, cache.getHits());
+		assertEquals(4, cache.getMisses());
+		assertEquals(200, cache.getBytesSaved());
+	}
+
+	public void testFilterSettingsInKey() throws Exception {
+		FProxyFilterCache cache = new FProxyFilterCache(1000);
+		cache.put(key(CHK, null, null), "text/html", new ArrayBucket(page(100, 1)), bf);
+		int old = HTMLFilter.metaRefreshRedirectMinInterval;
+		try {
+			HTMLFilter.metaRefreshRedirectMinInterval = old + 1;
+			assertNull(cache.get(key(CHK, null, null), 1000));
+		} finally {
+			HTMLFilter.metaRefreshRedirectMinInterval = old;
+		}
+		FProxyFilterCache.CachedPage page = cache.get(key(CHK, null, null), 1000);
+		assertNotNull(page);
+		page.data.free();
+	}
+
+	public void testClear() throws Exception {
+		FProxyFilterCache cache = new FProxyFilterCache(1000);
+		cache.put(key(CHK, null, null), "text/html", new ArrayBucket(page(100, 1)), bf);
+		FProxyFilterCache.CachedPage page = cache.get(key(CHK, null, null), 1000);
+		cache.clear();
+		assertEquals(0, cache.getSize());
+		assertEquals(0, cache.getCount());
+		assertNull(cache.get(key(CHK, null, null), 1000));
+		// Still readable by a request which was sending it.
+		assertTrue(Arrays.equals(page(100, 1), BucketTools.toByteArray(page.data)));
+		page.data.free();
+	}
+
+	public void testUnfilteredTypesNotCached() throws Exception {
+		FProxyFilterCache cache = new FProxyFilterCache(1000);
+		FProxyFilterCache.CacheKey key = key(CHK, null, null);
+		cache.put(key, "text/plain", new ArrayBucket(page(100, 1)), bf);
+		cache.put(key, "application/octet-stream", new ArrayBucket(page(100, 1)), bf);
+		assertEquals(0, cache.getCount());
+		cache.put(key, "text/css", new ArrayBucket(page(100, 1)), bf);
+		assertEquals(1, cache.getCount());
+	}
+
+	public void testEviction() throws Exception {
+		FProxyFilterCache cache = new FProxyFilterCache(1000);
+		for(int i=0;i<4;i++)
+			cache.put(key(CHK, null, "charset"+i), "text/html", new ArrayBucket(page(250, i)), bf);
+		assertEquals(1000, cache.getSize());
+		// Use the first, so the second is the oldest.
+		FProxyFilterCache.CachedPage first = cache.get(key(CHK, null, "charset0"), 1000);
+		cache.put(key(CHK, null, "charset4"), "text/html", new ArrayBucket(page(250, 4)), bf);
+		assertEquals(1000, cache.getSize());
+		assertNull(cache.get(key(CHK, null, "charset1"), 1000));
+		assertNotNull(cache.get(key(CHK, null, "charset4"), 1000));
+		// Too big for the cache.
+		cache.put(key(CHK, null, "big"), "text/html", new ArrayBucket(page(251, 5)), bf);
+		assertNull(cache.get(key(CHK, null, "big"), 1000));
+		// Pages being sent are still readable after being dropped.
+		cache.setMaxSize(0);
+		assertEquals(0, cache.getSize());
+		assertEquals(0, cache.getCount());
+		assertTrue(Arrays.equals(page(250, 0), BucketTools.toByteArray(first.data)));
+		first.data.free();
+		cache.put(key(CHK, null, null), "text/html", new ArrayBucket(page(10, 6)), bf);
+		assertEquals(0, cache.getCount());
+	}
+
+}
@@ -0,0 +1,278 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import freenet.support.MultiValueTable;
+
+public class NonBlockingHTTPServerTest extends TestCase {
+
+	private ServerSocketChannel listener;
+	private TestHandler handler;
+	private final List<Socket> sockets = new ArrayList<Socket>();
+
+	/** Replies with the path of each request, and records what it was sent. */
+	private static class TestHandler implements NonBlockingHTTPServer.Handler {
+
+		final int maxRequests;
+		final List<String> requests = new ArrayList<String>();
+		final List<String> hosts = new ArrayList<String>();
+		/** Sum of the body bytes of each request. */
+		final List<Long> bodySums = new ArrayList<Long>();
+		/** Bytes of padding after the path in each reply. */
+		int replyPadding;
+		/** Sleep this long between reads of the body. */
+		long bodyReadDelay;
+		volatile CountDownLatch handled = new CountDownLatch(1);
+		int running;
+
+		TestHandler(int maxRequests) {
+			this.maxRequests = maxRequests;
+		}
+
+		@Override
+		public synchronized boolean startRequest() {
+			if(running >= maxRequests) return false;
+			running++;
+			return true;
+		}
+
+		@Override
+		public synchronized void finishRequest() {
+			running--;
+		}
+
+		@Override
+		public int getMaxRequests() {
+			return maxRequests;
+		}
+
+		@Override
+		public boolean hasFinishedStartup() {
+			return false;
+		}
+
+		@Override
+		public boolean handle(String method, URI uri, boolean isHTTP10, MultiValueTable<String,String> headers, InputStream data, OutputStream os, InetAddress remoteAddr) {
+			try {
+				String length = headers.get("content-length");
+				long sum = 0;
+				if(length != null) {
+					byte[] buf = new byte[1000];
+					long left = Long.parseLong(length);
+					while(left > 0) {
+						int read = data.read(buf, 0, (int) Math.min(buf.length, left));
+						if(read < 0) throw new IOException("Body truncated");
+						for(int i=0;i<read;i++) sum += buf[i] & 0xFF;
+						left -= read;
+						if(bodyReadDelay > 0) Thread.sleep(bodyReadDelay);
+					}
+				}
+				synchronized(this) {
+					requests.add(method+" "+uri.getPath());
+					hosts.add(headers.get("host"));
+					bodySums.add(sum);
+				}
+				byte[] path = uri.getPath().getBytes("ISO-8859-1");
+				os.write(("HTTP/1.1 200 OK\r\nContent-Length: "+(path.length+replyPadding)+"\r\n\r\n").getBytes("ISO-8859-1"));
+				os.write(path);
+				byte[] padding = new byte[65536];
+				for(int i=0;i<replyPadding;i+=padding.length)
+					os.write(padding, 0, Math.min(padding.length, replyPadding - i));
+				handled.countDown();
+				return true;
+			} catch (Exception e) {
+				e.printStackTrace();
+				return false;
+			}
+		}
+
+	}
+
+	private NonBlockingHTTPServer startServer(int maxRequests, long idleTimeout) throws IOException {
+		handler = new TestHandler(maxRequests);
+		final NonBlockingHTTPServer server = new NonBlockingHTTPServer(handler, null, idleTimeout);
+		server.start();
+		listener = ServerSocketChannel.open();
+		listener.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		Thread acceptor = new Thread() {
+			@Override
+			public void run() {
+				try {
+					while(true) {
+						SocketChannel channel = listener.accept();
+						server.register(channel);
+					}
+				} catch (IOException e) {
+					// Closed.
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+		return server;
+	}
+
+	private Socket connect() throws IOException {
+		Socket sock = new Socket(InetAddress.getLoopbackAddress(), listener.socket().getLocalPort());
+		sock.setSoTimeout(10000);
+		sockets.add(sock);
+		return sock;
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		for(Socket sock : sockets)
+			sock.close();
+		if(listener != null) listener.close();
+	}
+
+	private static void send(Socket sock, String s) throws IOException {
+		OutputStream os = sock.getOutputStream();
+		os.write(s.getBytes("ISO-8859-1"));
+		os.flush();
+	}
+
+	private static String readLine(DataInputStream is) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		while(true) {
+			int b = is.read();
+			if(b < 0) throw new IOException("Closed");
+			if(b == '\n') break;
+			if(b != '\r') sb.append((char) b);
+		}
+		return sb.toString();
+	}
+
+	/** Read a reply sent by TestHandler.
+	 * @return The path of the request. */
+	private static String readReply(Socket sock) throws IOException {
+		DataInputStream is = new DataInputStream(sock.getInputStream());
+		assertEquals("HTTP/1.1 200 OK", readLine(is));
+		String header = readLine(is);
+		assertTrue(header.startsWith("Content-Length: "));
+		int length = Integer.parseInt(header.substring("Content-Length: ".length()));
+		assertEquals("", readLine(is));
+		byte[] buf = new byte[length];
+		is.readFully(buf);
+		String reply = new String(buf, "ISO-8859-1");
+		int end = reply.indexOf('\0');
+		return end < 0 ? reply : reply.substring(0, end);
+	}
+
+	private static void assertClosed(Socket sock) throws IOException {
+		try {
+			assertEquals(-1, sock.getInputStream().read());
+		} catch (IOException e) {
+			// Reset is fine too.
+		}
+	}
+
+	public void testRequestSplitAcrossReads() throws Exception {
+		startServer(10, NonBlockingHTTPServer.IDLE_TIMEOUT);
+		Socket sock = connect();
+		send(sock, "\r\nGET /split HTT");
+		Thread.sleep(100);
+		send(sock, "P/1.1\r\nHo");
+		Thread.sleep(100);
+		send(sock, "st: example\r");
+		Thread.sleep(100);
+		assertEquals(1, handler.handled.getCount());
+		send(sock, "\n\r\n");
+		assertEquals("/split", readReply(sock));
+		assertEquals("GET /split", handler.requests.get(0));
+		assertEquals("example", handler.hosts.get(0));
+	}
+
+	public void testPipelined() throws Exception {
+		startServer(10, NonBlockingHTTPServer.IDLE_TIMEOUT);
+		Socket sock = connect();
+		send(sock, "GET /one HTTP/1.1\r\nHost: a\r\n\r\n" +
+				"POST /two HTTP/1.1\r\nHost: b\r\nContent-Length: 3\r\n\r\n\u0001\u0002\u0003" +
+				"GET /three HTTP/1.1\r\nHost: c\r\n\r\n");
+		assertEquals("/one", readReply(sock));
+		assertEquals("/two", readReply(sock));
+		assertEquals("/three", readReply(sock));
+		synchronized(handler) {
+			assertEquals("GET /one", handler.requests.get(0));
+			assertEquals("POST /two", handler.requests.get(1));
+			assertEquals("GET /three", handler.requests.get(2));
+			assertEquals(6L, handler.bodySums.get(1).longValue());
+		}
+	}
+
+	/** A body much bigger than the input buffer, read slowly, arrives intact. */
+	public void testBodyStreaming() throws Exception {
+		startServer(10, NonBlockingHTTPServer.IDLE_TIMEOUT);
+		handler.bodyReadDelay = 1;
+		Socket sock = connect();
+		byte[] body = new byte[NonBlockingHTTPServer.MAX_INPUT_BUFFER * 4];
+		new Random(1).nextBytes(body);
+		long sum = 0;
+		for(byte b : body) sum += b & 0xFF;
+		send(sock, "POST /body HTTP/1.1\r\nContent-Length: "+body.length+"\r\n\r\n");
+		OutputStream os = sock.getOutputStream();
+		for(int i=0;i<body.length;i+=10000)
+			os.write(body, i, Math.min(10000, body.length - i));
+		assertEquals("/body", readReply(sock));
+		assertEquals(sum, handler.bodySums.get(0).longValue());
+	}
+
+	/** The handler blocks writing its reply until the client reads it. */
+	public void testReplyBackpressure() throws Exception {
+		startServer(10, NonBlockingHTTPServer.IDLE_TIMEOUT);
+		// Much more than the socket buffers can hold.
+		handler.replyPadding = 32*1024*1024;
+		Socket sock = connect();
+		send(sock, "GET /big HTTP/1.1\r\n\r\n");
+		assertFalse(handler.handled.await(1, TimeUnit.SECONDS));
+		assertEquals("/big", readReply(sock));
+		assertTrue(handler.handled.await(10, TimeUnit.SECONDS));
+	}
+
+	public void testIdleClose() throws Exception {
+		startServer(10, 200);
+		Socket sock = connect();
+		send(sock, "GET /first HTTP/1.1\r\n\r\n");
+		assertEquals("/first", readReply(sock));
+		long start = System.currentTimeMillis();
+		assertClosed(sock);
+		assertTrue(System.currentTimeMillis() - start < 5000);
+	}
+
+	public void testConnectionLimit() throws Exception {
+		NonBlockingHTTPServer server = startServer(1, NonBlockingHTTPServer.IDLE_TIMEOUT);
+		int max = server.maxConnections();
+		assertEquals(NonBlockingHTTPServer.CONNECTIONS_PER_REQUEST, max);
+		Socket[] open = new Socket[max];
+		for(int i=0;i<max;i++) {
+			open[i] = connect();
+			// Make sure it has been registered.
+			send(open[i], "GET /"+i+" HTTP/1.1\r\n\r\n");
+			assertEquals("/"+i, readReply(open[i]));
+		}
+		Socket extra = connect();
+		assertClosed(extra);
+		// The others are still open.
+		send(open[0], "GET /again HTTP/1.1\r\n\r\n");
+		assertEquals("/again", readReply(open[0]));
+	}
+
+}
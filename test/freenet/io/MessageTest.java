@@ -3,9 +3,19 @@ package freenet.io;
 import freenet.io.comm.DMT;
 import freenet.io.comm.Message;
 import freenet.io.comm.MessageType;
+import freenet.keys.Key;
+import freenet.keys.NodeCHK;
+import freenet.support.ByteBufferInputStream;
+import freenet.support.Serializer;
+import freenet.support.TestProperty;
 import junit.framework.TestCase;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
 
 /**
  * Tests Message abilities.
@@ -73,4 +83,209 @@ public class MessageTest extends TestCase {
 		assertTrue(Arrays.equals(doubleArrayVal, msg.getDoubleArray(DOUBLE_ARRAY)));
 		assertTrue(Arrays.equals(floatArrayVal, msg.getFloatArray(FLOAT_ARRAY)));
 	}
+
+	private Message makeTestMessage() {
+		Message msg = new Message(test);
+		msg.set(BOOLEAN, true);
+		msg.set(BYTE, (byte)-5);
+		msg.set(SHORT, (short)-456);
+		msg.set(INT, -78912);
+		msg.set(LONG, Long.MIN_VALUE + 1);
+		msg.set(DOUBLE, -Math.PI);
+		msg.set(FLOAT, Float.MAX_VALUE);
+		msg.set(DOUBLE_ARRAY, new double[] { Math.PI, Math.E });
+		msg.set(FLOAT_ARRAY, new float[] { 1234.5678f });
+		return msg;
+	}
+
+	/** Encode the message the way it was encoded when the fields were kept in a map:
+	 * through Serializer in the order the fields were added. */
+	private static byte[] legacyEncode(Message msg) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(msg.getSpec().getName().hashCode());
+		for (String name : msg.getSpec().getOrderedFields())
+			Serializer.writeToDataOutputStream(msg.getObject(name), dos);
+		dos.flush();
+		return baos.toByteArray();
+	}
+
+	/** Decode the message the way it was decoded when the fields were kept in a map. */
+	private static HashMap<String, Object> legacyDecode(byte[] buf) throws IOException {
+		ByteBufferInputStream bb = new ByteBufferInputStream(buf);
+		MessageType spec = MessageType.getSpec(bb.readInt(), false);
+		HashMap<String, Object> payload = new HashMap<String, Object>(8);
+		for (String name : spec.getOrderedFields())
+			payload.put(name, Serializer.readFromDataInputStream(spec.getFields().get(name), bb));
+		return payload;
+	}
+
+	public void testEncodingUnchanged() throws IOException {
+		Message msg = makeTestMessage();
+		byte[] encoded = msg.encodeToPacket();
+		assertTrue(Arrays.equals(legacyEncode(msg), encoded));
+		assertEquals(encoded.length, msg.getEncodedLength());
+		for (Message m : topMessages(new Random(0)))
+			assertTrue(m.getSpec().getName(), Arrays.equals(legacyEncode(m), m.encodeToPacket()));
+	}
+
+	public void testRoundTrip() {
+		Message msg = makeTestMessage();
+		byte[] encoded = msg.encodeToPacket();
+		Message decoded = Message.decodeMessageLax(encoded, null, 0);
+		assertTrue(decoded.getBoolean(BOOLEAN));
+		assertEquals(-5, decoded.getByte(BYTE));
+		assertEquals(Long.MIN_VALUE + 1, decoded.getLong(LONG));
+		assertEquals(-Math.PI, decoded.getDouble(DOUBLE));
+		assertEquals(Float.MAX_VALUE, decoded.getFloat(FLOAT));
+		assertEquals(Integer.valueOf(-78912), decoded.getObject(INT));
+		assertTrue(Arrays.equals(new double[] { Math.PI, Math.E }, decoded.getDoubleArray(DOUBLE_ARRAY)));
+		assertTrue(Arrays.equals(encoded, decoded.encodeToPacket()));
+		for (Message m : topMessages(new Random(1))) {
+			encoded = m.encodeToPacket();
+			decoded = Message.decodeMessageLax(encoded, null, 0);
+			assertEquals(m.getSpec(), decoded.getSpec());
+			assertTrue(m.getSpec().getName(), Arrays.equals(encoded, decoded.encodeToPacket()));
+		}
+	}
+
+	public void testSubMessages() throws IOException {
+		Message msg = DMT.createFNPAccepted(12345);
+		Message sub = DMT.createFNPRealTimeFlag(true);
+		msg.addSubMessage(sub);
+		byte[] main = legacyEncode(DMT.createFNPAccepted(12345));
+		byte[] subEncoded = legacyEncode(sub);
+		byte[] expected = Arrays.copyOf(main, main.length + 2 + subEncoded.length);
+		expected[main.length] = 0;
+		expected[main.length+1] = (byte) subEncoded.length;
+		System.arraycopy(subEncoded, 0, expected, main.length + 2, subEncoded.length);
+		assertTrue(Arrays.equals(expected, msg.encodeToPacket()));
+		Message decoded = Message.decodeMessageLax(expected, null, 0);
+		assertEquals(12345, decoded.getLong(DMT.UID));
+		assertTrue(decoded.getSubMessage(DMT.FNPRealTimeFlag).getBoolean(DMT.REAL_TIME_FLAG));
+	}
+
+	public void testEncodeIntoBuffer() {
+		Message msg = makeTestMessage();
+		byte[] encoded = msg.encodeToPacket();
+		byte[] buf = new byte[encoded.length + 10];
+		assertEquals(encoded.length, msg.encodeToPacket(buf, 7));
+		assertTrue(Arrays.equals(encoded, Arrays.copyOfRange(buf, 7, 7 + encoded.length)));
+		try {
+			msg.encodeToPacket(new byte[encoded.length - 1], 0);
+			fail();
+		} catch (ArrayIndexOutOfBoundsException e) {
+			// Expected.
+		}
+	}
+
+	public void testUnsetAndWrongType() {
+		Message msg = new Message(test);
+		assertFalse(msg.isSet(LONG));
+		assertNull(msg.getObject(LONG));
+		try {
+			msg.getLong(LONG);
+			fail();
+		} catch (NullPointerException e) {
+			// Expected, as when unboxing a missing value.
+		}
+		try {
+			msg.set(LONG, 1);
+			fail();
+		} catch (RuntimeException e) {
+			// Expected.
+		}
+		msg.set(LONG, 1L);
+		assertTrue(msg.isSet(LONG));
+		try {
+			msg.getInt(LONG);
+			fail();
+		} catch (ClassCastException e) {
+			// Expected.
+		}
+		try {
+			msg.encodeToPacket();
+			fail();
+		} catch (Message.FieldNotSetException e) {
+			// Expected.
+		}
+	}
+
+	/** Some of the most frequently sent messages, with random contents. */
+	private static Message[] topMessages(Random random) {
+		byte[] routingKey = new byte[32];
+		random.nextBytes(routingKey);
+		NodeCHK key = new NodeCHK(routingKey, Key.ALGO_AES_CTR_256_SHA256);
+		byte[] headers = new byte[36];
+		random.nextBytes(headers);
+		byte[] data = new byte[1024];
+		random.nextBytes(data);
+		double[] locations = new double[20];
+		for (int i = 0; i < locations.length; i++)
+			locations[i] = random.nextDouble();
+		long uid = random.nextLong();
+		return new Message[] {
+			DMT.createFNPCHKDataRequest(uid, (short)18, key),
+			DMT.createFNPAccepted(uid),
+			DMT.createFNPRejectedLoop(uid),
+			DMT.createFNPRejectedOverload(uid, false, true, false),
+			DMT.createFNPDataNotFound(uid),
+			DMT.createFNPRecentlyFailed(uid, 1000),
+			DMT.createFNPCHKDataFound(uid, headers),
+			DMT.createFNPRouteNotFound(uid, (short)5),
+			DMT.createFNPInsertRequest(uid, (short)18, key),
+			DMT.createFNPInsertReply(uid),
+			DMT.createFNPDataInsert(uid, headers),
+			DMT.createFNPInsertTransfersCompleted(uid, false),
+			DMT.createFNPBulkPacketSend(uid, 17, data, false),
+			DMT.createFNPBulkReceivedAll(uid),
+			DMT.createFNPOfferKey(key, routingKey),
+			DMT.createFNPGetOfferedKey(key, routingKey, false, uid),
+			DMT.createFNPSwapRequest(uid, routingKey, 10),
+			DMT.createFNPLocChangeNotificationNew(0.5, locations),
+			DMT.createFNPRoutedPing(uid, 0.25, (short)10, 1, routingKey),
+			DMT.createFNPTime(System.currentTimeMillis()),
+		};
+	}
+
+	public void testBenchmark() throws IOException {
+		if (!TestProperty.BENCHMARK) return;
+
+		Message[] messages = topMessages(new Random(0xBBBBBBBB));
+		byte[][] encoded = new byte[messages.length][];
+		for (int i = 0; i < messages.length; i++)
+			encoded[i] = messages[i].encodeToPacket();
+		byte[] buf = new byte[2048];
+		int iterations = 200000;
+		long count = 0;
+		for (int pass = 0; pass < 3; pass++) {
+			long t1 = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				for (byte[] b : encoded) {
+					HashMap<String, Object> payload = legacyDecode(b);
+					Object uid = payload.get(DMT.UID);
+					if (uid != null) count += (Long) uid;
+				}
+				for (Message m : messages)
+					count += legacyEncode(m).length;
+			}
+			long legacyTime = System.nanoTime() - t1;
+			t1 = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				for (byte[] b : encoded) {
+					Message m = Message.decodeMessageLax(b, null, 0);
+					if (m.isSet(DMT.UID)) count += m.getLong(DMT.UID);
+				}
+				for (Message m : messages)
+					count += m.encodeToPacket(buf, 0);
+			}
+			long currentTime = System.nanoTime() - t1;
+			if (pass == 2) {
+				long ops = (long) iterations * messages.length;
+				System.out.println("Decode and encode of " + messages.length + " message types: map " +
+						(legacyTime / ops) + "ns/message, slots " + (currentTime / ops) + "ns/message");
+			}
+		}
+		assertTrue(count != 0);
+	}
 }
@@ -0,0 +1,202 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import freenet.node.NullBasePeerNode;
+import freenet.support.PooledExecutor;
+
+public class MessageCoreTest extends TestCase {
+
+	private MessageCore core;
+	private NullBasePeerNode peerA;
+	private NullBasePeerNode peerB;
+
+	@Override
+	public void setUp() {
+		core = new MessageCore(new PooledExecutor());
+		peerA = new NullBasePeerNode();
+		peerB = new NullBasePeerNode();
+	}
+
+	/** A message as if received from the given peer. */
+	private static Message received(Message m, PeerContext source) {
+		byte[] buf = m.encodeToPacket();
+		return Message.decodeMessageFromPacket(buf, 0, buf.length, source, 0);
+	}
+
+	private static class Callback implements AsyncMessageFilterCallback {
+		final List<Message> matched = new ArrayList<Message>();
+		int timedOut;
+		int disconnected;
+
+		@Override
+		public synchronized void onMatched(Message m) {
+			matched.add(m);
+		}
+
+		@Override
+		public boolean shouldTimeout() {
+			return false;
+		}
+
+		@Override
+		public synchronized void onTimeout() {
+			timedOut++;
+		}
+
+		@Override
+		public synchronized void onDisconnect(PeerContext ctx) {
+			disconnected++;
+		}
+
+		@Override
+		public void onRestarted(PeerContext ctx) {
+			onDisconnect(ctx);
+		}
+	}
+
+	public void testUnclaimed() throws DisconnectedException {
+		Message m = received(DMT.createFNPAccepted(1), peerA);
+		core.checkFilters(m, null);
+		assertEquals(1, core.getUnclaimedFIFOSize());
+		assertEquals(Integer.valueOf(1), core.getUnclaimedFIFOMessageCounts().get(DMT.FNPAccepted.getName()));
+		// Wrong UID.
+		MessageFilter mf = MessageFilter.create().setSource(peerA).setType(DMT.FNPAccepted).setField(DMT.UID, 2L).setTimeout(0);
+		assertNull(core.waitFor(mf, null));
+		// Wrong peer.
+		mf = MessageFilter.create().setSource(peerB).setType(DMT.FNPAccepted).setField(DMT.UID, 1L).setTimeout(0);
+		assertNull(core.waitFor(mf, null));
+		mf = MessageFilter.create().setSource(peerA).setType(DMT.FNPAccepted).setField(DMT.UID, 1L).setTimeout(1000);
+		assertSame(m, core.waitFor(mf, null));
+		assertEquals(0, core.getUnclaimedFIFOSize());
+	}
+
+	public void testAsyncFilter() throws DisconnectedException {
+		Callback cb = new Callback();
+		MessageFilter mf = MessageFilter.create().setSource(peerA).setType(DMT.FNPAccepted).setField(DMT.UID, 2L).setTimeout(60000);
+		core.addAsyncFilter(mf, cb, null);
+		core.checkFilters(received(DMT.createFNPAccepted(3), peerA), null);
+		core.checkFilters(received(DMT.createFNPAccepted(2), peerB), null);
+		assertTrue(cb.matched.isEmpty());
+		assertEquals(2, core.getUnclaimedFIFOSize());
+		Message m = received(DMT.createFNPAccepted(2), peerA);
+		core.checkFilters(m, null);
+		assertEquals(1, cb.matched.size());
+		assertSame(m, cb.matched.get(0));
+		// Only matched once.
+		core.checkFilters(received(DMT.createFNPAccepted(2), peerA), null);
+		assertEquals(1, cb.matched.size());
+		assertEquals(3, core.getUnclaimedFIFOSize());
+	}
+
+	public void testEarliestTimeoutFirst() throws DisconnectedException {
+		Callback later = new Callback();
+		Callback sooner = new Callback();
+		Callback noUID = new Callback();
+		core.addAsyncFilter(MessageFilter.create().setSource(peerA).setType(DMT.FNPAccepted).setField(DMT.UID, 4L).setTimeout(60000), later, null);
+		core.addAsyncFilter(MessageFilter.create().setSource(peerA).setType(DMT.FNPAccepted).setTimeout(50000), noUID, null);
+		core.addAsyncFilter(MessageFilter.create().setSource(peerA).setType(DMT.FNPAccepted).setField(DMT.UID, 4L).setTimeout(40000), sooner, null);
+		core.checkFilters(received(DMT.createFNPAccepted(4), peerA), null);
+		assertEquals(1, sooner.matched.size());
+		core.checkFilters(received(DMT.createFNPAccepted(4), peerA), null);
+		assertEquals(1, noUID.matched.size());
+		core.checkFilters(received(DMT.createFNPAccepted(4), peerA), null);
+		assertEquals(1, later.matched.size());
+		assertEquals(0, core.getUnclaimedFIFOSize());
+	}
+
+	public void testNoSourceAndOr() throws DisconnectedException {
+		Callback cb = new Callback();
+		MessageFilter mf = MessageFilter.create().setType(DMT.FNPRejectedLoop).setField(DMT.UID, 5L).setTimeout(60000);
+		mf.or(MessageFilter.create().setSource(peerA).setType(DMT.FNPAccepted).setField(DMT.UID, 5L).setTimeout(60000));
+		core.addAsyncFilter(mf, cb, null);
+		core.checkFilters(received(DMT.createFNPAccepted(5), peerB), null);
+		assertTrue(cb.matched.isEmpty());
+		Message m = received(DMT.createFNPRejectedLoop(5), peerB);
+		core.checkFilters(m, null);
+		assertEquals(1, cb.matched.size());
+		assertSame(m, cb.matched.get(0));
+		// The filter has been removed from every stripe.
+		core.checkFilters(received(DMT.createFNPAccepted(5), peerA), null);
+		core.checkFilters(received(DMT.createFNPRejectedLoop(5), peerA), null);
+		assertEquals(1, cb.matched.size());
+		assertEquals(3, core.getUnclaimedFIFOSize());
+		// Re-adding matches the oldest suitable unclaimed message.
+		mf.clearMatched();
+		core.addAsyncFilter(mf, cb, null);
+		assertEquals(2, cb.matched.size());
+		assertEquals(DMT.FNPAccepted, cb.matched.get(1).getSpec());
+		assertEquals(2, core.getUnclaimedFIFOSize());
+	}
+
+	/** A filter in several stripes gets the oldest message it matches, whichever stripe it is
+	 * in, as it would from a single list. */
+	public void testOldestUnclaimedAcrossStripes() throws DisconnectedException {
+		final int PEERS = 10;
+		for(int i = 0; i < PEERS; i++)
+			core.checkFilters(received(DMT.createFNPAccepted(7), new NullBasePeerNode()), null);
+		for(int i = PEERS - 1; i >= 0; i--)
+			core.checkFilters(received(DMT.createFNPRejectedLoop(i), new NullBasePeerNode()), null);
+		Callback cb = new Callback();
+		for(int i = 0; i < PEERS; i++) {
+			MessageFilter mf = MessageFilter.create().setType(DMT.FNPRejectedLoop).setTimeout(60000);
+			core.addAsyncFilter(mf, cb, null);
+			assertEquals(i + 1, cb.matched.size());
+			assertEquals(PEERS - 1 - i, cb.matched.get(i).getLong(DMT.UID));
+		}
+		assertEquals(PEERS, core.getUnclaimedFIFOSize());
+	}
+
+	/** The limit on unclaimed messages is for all peers together, so one busy peer can use all of
+	 * it, and the oldest are dropped first. */
+	public void testUnclaimedLimit() throws DisconnectedException {
+		core.checkFilters(received(DMT.createFNPRejectedLoop(-1), peerB), null);
+		for(int i = 0; i < MessageCore.MAX_UNMATCHED_FIFO_SIZE; i++)
+			core.checkFilters(received(DMT.createFNPAccepted(i), peerA), null);
+		assertEquals(MessageCore.MAX_UNMATCHED_FIFO_SIZE, core.getUnclaimedFIFOSize());
+		Callback cb = new Callback();
+		// Peer B's message was the oldest, so it went first.
+		core.addAsyncFilter(MessageFilter.create().setSource(peerB).setType(DMT.FNPRejectedLoop).setTimeout(60000), cb, null);
+		assertTrue(cb.matched.isEmpty());
+		core.addAsyncFilter(MessageFilter.create().setSource(peerA).setType(DMT.FNPAccepted).setField(DMT.UID, 0L).setTimeout(60000), cb, null);
+		assertEquals(1, cb.matched.size());
+		core.checkFilters(received(DMT.createFNPAccepted(-2), peerA), null);
+		core.checkFilters(received(DMT.createFNPAccepted(-3), peerA), null);
+		assertEquals(MessageCore.MAX_UNMATCHED_FIFO_SIZE, core.getUnclaimedFIFOSize());
+		core.addAsyncFilter(MessageFilter.create().setSource(peerA).setType(DMT.FNPAccepted).setField(DMT.UID, 1L).setTimeout(60000), cb, null);
+		assertEquals(1, cb.matched.size());
+	}
+
+	public void testDisconnect() throws DisconnectedException {
+		Callback cb = new Callback();
+		core.addAsyncFilter(MessageFilter.create().setSource(peerA).setType(DMT.FNPAccepted).setField(DMT.UID, 6L).setTimeout(60000), cb, null);
+		core.onDisconnect(peerB);
+		assertEquals(0, cb.disconnected);
+		core.onDisconnect(peerA);
+		assertEquals(1, cb.disconnected);
+		core.checkFilters(received(DMT.createFNPAccepted(6), peerA), null);
+		assertTrue(cb.matched.isEmpty());
+	}
+
+	public void testTimeout() throws DisconnectedException, InterruptedException {
+		Callback cb = new Callback();
+		core.addAsyncFilter(MessageFilter.create().setSource(peerA).setType(DMT.FNPAccepted).setField(DMT.UID, 7L).setTimeout(10), cb, null);
+		Callback other = new Callback();
+		core.addAsyncFilter(MessageFilter.create().setSource(peerA).setType(DMT.FNPAccepted).setField(DMT.UID, 8L).setTimeout(60000), other, null);
+		Thread.sleep(20);
+		long next = core.removeTimedOutFilters(Long.MAX_VALUE);
+		assertEquals(1, cb.timedOut);
+		assertEquals(0, other.timedOut);
+		assertTrue(next <= System.currentTimeMillis() + 60000);
+		core.checkFilters(received(DMT.createFNPAccepted(7), peerA), null);
+		assertTrue(cb.matched.isEmpty());
+		assertEquals(1, core.getUnclaimedFIFOSize());
+	}
+
+}
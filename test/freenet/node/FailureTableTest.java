@@ -0,0 +1,169 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.lang.ref.WeakReference;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.keys.Key;
+import freenet.keys.NodeCHK;
+import freenet.support.TestProperty;
+
+public class FailureTableTest extends TestCase {
+
+	private static class TestPeer implements PeerNodeUnlocked {
+		final double location;
+		final long bootID;
+		final WeakReference<TestPeer> ref = new WeakReference<TestPeer>(this);
+		volatile boolean connected = true;
+
+		TestPeer(Random random) {
+			location = random.nextDouble();
+			bootID = random.nextLong();
+		}
+
+		@Override
+		public double getLocation() {
+			return location;
+		}
+
+		@Override
+		public long getBootID() {
+			return bootID;
+		}
+
+		@Override
+		public void offer(Key key) {
+			// Ignore.
+		}
+
+		@Override
+		public WeakReference<? extends PeerNodeUnlocked> getWeakRef() {
+			return ref;
+		}
+
+		@Override
+		public String shortToString() {
+			return "TestPeer@"+location;
+		}
+
+		@Override
+		public boolean isConnected() {
+			return connected;
+		}
+	}
+
+	private static Key[] makeKeys(Random random, int count) {
+		Key[] keys = new Key[count];
+		for(int i=0;i<count;i++) {
+			byte[] routingKey = new byte[32];
+			random.nextBytes(routingKey);
+			keys[i] = new NodeCHK(routingKey, Key.ALGO_AES_PCFB_256_SHA256);
+		}
+		return keys;
+	}
+
+	public void testExpiry() {
+		Random random = new Random(1);
+		FailureTable table = new FailureTable(random, true, true);
+		TestPeer routedTo = new TestPeer(random);
+		TestPeer requestor = new TestPeer(random);
+		TestPeer other = new TestPeer(random);
+		Key[] keys = makeKeys(random, 2);
+		table.onFinalFailure(keys[0], routedTo, (short)10, (short)12, FailureTable.RECENTLY_FAILED_TIME, FailureTable.REJECT_TIME, requestor);
+		table.onFailed(keys[1], other, (short)10, FailureTable.REJECT_TIME, FailureTable.REJECT_TIME);
+		assertEquals(2, table.countEntries());
+		assertNotNull(table.getTimedOutNodesList(keys[0]));
+		assertTrue(table.peersWantKey(keys[0], other));
+		assertFalse(table.peersWantKey(keys[1], other));
+		assertEquals(12, table.minOfferedHTL(keys[0], (short)18));
+		long now = System.currentTimeMillis();
+		// Not due yet.
+		table.expire(now + FailureTable.CLEANUP_PERIOD / 2);
+		assertEquals(2, table.countEntries());
+		// Due, but the peers are still connected so we keep the entries.
+		now += FailureTable.CLEANUP_PERIOD + FailureTable.EXPIRY_TICK;
+		table.expire(now);
+		assertEquals(2, table.countEntries());
+		// Forget the entry once its peers have gone.
+		routedTo.connected = false;
+		requestor.connected = false;
+		now += FailureTable.CLEANUP_PERIOD + FailureTable.EXPIRY_TICK;
+		table.expire(now);
+		assertEquals(1, table.countEntries());
+		assertNull(table.getTimedOutNodesList(keys[0]));
+		assertNotNull(table.getTimedOutNodesList(keys[1]));
+	}
+
+	public void testLimit() {
+		Random random = new Random(2);
+		FailureTable table = new FailureTable(random, true, true);
+		Key[] keys = makeKeys(random, FailureTable.MAX_ENTRIES * 2);
+		for(Key key : keys)
+			table.onFinalFailure(key, null, (short)10, (short)10, -1, -1, null);
+		// Enough keys to fill every shard.
+		assertEquals(FailureTable.MAX_ENTRIES, table.countEntries());
+		// The most recent keys are kept.
+		int found = 0;
+		for(int i=keys.length-FailureTable.MAX_ENTRIES/2;i<keys.length;i++)
+			if(table.getTimedOutNodesList(keys[i]) != null) found++;
+		assertEquals(FailureTable.MAX_ENTRIES/2, found);
+		// Empty entries go at the next cleanup.
+		table.expire(System.currentTimeMillis() + FailureTable.CLEANUP_PERIOD + FailureTable.EXPIRY_TICK);
+		assertEquals(0, table.countEntries());
+	}
+
+	/* Replays a request stream with some popular keys and many unpopular ones, as routing does:
+	 * check the failure table before routing, then record failures. */
+	public void testBenchmark() throws InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+
+		final int OPS = 2000000;
+		Random random = new Random(3);
+		final Key[] keys = makeKeys(random, FailureTable.MAX_ENTRIES * 5);
+		final TestPeer[] peers = new TestPeer[30];
+		for(int i=0;i<peers.length;i++)
+			peers[i] = new TestPeer(random);
+		for(int threadCount = 1; threadCount <= 16; threadCount *= 2) {
+			final FailureTable table = new FailureTable(random, true, true);
+			Thread[] threads = new Thread[threadCount];
+			final int opsPerThread = OPS / threadCount;
+			for(int t=0;t<threadCount;t++) {
+				final Random r = new Random(t);
+				threads[t] = new Thread() {
+					@Override
+					public void run() {
+						for(int i=0;i<opsPerThread;i++) {
+							// Skewed towards the first keys.
+							double x = r.nextDouble();
+							Key key = keys[(int) (x * x * x * keys.length)];
+							TestPeer source = peers[r.nextInt(peers.length)];
+							TestPeer next = peers[r.nextInt(peers.length)];
+							int op = r.nextInt(10);
+							if(op < 3) {
+								table.getTimedOutNodesList(key);
+								table.peersWantKey(key, source);
+							} else if(op < 7) {
+								table.onFailed(key, next, (short)10, FailureTable.REJECT_TIME, FailureTable.REJECT_TIME);
+							} else {
+								table.onFinalFailure(key, next, (short)10, (short)12, FailureTable.RECENTLY_FAILED_TIME, FailureTable.REJECT_TIME, source);
+							}
+							if(i % 10000 == 0)
+								table.expire(System.currentTimeMillis());
+						}
+					}
+				};
+			}
+			long start = System.nanoTime();
+			for(Thread thread : threads)
+				thread.start();
+			for(Thread thread : threads)
+				thread.join();
+			long time = System.nanoTime() - start;
+			System.out.println(threadCount + " threads: " + (OPS * 1000L * 1000 / time) + " ops/ms, " + table.countEntries() + " entries");
+		}
+	}
+
+}
@@ -340,6 +340,32 @@ public class NewPacketFormatTest extends TestCase {
 	
 	/* This checks the output of the sequence number encryption function to
 	 * make sure it doesn't change accidentally. */
+	/** An idle connection doesn't ask the packet sender to look at it until an ack is due. */
+	public void testIdleTimeNextUrgent() throws BlockedTooLongException {
+		final long[] wakeUp = new long[] { Long.MAX_VALUE };
+		NullBasePeerNode pn = new NullBasePeerNode() {
+			@Override
+			public void wakeUpSender(long time) {
+				wakeUp[0] = Math.min(wakeUp[0], time);
+			}
+		};
+		NewPacketFormat npf = new NewPacketFormat(pn, 0, 0);
+		SessionKey s = new SessionKey(null, null, null, null, null, null, null, null, new NewPacketFormatKeyContext(0, 0), 1);
+		pn.currentKey = s;
+		long now = System.currentTimeMillis();
+		assertEquals(Long.MAX_VALUE, npf.timeNextUrgent(true, now));
+		assertEquals(Long.MAX_VALUE, npf.timeCheckForLostPackets());
+
+		NPFPacket p = new NPFPacket();
+		p.addMessageFragment(new MessageFragment(true, false, true, 0, 8, 8, 0, new byte[8], null));
+		npf.handleDecryptedPacket(p, s);
+		long ackTime = npf.timeNextUrgent(true, now);
+		assertTrue(ackTime >= now + NewPacketFormatKeyContext.MAX_ACK_DELAY);
+		assertTrue(ackTime <= System.currentTimeMillis() + NewPacketFormatKeyContext.MAX_ACK_DELAY);
+		assertTrue(wakeUp[0] >= ackTime);
+		assertTrue(wakeUp[0] <= System.currentTimeMillis() + NewPacketFormatKeyContext.MAX_ACK_DELAY);
+	}
+
 	public void testSequenceNumberEncryption() {
 		BlockCipher ivCipher = new Rijndael();
 		ivCipher.initialize(new byte[] {
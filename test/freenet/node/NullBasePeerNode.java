@@ -164,6 +164,11 @@ public class NullBasePeerNode implements BasePeerNode {
 		// Do nothing
 	}
 
+	@Override
+	public void wakeUpSender(long time) {
+		// Do nothing
+	}
+
 	@Override
 	public int getMaxPacketSize() {
 		return 1280;
@@ -203,6 +208,11 @@ public class NullBasePeerNode implements BasePeerNode {
 		// Do nothing
 	}
 
+	@Override
+	public void refundThrottledBytes(int length) {
+		// Do nothing
+	}
+
 	@Override
 	public void onNotificationOnlyPacketSent(int length) {
 		// Do nothing
@@ -0,0 +1,130 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class PacketSendPipelineTest extends TestCase {
+
+	public void testInline() {
+		PacketSendPipeline pipeline = new PacketSendPipeline(0);
+		pipeline.start(0);
+		assertFalse(pipeline.isThreaded());
+		final List<Integer> ran = new ArrayList<Integer>();
+		for(int i = 0; i < 10; i++) {
+			final int x = i;
+			pipeline.submit(this, new Runnable() {
+				@Override
+				public void run() {
+					ran.add(x);
+				}
+			});
+			// Run on the calling thread before submit() returns.
+			assertEquals(i + 1, ran.size());
+		}
+		assertEquals(0, pipeline.getQueueDepth());
+		assertEquals(0, pipeline.queueWait.getCount());
+	}
+
+	public void testOrderedPerPeer() throws InterruptedException {
+		final int PEERS = 10;
+		final int PACKETS = 1000;
+		PacketSendPipeline pipeline = new PacketSendPipeline(4);
+		pipeline.start(0);
+		assertTrue(pipeline.isThreaded());
+		final CountDownLatch done = new CountDownLatch(PEERS * PACKETS);
+		Object[] peers = new Object[PEERS];
+		@SuppressWarnings("unchecked")
+		final List<Integer>[] sent = new List[PEERS];
+		for(int i = 0; i < PEERS; i++) {
+			peers[i] = new Object();
+			sent[i] = new ArrayList<Integer>();
+		}
+		for(int j = 0; j < PACKETS; j++) {
+			for(int i = 0; i < PEERS; i++) {
+				final int peer = i;
+				final int packet = j;
+				pipeline.submit(peers[i], new Runnable() {
+					@Override
+					public void run() {
+						synchronized(sent[peer]) {
+							sent[peer].add(packet);
+						}
+						done.countDown();
+					}
+				});
+			}
+		}
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		for(int i = 0; i < PEERS; i++) {
+			synchronized(sent[i]) {
+				assertEquals(PACKETS, sent[i].size());
+				for(int j = 0; j < PACKETS; j++)
+					assertEquals(j, sent[i].get(j).intValue());
+			}
+		}
+		assertEquals(PEERS * PACKETS, pipeline.queueWait.getCount());
+		assertTrue(pipeline.getMaxQueueDepth() > 0);
+	}
+
+	public void testBacklogged() throws InterruptedException {
+		PacketSendPipeline pipeline = new PacketSendPipeline(1);
+		pipeline.start(0);
+		BasePeerNode peer = mock(BasePeerNode.class);
+		assertFalse(pipeline.isBacklogged(peer));
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		pipeline.submit(peer, new Runnable() {
+			@Override
+			public void run() {
+				blocked.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					// Ignore.
+				}
+			}
+		});
+		assertTrue(blocked.await(30, TimeUnit.SECONDS));
+		final CountDownLatch done = new CountDownLatch(PacketSendPipeline.MAX_QUEUED_PER_WORKER);
+		for(int i = 0; i < PacketSendPipeline.MAX_QUEUED_PER_WORKER; i++) {
+			// Never blocks the caller, even when the worker is stuck.
+			pipeline.submit(peer, new Runnable() {
+				@Override
+				public void run() {
+					done.countDown();
+				}
+			});
+		}
+		assertTrue(pipeline.isBacklogged(peer));
+		assertEquals(1, pipeline.getStalls());
+		verify(peer, never()).wakeUpSender();
+		release.countDown();
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		verify(peer, timeout(30000)).wakeUpSender();
+		assertFalse(pipeline.isBacklogged(peer));
+		// The inline pipeline is never backlogged.
+		assertFalse(new PacketSendPipeline(0).isBacklogged(peer));
+	}
+
+	public void testStageStats() {
+		PacketSendPipeline.StageStats stats = new PacketSendPipeline.StageStats();
+		assertEquals(0.0, stats.getAverageMicros());
+		stats.report(1000);
+		stats.report(3000);
+		assertEquals(2, stats.getCount());
+		assertEquals(2.0, stats.getAverageMicros());
+	}
+
+}
@@ -0,0 +1,42 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import junit.framework.TestCase;
+
+public class PacketSenderTest extends TestCase {
+
+	private static PeerNode connectedPeer(long lastReceived, long checkLostPackets) {
+		PeerNode pn = mock(PeerNode.class);
+		when(pn.timeCheckForLostPackets()).thenReturn(checkLostPackets);
+		when(pn.lastReceivedDataPacketTime()).thenReturn(lastReceived);
+		when(pn.lastReceivedAckTime()).thenReturn(lastReceived);
+		when(pn.maxTimeBetweenReceivedPackets()).thenReturn(Node.MAX_PEER_INACTIVITY);
+		when(pn.maxTimeBetweenReceivedAcks()).thenReturn(Node.MAX_PEER_INACTIVITY);
+		return pn;
+	}
+
+	/** An idle peer isn't looked at on every tick of the send loop. */
+	public void testIdlePeer() {
+		long now = System.currentTimeMillis();
+		PeerNode pn = connectedPeer(now, Long.MAX_VALUE);
+		long t = PacketSender.timeCheckConnected(pn, now);
+		assertEquals(now + PacketSender.MAX_PEER_CHECK_INTERVAL, t);
+		assertTrue(t - now >= 10 * PacketSender.MAX_COALESCING_DELAY);
+	}
+
+	public void testDeadlines() {
+		long now = System.currentTimeMillis();
+		// A packet in flight.
+		PeerNode pn = connectedPeer(now, now + 300);
+		assertEquals(now + 300, PacketSender.timeCheckConnected(pn, now));
+		// We'll disconnect it if we don't hear from it soon.
+		pn = connectedPeer(now - Node.MAX_PEER_INACTIVITY + 1000, Long.MAX_VALUE);
+		assertEquals(now + 1001, PacketSender.timeCheckConnected(pn, now));
+	}
+
+}
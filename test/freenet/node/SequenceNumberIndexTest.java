@@ -0,0 +1,195 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.crypt.BlockCipher;
+import freenet.crypt.ciphers.Rijndael;
+import freenet.io.comm.Peer;
+
+public class SequenceNumberIndexTest extends TestCase {
+
+	private static final int WINDOW = 64;
+
+	private static SessionKey makeKey(Random random) {
+		byte[] key = new byte[16];
+		random.nextBytes(key);
+		BlockCipher ivCipher = new Rijndael();
+		ivCipher.initialize(key);
+		random.nextBytes(key);
+		BlockCipher incommingCipher = new Rijndael();
+		incommingCipher.initialize(key);
+		byte[] ivNonce = new byte[16];
+		random.nextBytes(ivNonce);
+		return new SessionKey(null, null, null, incommingCipher, null, ivCipher, ivNonce, null, null, -1);
+	}
+
+	/** A packet with the given sequence number: HMAC, then the encrypted sequence number. */
+	private static byte[] packet(int seqNum, SessionKey key) {
+		byte[] buf = new byte[NewPacketFormat.HMAC_LENGTH + 20];
+		System.arraycopy(NewPacketFormat.encryptSequenceNumber(seqNum, key), 0, buf, NewPacketFormat.HMAC_LENGTH, 4);
+		return buf;
+	}
+
+	private static boolean contains(SequenceNumberIndex index, PeerNode pn, int seqNum, SessionKey key) {
+		byte[] buf = packet(seqNum, key);
+		PeerNode[] peers = index.get(buf, 0, buf.length);
+		return peers != null && Arrays.asList(peers).contains(pn);
+	}
+
+	private static NewPacketFormatKeyContext makeContext(SequenceNumberIndex index, int firstSeqNum, SessionKey key) {
+		NewPacketFormatKeyContext context = new NewPacketFormatKeyContext(0, firstSeqNum, index);
+		context.createWatchList(WINDOW, key);
+		return context;
+	}
+
+	public void testAddRemoveGet() {
+		SequenceNumberIndex index = new SequenceNumberIndex();
+		PeerNode a = mock(PeerNode.class);
+		PeerNode b = mock(PeerNode.class);
+		PeerNode c = mock(PeerNode.class);
+		byte[] buf = new byte[NewPacketFormat.HMAC_LENGTH + 4];
+		buf[NewPacketFormat.HMAC_LENGTH] = 1;
+		int key = SequenceNumberIndex.toKey(buf, NewPacketFormat.HMAC_LENGTH);
+		assertNull(index.get(buf, 0, buf.length));
+		index.add(key, a);
+		assertTrue(Arrays.equals(new PeerNode[] { a }, index.get(buf, 0, buf.length)));
+		index.add(key, b);
+		index.add(key, c);
+		assertEquals(1, index.size());
+		assertEquals(3, index.get(buf, 0, buf.length).length);
+		index.remove(key, b);
+		assertTrue(Arrays.equals(new PeerNode[] { a, c }, index.get(buf, 0, buf.length)));
+		// Not there.
+		index.remove(key, b);
+		assertEquals(2, index.get(buf, 0, buf.length).length);
+		index.remove(key, a);
+		assertTrue(Arrays.equals(new PeerNode[] { c }, index.get(buf, 0, buf.length)));
+		index.remove(key, c);
+		assertNull(index.get(buf, 0, buf.length));
+		assertEquals(0, index.size());
+		// Too short to have a sequence number.
+		assertNull(index.get(buf, 0, NewPacketFormat.HMAC_LENGTH + 3));
+	}
+
+	public void testIndexFollowsWindow() {
+		Random random = new Random(1);
+		SessionKey key = makeKey(random);
+		SequenceNumberIndex index = new SequenceNumberIndex();
+		PeerNode pn = mock(PeerNode.class);
+		NewPacketFormatKeyContext context = makeContext(index, 1000, key);
+		// Not indexed until a packet has been received on the key.
+		assertFalse(context.isWatchListIndexed());
+		assertEquals(0, index.size());
+		context.indexWatchList(pn);
+		assertTrue(context.isWatchListIndexed());
+		assertEquals(WINDOW, index.size());
+		assertTrue(contains(index, pn, 1000, key));
+		assertTrue(contains(index, pn, 1000 + WINDOW - 1, key));
+		assertFalse(contains(index, pn, 1000 + WINDOW, key));
+		context.getWatchList().moveBy(10, key);
+		assertEquals(WINDOW, index.size());
+		assertFalse(contains(index, pn, 1009, key));
+		assertTrue(contains(index, pn, 1010, key));
+		assertTrue(contains(index, pn, 1010 + WINDOW - 1, key));
+		// Further than the window, so the whole window is re-encrypted.
+		context.getWatchList().moveBy(WINDOW * 2, key);
+		assertEquals(WINDOW, index.size());
+		assertFalse(contains(index, pn, 1010 + WINDOW - 1, key));
+		assertTrue(contains(index, pn, 1010 + WINDOW * 2, key));
+	}
+
+	public void testUnindexOnDisconnect() {
+		Random random = new Random(2);
+		SequenceNumberIndex index = new SequenceNumberIndex();
+		PeerNode a = mock(PeerNode.class);
+		PeerNode b = mock(PeerNode.class);
+		SessionKey keyA = makeKey(random);
+		SessionKey keyB = makeKey(random);
+		NewPacketFormatKeyContext contextA = makeContext(index, 0, keyA);
+		NewPacketFormatKeyContext contextB = makeContext(index, 0, keyB);
+		contextA.indexWatchList(a);
+		contextB.indexWatchList(b);
+		assertEquals(WINDOW * 2, index.size());
+		contextA.disconnected();
+		assertFalse(contextA.isWatchListIndexed());
+		assertEquals(WINDOW, index.size());
+		assertFalse(contains(index, a, 0, keyA));
+		assertTrue(contains(index, b, 0, keyB));
+		// A packet still being handled on the old key doesn't index it again.
+		contextA.indexWatchList(a);
+		assertFalse(contextA.isWatchListIndexed());
+		assertEquals(WINDOW, index.size());
+	}
+
+	public void testDroppedKey() {
+		Random random = new Random(3);
+		SequenceNumberIndex index = new SequenceNumberIndex();
+		PeerNode pn = mock(PeerNode.class);
+		SessionKey key = makeKey(random);
+		NewPacketFormatKeyContext context = makeContext(index, 0, key);
+		context.indexWatchList(pn);
+		context.unindexWatchList();
+		assertEquals(0, index.size());
+		context.indexWatchList(pn);
+		context.getWatchList().moveBy(10, key);
+		assertEquals(0, index.size());
+		// Dropped before the watch list was created.
+		context = new NewPacketFormatKeyContext(0, 0, index);
+		context.unindexWatchList();
+		context.createWatchList(WINDOW, key);
+		context.indexWatchList(pn);
+		assertFalse(context.isWatchListIndexed());
+		assertEquals(0, index.size());
+	}
+
+	public void testMovedPeerFoundByIndex() throws Exception {
+		Random random = new Random(4);
+		SequenceNumberIndex index = new SequenceNumberIndex();
+		SessionKey keyA = makeKey(random);
+		SessionKey keyB = makeKey(random);
+		PeerNode a = mock(PeerNode.class);
+		PeerNode b = mock(PeerNode.class);
+		PeerNode unindexed = mock(PeerNode.class);
+		when(a.isWatchListIndexed()).thenReturn(true);
+		when(b.isWatchListIndexed()).thenReturn(true);
+		when(unindexed.isWatchListIndexed()).thenReturn(false);
+		makeContext(index, 0, keyA).indexWatchList(a);
+		makeContext(index, 0, keyB).indexWatchList(b);
+		PeerNode[] peers = new PeerNode[] { a, b, unindexed };
+		Peer newAddress = new Peer("127.0.0.1:12345", false);
+		byte[] buf = packet(5, keyB);
+		long now = System.currentTimeMillis();
+		when(b.handleReceivedPacket(buf, 0, buf.length, now, newAddress)).thenReturn(true);
+
+		assertSame(b, index.handleFromUnknownAddress(buf, 0, buf.length, newAddress, now, peers, null));
+		// Found through the index: neither the other indexed peer nor the unindexed one was
+		// asked to decrypt it.
+		verify(a, never()).handleReceivedPacket(any(byte[].class), anyInt(), anyInt(), anyLong(), any(Peer.class));
+		verify(unindexed, never()).handleReceivedPacket(any(byte[].class), anyInt(), anyInt(), anyLong(), any(Peer.class));
+
+		// A packet no indexed key is watching for is only tried on the unindexed peer.
+		byte[] junk = packet(WINDOW * 4, keyA);
+		assertNull(index.handleFromUnknownAddress(junk, 0, junk.length, newAddress, now, peers, null));
+		verify(unindexed).handleReceivedPacket(junk, 0, junk.length, now, newAddress);
+		verify(a, never()).handleReceivedPacket(any(byte[].class), anyInt(), anyInt(), anyLong(), any(Peer.class));
+
+		// The peer at the packet's address has already tried it.
+		assertNull(index.handleFromUnknownAddress(buf, 0, buf.length, newAddress, now, peers, b));
+		assertNull(index.handleFromUnknownAddress(buf, 0, buf.length, newAddress, now, null, b));
+	}
+
+}
@@ -0,0 +1,135 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.crypt.BlockCipher;
+import freenet.crypt.ciphers.Rijndael;
+import freenet.support.TestProperty;
+
+public class SequenceNumberWatchListTest extends TestCase {
+
+	private static SessionKey makeKey(Random random) {
+		byte[] key = new byte[16];
+		random.nextBytes(key);
+		BlockCipher ivCipher = new Rijndael();
+		ivCipher.initialize(key);
+		random.nextBytes(key);
+		BlockCipher incommingCipher = new Rijndael();
+		incommingCipher.initialize(key);
+		byte[] ivNonce = new byte[16];
+		random.nextBytes(ivNonce);
+		return new SessionKey(null, null, null, incommingCipher, null, ivCipher, ivNonce, null, null, -1);
+	}
+
+	/** Check that every sequence number in the window can be found, and that the ones just
+	 * outside it can't. */
+	private void checkWindow(SequenceNumberWatchList watchList, SessionKey key) {
+		int offset = watchList.getOffset();
+		for(int i = 0; i < watchList.size(); i++) {
+			int seqNum = (int) ((0l + offset + i) % NewPacketFormat.NUM_SEQNUMS);
+			assertTrue("Can't find " + seqNum, contains(watchList, key, seqNum));
+		}
+		int after = (int) ((0l + offset + watchList.size()) % NewPacketFormat.NUM_SEQNUMS);
+		assertFalse(contains(watchList, key, after));
+	}
+
+	private boolean contains(SequenceNumberWatchList watchList, SessionKey key, int seqNum) {
+		byte[] buf = NewPacketFormat.encryptSequenceNumber(seqNum, key);
+		for(int slot = watchList.find(buf, 0, -1); slot != -1; slot = watchList.find(buf, 0, slot)) {
+			if(watchList.sequenceNumber(slot) == seqNum) return true;
+		}
+		return false;
+	}
+
+	public void testCreate() {
+		SessionKey key = makeKey(new Random(1));
+		SequenceNumberWatchList watchList = new SequenceNumberWatchList(128, 1000, key, null);
+		assertEquals(128, watchList.size());
+		assertEquals(1000, watchList.getOffset());
+		checkWindow(watchList, key);
+		assertFalse(contains(watchList, key, 999));
+	}
+
+	public void testMoveBy() {
+		Random random = new Random(2);
+		SessionKey key = makeKey(random);
+		SequenceNumberWatchList watchList = new SequenceNumberWatchList(100, 0, key, null);
+		int expected = 0;
+		for(int i = 0; i < 50; i++) {
+			int moveBy = random.nextInt(40);
+			watchList.moveBy(moveBy, key);
+			expected += moveBy;
+			assertEquals(expected, watchList.getOffset());
+			checkWindow(watchList, key);
+		}
+	}
+
+	public void testMoveByMoreThanSize() {
+		SessionKey key = makeKey(new Random(3));
+		SequenceNumberWatchList watchList = new SequenceNumberWatchList(64, 10, key, null);
+		watchList.moveBy(1000, key);
+		assertEquals(1010, watchList.getOffset());
+		checkWindow(watchList, key);
+		assertFalse(contains(watchList, key, 10));
+	}
+
+	public void testWrapAround() {
+		SessionKey key = makeKey(new Random(4));
+		SequenceNumberWatchList watchList = new SequenceNumberWatchList(64, Integer.MAX_VALUE - 20, key, null);
+		assertTrue(contains(watchList, key, Integer.MAX_VALUE));
+		assertTrue(contains(watchList, key, 0));
+		assertTrue(contains(watchList, key, 42));
+		watchList.moveBy(30, key);
+		assertEquals(9, watchList.getOffset());
+		checkWindow(watchList, key);
+	}
+
+	public void testBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+
+		Random random = new Random(0xBBBBBBBB);
+		SessionKey key = makeKey(random);
+		for(int size = 256; size <= 4096; size *= 4) {
+			// The old representation: an array of encrypted sequence numbers, scanned linearly.
+			byte[][] linear = new byte[size][];
+			for(int i = 0; i < size; i++)
+				linear[i] = NewPacketFormat.encryptSequenceNumber(i, key);
+			SequenceNumberWatchList watchList = new SequenceNumberWatchList(size, 0, key, null);
+			// Half hits, half misses, like packets from a peer mixed with packets from others.
+			byte[][] lookups = new byte[1024][];
+			for(int i = 0; i < lookups.length; i++)
+				lookups[i] = NewPacketFormat.encryptSequenceNumber((i % 2 == 0) ? random.nextInt(size) : size + random.nextInt(size), key);
+			int iterations = 20000000 / size;
+			int found = 0;
+			for(int pass = 0; pass < 2; pass++) {
+				long t1 = System.nanoTime();
+				for(int i = 0; i < iterations; i++) {
+					byte[] buf = lookups[i % lookups.length];
+					for(int j = 0; j < size; j++) {
+						if(Arrays.equals(linear[j], buf)) {
+							found++;
+							break;
+						}
+					}
+				}
+				long linearTime = System.nanoTime() - t1;
+				t1 = System.nanoTime();
+				for(int i = 0; i < iterations; i++) {
+					if(watchList.find(lookups[i % lookups.length], 0, -1) != -1) found++;
+				}
+				long hashTime = System.nanoTime() - t1;
+				if(pass == 1)
+					System.out.println("Window " + size + ": linear " + (linearTime / iterations) +
+							"ns/lookup, hashed " + (hashTime / iterations) + "ns/lookup");
+			}
+			assertTrue(found > 0);
+		}
+	}
+
+}
@@ -0,0 +1,131 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class UIDRegistryTest extends TestCase {
+
+	public void testCategories() {
+		HashSet<Integer> seen = new HashSet<Integer>();
+		for(int i=0;i<16;i++) {
+			boolean ssk = (i & 1) != 0;
+			boolean insert = (i & 2) != 0;
+			boolean offer = (i & 4) != 0;
+			boolean realTime = (i & 8) != 0;
+			int category = UIDRegistry.category(ssk, insert, offer, realTime);
+			assertTrue(category >= 0 && category < UIDRegistry.CATEGORIES);
+			// Offer replies are the same whether or not insert is set.
+			if(!(offer && insert)) assertTrue(seen.add(category));
+		}
+		assertEquals(UIDRegistry.CATEGORIES, seen.size());
+	}
+
+	public void testPutGetRemove() {
+		UIDRegistry<Object> registry = new UIDRegistry<Object>();
+		Object a = new Object();
+		Object b = new Object();
+		assertNull(registry.putIfAbsent(0, 1, a, true));
+		assertSame(a, registry.get(0, 1));
+		// Categories are separate.
+		assertNull(registry.get(1, 1));
+		assertNull(registry.putIfAbsent(1, 1, b, false));
+		// Already registered.
+		assertSame(a, registry.putIfAbsent(0, 1, b, false));
+		assertSame(a, registry.get(0, 1));
+		assertEquals(1, registry.count(0));
+		assertEquals(1, registry.countLocal(0));
+		assertEquals(1, registry.count(1));
+		assertEquals(0, registry.countLocal(1));
+		assertEquals(2, registry.size());
+		// Only removed if the value matches.
+		assertSame(a, registry.remove(0, 1, b));
+		assertSame(a, registry.get(0, 1));
+		assertSame(a, registry.remove(0, 1, a));
+		assertNull(registry.get(0, 1));
+		assertNull(registry.remove(0, 1, a));
+		assertEquals(0, registry.count(0));
+		assertEquals(0, registry.countLocal(0));
+		assertEquals(1, registry.size());
+	}
+
+	public void testManyUIDs() {
+		UIDRegistry<Long> registry = new UIDRegistry<Long>();
+		Random random = new Random(1234);
+		final int COUNT = 10000;
+		long[] uids = new long[COUNT];
+		Long[] values = new Long[COUNT];
+		for(int i=0;i<COUNT;i++) {
+			uids[i] = random.nextLong();
+			values[i] = Long.valueOf(uids[i]);
+			assertNull(registry.putIfAbsent(2, uids[i], values[i], (i & 1) == 0));
+		}
+		assertEquals(COUNT, registry.count(2));
+		assertEquals(COUNT / 2, registry.countLocal(2));
+		List<Long> list = new ArrayList<Long>();
+		registry.addValues(2, true, list);
+		assertEquals(COUNT / 2, list.size());
+		list.clear();
+		registry.addUIDs(2, list);
+		assertEquals(COUNT, list.size());
+		assertEquals(COUNT, new HashSet<Long>(list).size());
+		// Remove most of them in a different order, so the tables shrink and entries are shifted.
+		for(int i=COUNT-1;i>=COUNT/10;i-=1) {
+			assertSame(values[i], registry.remove(2, uids[i], values[i]));
+			if(i % 1000 == 0) {
+				for(int j=0;j<i;j++)
+					assertSame(values[j], registry.get(2, uids[j]));
+			}
+		}
+		assertEquals(COUNT / 10, registry.count(2));
+		for(int i=0;i<COUNT;i++) {
+			if(i < COUNT / 10)
+				assertSame(values[i], registry.get(2, uids[i]));
+			else
+				assertNull(registry.get(2, uids[i]));
+		}
+	}
+
+	public void testConcurrent() throws InterruptedException {
+		final UIDRegistry<Object> registry = new UIDRegistry<Object>();
+		final int THREADS = 8;
+		final int OPS = 20000;
+		final Throwable[] failed = new Throwable[1];
+		Thread[] threads = new Thread[THREADS];
+		for(int t=0;t<THREADS;t++) {
+			final Random random = new Random(t);
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						Object tag = new Object();
+						for(int i=0;i<OPS;i++) {
+							int category = random.nextInt(UIDRegistry.CATEGORIES);
+							long uid = random.nextLong();
+							boolean local = random.nextBoolean();
+							assertNull(registry.putIfAbsent(category, uid, tag, local));
+							assertSame(tag, registry.get(category, uid));
+							assertSame(tag, registry.remove(category, uid, tag));
+						}
+					} catch (Throwable t) {
+						failed[0] = t;
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for(Thread thread : threads)
+			thread.join();
+		assertNull(failed[0]);
+		assertEquals(0, registry.size());
+		for(int i=0;i<UIDRegistry.CATEGORIES;i++)
+			assertEquals(0, registry.countLocal(i));
+	}
+
+}
@@ -0,0 +1,225 @@
+package freenet.store;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+import freenet.crypt.DSAPublicKey;
+import freenet.keys.KeyVerifyException;
+import freenet.support.TestProperty;
+
+public class RAMFreenetStoreTest extends TestCase {
+
+	/** A block which is just its routing key, so the store is all that is measured. */
+	private static class TestBlock implements StorableBlock {
+		final byte[] routingKey;
+
+		TestBlock(int i) {
+			routingKey = new byte[32];
+			new Random(i).nextBytes(routingKey);
+		}
+
+		@Override
+		public byte[] getRoutingKey() {
+			return routingKey;
+		}
+
+		@Override
+		public byte[] getFullKey() {
+			return routingKey;
+		}
+	}
+
+	private static class TestStore extends StoreCallback<TestBlock> {
+
+		@Override
+		public int dataLength() {
+			return 32;
+		}
+
+		@Override
+		public int headerLength() {
+			return 0;
+		}
+
+		@Override
+		public int routingKeyLength() {
+			return 32;
+		}
+
+		@Override
+		public boolean storeFullKeys() {
+			return false;
+		}
+
+		@Override
+		public boolean constructNeedsKey() {
+			return true;
+		}
+
+		@Override
+		public int fullKeyLength() {
+			return 32;
+		}
+
+		@Override
+		public boolean collisionPossible() {
+			return false;
+		}
+
+		@Override
+		public TestBlock construct(byte[] data, byte[] headers, byte[] routingKey, byte[] fullKey, boolean canReadClientCache, boolean canReadSlashdotCache, BlockMetadata meta, DSAPublicKey knownPubKey) throws KeyVerifyException {
+			if(!Arrays.equals(data, routingKey)) throw new KeyVerifyException("Corrupt");
+			TestBlock block = new TestBlock(0);
+			System.arraycopy(routingKey, 0, block.routingKey, 0, 32);
+			return block;
+		}
+
+		@Override
+		public byte[] routingKeyFromFullKey(byte[] keyBuf) {
+			return keyBuf;
+		}
+
+		TestBlock fetch(TestBlock block, boolean dontPromote) throws IOException {
+			return store.fetch(block.routingKey, null, dontPromote, false, false, false, null);
+		}
+
+		void put(TestBlock block) throws IOException {
+			try {
+				store.put(block, block.routingKey, new byte[0], false, false);
+			} catch (KeyCollisionException e) {
+				fail();
+			}
+		}
+	}
+
+	private static TestBlock[] makeBlocks(int count) {
+		TestBlock[] blocks = new TestBlock[count];
+		for(int i=0;i<count;i++)
+			blocks[i] = new TestBlock(i);
+		return blocks;
+	}
+
+	public void testLRU() throws IOException {
+		TestStore store = new TestStore();
+		RAMFreenetStore<TestBlock> ramStore = new RAMFreenetStore<TestBlock>(store, 10);
+		TestBlock[] blocks = makeBlocks(12);
+		for(int i=0;i<10;i++)
+			store.put(blocks[i]);
+		assertEquals(10, ramStore.keyCount());
+		// Promote block 0, so block 1 is the least recently used.
+		assertNotNull(store.fetch(blocks[0], false));
+		// Block 2 is not promoted.
+		assertNotNull(store.fetch(blocks[2], true));
+		store.put(blocks[10]);
+		store.put(blocks[11]);
+		assertEquals(10, ramStore.keyCount());
+		assertNotNull(store.fetch(blocks[0], true));
+		assertNull(store.fetch(blocks[1], true));
+		assertNull(store.fetch(blocks[2], true));
+		for(int i=3;i<12;i++)
+			assertNotNull(store.fetch(blocks[i], true));
+		assertEquals(12, ramStore.hits());
+		assertEquals(2, ramStore.misses());
+		assertEquals(12, ramStore.writes());
+
+		ramStore.setMaxKeys(3, true);
+		assertEquals(3, ramStore.keyCount());
+		assertNotNull(store.fetch(blocks[0], true));
+		assertNull(store.fetch(blocks[9], true));
+		assertNotNull(store.fetch(blocks[10], true));
+		assertNotNull(store.fetch(blocks[11], true));
+		ramStore.clear();
+		assertEquals(0, ramStore.keyCount());
+		assertFalse(ramStore.probablyInStore(blocks[11].routingKey));
+	}
+
+	public void testConcurrent() throws InterruptedException {
+		final int THREADS = 8;
+		final int OPS = 20000;
+		final TestStore store = new TestStore();
+		final RAMFreenetStore<TestBlock> ramStore = new RAMFreenetStore<TestBlock>(store, 100);
+		final TestBlock[] blocks = makeBlocks(300);
+		final AtomicLong fetches = new AtomicLong();
+		final Throwable[] failed = new Throwable[1];
+		Thread[] threads = new Thread[THREADS];
+		for(int t=0;t<THREADS;t++) {
+			final Random random = new Random(t);
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for(int i=0;i<OPS;i++) {
+							TestBlock block = blocks[random.nextInt(blocks.length)];
+							if(random.nextBoolean()) {
+								store.put(block);
+							} else {
+								TestBlock found = store.fetch(block, random.nextBoolean());
+								if(found != null)
+									assertTrue(Arrays.equals(block.routingKey, found.routingKey));
+								fetches.incrementAndGet();
+							}
+							assertTrue(ramStore.keyCount() <= 100 + THREADS);
+						}
+					} catch (Throwable t) {
+						failed[0] = t;
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for(Thread thread : threads)
+			thread.join();
+		assertNull(failed[0]);
+		assertEquals(100, ramStore.keyCount());
+		assertEquals(fetches.get(), ramStore.hits() + ramStore.misses());
+		int present = 0;
+		for(TestBlock block : blocks)
+			if(ramStore.probablyInStore(block.routingKey)) present++;
+		assertEquals(100, present);
+	}
+
+	/* Throughput of a mix of fetches and puts, with increasing numbers of threads. */
+	public void testBenchmark() throws InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+
+		final int OPS = 2000000;
+		final TestBlock[] blocks = makeBlocks(20000);
+		for(int threadCount = 1; threadCount <= 16; threadCount *= 2) {
+			final TestStore store = new TestStore();
+			new RAMFreenetStore<TestBlock>(store, 10000);
+			Thread[] threads = new Thread[threadCount];
+			final int opsPerThread = OPS / threadCount;
+			for(int t=0;t<threadCount;t++) {
+				final Random random = new Random(t);
+				threads[t] = new Thread() {
+					@Override
+					public void run() {
+						try {
+							for(int i=0;i<opsPerThread;i++) {
+								TestBlock block = blocks[random.nextInt(blocks.length)];
+								// Mostly fetches, as on a real node.
+								if(random.nextInt(10) == 0)
+									store.put(block);
+								else
+									store.fetch(block, false);
+							}
+						} catch (IOException e) {
+							fail();
+						}
+					}
+				};
+			}
+			long start = System.nanoTime();
+			for(Thread thread : threads)
+				thread.start();
+			for(Thread thread : threads)
+				thread.join();
+			long time = System.nanoTime() - start;
+			System.out.println(threadCount + " threads: " + (OPS * 1000L * 1000 / time) + " ops/ms");
+		}
+	}
+
+}
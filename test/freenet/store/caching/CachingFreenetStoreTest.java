@@ -29,11 +29,13 @@ import freenet.keys.ClientSSKBlock;
 import freenet.keys.InsertableClientSSK;
 import freenet.keys.Key;
 import freenet.keys.KeyDecodeException;
+import freenet.keys.NodeCHK;
 import freenet.keys.NodeSSK;
 import freenet.keys.SSKBlock;
 import freenet.keys.SSKEncodeException;
 import freenet.keys.SSKVerifyException;
 import freenet.node.SemiOrderedShutdownHook;
+import freenet.store.BatchFetchCallback;
 import freenet.store.CHKStore;
 import freenet.store.GetPubkey;
 import freenet.store.KeyCollisionException;
@@ -112,6 +114,165 @@ public class CachingFreenetStoreTest extends TestCase {
 		cachingStore.close();
 	}
 	
+	/* Batch fetch with some keys in the cache, some in the underlying store and some in neither */
+	public void testBatchFetchCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException, KeyCollisionException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testCachingFreenetStoreCHK", store, weakPRNG, 20, false, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		CachingFreenetStoreTracker tracker = new CachingFreenetStoreTracker(cachingFreenetStoreMaxSize, cachingFreenetStorePeriod, ticker);
+		CachingFreenetStore<CHKBlock> cachingStore = new CachingFreenetStore<CHKBlock>(store, saltStore, tracker);
+		cachingStore.start(null, true);
+
+		ClientCHK[] keys = new ClientCHK[9];
+		NodeCHK[] nodeKeys = new NodeCHK[keys.length];
+		for(int i=0;i<keys.length;i++) {
+			ClientCHKBlock block = encodeBlockCHK("test" + i);
+			CHKBlock b = block.getBlock();
+			if(i % 3 == 0)
+				store.put(b, false);
+			else if(i % 3 == 1)
+				saltStore.put(b, b.getRawData(), b.getRawHeaders(), false, false);
+			keys[i] = block.getClientKey();
+			nodeKeys[i] = keys[i].getNodeCHK();
+		}
+
+		final CHKBlock[] results = new CHKBlock[keys.length];
+		final int[] fetched = new int[1];
+		final boolean[] finished = new boolean[1];
+		store.fetch(nodeKeys, false, false, new BatchFetchCallback<CHKBlock>() {
+
+			@Override
+			public void onFetched(int index, CHKBlock block) {
+				results[index] = block;
+				fetched[0]++;
+			}
+
+			@Override
+			public void onFinished() {
+				finished[0] = true;
+			}
+
+		});
+		assertTrue(finished[0]);
+		assertEquals(keys.length, fetched[0]);
+		for(int i=0;i<keys.length;i++) {
+			if(i % 3 == 2)
+				assertNull(results[i]);
+			else
+				assertEquals("test" + i, decodeBlockCHK(results[i], keys[i]));
+		}
+
+		cachingStore.close();
+	}
+
+	/* Write the cache out in byte-budgeted batches, and check the statistics. */
+	public void testPushBlocks() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		int sizeBlock = store.getTotalBlockSize();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testCachingFreenetStoreCHK", store, weakPRNG, 100, false, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		CachingFreenetStoreTracker tracker = new CachingFreenetStoreTracker(cachingFreenetStoreMaxSize, cachingFreenetStorePeriod, ticker);
+		CachingFreenetStore<CHKBlock> cachingStore = new CachingFreenetStore<CHKBlock>(store, saltStore, tracker);
+		cachingStore.start(null, true);
+
+		assertEquals(-1, cachingStore.pushBlocks(sizeBlock * 3));
+		ClientCHKBlock[] blocks = new ClientCHKBlock[10];
+		for(int i=0;i<blocks.length;i++) {
+			blocks[i] = encodeBlockCHK("test" + i);
+			store.put(blocks[i].getBlock(), false);
+		}
+		assertEquals(sizeBlock * blocks.length, tracker.getSizeOfCache());
+		
+		// Only the three oldest are written.
+		assertEquals(sizeBlock * 3, cachingStore.pushBlocks(sizeBlock * 3));
+		for(int i=0;i<blocks.length;i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			CHKBlock inStore = saltStore.fetch(key.getRoutingKey(), key.getNodeCHK().getFullKey(), false, false, false, false, null);
+			if(i < 3)
+				assertNotNull(inStore);
+			else
+				assertNull(inStore);
+		}
+		assertFalse(cachingStore.isEmpty());
+		
+		// Calling pushBlocks() directly didn't update the tracker, so it will never reach 0.
+		tracker.pushAllCachingStores();
+		assertEquals(sizeBlock * 3, tracker.getSizeOfCache());
+		assertTrue(cachingStore.isEmpty());
+		assertEquals(sizeBlock * (blocks.length - 3), tracker.getBytesFlushed());
+		assertTrue(tracker.getFlushes() > 0);
+		assertTrue(tracker.getMaxFlushTime() >= tracker.getAverageFlushTime());
+		
+		for(int i=0;i<blocks.length;i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			assertEquals("test" + i, decodeBlockCHK(store.fetch(key.getNodeCHK(), false, false, null), key));
+		}
+		// Everything came from the underlying store.
+		assertEquals(0, tracker.getCacheHits());
+		assertEquals(blocks.length, tracker.getCacheMisses());
+		
+		store.put(blocks[0].getBlock(), true);
+		assertNotNull(store.fetch(blocks[0].getClientKey().getNodeCHK(), false, false, null));
+		assertEquals(1, tracker.getCacheHits());
+
+		cachingStore.close();
+	}
+	
+	/* Many threads putting and fetching at once, with the flusher running. */
+	public void testConcurrentPuts() throws IOException, CHKEncodeException, InterruptedException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		final int THREADS = 4;
+		final int BLOCKS = 50;
+		final CHKStore store = new CHKStore();
+		int sizeBlock = store.getTotalBlockSize();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testCachingFreenetStoreCHK", store, weakPRNG, THREADS * BLOCKS * 5, false, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		// Small enough that the flusher runs and some puts go straight through.
+		WaitableCachingFreenetStoreTracker tracker = new WaitableCachingFreenetStoreTracker(sizeBlock * 20, cachingFreenetStorePeriod, ticker);
+		CachingFreenetStore<CHKBlock> cachingStore = new CachingFreenetStore<CHKBlock>(store, saltStore, tracker);
+		cachingStore.start(null, true);
+		
+		final ClientCHKBlock[] blocks = new ClientCHKBlock[THREADS * BLOCKS];
+		for(int i=0;i<blocks.length;i++)
+			blocks[i] = encodeBlockCHK("test" + i);
+		final Throwable[] failed = new Throwable[1];
+		Thread[] threads = new Thread[THREADS];
+		for(int t=0;t<THREADS;t++) {
+			final int start = t * BLOCKS;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for(int i=start;i<start+BLOCKS;i++) {
+							store.put(blocks[i].getBlock(), false);
+							ClientCHK key = blocks[i].getClientKey();
+							assertEquals("test" + i, decodeBlockCHK(store.fetch(key.getNodeCHK(), false, false, null), key));
+						}
+					} catch (Throwable t) {
+						failed[0] = t;
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for(Thread thread : threads)
+			thread.join();
+		assertNull(failed[0]);
+		tracker.pushAllCachingStores();
+		tracker.waitForZero();
+		for(int i=0;i<blocks.length;i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			assertNotNull(saltStore.fetch(key.getRoutingKey(), key.getNodeCHK().getFullKey(), false, false, false, false, null));
+		}
+		
+		cachingStore.close();
+	}
+
 	/* Check that if the size limit is 0 (and therefore presumably if it is smaller than the key being
 	 * cached), we will pass through immediately. */
 	public void testZeroSize() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
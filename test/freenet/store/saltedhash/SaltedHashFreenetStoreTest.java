@@ -23,11 +23,13 @@ import freenet.keys.ClientSSKBlock;
 import freenet.keys.InsertableClientSSK;
 import freenet.keys.Key;
 import freenet.keys.KeyDecodeException;
+import freenet.keys.NodeCHK;
 import freenet.keys.NodeSSK;
 import freenet.keys.SSKBlock;
 import freenet.keys.SSKEncodeException;
 import freenet.keys.SSKVerifyException;
 import freenet.node.SemiOrderedShutdownHook;
+import freenet.store.BatchFetchCallback;
 import freenet.store.CHKStore;
 import freenet.store.GetPubkey;
 import freenet.store.KeyCollisionException;
@@ -37,6 +39,7 @@ import freenet.store.SSKStore;
 import freenet.store.SimpleGetPubkey;
 import freenet.support.PooledExecutor;
 import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.TestProperty;
 import freenet.support.Ticker;
 import freenet.support.TrivialTicker;
 import freenet.support.api.Bucket;
@@ -95,6 +98,148 @@ public class SaltedHashFreenetStoreTest extends TestCase {
 		saltStore.close();
 	}
 	
+	/* Test with CHK for SaltedHashFreenetStore with the metadata memory mapped, including resizing */
+	public void testMmapCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore.NO_CLEANER_SLEEP = true;
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreMmap", store, weakPRNG, 10, false, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(ticker, true);
+		assertTrue(saltStore.setMmapMetadata(true));
+		assertTrue(saltStore.isMmapMetadata());
+
+		ClientCHK[] keys = new ClientCHK[5];
+		for(int i=0;i<keys.length;i++) {
+			ClientCHKBlock block = encodeBlockCHK("test" + i);
+			store.put(block.getBlock(), false);
+			keys[i] = block.getClientKey();
+			CHKBlock verify = store.fetch(keys[i].getNodeCHK(), false, false, null);
+			assertEquals("test" + i, decodeBlockCHK(verify, keys[i]));
+		}
+
+		// Grow the store: the mapping must follow the file.
+		saltStore.setMaxKeys(40, true);
+		assertTrue(saltStore.isMmapMetadata());
+		for(int i=0;i<keys.length;i++) {
+			CHKBlock verify = store.fetch(keys[i].getNodeCHK(), false, false, null);
+			assertEquals("test" + i, decodeBlockCHK(verify, keys[i]));
+		}
+
+		// Switching off falls back to the file channel and sees the same data.
+		assertFalse(saltStore.setMmapMetadata(false));
+		assertFalse(saltStore.isMmapMetadata());
+		for(int i=0;i<keys.length;i++) {
+			CHKBlock verify = store.fetch(keys[i].getNodeCHK(), false, false, null);
+			assertEquals("test" + i, decodeBlockCHK(verify, keys[i]));
+		}
+		assertTrue(saltStore.setMmapMetadata(true));
+		saltStore.close();
+
+		// Writes through the mapping are on disk.
+		store = new CHKStore();
+		saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreMmap", store, weakPRNG, 40, false, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+		for(int i=0;i<keys.length;i++) {
+			CHKBlock verify = store.fetch(keys[i].getNodeCHK(), false, false, null);
+			assertEquals("test" + i, decodeBlockCHK(verify, keys[i]));
+		}
+		saltStore.close();
+	}
+
+	/* Batch fetch of a segment's worth of keys, some present and some not */
+	public void testBatchFetchCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreBatch", store, weakPRNG, 200, false, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+
+		final int present = 50;
+		final ClientCHK[] keys = new ClientCHK[128];
+		NodeCHK[] nodeKeys = new NodeCHK[keys.length];
+		for(int i=0;i<keys.length;i++) {
+			ClientCHKBlock block = encodeBlockCHK("test" + i);
+			if(i < present)
+				store.put(block.getBlock(), false);
+			keys[i] = block.getClientKey();
+			nodeKeys[i] = keys[i].getNodeCHK();
+		}
+		long misses = saltStore.misses();
+
+		final CHKBlock[] results = new CHKBlock[keys.length];
+		final boolean[] fetched = new boolean[keys.length];
+		final boolean[] finished = new boolean[1];
+		store.fetch(nodeKeys, false, false, new BatchFetchCallback<CHKBlock>() {
+
+			@Override
+			public void onFetched(int index, CHKBlock block) {
+				assertFalse(fetched[index]);
+				assertFalse(finished[0]);
+				fetched[index] = true;
+				results[index] = block;
+			}
+
+			@Override
+			public void onFinished() {
+				finished[0] = true;
+			}
+
+		});
+		assertTrue(finished[0]);
+		for(int i=0;i<keys.length;i++) {
+			assertTrue(fetched[i]);
+			if(i < present)
+				assertEquals("test" + i, decodeBlockCHK(results[i], keys[i]));
+			else
+				assertNull(results[i]);
+		}
+		assertEquals(misses + keys.length - present, saltStore.misses());
+		// 640 probes in a 200 slot store: a few reads, not hundreds.
+		assertTrue(saltStore.getBatchReads() < 5);
+
+		saltStore.close();
+	}
+
+	/* Compare lookup latency with and without the metadata memory mapped. Lookups are for keys
+	 * which aren't in the store, with the slot filter off, so every probe reads metadata. */
+	public void testBenchmark() throws IOException, CHKEncodeException {
+		if(!TestProperty.BENCHMARK) return;
+
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		final int storeSize = 100000;
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreBenchmark", store, weakPRNG, storeSize, false, SemiOrderedShutdownHook.get(), false, true, ticker, null);
+		saltStore.start(null, true);
+		for(int i=0;i<1000;i++)
+			store.put(encodeBlockCHK("test" + i).getBlock(), false);
+
+		final int lookups = 200000;
+		NodeCHK[] keys = new NodeCHK[lookups];
+		for(int i=0;i<lookups;i++) {
+			byte[] routingKey = new byte[32];
+			weakPRNG.nextBytes(routingKey);
+			keys[i] = new NodeCHK(routingKey, Key.ALGO_AES_PCFB_256_SHA256);
+		}
+		for(int pass=0;pass<2;pass++) {
+			for(boolean mmap : new boolean[] { false, true }) {
+				saltStore.setMmapMetadata(mmap);
+				assertEquals(mmap, saltStore.isMmapMetadata());
+				long start = System.nanoTime();
+				for(NodeCHK key : keys)
+					assertNull(store.fetch(key, false, false, null));
+				long time = System.nanoTime() - start;
+				if(pass == 1)
+					System.out.println((mmap ? "Memory mapped: " : "File channel: ") + (time / lookups) + "ns/lookup");
+			}
+		}
+		saltStore.close();
+	}
+
 	/* Simple test with SSK for SaltedHashFreenetStore without slotFilter */
 	public void testSimpleSSK() throws IOException, KeyCollisionException, SSKVerifyException, KeyDecodeException, SSKEncodeException, InvalidCompressionCodecException {
 		File f = new File(tempDir, "saltstore");
@@ -1,5 +1,7 @@
 package freenet.support;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -149,4 +151,123 @@ public class BloomFilterTest extends TestCase {
 		BloomFilter filter = BloomFilter.createFilter(FILTER_SIZE, K, false);
 		_testFilterFalsePositive(filter);
 	}
+
+	public void testDoubleHashingFilterPositive() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS_POS);
+		_testFilterPositive(BloomFilter.createFilter(FILTER_SIZE, K, true, BloomFilter.HashFunction.DOUBLE_HASHING));
+		_testFilterPositive(BloomFilter.createFilter(FILTER_SIZE, K, false, BloomFilter.HashFunction.DOUBLE_HASHING));
+	}
+
+	public void testDoubleHashingFilterFalsePositive() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS);
+		_testFilterFalsePositive(BloomFilter.createFilter(FILTER_SIZE, K, true, BloomFilter.HashFunction.DOUBLE_HASHING));
+		_testFilterFalsePositive(BloomFilter.createFilter(FILTER_SIZE, K, false, BloomFilter.HashFunction.DOUBLE_HASHING));
+	}
+
+	public void testDoubleHashingFilterRemove() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS_POS);
+		BloomFilter filter = BloomFilter.createFilter(FILTER_SIZE, K, true, BloomFilter.HashFunction.DOUBLE_HASHING);
+		byte[][] keys = new byte[PASS_POS][];
+		for (int i = 0; i < PASS_POS; i++) {
+			keys[i] = new byte[32];
+			rand.nextBytes(keys[i]);
+			filter.addKey(keys[i]);
+		}
+		for (int i = 0; i < PASS_POS; i += 2)
+			filter.removeKey(keys[i]);
+		for (int i = 1; i < PASS_POS; i += 2)
+			assertTrue(filter.checkFilter(keys[i]));
+		for (int i = 1; i < PASS_POS; i += 2)
+			filter.removeKey(keys[i]);
+		for (byte[] key : keys)
+			assertFalse(filter.checkFilter(key));
+	}
+
+	public void testDoubleHashingForkKeepsHashFunction() {
+		BloomFilter filter = BloomFilter.createFilter(FILTER_SIZE, 4, false, BloomFilter.HashFunction.DOUBLE_HASHING);
+		byte[] key = new byte[32];
+		rand.nextBytes(key);
+		filter.fork(4);
+		// Only added to the forked filter, so only found if it hashes the same way.
+		filter.addKeyForked(key);
+		filter.merge();
+		assertEquals(BloomFilter.HashFunction.DOUBLE_HASHING, filter.getHashFunction());
+		assertTrue(filter.checkFilter(key));
+	}
+
+	public void testDoubleHashingShortKey() {
+		BloomFilter filter = BloomFilter.createFilter(FILTER_SIZE, 4, false, BloomFilter.HashFunction.DOUBLE_HASHING);
+		try {
+			filter.addKey(new byte[8]);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+	}
+
+	/** A file written with the other hash function is cleared and must be rebuilt. */
+	public void testFileHashFunctionChange() throws IOException {
+		File file = File.createTempFile("bloom", ".tmp");
+		file.deleteOnExit();
+		assertTrue(file.delete());
+		byte[] key = new byte[32];
+		rand.nextBytes(key);
+		for (boolean counting : new boolean[] { false, true }) {
+			BloomFilter filter = BloomFilter.createFilter(file, FILTER_SIZE, 4, counting);
+			assertTrue(filter.needRebuild());
+			filter.addKey(key);
+			filter.close();
+			filter = BloomFilter.createFilter(file, FILTER_SIZE, 4, counting);
+			assertFalse(filter.needRebuild());
+			assertTrue(filter.checkFilter(key));
+			filter.close();
+
+			filter = BloomFilter.createFilter(file, FILTER_SIZE, 4, counting, BloomFilter.HashFunction.DOUBLE_HASHING);
+			assertTrue(filter.needRebuild());
+			assertEquals(0, filter.getFilledCount());
+			filter.addKey(key);
+			filter.close();
+			filter = BloomFilter.createFilter(file, FILTER_SIZE, 4, counting, BloomFilter.HashFunction.DOUBLE_HASHING);
+			assertFalse(filter.needRebuild());
+			assertTrue(filter.checkFilter(key));
+			filter.close();
+
+			// And back again.
+			filter = BloomFilter.createFilter(file, FILTER_SIZE, 4, counting);
+			assertTrue(filter.needRebuild());
+			assertEquals(0, filter.getFilledCount());
+			filter.close();
+			assertTrue(file.delete());
+		}
+	}
+
+	/* Lookups per second with each hash function. */
+	public void testBenchmark() {
+		if (!TestProperty.BENCHMARK) return;
+
+		final int KEYS = 100000;
+		final int LOOKUPS = 2000000;
+		byte[][] keys = new byte[KEYS][];
+		for (int i = 0; i < KEYS; i++) {
+			keys[i] = new byte[32];
+			rand.nextBytes(keys[i]);
+		}
+		int length = KEYS * 19;
+		int K = BloomFilter.optimialK(length, KEYS);
+		for (BloomFilter.HashFunction hashFunction : BloomFilter.HashFunction.values()) {
+			for (boolean counting : new boolean[] { false, true }) {
+				BloomFilter filter = BloomFilter.createFilter(length, K, counting, hashFunction);
+				for (byte[] key : keys)
+					filter.addKey(key);
+				int found = 0;
+				long start = System.nanoTime();
+				for (int i = 0; i < LOOKUPS; i++)
+					if (filter.checkFilter(keys[i % KEYS])) found++;
+				long time = System.nanoTime() - start;
+				assertEquals(LOOKUPS, found);
+				System.out.println(hashFunction + (counting ? " counting: " : " binary: ") +
+						(LOOKUPS * 1000L * 1000 / time) + " lookups/ms");
+			}
+		}
+	}
 }
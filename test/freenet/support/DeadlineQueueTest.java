@@ -0,0 +1,130 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class DeadlineQueueTest extends TestCase {
+
+	public void testOrder() {
+		DeadlineQueue<String> queue = new DeadlineQueue<String>();
+		assertEquals(Long.MAX_VALUE, queue.peekTime());
+		assertNull(queue.pollDue(Long.MAX_VALUE));
+		queue.schedule("c", 30);
+		queue.schedule("a", 10);
+		queue.schedule("b", 20);
+		assertEquals(3, queue.size());
+		assertEquals(10, queue.peekTime());
+		assertNull(queue.pollDue(9));
+		assertEquals("a", queue.pollDue(10));
+		assertEquals("b", queue.pollDue(100));
+		assertEquals("c", queue.pollDue(100));
+		assertNull(queue.pollDue(100));
+		assertEquals(0, queue.size());
+	}
+
+	public void testReschedule() {
+		DeadlineQueue<String> queue = new DeadlineQueue<String>();
+		queue.schedule("a", 10);
+		queue.schedule("b", 20);
+		// Later.
+		queue.schedule("a", 30);
+		assertEquals(20, queue.peekTime());
+		assertEquals(30, queue.getTime("a"));
+		// Only earlier.
+		assertFalse(queue.scheduleBefore("a", 40));
+		assertEquals(30, queue.getTime("a"));
+		assertTrue(queue.scheduleBefore("a", 5));
+		assertEquals(5, queue.peekTime());
+		assertEquals(2, queue.size());
+		assertTrue(queue.remove("a"));
+		assertFalse(queue.remove("a"));
+		assertEquals(Long.MAX_VALUE, queue.getTime("a"));
+		assertEquals("b", queue.pollDue(20));
+	}
+
+	public void testIdentity() {
+		DeadlineQueue<String> queue = new DeadlineQueue<String>();
+		String a1 = new String("a");
+		String a2 = new String("a");
+		queue.schedule(a1, 10);
+		queue.schedule(a2, 20);
+		assertEquals(2, queue.size());
+		assertSame(a1, queue.pollDue(100));
+		assertSame(a2, queue.pollDue(100));
+	}
+
+	public void testSetItems() {
+		DeadlineQueue<Integer> queue = new DeadlineQueue<Integer>();
+		Integer[] items = new Integer[100];
+		for(int i = 0; i < items.length; i++) {
+			items[i] = new Integer(i);
+			queue.schedule(items[i], 1000 - i);
+		}
+		Integer extra = new Integer(1000);
+		Integer[] keep = new Integer[51];
+		for(int i = 0; i < 50; i++)
+			keep[i] = items[i * 2];
+		keep[50] = extra;
+		assertEquals(51, queue.setItems(keep, 5));
+		assertEquals(51, queue.size());
+		assertSame(extra, queue.pollDue(5));
+		long last = 0;
+		for(int i = 0; i < 50; i++) {
+			Integer item = queue.pollDue(Long.MAX_VALUE);
+			assertTrue(item.intValue() % 2 == 0);
+			// Kept their deadlines.
+			long time = 1000 - item.intValue();
+			assertTrue(time >= last);
+			last = time;
+		}
+		assertEquals(0, queue.size());
+	}
+
+	public void testRandom() {
+		Random random = new Random(0x5EED);
+		DeadlineQueue<Integer> queue = new DeadlineQueue<Integer>();
+		Integer[] items = new Integer[200];
+		for(int i = 0; i < items.length; i++)
+			items[i] = new Integer(i);
+		Map<Integer, Long> times = new HashMap<Integer, Long>();
+		for(int i = 0; i < 100000; i++) {
+			Integer item = items[random.nextInt(items.length)];
+			long time = random.nextInt(10000);
+			switch(random.nextInt(4)) {
+			case 0:
+				queue.schedule(item, time);
+				times.put(item, time);
+				break;
+			case 1:
+				Long old = times.get(item);
+				assertEquals(old == null || time < old, queue.scheduleBefore(item, time));
+				if(old == null || time < old) times.put(item, time);
+				break;
+			case 2:
+				assertEquals(times.remove(item) != null, queue.remove(item));
+				break;
+			case 3:
+				long min = Long.MAX_VALUE;
+				for(long t : times.values())
+					min = Math.min(min, t);
+				assertEquals(min, queue.peekTime());
+				Integer due = queue.pollDue(time);
+				if(min <= time) {
+					assertNotNull(due);
+					assertEquals(min, times.remove(due).longValue());
+				} else {
+					assertNull(due);
+				}
+				break;
+			}
+			assertEquals(times.size(), queue.size());
+		}
+	}
+
+}
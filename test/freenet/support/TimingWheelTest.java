@@ -0,0 +1,115 @@
+package freenet.support;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class TimingWheelTest extends TestCase {
+
+	public void testExpiry() {
+		TimingWheel<Integer> wheel = new TimingWheel<Integer>(10, 2, 2, 1000);
+		List<Integer> expired = new ArrayList<Integer>();
+		wheel.schedule(1, 1010);
+		wheel.schedule(2, 1015);
+		wheel.schedule(3, 1100);
+		// Further than the wheel covers.
+		wheel.schedule(4, 5000);
+		assertEquals(4, wheel.size());
+		wheel.advance(1009, expired);
+		assertTrue(expired.isEmpty());
+		wheel.advance(1010, expired);
+		assertEquals(1, expired.size());
+		assertEquals(1, (int) expired.get(0));
+		// Never expires before the deadline.
+		wheel.advance(1019, expired);
+		assertEquals(1, expired.size());
+		wheel.advance(1020, expired);
+		assertEquals(2, expired.size());
+		assertEquals(2, (int) expired.get(1));
+		wheel.advance(1099, expired);
+		assertEquals(2, expired.size());
+		wheel.advance(1100, expired);
+		assertEquals(3, expired.size());
+		wheel.advance(4999, expired);
+		assertEquals(3, expired.size());
+		wheel.advance(5000, expired);
+		assertEquals(4, expired.size());
+		assertEquals(0, wheel.size());
+	}
+
+	public void testCancelAndReschedule() {
+		TimingWheel<Integer> wheel = new TimingWheel<Integer>(10, 2, 2, 0);
+		List<Integer> expired = new ArrayList<Integer>();
+		TimingWheel.Timer<Integer> a = wheel.schedule(1, 50);
+		TimingWheel.Timer<Integer> b = wheel.schedule(2, 50);
+		assertTrue(a.isScheduled());
+		assertTrue(wheel.cancel(a));
+		assertFalse(wheel.cancel(a));
+		assertFalse(a.isScheduled());
+		wheel.reschedule(b, 120);
+		assertEquals(1, wheel.size());
+		wheel.advance(100, expired);
+		assertTrue(expired.isEmpty());
+		// Deadline already passed, so expires on the next tick.
+		wheel.reschedule(a, 0);
+		wheel.advance(110, expired);
+		assertEquals(1, expired.size());
+		assertEquals(1, (int) expired.get(0));
+		assertFalse(a.isScheduled());
+		wheel.advance(120, expired);
+		assertEquals(2, expired.size());
+		assertEquals(2, (int) expired.get(1));
+		// Can reschedule after expiry.
+		wheel.reschedule(b, 130);
+		assertTrue(b.isScheduled());
+		wheel.advance(130, expired);
+		assertEquals(3, expired.size());
+	}
+
+	public void testTimeJump() {
+		TimingWheel<Integer> wheel = new TimingWheel<Integer>(10, 2, 2, 0);
+		List<Integer> expired = new ArrayList<Integer>();
+		wheel.schedule(1, 100);
+		wheel.schedule(2, 100000);
+		wheel.advance(50000, expired);
+		assertEquals(1, expired.size());
+		wheel.advance(99999, expired);
+		assertEquals(1, expired.size());
+		wheel.advance(100000, expired);
+		assertEquals(2, expired.size());
+	}
+
+	public void testRandom() {
+		Random random = new Random(1);
+		TimingWheel<Long> wheel = new TimingWheel<Long>(7, 3, 3, 0);
+		List<Long> expired = new ArrayList<Long>();
+		List<TimingWheel.Timer<Long>> timers = new ArrayList<TimingWheel.Timer<Long>>();
+		long now = 0;
+		int cancelled = 0;
+		for(int i=0;i<10000;i++) {
+			long deadline = now + random.nextInt(10000);
+			timers.add(wheel.schedule(deadline, deadline));
+			if(random.nextInt(10) == 0) {
+				if(wheel.cancel(timers.get(random.nextInt(timers.size())))) cancelled++;
+			}
+			if(random.nextInt(5) == 0) {
+				long prev = now;
+				now += random.nextInt(50);
+				int start = expired.size();
+				wheel.advance(now, expired);
+				for(int j=start;j<expired.size();j++) {
+					long d = expired.get(j);
+					// Not early, and not overdue at the previous advance.
+					assertTrue(d <= now);
+					assertTrue((d + 6) / 7 >= prev / 7);
+				}
+			}
+		}
+		wheel.advance(now + 10000, expired);
+		assertEquals(0, wheel.size());
+		assertEquals(10000, expired.size() + cancelled);
+	}
+
+}
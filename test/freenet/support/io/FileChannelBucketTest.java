@@ -0,0 +1,339 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import junit.framework.TestCase;
+import freenet.crypt.MasterSecret;
+import freenet.support.Executor;
+import freenet.support.SerialExecutor;
+import freenet.support.TestProperty;
+import freenet.support.io.TempBucketFactory.TempBucket;
+
+public class FileChannelBucketTest extends TestCase {
+
+	private static final long MIN_DISK_SPACE = 2*1024*1024;
+
+	static {
+		Security.addProvider(new BouncyCastleProvider());
+	}
+
+	private File base = new File("tmp.file-channel-bucket-test");
+	private Random random = new Random(4471);
+	private FilenameGenerator fg;
+	private SocketChannel client;
+	private SocketChannel server;
+
+	@Override
+	public void setUp() throws IOException {
+		base.mkdir();
+		fg = new FilenameGenerator(random, false, base, "junit");
+		connect();
+	}
+
+	@Override
+	public void tearDown() throws IOException {
+		disconnect();
+		FileUtil.removeAll(base);
+	}
+
+	private void connect() throws IOException {
+		ServerSocketChannel listener = ServerSocketChannel.open();
+		try {
+			listener.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+			client = SocketChannel.open(listener.socket().getLocalSocketAddress());
+			server = listener.accept();
+		} finally {
+			listener.close();
+		}
+	}
+
+	private void disconnect() throws IOException {
+		client.close();
+		server.close();
+	}
+
+	private byte[] randomData(int length) {
+		byte[] data = new byte[length];
+		random.nextBytes(data);
+		return data;
+	}
+
+	private FileBucket makeFileBucket(byte[] data) throws IOException {
+		FileBucket bucket = new FileBucket(File.createTempFile("test", ".tmp", base), false, false, false, true);
+		BucketTools.copyFrom(bucket, new ByteArrayInputStream(data), data.length);
+		return bucket;
+	}
+
+	/** Read everything the server side sends, on another thread. */
+	private class Reader extends Thread {
+		final ByteArrayOutputStream received = new ByteArrayOutputStream();
+		IOException failure;
+
+		@Override
+		public void run() {
+			ByteBuffer buf = ByteBuffer.allocate(65536);
+			try {
+				while(client.read(buf) >= 0) {
+					received.write(buf.array(), 0, buf.position());
+					buf.clear();
+				}
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+
+		byte[] finish() throws Exception {
+			server.shutdownOutput();
+			join();
+			if(failure != null) throw failure;
+			return received.toByteArray();
+		}
+	}
+
+	/** Write data to the server side, on another thread. */
+	private class Writer extends Thread {
+		final byte[] data;
+
+		Writer(byte[] data) {
+			this.data = data;
+		}
+
+		@Override
+		public void run() {
+			try {
+				client.write(ByteBuffer.wrap(data));
+			} catch (IOException e) {
+				// The test will fail.
+			}
+		}
+	}
+
+	private long transferAll(FileChannelBucket bucket, long offset, long length) throws IOException {
+		FileChannelBucket.Transfer transfer = bucket.openTransfer();
+		if(transfer == null) return -1;
+		try {
+			long sent = 0;
+			while(sent < length) {
+				long written = transfer.transferTo(offset + sent, length - sent, server);
+				if(written <= 0) return sent;
+				sent += written;
+			}
+			return sent;
+		} finally {
+			transfer.close();
+		}
+	}
+
+	public void testFileBucketTransferTo() throws Exception {
+		byte[] data = randomData(1024*1024+17);
+		FileBucket bucket = makeFileBucket(data);
+		Reader reader = new Reader();
+		reader.start();
+		assertEquals(data.length - 100, transferAll(bucket, 100, data.length - 100));
+		byte[] received = reader.finish();
+		assertTrue(Arrays.equals(Arrays.copyOfRange(data, 100, data.length), received));
+		bucket.free();
+	}
+
+	/** A transfer opens the file once, however many parts it is sent in. */
+	public void testTransferOpensOnce() throws Exception {
+		byte[] data = randomData(100000);
+		final int[] opened = new int[1];
+		FileBucket bucket = new FileBucket(File.createTempFile("test", ".tmp", base), false, false, false, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public synchronized InputStream getInputStreamUnbuffered() throws IOException {
+				opened[0]++;
+				return super.getInputStreamUnbuffered();
+			}
+		};
+		BucketTools.copyFrom(bucket, new ByteArrayInputStream(data), data.length);
+		Reader reader = new Reader();
+		reader.start();
+		FileChannelBucket.Transfer transfer = bucket.openTransfer();
+		long sent = 0;
+		while(sent < data.length)
+			sent += transfer.transferTo(sent, Math.min(1000, data.length - sent), server);
+		transfer.close();
+		assertTrue(Arrays.equals(data, reader.finish()));
+		assertEquals(1, opened[0]);
+		bucket.free();
+	}
+
+	public void testFileBucketTransferFrom() throws Exception {
+		byte[] data = randomData(1024*1024+17);
+		FileBucket bucket = makeFileBucket(new byte[10]);
+		Writer writer = new Writer(data);
+		writer.start();
+		assertTrue(bucket.transferFrom(server, data.length));
+		writer.join();
+		assertEquals(data.length, bucket.size());
+		assertTrue(Arrays.equals(data, BucketTools.toByteArray(bucket)));
+		bucket.free();
+	}
+
+	public void testTransferFromEOF() throws Exception {
+		FileBucket bucket = makeFileBucket(new byte[0]);
+		client.write(ByteBuffer.wrap(new byte[100]));
+		client.shutdownOutput();
+		try {
+			bucket.transferFrom(server, 200);
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+		bucket.free();
+	}
+
+	public void testTempBucket() throws Exception {
+		Executor exec = new SerialExecutor(NativeThread.NORM_PRIORITY);
+		TempBucketFactory tbf = new TempBucketFactory(exec, fg, 1024, 1024*1024, random, false, MIN_DISK_SPACE, new MasterSecret());
+		// In RAM, so use the streams.
+		TempBucket small = tbf.makeBucket(100, 2, 0);
+		assertTrue(small.isRAMBucket());
+		assertFalse(small.transferFrom(server, 100));
+		BucketTools.copyFrom(small, new ByteArrayInputStream(new byte[100]), 100);
+		assertNull(small.openTransfer());
+		small.free();
+		// On disk.
+		byte[] data = randomData(300000);
+		TempBucket big = tbf.makeBucket(data.length, 2, 0);
+		assertFalse(big.isRAMBucket());
+		Writer writer = new Writer(data);
+		writer.start();
+		assertTrue(big.transferFrom(server, data.length));
+		writer.join();
+		assertEquals(data.length, big.size());
+		assertTrue(Arrays.equals(data, BucketTools.toByteArray(big)));
+		Reader reader = new Reader();
+		reader.start();
+		assertEquals(data.length, transferAll(big, 0, data.length));
+		assertTrue(Arrays.equals(data, reader.finish()));
+		big.free();
+	}
+
+	public void testEncryptedTempBucket() throws Exception {
+		Executor exec = new SerialExecutor(NativeThread.NORM_PRIORITY);
+		TempBucketFactory tbf = new TempBucketFactory(exec, fg, 1024, 1024*1024, random, true, MIN_DISK_SPACE, new MasterSecret());
+		TempBucket big = tbf.makeBucket(300000, 2, 0);
+		assertFalse(big.isRAMBucket());
+		assertFalse(big.transferFrom(server, 300000));
+		BucketTools.copyFrom(big, new ByteArrayInputStream(new byte[300000]), 300000);
+		assertNull(big.openTransfer());
+		big.free();
+	}
+
+	public void testPooledRAFBucket() throws Exception {
+		byte[] data = randomData(100000);
+		File f = File.createTempFile("test", ".tmp", base);
+		PooledFileRandomAccessBuffer raf = new PooledFileRandomAccessBuffer(f, false, data.length, null, -1, true);
+		raf.pwrite(0, data, 0, data.length);
+		RAFBucket bucket = new RAFBucket(raf);
+		Reader reader = new Reader();
+		reader.start();
+		// Stops at the end of the file.
+		assertEquals(data.length - 1000, transferAll(bucket, 1000, data.length));
+		assertTrue(Arrays.equals(Arrays.copyOfRange(data, 1000, data.length), reader.finish()));
+		// Read only, so the caller falls back to the stream.
+		assertFalse(bucket.transferFrom(server, 10));
+		raf.close();
+		raf.free();
+	}
+
+	/** BucketTools uses the channel when the stream is one. */
+	public void testCopyFromChannelStream() throws Exception {
+		byte[] data = randomData(200000);
+		FileBucket bucket = makeFileBucket(new byte[0]);
+		class ChannelStream extends InputStream implements ReadableByteChannel {
+			@Override
+			public int read() throws IOException {
+				throw new IOException("Should have used the channel");
+			}
+			@Override
+			public int read(ByteBuffer buf) throws IOException {
+				return server.read(buf);
+			}
+			@Override
+			public boolean isOpen() {
+				return true;
+			}
+		}
+		ChannelStream is = new ChannelStream();
+		Writer writer = new Writer(data);
+		writer.start();
+		BucketTools.copyFrom(bucket, is, data.length);
+		writer.join();
+		assertTrue(Arrays.equals(data, BucketTools.toByteArray(bucket)));
+		bucket.free();
+	}
+
+	/* Loopback throughput of sending a file bucket through the streams as before, and with
+	 * transferTo() and transferFrom(). */
+	public void testBenchmark() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+
+		final int SIZE = 64*1024*1024;
+		byte[] data = randomData(SIZE);
+		FileBucket bucket = makeFileBucket(data);
+		data = null;
+		for(int i=0;i<3;i++) {
+			Reader reader = new Reader();
+			reader.start();
+			long start = System.nanoTime();
+			OutputStream os = server.socket().getOutputStream();
+			BucketTools.copyTo(bucket, os, SIZE);
+			long streamTime = System.nanoTime() - start;
+			reader.finish();
+			disconnect();
+			connect();
+
+			reader = new Reader();
+			reader.start();
+			start = System.nanoTime();
+			transferAll(bucket, 0, SIZE);
+			long transferTime = System.nanoTime() - start;
+			reader.finish();
+			disconnect();
+			connect();
+			System.out.println("Send: stream "+(SIZE * 1000L / streamTime)+" MB/s, transferTo "+(SIZE * 1000L / transferTime)+" MB/s");
+
+			byte[] toSend = new byte[SIZE];
+			Writer writer = new Writer(toSend);
+			writer.start();
+			start = System.nanoTime();
+			BucketTools.copyFrom(bucket, server.socket().getInputStream(), SIZE);
+			streamTime = System.nanoTime() - start;
+			writer.join();
+
+			writer = new Writer(toSend);
+			writer.start();
+			start = System.nanoTime();
+			bucket.transferFrom(server, SIZE);
+			transferTime = System.nanoTime() - start;
+			writer.join();
+			System.out.println("Receive: stream "+(SIZE * 1000L / streamTime)+" MB/s, transferFrom "+(SIZE * 1000L / transferTime)+" MB/s");
+		}
+		bucket.free();
+	}
+
+}